@@ -0,0 +1,235 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.HashMap;
+
+import org.mitre.provenance.EdgeMarking;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+
+/**
+ * A read-mostly view of a graph's structure in compressed sparse row form, for algorithms that walk the whole
+ * graph.  Nodes are numbered 0..countNodes()-1 and edges 0..countEdges()-1.  For each node, the edges leaving it
+ * and the edges entering it are contiguous runs of edge numbers, so following an edge is an array read instead of a
+ * map lookup, and no lists are built along the way.
+ *
+ * <p>Every edge of the graph is numbered, but only edges with both ends in the graph appear in the adjacency runs;
+ * the other end of a dangling edge is -1.  The markings of each edge are kept as bytes alongside.  Markings may be
+ * changed through {@link #setMarkings(int, EdgeMarking, EdgeMarking)}, which updates the edge as well; anything
+ * else about the graph must not change while the view is in use.
+ * @see LineageDAG#getCompactGraph()
+ * @author moxious
+ */
+public class CompactGraph {
+	/** The edge has no marking on that side. */
+	public static final byte MARK_NONE = 0;
+	public static final byte MARK_SHOW = 1;
+	public static final byte MARK_HIDE = 2;
+	public static final byte MARK_INFER = 3;
+	/** A marking other than the three standard ones. */
+	public static final byte MARK_OTHER = 4;
+
+	protected HashMap<String,Integer> index;
+	protected PLUSObject [] nodes;
+	protected PLUSEdge [] edges;
+
+	/** Node numbers of each edge's ends; -1 if that end isn't in the graph. */
+	protected int [] edgeFrom;
+	protected int [] edgeTo;
+
+	protected byte [] fromMarking;
+	protected byte [] toMarking;
+
+	/** The edges leaving node n are outEdges[outStart[n]] up to but not including outEdges[outStart[n+1]]. */
+	protected int [] outStart;
+	protected int [] outEdges;
+
+	/** The edges entering node n are inEdges[inStart[n]] up to but not including inEdges[inStart[n+1]]. */
+	protected int [] inStart;
+	protected int [] inEdges;
+
+	/**
+	 * Build a view of a graph.  Nodes are numbered in the graph's node order.  Each node's outbound edges keep the
+	 * order of the graph's adjacency lists; its inbound edges are ordered by the node they come from.
+	 * @param col the graph
+	 */
+	public CompactGraph(ProvenanceCollection col) {
+		int n = col.countNodes();
+		nodes = new PLUSObject[n];
+		index = new HashMap<String,Integer>(n * 2);
+
+		int x = 0;
+		for(PLUSObject o : col.getNodes()) {
+			nodes[x] = o;
+			index.put(o.getId(), x);
+			x++;
+		}
+
+		// Edges are numbered by their from node, in adjacency order.
+		int m = col.countEdges();
+		edges = new PLUSEdge[m];
+		edgeFrom = new int[m];
+		edgeTo = new int[m];
+		fromMarking = new byte[m];
+		toMarking = new byte[m];
+		outStart = new int[n + 1];
+		outEdges = new int[m];
+
+		int e = 0;
+		int [] inCount = new int[n];
+
+		for(x=0; x<n; x++) {
+			outStart[x] = e;
+
+			for(PLUSEdge edge : col.getOutboundEdgesByNode(nodes[x].getId())) {
+				int to = indexOf(edge.getTo());
+				add(e, edge, x, to);
+				outEdges[e] = e;
+				if(to >= 0) inCount[to]++;
+				e++;
+			}
+		} // End for
+
+		// Then dangling edges whose from side isn't in the graph.  They don't appear in any outbound run.
+		int internal = e;
+		for(PLUSEdge edge : col.getEdges()) {
+			if(indexOf(edge.getFrom()) >= 0) continue;
+			if(e >= m) break;
+
+			add(e, edge, -1, indexOf(edge.getTo()));
+			e++;
+		}
+
+		outStart[n] = internal;
+
+		// Edges pointing at nodes that aren't in the graph don't belong in outbound runs either.
+		int kept = 0;
+		for(x=0; x<n; x++) {
+			int start = outStart[x], end = outStart[x+1];
+			outStart[x] = kept;
+			for(int k=start; k<end; k++) {
+				if(edgeTo[outEdges[k]] >= 0) outEdges[kept++] = outEdges[k];
+			}
+		}
+		outStart[n] = kept;
+
+		inStart = new int[n + 1];
+		for(x=0; x<n; x++) inStart[x+1] = inStart[x] + inCount[x];
+
+		inEdges = new int[inStart[n]];
+		int [] fill = new int[n];
+		for(int k=0; k<outStart[n]; k++) {
+			int edge = outEdges[k];
+			int to = edgeTo[edge];
+			inEdges[inStart[to] + fill[to]++] = edge;
+		}
+	} // End CompactGraph
+
+	private void add(int e, PLUSEdge edge, int from, int to) {
+		edges[e] = edge;
+		edgeFrom[e] = from;
+		edgeTo[e] = to;
+		fromMarking[e] = encode(edge.getFromMarking());
+		toMarking[e] = encode(edge.getToMarking());
+	} // End add
+
+	private int indexOf(PLUSObject o) {
+		if(o == null) return -1;
+		Integer i = index.get(o.getId());
+		return (i == null ? -1 : i);
+	}
+
+	/**
+	 * Convert a marking to its byte form.
+	 * @param m the marking, which may be null
+	 * @return one of the MARK_ constants.
+	 */
+	public static byte encode(EdgeMarking m) {
+		if(m == null) return MARK_NONE;
+		if(m.isShow()) return MARK_SHOW;
+		if(m.isHide()) return MARK_HIDE;
+		if(m.isInfer()) return MARK_INFER;
+		return MARK_OTHER;
+	} // End encode
+
+	/** @return the node number of an OID, or -1 if it isn't in the graph. */
+	public int indexOf(String oid) {
+		Integer i = index.get(oid);
+		return (i == null ? -1 : i);
+	}
+
+	public int countNodes() { return nodes.length; }
+
+	/** @return the number of edges, including dangling ones. */
+	public int countEdges() { return edges.length; }
+
+	public PLUSObject getNode(int n) { return nodes[n]; }
+	public PLUSEdge getEdge(int e) { return edges[e]; }
+
+	/** @return the node number of an edge's from side, or -1 if it isn't in the graph. */
+	public int getFrom(int e) { return edgeFrom[e]; }
+
+	/** @return the node number of an edge's to side, or -1 if it isn't in the graph. */
+	public int getTo(int e) { return edgeTo[e]; }
+
+	/** @return the number of edges from this node to other nodes in the graph. */
+	public int outDegree(int n) { return outStart[n+1] - outStart[n]; }
+
+	/** @return the number of edges to this node from other nodes in the graph. */
+	public int inDegree(int n) { return inStart[n+1] - inStart[n]; }
+
+	/** @return the k'th edge leaving node n, for k from 0 to outDegree(n)-1. */
+	public int outEdge(int n, int k) { return outEdges[outStart[n] + k]; }
+
+	/** @return the k'th edge entering node n, for k from 0 to inDegree(n)-1. */
+	public int inEdge(int n, int k) { return inEdges[inStart[n] + k]; }
+
+	public byte getFromMarking(int e) { return fromMarking[e]; }
+	public byte getToMarking(int e) { return toMarking[e]; }
+
+	/**
+	 * The overall marking of an edge, decided the same way as PLUSEdge#getVerdict.
+	 * @return MARK_SHOW, MARK_HIDE or MARK_INFER.
+	 */
+	public byte getVerdict(int e) {
+		byte f = fromMarking[e], t = toMarking[e];
+
+		if(f == MARK_SHOW && t == MARK_SHOW) return MARK_SHOW;
+		if(f == MARK_NONE && t == MARK_NONE) return MARK_SHOW;
+		if(f == MARK_HIDE || t == MARK_HIDE) return MARK_HIDE;
+		if(f == MARK_INFER || t == MARK_INFER) return MARK_INFER;
+		return MARK_SHOW;
+	} // End getVerdict
+
+	/**
+	 * Set the markings of an edge, both here and on the edge itself.
+	 * @param e the edge number
+	 * @param from the marking for the from side
+	 * @param to the marking for the to side
+	 */
+	public void setMarkings(int e, EdgeMarking from, EdgeMarking to) {
+		edges[e].setFromMarking(from);
+		edges[e].setToMarking(to);
+		fromMarking[e] = encode(from);
+		toMarking[e] = encode(to);
+	} // End setMarkings
+
+	public String toString() {
+		return "CompactGraph: " + nodes.length + " nodes, " + edges.length + " edges, " +
+				outStart[nodes.length] + " internal";
+	}
+} // End CompactGraph
@@ -16,6 +16,8 @@ package org.mitre.provenance.dag;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.mitre.provenance.PLUSException;
@@ -44,12 +46,13 @@ public class DAGPath implements Cloneable {
 	} // End DAGPath
 	
 	/**
-	 * Find a new DAGPath from one point to another within a particular dag.  This will use depth-first search to locate the
-	 * path for you.  No guarantee that this is the shortest or best path in the DAG.
+	 * Find a new DAGPath from one point to another within a particular dag.  This will search from both ends at once
+	 * to locate a path with the fewest possible edges.  If there is no such path, the result won't exist.
 	 * @param dag the source DAG to use for finding the path.
 	 * @param from the starting point.
 	 * @param to the ending point
-	 * @throws PLUSException if the path does not exist in the DAG
+	 * @throws PLUSException if either end is missing from the DAG
+	 * @see DAGPath#exists()
 	 */
 	public DAGPath(LineageDAG dag, PLUSObject from, PLUSObject to) throws PLUSException {		
 		this.sourceDAG = dag;
@@ -64,8 +67,9 @@ public class DAGPath implements Cloneable {
 		String t = edge.getTo().getId();
 		
 		for(PathStep ps : steps) {
-			if(ps.getOutboundEdge().getFrom().equals(f) && 
-			   ps.getOutboundEdge().getTo().equals(t)) return true; 
+			if(ps.getOutboundEdge() == null) continue;   // The last step, at the end of the path.
+			if(ps.getOutboundEdge().getFrom().getId().equals(f) && 
+			   ps.getOutboundEdge().getTo().getId().equals(t)) return true; 
 		}
 		
 		return false;
@@ -167,36 +171,128 @@ public class DAGPath implements Cloneable {
 		return contains(obj.getId()); 
 	}
 	
+	/**
+	 * Find a path with the fewest edges by breadth-first search from both ends, always growing whichever side has
+	 * the smaller frontier.  The DAG's reachability index is checked first, so no search is done when there's no path.
+	 * @return the steps of the path, one per edge, followed by a step at the end node with no outbound edge; or an empty
+	 * list if there is no path.
+	 */
 	private List <PathStep> findPath(PLUSObject from, PLUSObject to) throws PLUSException { 		
 		if(sourceDAG.getNode(from.getId()) == null) throw new PLUSException("DAGPath: Node " + from.getName() + " missing from DAG");		
 		if(sourceDAG.getNode(to.getId()) == null) throw new PLUSException("DAGPath: Node " + to.getName() + " missing from DAG"); 
 
 		List <PathStep> result = new ArrayList <PathStep> ();
-		List <PLUSEdge> edges = sourceDAG.getOutboundEdgesByNode(from.getId());
-		
-		for(PLUSEdge e : edges) { 
-			if(e.getTo().equals(to.getId())) {
-				result.add(new PathStep(from, e));
-				result.add(new PathStep(to, null));
-				return result;
-			} // End if
-		} // End for
+		if(!sourceDAG.reaches(from, to)) return result;
 		
-		for(PLUSEdge e : edges) {  
-			PLUSObject nextNode = sourceDAG.getNode(e.getTo().getId());
-			if(nextNode == null) continue; 
+		if(from.getId().equals(to.getId())) {
+			// A path back to the same node goes around a cycle:  take one edge onto it, then find the way back.
+			for(PLUSEdge e : sourceDAG.getOutboundEdgesByNode(from.getId())) {
+				PLUSObject next = sourceDAG.getNode(e.getTo().getId());
+				if(next == null) continue;
+				
+				if(next.getId().equals(from.getId())) { 
+					result.add(new PathStep(from, e));
+					result.add(new PathStep(from, null));
+					return result;
+				}
+				
+				if(sourceDAG.reaches(next, from)) { 
+					result.add(new PathStep(from, e));
+					result.addAll(findPath(next, from));
+					return result;
+				}
+			} // End for
 			
-			List <PathStep> recursed = findPath(nextNode, to);
-			if(recursed == null || recursed.size() == 0) continue;
-			else { 
-				for(PathStep ps : recursed) result.add(ps);  
-				return result;
-			}
+			return result;
+		} // End if
+		
+		// Maps each node found to the edge it was found through.
+		HashMap<String,PLUSEdge> fromHead = new HashMap<String,PLUSEdge>();
+		HashMap<String,PLUSEdge> toTail = new HashMap<String,PLUSEdge>();
+		fromHead.put(from.getId(), null);
+		toTail.put(to.getId(), null);
+		
+		// Maps each node found to the number of edges between it and the end it was found from.
+		HashMap<String,Integer> headDepth = new HashMap<String,Integer>();
+		HashMap<String,Integer> tailDepth = new HashMap<String,Integer>();
+		headDepth.put(from.getId(), 0);
+		tailDepth.put(to.getId(), 0);
+		
+		List<String> forward = new ArrayList<String>();
+		List<String> backward = new ArrayList<String>();
+		forward.add(from.getId());
+		backward.add(to.getId());
+		
+		String meet = null;
+		while(meet == null && !forward.isEmpty() && !backward.isEmpty()) { 
+			if(forward.size() <= backward.size()) meet = expand(forward, fromHead, headDepth, tailDepth, true);
+			else meet = expand(backward, toTail, tailDepth, headDepth, false);
+		}
+		
+		if(meet == null) return result;
+		
+		LinkedList<PathStep> path = new LinkedList<PathStep>();
+		
+		String cur = meet;
+		while(!cur.equals(from.getId())) { 
+			PLUSEdge e = fromHead.get(cur);
+			cur = e.getFrom().getId();
+			path.addFirst(new PathStep(sourceDAG.getNode(cur), e));
+		}
+		
+		cur = meet;
+		while(!cur.equals(to.getId())) { 
+			PLUSEdge e = toTail.get(cur);
+			path.addLast(new PathStep(sourceDAG.getNode(cur), e));
+			cur = e.getTo().getId();
 		}
 		
-		return null;
+		path.addLast(new PathStep(sourceDAG.getNode(to.getId()), null));
+		result.addAll(path);
+		return result;
 	} // End findPath
 	
+	/**
+	 * Move one search frontier a full level forwards (or backwards).  Every node in the new level is at the same
+	 * distance from this side, but the other side may have found them at different levels; so the whole level is
+	 * expanded, and the meeting node nearest the other end is chosen.
+	 * @param frontier the nodes found last time; replaced with the nodes found this time.
+	 * @param mine the nodes this side has found, with the edge each was found through.
+	 * @param myDepth the number of edges between each node this side has found and its end.
+	 * @param theirDepth the same, for the nodes the other side has found.
+	 * @param outbound true to follow edges forwards, false to follow them backwards.
+	 * @return the node both sides have found that gives the shortest path, or null if there isn't one yet.
+	 */
+	private String expand(List<String> frontier, HashMap<String,PLUSEdge> mine, HashMap<String,Integer> myDepth, 
+			              HashMap<String,Integer> theirDepth, boolean outbound) { 
+		List<String> next = new ArrayList<String>();
+		String meet = null;
+		
+		for(String oid : frontier) { 
+			List<PLUSEdge> edges = (outbound ? sourceDAG.getOutboundEdgesByNode(oid) : sourceDAG.getInboundEdgesByNode(oid));
+			int depth = myDepth.get(oid) + 1;
+			
+			for(PLUSEdge e : edges) { 
+				PLUSObject other = (outbound ? e.getTo() : e.getFrom());
+				if(other == null || sourceDAG.getNode(other.getId()) == null) continue;
+				
+				String id = other.getId();
+				if(mine.containsKey(id)) continue;
+				
+				mine.put(id, e);
+				myDepth.put(id, depth);
+				next.add(id);
+				
+				Integer theirs = theirDepth.get(id);
+				if(theirs != null && (meet == null || theirs < theirDepth.get(meet))) meet = id;
+			}
+		} // End for
+		
+		frontier.clear();
+		frontier.addAll(next);
+		return meet;
+	} // End expand
+	
 	public String toString() { 
 		StringBuffer buf = new StringBuffer("");
 		
@@ -221,13 +317,6 @@ public class DAGPath implements Cloneable {
 	 * @return true if a path exists from the starting node to the ending node under the specified DAG.  False otherwise.
 	 */
 	public static boolean pathExists(LineageDAG dag, PLUSObject from, PLUSObject to) { 
-		try { 
-			DAGPath path = new DAGPath(dag, from, to);
-			return path.getLength() > 0; 
-		} catch(Exception e) { 
-			e.printStackTrace();
-		}
-		
-		return false;
+		return dag.reaches(from, to);
 	} // End pathExists	
 } // End 
@@ -0,0 +1,211 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.user.User;
+
+/**
+ * Runs the steps that turn freshly discovered provenance into a finished LineageDAG:  edge voting, taint tracing,
+ * drawing inferred edges, tagging heads and feet, and detecting dangling edges.
+ *
+ * <p>Work that is independent per edge (voting, dangler detection) is split across a ForkJoin pool shared by every
+ * DAG being built, and taint tracing runs on the pool while inferred edges are drawn on the calling thread.  Workers
+ * only ever write their own slots of result arrays; every change to the DAG itself, and every fingerprint timer, is
+ * made on the calling thread in the same order as a sequential run.  So parallel and sequential runs produce the same
+ * DAG, as long as surrogate edge voters don't depend on the order they're asked in.
+ *
+ * <p>For debugging, everything can be run on the calling thread with {@link #setSequential(boolean)}, or by starting
+ * the JVM with -Dplus.dag.sequential=true.
+ * @see Neo4JPLUSObjectFactory#newDAG(String, org.mitre.provenance.user.User, TraversalSettings)
+ * @author moxious
+ */
+public class DAGPipeline {
+	private static final Logger log = Logger.getLogger(DAGPipeline.class.getName());
+
+	/** Ranges of at most this many items are run as a single task. */
+	public static final int GRAIN = 512;
+
+	private static boolean sequential = Boolean.getBoolean("plus.dag.sequential");
+	private static ForkJoinPool pool = null;
+
+	/** Work on a contiguous part of a range of items. */
+	public static abstract class Range {
+		/**
+		 * Process items from (inclusive) up to to (exclusive).  This may be called on any thread, and at the same time
+		 * as other parts of the range.
+		 */
+		public abstract void run(int from, int to);
+	} // End Range
+
+	private static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Range range;
+		final int from, to;
+
+		RangeTask(Range range, int from, int to) {
+			this.range = range;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= GRAIN) {
+				range.run(from, to);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new RangeTask(range, from, middle), new RangeTask(range, middle, to));
+		} // End compute
+	} // End RangeTask
+
+	/** @return true if every step runs on the calling thread. */
+	public static boolean isSequential() { return sequential; }
+
+	/**
+	 * Choose whether DAGs are built on the calling thread only.
+	 * @param runSequentially if true, nothing is handed to the shared pool.
+	 */
+	public static void setSequential(boolean runSequentially) { sequential = runSequentially; }
+
+	/** @return the pool shared by all DAGs, created on first use with one thread per processor. */
+	protected static synchronized ForkJoinPool getPool() {
+		if(pool == null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Process items 0 up to count, splitting the range across the shared pool if it's big enough to be worth it.
+	 * Returns when every item is done.
+	 * @param count the number of items
+	 * @param range the work to do
+	 */
+	public static void forRange(int count, Range range) {
+		if(sequential || count <= GRAIN) {
+			range.run(0, count);
+			return;
+		}
+
+		getPool().invoke(new RangeTask(range, 0, count));
+	} // End forRange
+
+	/**
+	 * Start a computation that may run alongside the calling thread.  In sequential mode, it's run immediately.
+	 * @param work the computation
+	 * @return a task whose join() returns the result.
+	 */
+	protected static <T> ForkJoinTask<T> fork(Callable<T> work) {
+		if(!sequential) return getPool().submit(work);
+
+		ForkJoinTask<T> task = ForkJoinTask.adapt(work);
+		task.invoke();
+		return task;
+	} // End fork
+
+	/**
+	 * Compute the preferred surrogate of each of a list of objects that a user may not see.  Objects whose SGFs are all
+	 * thread safe are handed to the shared pool; the rest, such as those whose SGFs read the database, are computed 
+	 * on the calling thread, inside any transaction it holds.
+	 * @param hidden the objects to stand in for
+	 * @param user the user the surrogates are for
+	 * @return a list the same length as hidden, whose entries are the surrogates in the same order.  An entry is null
+	 * if the object at that position has no surrogate suitable for the user.
+	 * @throws PLUSException the first error in list order, if computing any surrogate failed.
+	 * @see PLUSObject#getPreferredSurrogate(User)
+	 */
+	public static List<PLUSObject> resolveSurrogates(final List<PLUSObject> hidden, final User user) throws PLUSException {
+		final PLUSObject [] results = new PLUSObject[hidden.size()];
+		final PLUSException [] errors = new PLUSException[hidden.size()];
+		final boolean [] pooled = new boolean[hidden.size()];
+
+		for(int x=0; x<hidden.size(); x++) pooled[x] = hidden.get(x).hasThreadSafeSGFs();
+
+		forRange(hidden.size(), new Range() {
+			public void run(int from, int to) {
+				for(int x=from; x<to; x++) {
+					if(!pooled[x]) continue;
+
+					try {
+						results[x] = hidden.get(x).getPreferredSurrogate(user);
+					} catch(PLUSException exc) {
+						errors[x] = exc;
+					}
+				}
+			}
+		});
+
+		for(int x=0; x<hidden.size(); x++) {
+			if(pooled[x]) continue;
+
+			try {
+				results[x] = hidden.get(x).getPreferredSurrogate(user);
+			} catch(PLUSException exc) {
+				errors[x] = exc;
+			}
+		}
+
+		for(PLUSException exc : errors)
+			if(exc != null) throw exc;
+
+		return new ArrayList<PLUSObject>(Arrays.asList(results));
+	} // End resolveSurrogates
+
+	/**
+	 * Run the surrogate algorithm and the other finishing steps over a DAG.
+	 * @param dag the DAG, which is modified
+	 * @return the same DAG.
+	 * @throws PLUSException
+	 */
+	public static LineageDAG run(LineageDAG dag) throws PLUSException {
+		LineageDAG.computeEdgeVoting(dag);
+
+		// Taint only follows structure, so it is traced over the graph as voting left it while inferred edges are
+		// drawn.  Drawing changes the DAG but not that graph.
+		final Set<String> sources = Neo4JPLUSObjectFactory.getTaintSources(dag).keySet();
+		final CompactGraph graph = dag.getCompactGraph();
+
+		dag.getFingerPrint().startTimer("TraceTaintSources");
+		ForkJoinTask<TaintIndex> taint = fork(new Callable<TaintIndex>() {
+			public TaintIndex call() { return new TaintIndex(graph, sources); }
+		});
+
+		LineageDAG.drawInferrableEdges(dag);
+
+		dag.setTaint(taint.join());
+		dag.getFingerPrint().stopTimer("TraceTaintSources");
+
+		LineageDAG.tagHeadAndFeet(dag);
+
+		List<PLUSEdge> danglers = LineageDAG.detectDanglers(dag);
+		if(danglers.size() > 0)
+			log.warning("Collection " + dag + " contains " + danglers.size() + " dangling edges.");
+
+		return dag;
+	} // End run
+} // End DAGPipeline
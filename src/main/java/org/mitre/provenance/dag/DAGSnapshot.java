@@ -0,0 +1,450 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.EdgeMarking;
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSActor;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.tools.PersistentMap;
+import org.mitre.provenance.user.User;
+
+/**
+ * An immutable copy of a LineageDAG.  Taking a snapshot copies the DAG once; after that, every "with" and "without"
+ * method returns a new snapshot that shares everything but the changed entries with this one, so deriving a view
+ * costs time proportional to the change rather than to the graph.  The snapshot it was derived from is unchanged.
+ *
+ * <p>Snapshots are built on {@link PersistentMap}, and nothing in them is modified once built, so a snapshot can be
+ * handed to any number of threads and read without locking.  The same goes for a snapshot's objects, as long as
+ * nobody modifies them:  nodes and actors are shared with the DAG the snapshot was taken from, and edges are shared
+ * by every view derived from the snapshot, so everything the accessors return must be treated as read-only.  To
+ * change something, derive a view with the "with" methods, or call toLineageDAG().  Edges are copied when the
+ * snapshot is taken, so later changes to the DAG's edge markings don't show through, and derived views with
+ * different markings get copies of their own.
+ *
+ * <p>Taint is what the source DAG traced when the snapshot was taken; it isn't recomputed for derived views.
+ * @see LineageDAG#snapshot()
+ * @author moxious
+ */
+public class DAGSnapshot {
+	private static final Logger log = Logger.getLogger(DAGSnapshot.class.getName());
+
+	protected final String id;
+	protected final User viewer;
+	protected final String focus;
+
+	protected final PersistentMap<String,PLUSObject> nodes;
+
+	/** Edges by "from->to", as in ProvenanceCollection. */
+	protected final PersistentMap<String,PLUSEdge> edges;
+
+	/** For each node, its outbound edges by the OID they lead to. */
+	protected final PersistentMap<String,PersistentMap<String,PLUSEdge>> outbound;
+
+	/** For each node, its inbound edges by the OID they come from. */
+	protected final PersistentMap<String,PersistentMap<String,PLUSEdge>> inbound;
+
+	protected final PersistentMap<String,NonProvenanceEdge> npes;
+	protected final PersistentMap<String,PLUSActor> actors;
+
+	/** Tags set on each node, not counting taint. */
+	protected final PersistentMap<String,PersistentMap<String,String>> tags;
+
+	protected final PersistentMap<String,Object> metadata;
+	protected final TaintIndex taint;
+
+	protected DAGSnapshot(String id, User viewer, String focus, PersistentMap<String,PLUSObject> nodes,
+			PersistentMap<String,PLUSEdge> edges, PersistentMap<String,PersistentMap<String,PLUSEdge>> outbound,
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> inbound, PersistentMap<String,NonProvenanceEdge> npes,
+			PersistentMap<String,PLUSActor> actors, PersistentMap<String,PersistentMap<String,String>> tags,
+			PersistentMap<String,Object> metadata, TaintIndex taint) {
+		this.id = id;
+		this.viewer = viewer;
+		this.focus = focus;
+		this.nodes = nodes;
+		this.edges = edges;
+		this.outbound = outbound;
+		this.inbound = inbound;
+		this.npes = npes;
+		this.actors = actors;
+		this.tags = tags;
+		this.metadata = metadata;
+		this.taint = taint;
+	} // End DAGSnapshot
+
+	/** Copy of this snapshot with different graph contents. */
+	private DAGSnapshot derive(PersistentMap<String,PLUSObject> nodes, PersistentMap<String,PLUSEdge> edges,
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> outbound,
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> inbound,
+			PersistentMap<String,PersistentMap<String,String>> tags, String focus) {
+		return derive(nodes, edges, outbound, inbound, npes, tags, focus);
+	}
+
+	/** Copy of this snapshot with different graph contents, including its non-provenance edges. */
+	private DAGSnapshot derive(PersistentMap<String,PLUSObject> nodes, PersistentMap<String,PLUSEdge> edges,
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> outbound,
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> inbound, PersistentMap<String,NonProvenanceEdge> npes,
+			PersistentMap<String,PersistentMap<String,String>> tags, String focus) {
+		return new DAGSnapshot(id, viewer, focus, nodes, edges, outbound, inbound, npes, actors, tags, metadata, taint);
+	}
+
+	/**
+	 * Take a snapshot of a DAG.  This copies the whole DAG, once.
+	 * @param dag the DAG to copy
+	 * @return a snapshot of its current contents.
+	 */
+	public static DAGSnapshot of(LineageDAG dag) {
+		PersistentMap<String,PLUSObject> nodes = PersistentMap.empty();
+		for(PLUSObject o : dag.getNodes()) nodes = nodes.plus(o.getId(), o);
+
+		PersistentMap<String,PLUSEdge> edges = PersistentMap.empty();
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> outbound = PersistentMap.empty();
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> inbound = PersistentMap.empty();
+
+		for(PLUSEdge e : dag.getEdges()) {
+			PLUSEdge copy = e.clone();
+			String from = copy.getFrom().getId(), to = copy.getTo().getId();
+			edges = edges.plus(key(from, to), copy);
+			outbound = outbound.plus(from, adjacent(outbound, from).plus(to, copy));
+			inbound = inbound.plus(to, adjacent(inbound, to).plus(from, copy));
+		}
+
+		PersistentMap<String,NonProvenanceEdge> npes = PersistentMap.empty();
+		for(NonProvenanceEdge npe : dag.getNonProvenanceEdges()) npes = npes.plus(key(npe.getFrom(), npe.getTo()), npe);
+
+		PersistentMap<String,PLUSActor> actors = PersistentMap.empty();
+		for(PLUSActor a : dag.getActors()) actors = actors.plus(a.getId(), a);
+
+		PersistentMap<String,PersistentMap<String,String>> tags = PersistentMap.empty();
+		for(String oid : dag.getAssignedTaggedNodes()) {
+			Map<String,String> t = dag.getAssignedTags(oid);
+			if(!t.isEmpty()) tags = tags.plus(oid, PersistentMap.of(t));
+		}
+
+		PersistentMap<String,Object> metadata = PersistentMap.of(dag.getMetadata());
+		String focus = (dag.getFocus() == null ? null : dag.getFocus().getId());
+
+		return new DAGSnapshot(dag.getId(), dag.getViewer(), focus, nodes, edges, outbound, inbound, npes, actors,
+				tags, metadata, dag.taint);
+	} // End of
+
+	private static String key(String fromOID, String toOID) { return fromOID + "->" + toOID; }
+
+	private static <T> PersistentMap<String,T> adjacent(PersistentMap<String,PersistentMap<String,T>> index, String oid) {
+		PersistentMap<String,T> m = index.get(oid);
+		return (m == null ? PersistentMap.<String,T>empty() : m);
+	}
+
+	/**
+	 * Rebuild an ordinary DAG from this snapshot, for code that needs one.  This copies the whole snapshot.
+	 * @return a new LineageDAG with this snapshot's contents.
+	 */
+	public LineageDAG toLineageDAG() {
+		LineageDAG dag = new LineageDAG(viewer);
+		dag.setId(id);
+
+		for(PLUSObject o : nodes.values()) dag.addNode(o);
+		for(PLUSEdge e : edges.values()) dag.addEdge(e.clone());
+		for(NonProvenanceEdge npe : npes.values()) dag.addNonProvenanceEdge(npe);
+		for(PLUSActor a : actors.values()) dag.addActor(a);
+
+		for(Map.Entry<String,PersistentMap<String,String>> t : tags) {
+			for(Map.Entry<String,String> tag : t.getValue()) dag.tagNode(t.getKey(), tag.getKey(), tag.getValue());
+		}
+
+		for(Map.Entry<String,Object> m : metadata) dag.getMetadata().put(m.getKey(), m.getValue());
+		dag.setTaint(taint);
+		if(getFocus() != null) dag.setFocus(getFocus());
+
+		return dag;
+	} // End toLineageDAG
+
+	public String getId() { return id; }
+	public User getViewer() { return viewer; }
+
+	/** @return the focus node, or null if there is none or it has been removed. */
+	public PLUSObject getFocus() { return (focus == null ? null : nodes.get(focus)); }
+
+	public int countNodes() { return nodes.size(); }
+	public int countEdges() { return edges.size(); }
+	public int countNPEs() { return npes.size(); }
+	public int countActors() { return actors.size(); }
+
+	public boolean containsObjectID(String oid) { return nodes.containsKey(oid); }
+
+	/** @return the node with the given OID, or null if it isn't in the snapshot.  The node is shared; don't modify it. */
+	public PLUSObject getNode(String oid) { return nodes.get(oid); }
+
+	/** @return a read-only view of the nodes.  The nodes are shared; don't modify them. */
+	public Collection<PLUSObject> getNodes() { return nodes.values(); }
+
+	/** @return a read-only view of the edges.  The edges are shared with derived views; don't modify them. */
+	public Collection<PLUSEdge> getEdges() { return edges.values(); }
+
+	/** @return a read-only view of the non-provenance edges. */
+	public Collection<NonProvenanceEdge> getNonProvenanceEdges() { return npes.values(); }
+
+	/** @return a read-only view of the actors. */
+	public Collection<PLUSActor> getActors() { return actors.values(); }
+
+	public PLUSActor getActor(String aid) { return actors.get(aid); }
+
+	/** 
+	 * @return the edge between two nodes, or null if there is none.  The edge is shared with derived views; don't 
+	 * modify it, use withEdgeMarkings() instead.
+	 */
+	public PLUSEdge getEdge(String fromOID, String toOID) { return edges.get(key(fromOID, toOID)); }
+
+	/** @return the edges entering a node, in a new list.  The edges are shared; don't modify them. */
+	public List<PLUSEdge> getInboundEdgesByNode(String oid) {
+		return new ArrayList<PLUSEdge>(adjacent(inbound, oid).values());
+	}
+
+	/** @return the edges leaving a node, in a new list.  The edges are shared; don't modify them. */
+	public List<PLUSEdge> getOutboundEdgesByNode(String oid) {
+		return new ArrayList<PLUSEdge>(adjacent(outbound, oid).values());
+	}
+
+	/**
+	 * Return the tags associated with a node, including its taint tags.
+	 * @see LineageDAG#getTags(String)
+	 * @return a new map, which may be changed freely.
+	 */
+	public HashMap<String,String> getTags(String oid) {
+		HashMap<String,String> all = taint.getTags(oid);
+		PersistentMap<String,String> t = tags.get(oid);
+		if(t != null) all.putAll(t.asMap());
+		return all;
+	} // End getTags
+
+	public boolean hasTag(String oid, String tag) { return getTags(oid).containsKey(tag); }
+
+	public boolean isTainted(String oid) { return taint.isTainted(oid); }
+
+	/** @return the OIDs of the taint sources reaching a node. */
+	public String [] getTaintSources(String oid) { return taint.getSources(oid); }
+
+	/** @return a read-only view of the DAG's metadata as it was when the snapshot was taken. */
+	public Map<String,Object> getMetadata() { return Collections.unmodifiableMap(metadata.asMap()); }
+
+	/**
+	 * Derive a view with a node added.  If a node with the same OID is already present, it is replaced, and the edges
+	 * touching it are moved over to the new node; this is how a surrogate is substituted for an object.
+	 * @param obj the node
+	 * @return the new snapshot, or this one if obj is already present.
+	 */
+	public DAGSnapshot withNode(PLUSObject obj) {
+		String oid = obj.getId();
+		PLUSObject old = nodes.get(oid);
+		if(old == obj) return this;
+
+		PersistentMap<String,PLUSObject> n = nodes.plus(oid, obj);
+		if(old == null) return derive(n, edges, outbound, inbound, tags, focus);
+
+		PersistentMap<String,PLUSEdge> e = edges;
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> out = outbound;
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> in = inbound;
+
+		for(PLUSEdge edge : getEdgesTouching(oid)) {
+			PLUSEdge copy = edge.clone();
+			if(copy.getFrom().getId().equals(oid)) copy.setFrom(obj);
+			if(copy.getTo().getId().equals(oid)) copy.setTo(obj);
+
+			String from = copy.getFrom().getId(), to = copy.getTo().getId();
+			e = e.plus(key(from, to), copy);
+			out = out.plus(from, adjacent(out, from).plus(to, copy));
+			in = in.plus(to, adjacent(in, to).plus(from, copy));
+		}
+
+		return derive(n, e, out, in, tags, focus);
+	} // End withNode
+
+	/** @return the edges entering or leaving a node, with a self-loop counted once. */
+	private List<PLUSEdge> getEdgesTouching(String oid) {
+		List<PLUSEdge> result = getInboundEdgesByNode(oid);
+		for(PLUSEdge e : adjacent(outbound, oid).values()) {
+			if(!oid.equals(e.getTo().getId())) result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Derive a view without a node, its edges, the non-provenance edges from or to it, or its tags.
+	 * @param oid the node's OID
+	 * @return the new snapshot, or this one if the node isn't present.
+	 */
+	public DAGSnapshot withoutNode(String oid) {
+		if(!nodes.containsKey(oid)) return this;
+
+		PersistentMap<String,PLUSEdge> e = edges;
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> out = outbound;
+		PersistentMap<String,PersistentMap<String,PLUSEdge>> in = inbound;
+
+		for(PLUSEdge edge : getEdgesTouching(oid)) {
+			String from = edge.getFrom().getId(), to = edge.getTo().getId();
+			e = e.minus(key(from, to));
+			out = unindex(out, from, to);
+			in = unindex(in, to, from);
+		}
+
+		PersistentMap<String,NonProvenanceEdge> n = npes;
+		for(Map.Entry<String,NonProvenanceEdge> entry : npes) {
+			NonProvenanceEdge npe = entry.getValue();
+			if(oid.equals(npe.getFrom()) || oid.equals(npe.getTo())) n = n.minus(entry.getKey());
+		}
+
+		return derive(nodes.minus(oid), e, out, in, n, tags.minus(oid), (oid.equals(focus) ? null : focus));
+	} // End withoutNode
+
+	/** Remove one entry from an adjacency index, dropping the node's map once it's empty. */
+	private static PersistentMap<String,PersistentMap<String,PLUSEdge>> unindex(
+			PersistentMap<String,PersistentMap<String,PLUSEdge>> index, String oid, String other) {
+		PersistentMap<String,PLUSEdge> m = index.get(oid);
+		if(m == null) return index;
+
+		m = m.minus(other);
+		return (m.isEmpty() ? index.minus(oid) : index.plus(oid, m));
+	} // End unindex
+
+	/**
+	 * Derive a view with an edge added, replacing any edge between the same two nodes.  Both ends must already be in
+	 * the snapshot; the edge is connected to the snapshot's version of each.
+	 * @param edge the edge
+	 * @return the new snapshot, or this one if an end is missing.
+	 */
+	public DAGSnapshot withEdge(PLUSEdge edge) {
+		PLUSObject from = nodes.get(edge.getFrom().getId());
+		PLUSObject to = nodes.get(edge.getTo().getId());
+
+		if(from == null || to == null) {
+			log.warning("Not adding edge " + edge + " to snapshot " + id + " because an end is missing.");
+			return this;
+		}
+
+		PLUSEdge copy = edge.clone();
+		copy.setFrom(from);
+		copy.setTo(to);
+
+		String f = from.getId(), t = to.getId();
+		return derive(nodes, edges.plus(key(f, t), copy), outbound.plus(f, adjacent(outbound, f).plus(t, copy)),
+				inbound.plus(t, adjacent(inbound, t).plus(f, copy)), tags, focus);
+	} // End withEdge
+
+	/**
+	 * Derive a view without the edge between two nodes.
+	 * @return the new snapshot, or this one if there is no such edge.
+	 */
+	public DAGSnapshot withoutEdge(String fromOID, String toOID) {
+		if(!edges.containsKey(key(fromOID, toOID))) return this;
+
+		return derive(nodes, edges.minus(key(fromOID, toOID)), unindex(outbound, fromOID, toOID),
+				unindex(inbound, toOID, fromOID), tags, focus);
+	} // End withoutEdge
+
+	/**
+	 * Derive a view in which an edge carries different markings, e.g. to see what a surrogate policy would do.
+	 * @param fromOID the edge's from end
+	 * @param toOID the edge's to end
+	 * @param fromMarking the new marking on the from end
+	 * @param toMarking the new marking on the to end
+	 * @return the new snapshot, or this one if there is no such edge.
+	 */
+	public DAGSnapshot withEdgeMarkings(String fromOID, String toOID, EdgeMarking fromMarking, EdgeMarking toMarking) {
+		PLUSEdge e = getEdge(fromOID, toOID);
+		if(e == null) return this;
+
+		PLUSEdge copy = e.clone();
+		copy.setFromMarking(fromMarking);
+		copy.setToMarking(toMarking);
+		return withEdge(copy);
+	} // End withEdgeMarkings
+
+	/**
+	 * Derive a view with a tag set on a node.
+	 * @return the new snapshot, or this one if the tag already has that value.
+	 */
+	public DAGSnapshot withTag(String oid, String tag, String value) {
+		PersistentMap<String,String> t = tags.get(oid);
+		if(t == null) t = PersistentMap.empty();
+
+		PersistentMap<String,String> changed = t.plus(tag, value);
+		if(changed == t) return this;
+		return derive(nodes, edges, outbound, inbound, tags.plus(oid, changed), focus);
+	} // End withTag
+
+	/**
+	 * Derive a view with a tag removed from a node.  Taint tags can't be removed.
+	 * @return the new snapshot, or this one if the node didn't have the tag.
+	 */
+	public DAGSnapshot withoutTag(String oid, String tag) {
+		PersistentMap<String,String> t = tags.get(oid);
+		if(t == null || !t.containsKey(tag)) return this;
+
+		t = t.minus(tag);
+		return derive(nodes, edges, outbound, inbound, (t.isEmpty() ? tags.minus(oid) : tags.plus(oid, t)), focus);
+	} // End withoutTag
+
+	/**
+	 * Derive the view of another user.  Each node the user can't see is replaced with its preferred surrogate for
+	 * them, or left out along with its edges if there is none; everything else is shared with this snapshot.  This
+	 * only narrows what a snapshot shows, so derive from a snapshot taken for a user who can see at least as much.  
+	 * Edges a surrogate policy would infer around a node that is left out aren't drawn; use newDAG for those.
+	 * @param user the user the view is for
+	 * @return the new snapshot, which reports user as its viewer.
+	 * @throws PLUSException if a surrogate can't be computed
+	 * @see PLUSObject#getVersionSuitableFor(User)
+	 */
+	public DAGSnapshot forViewer(User user) throws PLUSException {
+		DAGSnapshot view = new DAGSnapshot(id, user, focus, nodes, edges, outbound, inbound, npes, actors, tags, metadata, taint);
+
+		for(PLUSObject o : nodes.values()) {
+			PLUSObject suitable = o.getVersionSuitableFor(user);
+
+			if(suitable == null) view = view.withoutNode(o.getId());
+			else if(suitable != o) view = view.withNode(suitable);
+		}
+
+		return view;
+	} // End forViewer
+
+	/**
+	 * Derive a view focused on a different node.
+	 * @param oid the OID of the new focus, which must be in the snapshot; or null for no focus.
+	 * @return the new snapshot.
+	 */
+	public DAGSnapshot withFocus(String oid) {
+		if(oid != null && !nodes.containsKey(oid)) {
+			log.warning("Can't focus snapshot " + id + " on " + oid + " because it isn't present.");
+			return this;
+		}
+
+		return derive(nodes, edges, outbound, inbound, tags, oid);
+	} // End withFocus
+
+	public String toString() {
+		return "DAGSnapshot " + id + " with " + countNodes() + " nodes " + countEdges() + " edges " +
+				countNPEs() + " NPEs";
+	}
+} // End DAGSnapshot
@@ -0,0 +1,197 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+
+/**
+ * Keeps the in-degree and out-degree of every node in a graph, along with the graph's heads (nodes nothing points
+ * to) and feet (nodes that point to nothing).  It is told about each change as it happens, so none of these ever
+ * require a pass over the graph.
+ *
+ * <p>Only edges with both ends in the index are counted; an edge whose other end isn't present yet starts counting
+ * when that end is added.  A node with no edges at all is both a head and a foot.
+ * @see LineageDAG#getGraphHeads()
+ * @author moxious
+ */
+public class DegreeIndex {
+	/** Maps each node's OID to its in-degree and out-degree, in that order. */
+	protected HashMap<String,int[]> degrees = new HashMap<String,int[]>();
+
+	protected LinkedHashSet<String> heads = new LinkedHashSet<String>();
+	protected LinkedHashSet<String> feet = new LinkedHashSet<String>();
+
+	/** How many nodes have each in-degree and out-degree, so the maximums can be kept up to date on removal. */
+	protected int [] inHistogram = new int[4];
+	protected int [] outHistogram = new int[4];
+	protected int maxIn = 0;
+	protected int maxOut = 0;
+
+	/** Number of edges counted, i.e. those with both ends present. */
+	protected int edges = 0;
+
+	private static final int IN = 0;
+	private static final int OUT = 1;
+
+	/**
+	 * Start counting a node, along with its edges whose other end is already counted.
+	 * @param oid the node's OID
+	 * @param col the collection holding the node's edges
+	 * @return true if the node was added, false if it was already present.
+	 */
+	public boolean addNode(String oid, ProvenanceCollection col) {
+		if(degrees.containsKey(oid)) return false;
+
+		degrees.put(oid, new int[] { 0, 0 });
+		inHistogram[0]++;
+		outHistogram[0]++;
+		heads.add(oid);
+		feet.add(oid);
+
+		for(PLUSEdge e : col.getOutboundEdgesByNode(oid))
+			addEdge(oid, e.getTo().getId());
+
+		// A self-loop was already counted from the outbound side.
+		for(PLUSEdge e : col.getInboundEdgesByNode(oid)) {
+			String from = e.getFrom().getId();
+			if(!oid.equals(from)) addEdge(from, oid);
+		}
+
+		return true;
+	} // End addNode
+
+	/**
+	 * Stop counting a node, and the edges between it and other counted nodes.
+	 * @param oid the node's OID
+	 * @param col the collection holding the node's edges
+	 * @return true if the node was removed, false if it wasn't present.
+	 */
+	public boolean removeNode(String oid, ProvenanceCollection col) {
+		if(!degrees.containsKey(oid)) return false;
+
+		for(PLUSEdge e : col.getOutboundEdgesByNode(oid))
+			removeEdge(oid, e.getTo().getId());
+
+		for(PLUSEdge e : col.getInboundEdgesByNode(oid)) {
+			String from = e.getFrom().getId();
+			if(!oid.equals(from)) removeEdge(from, oid);
+		}
+
+		int [] d = degrees.remove(oid);
+		inHistogram[d[IN]]--;
+		outHistogram[d[OUT]]--;
+		while(maxIn > 0 && inHistogram[maxIn] == 0) maxIn--;
+		while(maxOut > 0 && outHistogram[maxOut] == 0) maxOut--;
+
+		heads.remove(oid);
+		feet.remove(oid);
+		return true;
+	} // End removeNode
+
+	/**
+	 * Count an edge, if both of its ends are present.
+	 * @return true if the edge was counted.
+	 */
+	public boolean addEdge(String fromOID, String toOID) {
+		int [] f = degrees.get(fromOID);
+		int [] t = degrees.get(toOID);
+		if(f == null || t == null) return false;
+
+		if(f[OUT]++ == 0) feet.remove(fromOID);
+		outHistogram = bump(outHistogram, f[OUT]);
+		if(f[OUT] > maxOut) maxOut = f[OUT];
+
+		if(t[IN]++ == 0) heads.remove(toOID);
+		inHistogram = bump(inHistogram, t[IN]);
+		if(t[IN] > maxIn) maxIn = t[IN];
+
+		edges++;
+		return true;
+	} // End addEdge
+
+	/**
+	 * Stop counting an edge, if both of its ends are present.
+	 * @return true if the edge had been counted.
+	 */
+	public boolean removeEdge(String fromOID, String toOID) {
+		int [] f = degrees.get(fromOID);
+		int [] t = degrees.get(toOID);
+		if(f == null || t == null || f[OUT] == 0 || t[IN] == 0) return false;
+
+		outHistogram[f[OUT]]--;
+		if(f[OUT] == maxOut && outHistogram[maxOut] == 0) maxOut--;
+		if(--f[OUT] == 0) feet.add(fromOID);
+		outHistogram[f[OUT]]++;
+
+		inHistogram[t[IN]]--;
+		if(t[IN] == maxIn && inHistogram[maxIn] == 0) maxIn--;
+		if(--t[IN] == 0) heads.add(toOID);
+		inHistogram[t[IN]]++;
+
+		edges--;
+		return true;
+	} // End removeEdge
+
+	/** Move one node from degree-1 to degree in a histogram, growing it if needed. */
+	private static int [] bump(int [] histogram, int degree) {
+		if(degree >= histogram.length) histogram = Arrays.copyOf(histogram, histogram.length * 2);
+		histogram[degree-1]--;
+		histogram[degree]++;
+		return histogram;
+	} // End bump
+
+	public boolean contains(String oid) { return degrees.containsKey(oid); }
+
+	/** @return the number of counted edges entering the node, or 0 if it isn't present. */
+	public int inDegree(String oid) {
+		int [] d = degrees.get(oid);
+		return (d == null ? 0 : d[IN]);
+	}
+
+	/** @return the number of counted edges leaving the node, or 0 if it isn't present. */
+	public int outDegree(String oid) {
+		int [] d = degrees.get(oid);
+		return (d == null ? 0 : d[OUT]);
+	}
+
+	public boolean isHead(String oid) { return heads.contains(oid); }
+	public boolean isFoot(String oid) { return feet.contains(oid); }
+
+	/** @return the OIDs of nodes with no counted inbound edges, in the order they became heads. */
+	public Set<String> getHeads() { return Collections.unmodifiableSet(heads); }
+
+	/** @return the OIDs of nodes with no counted outbound edges, in the order they became feet. */
+	public Set<String> getFeet() { return Collections.unmodifiableSet(feet); }
+
+	public int getMaxInDegree() { return maxIn; }
+	public int getMaxOutDegree() { return maxOut; }
+
+	public int countNodes() { return degrees.size(); }
+
+	/** @return the number of edges with both ends present. */
+	public int countEdges() { return edges; }
+
+	public String toString() {
+		return "DegreeIndex: " + degrees.size() + " nodes, " + edges + " edges, " + heads.size() + " heads, " +
+				feet.size() + " feet";
+	}
+} // End DegreeIndex
@@ -58,7 +58,9 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 	
 	protected HashMap<String,Boolean> seenOwners = new HashMap<String,Boolean>();
 	protected HashMap<String, StopWatch> timers = new HashMap<String,StopWatch>();
-	protected HashMap<String,NodeProfile> nodeProfiles = new HashMap<String,NodeProfile> ();	
+	protected HashMap<String, Long> counters = new HashMap<String,Long>();
+	/** Degrees of the DAG's nodes, maintained by the DAG itself; null if this fingerprint isn't attached to one. */
+	protected DegreeIndex degrees = null;
 	protected PathCollection pathCollection = null;
 
 	/** Data/invocation ratio */
@@ -116,6 +118,10 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 	}
 	
 	public long getCreated() { return created; } 
+	
+	/** Take node degree statistics from the given index, which the DAG keeps up to date. */
+	protected void setDegrees(DegreeIndex degrees) { this.degrees = degrees; } 
+
 	public void setDagId(String dagId) { this.dagId = dagId; } 
 	public String getDagId() { return dagId; } 
 	
@@ -138,28 +144,20 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 		for(String key : timers.keySet()) 
 			m.put("timer:"+key, timers.get(key).toString());
 		
-		int nps = 0;
-		int inMax = 0;
-		int outMax = 0; 
-		int totTot = 0; 
-		for(String key : nodeProfiles.keySet()) { 
-			nps++; 
-			NodeProfile p = nodeProfiles.get(key);
-			
-			if(p.getEdgesIn() > inMax) inMax = p.getEdgesIn();
-			if(p.getEdgesOut() > outMax) outMax = p.getEdgesOut(); 
-			
-			totTot += p.getTotalEdges(); 
-		} // End for
-			
-		m.put(MAX_IN_EDGES, ""+inMax); 
-		m.put(MAX_OUT_EDGES, ""+outMax); 
+		for(String key : counters.keySet())
+			m.put("count:"+key, ""+counters.get(key));
+		
+		int nps = (degrees == null ? 0 : degrees.countNodes());
+		
+		m.put(MAX_IN_EDGES, ""+(degrees == null ? 0 : degrees.getMaxInDegree())); 
+		m.put(MAX_OUT_EDGES, ""+(degrees == null ? 0 : degrees.getMaxOutDegree())); 
 		
 		m.put(INVOCATION_RATIO, ""+(invocations <= 0 ? 0 : ((double)invocations/(double)nodes))); 
 		m.put(DATA_RATIO, ""+(data <= 0 ? 0 : ((double)data/(double)nodes))); 
 		m.put(DI_RATIO, ""+(invocations <= 0 ? 0 : ((double)data/(double)invocations)));
 		
-		if(nps > 0) m.put(AVG_TOTAL_EDGES, ""+((double)totTot/(double)nps)); 
+		// Every counted edge adds one to the total of the node at each end.
+		if(nps > 0) m.put(AVG_TOTAL_EDGES, ""+((double)(2 * degrees.countEdges())/(double)nps)); 
 		else        m.put(AVG_TOTAL_EDGES, "0");		
 				
 		return m;
@@ -173,31 +171,12 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 	public void nodeRemoved(PLUSObject obj) { 
 		if(finished) log.severe("Removing node " + obj.getName() + " after graph was finished!"); 
 		nodes--; 
-		nodeProfiles.remove(obj.getId()); 
 	}
 	
 	public void edgeAdded(PLUSEdge edge) {
 		if(finished) log.severe("Adding edge " + edge + " after graph was finished!"); 
 		edges++;
-		
-		String from = edge.getFrom().getId();
-		String to = edge.getTo().getId(); 
-
-		NodeProfile fp = getProfile(from);
-		NodeProfile tp = getProfile(to); 
-		
-		fp.edgeOut();
-		tp.edgeIn(); 
 	} // End edgeAdded
-
-	protected NodeProfile getProfile(String nodeId) { 
-		if(nodeId == null) nodeId = "null";
-		
-		if(!nodeProfiles.containsKey(nodeId))
-			nodeProfiles.put(nodeId, new NodeProfile()); 
-		
-		return nodeProfiles.get(nodeId);  
-	} // End getProfile
 	
 	/**
 	 * Indicate that the dag in question is finished, and will not be subsequently changed.  
@@ -256,6 +235,16 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 		t.start(); 
 	} // End startTimer
 
+	/**
+	 * Add to a named counter, which will be reported with the fingerprint.  Counters start at zero.
+	 * @param counterName the name of the counter
+	 * @param delta the amount to add
+	 */
+	public void count(String counterName, long delta) { 
+		Long c = counters.get(counterName);
+		counters.put(counterName, (c == null ? 0 : c) + delta);
+	} // End count
+	
 	public void stopTimer(String timerName) {
 		StopWatch t = timers.get(timerName);
 		if(t == null) {
@@ -287,17 +276,4 @@ public class FingerPrint extends DAGWatcher implements PropertyCapable {
 		// TODO Auto-generated method stub
 		throw new PLUSException("Implement me"); 
 	}
-	
-	/***************************************************************************************/
-	
-	private class NodeProfile {
-		int in = 0;
-		int out = 0; 
-		public NodeProfile() { in=0; out=0; } 
-		public void edgeIn() { in++; } 
-		public void edgeOut() { out++; } 
-		public int getEdgesIn() { return in; } 
-		public int getEdgesOut() { return out; }
-		public int getTotalEdges() { return in + out; } 
-	} // end class NodeProfile
 } // End FingerPrint
\ No newline at end of file
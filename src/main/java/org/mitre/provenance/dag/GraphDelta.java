@@ -0,0 +1,231 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSActor;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+
+/**
+ * The structural difference between two versions of a provenance collection:  what has to be added to, changed in, and
+ * removed from the earlier version to turn it into the later one.
+ *
+ * <p>Nodes and actors are matched by ID, edges by the IDs of their ends, and NPEs by their own ID.  A node present in
+ * both versions counts as changed if anything a client would display about it differs; an edge, if its type or
+ * workflow does.  Tags are compared per node, and a node whose tags differ is reported with its complete new set.
+ * NPEs may point at identifiers that aren't nodes in the collection; those that start or stop being referenced are
+ * reported as added or removed NPIDs.
+ *
+ * <p>Nothing in either collection is modified or copied, so the lists returned hold the collections' own objects.
+ * @see org.mitre.provenance.plusobject.json.JSONConverter#graphDeltaToD3Json(GraphDelta, String, String)
+ * @author moxious
+ */
+public class GraphDelta {
+	protected List<PLUSObject> addedNodes = new ArrayList<PLUSObject>();
+	protected List<PLUSObject> changedNodes = new ArrayList<PLUSObject>();
+	protected List<PLUSObject> removedNodes = new ArrayList<PLUSObject>();
+
+	protected List<PLUSEdge> addedEdges = new ArrayList<PLUSEdge>();
+	protected List<PLUSEdge> changedEdges = new ArrayList<PLUSEdge>();
+	protected List<PLUSEdge> removedEdges = new ArrayList<PLUSEdge>();
+
+	protected List<NonProvenanceEdge> addedNPEs = new ArrayList<NonProvenanceEdge>();
+	protected List<NonProvenanceEdge> removedNPEs = new ArrayList<NonProvenanceEdge>();
+
+	protected List<String> addedNPIDs = new ArrayList<String>();
+	protected List<String> removedNPIDs = new ArrayList<String>();
+
+	protected List<PLUSActor> addedActors = new ArrayList<PLUSActor>();
+	protected List<PLUSActor> removedActors = new ArrayList<PLUSActor>();
+
+	protected Map<String,HashMap<String,String>> changedTags = new LinkedHashMap<String,HashMap<String,String>>();
+	protected List<String> untaggedNodes = new ArrayList<String>();
+
+	protected GraphDelta() { }
+
+	/**
+	 * Compute the difference between two versions of a collection.
+	 * @param before the earlier version
+	 * @param after the later version
+	 * @return the changes that turn before into after.
+	 */
+	public static GraphDelta between(ProvenanceCollection before, ProvenanceCollection after) {
+		GraphDelta d = new GraphDelta();
+
+		for(PLUSObject n : after.getNodes()) {
+			PLUSObject old = before.getNode(n.getId());
+			if(old == null) d.addedNodes.add(n);
+			else if(!sameContent(old, n)) d.changedNodes.add(n);
+		}
+
+		for(PLUSObject n : before.getNodes())
+			if(!after.containsObjectID(n.getId())) d.removedNodes.add(n);
+
+		for(PLUSEdge e : after.getEdges()) {
+			PLUSEdge old = before.getEdge(e.getFrom().getId(), e.getTo().getId());
+			if(old == null) d.addedEdges.add(e);
+			else if(!sameContent(old, e)) d.changedEdges.add(e);
+		}
+
+		for(PLUSEdge e : before.getEdges())
+			if(after.getEdge(e.getFrom().getId(), e.getTo().getId()) == null) d.removedEdges.add(e);
+
+		Set<String> afterNPEs = new HashSet<String>();
+		for(NonProvenanceEdge npe : after.getNonProvenanceEdges()) afterNPEs.add(npe.getId());
+
+		Set<String> beforeNPEs = new HashSet<String>();
+		for(NonProvenanceEdge npe : before.getNonProvenanceEdges()) {
+			beforeNPEs.add(npe.getId());
+			if(!afterNPEs.contains(npe.getId())) d.removedNPEs.add(npe);
+		}
+
+		for(NonProvenanceEdge npe : after.getNonProvenanceEdges())
+			if(!beforeNPEs.contains(npe.getId())) d.addedNPEs.add(npe);
+
+		Set<String> beforeNPIDs = getNPIDs(before);
+		Set<String> afterNPIDs = getNPIDs(after);
+		for(String npid : afterNPIDs) if(!beforeNPIDs.contains(npid)) d.addedNPIDs.add(npid);
+		for(String npid : beforeNPIDs) if(!afterNPIDs.contains(npid)) d.removedNPIDs.add(npid);
+
+		for(PLUSActor a : after.getActors())
+			if(!before.containsActorID(a.getId())) d.addedActors.add(a);
+
+		for(PLUSActor a : before.getActors())
+			if(!after.containsActorID(a.getId())) d.removedActors.add(a);
+
+		Set<String> afterTagged = after.getTaggedNodes();
+		for(String oid : afterTagged) {
+			HashMap<String,String> tags = after.getTags(oid);
+			if(!tags.equals(before.getTags(oid))) d.changedTags.put(oid, tags);
+		}
+
+		for(String oid : before.getTaggedNodes()) {
+			if(afterTagged.contains(oid) || before.getTags(oid).isEmpty()) continue;
+			d.untaggedNodes.add(oid);
+		}
+
+		return d;
+	} // End between
+
+	/**
+	 * @return the identifiers NPEs in a collection point at that aren't nodes of it.
+	 */
+	protected static Set<String> getNPIDs(ProvenanceCollection col) {
+		Set<String> npids = new HashSet<String>();
+
+		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
+			if(!col.containsObjectID(npe.getFrom())) npids.add(npe.getFrom());
+			if(!col.containsObjectID(npe.getTo())) npids.add(npe.getTo());
+		}
+
+		return npids;
+	} // End getNPIDs
+
+	/**
+	 * Determine whether two versions of a node would be displayed the same way:  same class, same properties, same
+	 * metadata, and the same privileges.
+	 */
+	protected static boolean sameContent(PLUSObject a, PLUSObject b) {
+		if(a == b) return true;
+		if(a.getClass() != b.getClass()) return false;
+		if(!a.getStorableProperties().equals(b.getStorableProperties())) return false;
+		if(!a.getMetadata().equals(b.getMetadata())) return false;
+
+		String pa = (a.getPrivileges() == null ? null : a.getPrivileges().getSignature());
+		String pb = (b.getPrivileges() == null ? null : b.getPrivileges().getSignature());
+		return (pa == null ? pb == null : pa.equals(pb));
+	} // End sameContent
+
+	/** Determine whether two edges between the same nodes have the same type and workflow. */
+	protected static boolean sameContent(PLUSEdge a, PLUSEdge b) {
+		if(a == b) return true;
+		if(a.getType() == null ? b.getType() != null : !a.getType().equals(b.getType())) return false;
+
+		String wa = (a.getWorkflow() == null ? null : a.getWorkflow().getId());
+		String wb = (b.getWorkflow() == null ? null : b.getWorkflow().getId());
+		return (wa == null ? wb == null : wa.equals(wb));
+	} // End sameContent
+
+	/** @return true if the two versions are structurally identical. */
+	public boolean isEmpty() { return size() == 0; }
+
+	/** @return the total number of changes. */
+	public int size() {
+		return addedNodes.size() + changedNodes.size() + removedNodes.size() +
+				addedEdges.size() + changedEdges.size() + removedEdges.size() +
+				addedNPEs.size() + removedNPEs.size() + addedNPIDs.size() + removedNPIDs.size() +
+				addedActors.size() + removedActors.size() + changedTags.size() + untaggedNodes.size();
+	} // End size
+
+	/** @return nodes only in the later version. */
+	public List<PLUSObject> getAddedNodes() { return addedNodes; }
+
+	/** @return the later version of nodes that differ between the two. */
+	public List<PLUSObject> getChangedNodes() { return changedNodes; }
+
+	/** @return nodes only in the earlier version. */
+	public List<PLUSObject> getRemovedNodes() { return removedNodes; }
+
+	/** @return edges only in the later version. */
+	public List<PLUSEdge> getAddedEdges() { return addedEdges; }
+
+	/** @return the later version of edges whose type or workflow differ between the two. */
+	public List<PLUSEdge> getChangedEdges() { return changedEdges; }
+
+	/** @return edges only in the earlier version. */
+	public List<PLUSEdge> getRemovedEdges() { return removedEdges; }
+
+	/** @return NPEs only in the later version. */
+	public List<NonProvenanceEdge> getAddedNPEs() { return addedNPEs; }
+
+	/** @return NPEs only in the earlier version. */
+	public List<NonProvenanceEdge> getRemovedNPEs() { return removedNPEs; }
+
+	/** @return identifiers that only NPEs of the later version point at. */
+	public List<String> getAddedNPIDs() { return addedNPIDs; }
+
+	/** @return identifiers that only NPEs of the earlier version point at. */
+	public List<String> getRemovedNPIDs() { return removedNPIDs; }
+
+	/** @return actors only in the later version. */
+	public List<PLUSActor> getAddedActors() { return addedActors; }
+
+	/** @return actors only in the earlier version. */
+	public List<PLUSActor> getRemovedActors() { return removedActors; }
+
+	/** @return the complete new tags of each node whose tags differ, including nodes that weren't tagged before. */
+	public Map<String,HashMap<String,String>> getChangedTags() { return changedTags; }
+
+	/** @return the IDs of nodes that had tags in the earlier version and have none in the later. */
+	public List<String> getUntaggedNodes() { return untaggedNodes; }
+
+	public String toString() {
+		return "<GraphDelta nodes +" + addedNodes.size() + " ~" + changedNodes.size() + " -" + removedNodes.size() +
+				" edges +" + addedEdges.size() + " ~" + changedEdges.size() + " -" + removedEdges.size() +
+				" NPEs +" + addedNPEs.size() + " -" + removedNPEs.size() +
+				" actors +" + addedActors.size() + " -" + removedActors.size() +
+				" tags ~" + changedTags.size() + " -" + untaggedNodes.size() + ">";
+	}
+} // End GraphDelta
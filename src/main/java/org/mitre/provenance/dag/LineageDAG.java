@@ -17,8 +17,8 @@ package org.mitre.provenance.dag;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -68,6 +68,18 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	
 	/** Nodes in DAG that are a source of taint, i.e. those directly tainted. **/
 	protected Map <PLUSObject,List<Taint>> taintSources = new HashMap<PLUSObject,List<Taint>> ();      			
+
+	/** Which taint sources reach which nodes; its tags are added to the DAG's own when they're asked for. */
+	protected TaintIndex taint = new TaintIndex();
+	
+	/** Array form of the graph's structure; built when first needed, and dropped whenever nodes or edges change. */
+	protected CompactGraph compact = null;
+	
+	/** Answers reachability questions; built when first needed, and dropped whenever nodes or edges change. */
+	protected ReachabilityIndex reachability = null;
+	
+	/** Node degrees, heads and feet; kept up to date as nodes and edges are added and removed. */
+	protected DegreeIndex degrees = new DegreeIndex();
 			
 	/** The starting node of the DAG */
 	protected PLUSObject focus; 
@@ -86,9 +98,17 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		empty(); 
 	}
 	
+	/**
+	 * Note that the copy shares its underlying maps with this DAG; use snapshot() to get an independent copy 
+	 * that can be changed cheaply.
+	 */
 	public LineageDAG clone() { 
 		LineageDAG dag = (LineageDAG)super.clone();
-		dag.taintSources = this.taintSources;
+		dag.taintSources = new HashMap<PLUSObject,List<Taint>>(this.taintSources);
+		dag.taint = this.taint;
+		dag.degrees = this.degrees;
+		dag.compact = null;
+		dag.reachability = null;
 		dag.fingerPrint = this.fingerPrint;
 		dag.focus = this.focus;
 		
@@ -120,11 +140,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @return an array of OIDs
 	 */
 	public String [] getTaintSources(PLUSObject obj) { 
-		if(!isTainted(obj)) return new String [] {};		
-		String val = getTags(obj.getId()).get(TAINT_FLAG);
-		log.fine("getTaintSources raw string '" + val + "'");
-		String [] toks = val.split(",");
-		return toks;
+		return taint.getSources(obj.getId());
 	}
 	
 	/**
@@ -135,15 +151,58 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @return true if tainted, false otherwise.
 	 */
 	public boolean isTainted(PLUSObject obj) { 
-		return hasTag(obj.getId(), TAINT_FLAG); 
+		return taint.isTainted(obj.getId()); 
 	}
 	
+	/**
+	 * Return the tags associated with a node, including the taint tags computed by traceTaintSources.
+	 * Taint tags are generated on each call, so changing the returned map only changes the tags that were set
+	 * with tagNode.
+	 * @see ProvenanceCollection#getTags(String)
+	 */
+	public HashMap<String,String> getTags(String oid) {
+		HashMap<String,String> tags = super.getTags(oid);
+		if(!taint.isTainted(oid)) return tags;
+		
+		HashMap<String,String> all = taint.getTags(oid);
+		all.putAll(tags);
+		return all;
+	} // End getTags
+	
+	public Set<String> getTaggedNodes() { 
+		if(taint.getTaintedNodes().isEmpty()) return super.getTaggedNodes();
+		
+		Set<String> all = new HashSet<String>(super.getTaggedNodes());
+		all.addAll(taint.getTaintedNodes());
+		return all;
+	} // End getTaggedNodes
+	
+	/** @return the tags set on a node with tagNode, without its taint tags. */
+	protected HashMap<String,String> getAssignedTags(String oid) { return super.getTags(oid); }
+	
+	/** @return the nodes with tags set by tagNode, not counting those that are only tainted. */
+	protected Set<String> getAssignedTaggedNodes() { return super.getTaggedNodes(); }
+	
+	/**
+	 * Take an immutable snapshot of this DAG, which can be shared between threads and from which changed views 
+	 * can be derived without copying the graph.
+	 * @see DAGSnapshot
+	 * @return a snapshot of the DAG's current contents.
+	 */
+	public DAGSnapshot snapshot() { return DAGSnapshot.of(this); }
+	
 	/**
 	 * Empty the contents of the DAG.
 	 */
 	protected void empty() { 
 		super.empty(); 				
 		taintSources = new HashMap<PLUSObject,List<Taint>> ();      
+		taint = new TaintIndex();
+		degrees = new DegreeIndex();
+		
+		// The superclass constructor empties the collection before the fingerprint exists.
+		if(fingerPrint != null) fingerPrint.setDegrees(degrees);
+		structureChanged();
 	} // End empty()
 
 	public DAGPath getPath(String fromOID, String toOID) throws PLUSException { 
@@ -155,6 +214,64 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		
 		return new DAGPath(this, from, to); 
 	}
+	
+	/**
+	 * Get the structure of this DAG in array form, for algorithms that walk the whole graph.  It is built the first
+	 * time it's needed after the DAG's nodes or edges change.
+	 * @return a view of the DAG as it is now.
+	 */
+	public CompactGraph getCompactGraph() { 
+		if(compact == null) { 
+			fingerPrint.startTimer("CompactGraph");
+			compact = new CompactGraph(this);
+			fingerPrint.stopTimer("CompactGraph");
+		}
+		
+		return compact;
+	} // End getCompactGraph
+	
+	/** Drop everything derived from the DAG's structure, so it will be rebuilt when next needed. */
+	protected void structureChanged() { 
+		compact = null;
+		reachability = null;
+	}
+	
+	/**
+	 * Get an index that answers whether one node of this DAG can reach another.  The index is built the first time
+	 * it's needed after the DAG's contents change, so it's cheapest to add everything before asking.
+	 * @return the reachability index for the DAG as it is now.
+	 */
+	public ReachabilityIndex getReachabilityIndex() { 
+		if(reachability == null) { 
+			fingerPrint.startTimer("ReachabilityIndex");
+			reachability = new ReachabilityIndex(getCompactGraph());
+			fingerPrint.stopTimer("ReachabilityIndex");
+			log.fine("Reachability index for " + getId() + ": " + reachability.countNodes() + " nodes, " + 
+					reachability.countLabels() + " labels");
+		}
+		
+		return reachability;
+	} // End getReachabilityIndex
+	
+	/**
+	 * Determine whether there is a FLING path of at least one edge from one node to another in this DAG.
+	 * @param from the starting node
+	 * @param to the ending node
+	 * @return true if the path exists, false if it doesn't or either node isn't in the DAG.
+	 */
+	public boolean reaches(PLUSObject from, PLUSObject to) { 
+		if(!contains(from) || !contains(to)) return false;
+		
+		ReachabilityIndex idx = getReachabilityIndex();
+		
+		// Nodes added with addNode(PLUSObject, boolean) don't drop the index.
+		if(!idx.contains(from.getId()) || !idx.contains(to.getId())) { 
+			structureChanged();
+			idx = getReachabilityIndex();
+		}
+		
+		return idx.reaches(from.getId(), to.getId());
+	} // End reaches
 			
 	/**
 	 * @return a ProvenanceCollection containing this object's graph feet, that is, the objects that have no outbound
@@ -164,9 +281,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	public ProvenanceCollection getGraphFeet() { 
 		ViewedCollection c = new ViewedCollection(getViewer()); 
 		
-		for(PLUSObject o : getNodes()) { 
-			if(isFoot(o.getId())) c.addNode(o);
-		}
+		for(String oid : degrees.getFeet()) c.addNode(getNode(oid));
 			
 		return c;		
 	} // End getGraphFeet
@@ -179,32 +294,36 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	public ProvenanceCollection getGraphHeads() { 
 		ViewedCollection c = new ViewedCollection(getViewer()); 
 		
-		for(PLUSObject o : getNodes()) { 
-			if(isHead(o.getId())) c.addNode(o);
-		}
+		for(String oid : degrees.getHeads()) c.addNode(getNode(oid));
 		
 		return c;
 	} // End getGraphHeads
 	
+	/**
+	 * Get the in-degree and out-degree of this DAG's nodes, and its heads and feet.  These are kept up to date as the 
+	 * DAG changes.  Only edges with both ends in the DAG are counted.
+	 * @return the DAG's degree index, which must not be modified.
+	 */
+	public DegreeIndex getDegreeIndex() { return degrees; } 
+	
 	/**
 	 * @param oid
 	 * @return true if the object is in the graph and is a graph head; false if the object is not a head (or isn't in the graph)
 	 */
-	protected boolean isHead(String oid) {  return containsObjectID(oid) && hasTag(oid, TAG_HEAD); }
+	protected boolean isHead(String oid) {  return degrees.isHead(oid); }
 
 	/**
 	 * @param oid
 	 * @return true if the object is in the graph and is a graph foot; false if the object is not a foot (or isn't in the graph)
 	 */
-	protected boolean isFoot(String oid) {  return containsObjectID(oid) && hasTag(oid, TAG_FOOT);  }
+	protected boolean isFoot(String oid) {  return degrees.isFoot(oid);  }
 		
 	/**
 	 * @see ProvenanceCollection#removeNode(PLUSObject)
 	 */
 	public PLUSObject removeNode(PLUSObject node) {
-		PLUSObject o = super.removeNode(node);
-		if(o != null) fingerPrint.nodeRemoved(node); 
-		return o;
+		// The superclass hands off to removeNode(String), which keeps the fingerprint and degrees.
+		return super.removeNode(node);
 	}
 	
 	/**
@@ -220,30 +339,29 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 			log.warning("LineageDAG#removeNode is removing the root!"); 
 		
 		PLUSObject o = super.removeNode(oid);		
-		if(o != null) fingerPrint.nodeRemoved(o); 		
+		if(o != null) { 
+			fingerPrint.nodeRemoved(o); 
+			degrees.removeNode(oid, this);
+		}
+		structureChanged();
 		return o;
 	} // End removeNode
 	
 	/**
 	 * This method does the same thing as the super-class method, but keeps the graph
-	 * fingerprint up to date.
+	 * fingerprint and degrees up to date.
 	 * @see ProvenanceCollection#addAll(ProvenanceCollection, boolean)
 	 */
 	public int addAll(ProvenanceCollection col, boolean force) { 
 		int i = 0; 
+		structureChanged();
 		
 		for(PLUSObject o : col.getNodes()) { 
-			if(super.addNode(o, force)) {
-				fingerPrint.nodeAdded(o);
-				i++;
-			}
+			if(addNode(o, force)) i++;
 		}
 		
 		for(PLUSEdge e : col.getEdges()) { 
-			if(super.addEdge(e, force)) {
-				fingerPrint.edgeAdded(e); 
-				i++;				
-			}
+			if(addEdge(e, force)) i++;
 		}
 		
 		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
@@ -276,9 +394,21 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @return true if it was added, false if it was already present in the DAG.
 	 */
 	public boolean addNode(PLUSObject obj) {
-		boolean s = super.addNode(obj);
+		return addNode(obj, false);
+	}
+	
+	/**
+	 * Add a particular node to the graph, keeping the fingerprint and degrees up to date.
+	 * @see ViewedCollection#addNode(PLUSObject, boolean)
+	 */
+	public boolean addNode(PLUSObject obj, boolean force) {
+		boolean s = super.addNode(obj, force);
 		
-		if(s) fingerPrint.nodeAdded(obj);
+		// A forced add may only replace a node that was already here.
+		if(s && degrees.addNode(obj.getId(), this)) { 
+			fingerPrint.nodeAdded(obj);
+			structureChanged();
+		}
 		return s;
 	} // End addNode
 	
@@ -311,8 +441,15 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 */
 	public boolean addEdge(PLUSEdge edge, boolean force) {
 		// boolean previouslyHad = contains(edge);
+		PLUSEdge previous = (edge == null ? null : getEdge(edge.getFrom(), edge.getTo()));
 		boolean s = super.addEdge(edge, force); 
-		if(s) fingerPrint.edgeAdded(edge); 
+		if(s && previous == null) { 
+			fingerPrint.edgeAdded(edge); 
+			degrees.addEdge(edge.getFrom().getId(), edge.getTo().getId());
+		}
+		
+		// Putting back the very same edge (as edge voting does) leaves the structure alone.
+		if(s && previous != edge) structureChanged();
 		return s;
 	} // End addEdge	
 	
@@ -429,8 +566,14 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @param edge the edge to remove.
 	 */
 	public void removeEdge(PLUSEdge edge) { 		
-		fingerPrint.edgeRemoved(edge); 
+		String from = edge.getFrom().getId();
+		String to = edge.getTo().getId();
+		if(getEdge(from, to) == null) return;
+		
 		super.removeEdge(edge);
+		fingerPrint.edgeRemoved(edge); 
+		degrees.removeEdge(from, to);
+		structureChanged();
 	} // End removeEdge
 		
 	public void traverse(LineageDAGTraverseFn function, String direction, PLUSObject startingPoint) throws PLUSException { 
@@ -458,28 +601,34 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		traverse(function, queue, "fling"); 
 	} // End traverse
 		
+	/**
+	 * Visit everything reachable from the queued nodes, breadth first.  The walk follows the DAG's edges as they were
+	 * when it started.
+	 */
 	private void traverse(LineageDAGTraverseFn function, ArrayList<String>queue, String direction) throws PLUSException { 
-		HashSet<String>seen = new HashSet<String>();		
-			
 		if(queue.size() <= 0 && countNodes() > 0) throw new PLUSException("No nodes to traverse!"); 
 		if(!"fling".equals(direction) && !"bling".equals(direction)) throw new PLUSException("Direction may only be 'fling' or 'bling'!");
 		
-		while(!queue.isEmpty()) {
-			String oid = queue.remove(0);
-			if(seen.contains(oid)) continue; 
-			
-			PLUSObject obj = getNode(oid);
-			function.visitNode(this, obj);
-			
-			// Because we started with graph heads (and they're already in the queue)
-			// we only need to examine the FLING (not the BLING).
-			List<PLUSObject>next = null;
-			
-			if("fling".equals(direction)) next = getFLING(obj);
-			if("bling".equals(direction)) next = getBLING(obj); 
+		CompactGraph graph = getCompactGraph();
+		boolean fling = "fling".equals(direction);
+		boolean [] seen = new boolean[graph.countNodes()];
+		int [] order = new int[graph.countNodes()];
+		int head = 0, tail = 0;
+		
+		for(String oid : queue) { 
+			int n = graph.indexOf(oid);
+			if(n >= 0 && !seen[n]) { seen[n] = true; order[tail++] = n; }
+		}
+		
+		while(head < tail) {
+			int n = order[head++];
+			function.visitNode(this, graph.getNode(n));
 			
-			for(PLUSObject o : next) { if(!seen.contains(o.getId())) queue.add(o.getId()); } 			
-			seen.add(oid);
+			int degree = (fling ? graph.outDegree(n) : graph.inDegree(n));
+			for(int k=0; k<degree; k++) { 
+				int next = (fling ? graph.getTo(graph.outEdge(n, k)) : graph.getFrom(graph.inEdge(n, k)));
+				if(!seen[next]) { seen[next] = true; order[tail++] = next; }
+			}
 		} // End while
 	} // End traverse
 	
@@ -528,32 +677,18 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	} // End chooseFocus
 	
 	/**
-	 * Look through the edge list in a LineageDAG and tag nodes as a "head" or "foot" depending
-	 * on whether or not there is anything further upstream/downstream.
+	 * Tag nodes in a LineageDAG as a "head" or "foot" depending on whether or not there is anything further 
+	 * upstream/downstream.  The DAG already knows its heads and feet, so only those nodes are visited.
 	 * @param col the LineageDAG to tag
 	 * @return the same DAG, with its markings updated.
 	 */
 	public static LineageDAG tagHeadAndFeet(LineageDAG col) { 
 		col.getFingerPrint().startTimer("TagHeadAndFeet");
+		DegreeIndex degrees = col.getDegreeIndex();
+		
+		for(String oid : degrees.getFeet()) col.tagNode(oid, LineageDAG.TAG_FOOT, "true");
+		for(String oid : degrees.getHeads()) col.tagNode(oid, LineageDAG.TAG_HEAD, "true"); 
 		
-		for(PLUSObject fo : col.getNodes()) {
-			List<PLUSEdge> fling = col.getOutboundEdgesByNode(fo.getId());
-			List<PLUSEdge> bling = col.getInboundEdgesByNode(fo.getId());
-			
-			if(fling.size() <= 0) col.tagNode(fo.getId(), LineageDAG.TAG_FOOT, "true");
-			else { 
-				boolean downstreamConnection = false;
-				for(PLUSEdge e : fling) { if(col.contains(e.getTo())) { downstreamConnection = true; break; } }
-				if(!downstreamConnection) col.tagNode(fo.getId(), LineageDAG.TAG_FOOT, "true"); 
-			}
-			
-			if(bling.size() <= 0) col.tagNode(fo.getId(), LineageDAG.TAG_HEAD, "true"); 
-			else { 
-				boolean upstreamConnection = false;
-				for(PLUSEdge e : fling) { if(col.contains(e.getFrom())) { upstreamConnection = true; break; } }
-				if(!upstreamConnection) col.tagNode(fo.getId(), LineageDAG.TAG_HEAD, "true"); 				
-			}
-		} // End for
 		col.getFingerPrint().stopTimer("TagHeadAndFeet");
 		return col;
 	} // End tagHeadAndFeet
@@ -564,11 +699,21 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @param col
 	 * @return a list of dangling edges.
 	 */
-	public static List<PLUSEdge>detectDanglers(LineageDAG col) { 
+	public static List<PLUSEdge>detectDanglers(final LineageDAG col) { 
+		final PLUSEdge [] all = col.getEdges().toArray(new PLUSEdge[0]);
+		final boolean [] dangles = new boolean[all.length];
+		
+		// Edges are checked in parallel, and collected in the DAG's order.
+		DAGPipeline.forRange(all.length, new DAGPipeline.Range() {
+			public void run(int from, int to) {
+				for(int x=from; x<to; x++) 
+					dangles[x] = !col.contains(all[x].getFrom()) || !col.contains(all[x].getTo());
+			}
+		});
+		
 		ArrayList<PLUSEdge>edges = new ArrayList<PLUSEdge>();
-		for(PLUSEdge e : col.getEdges()) { 
-			if(!col.contains(e.getFrom()) || !col.contains(e.getTo()))
-				edges.add(e);
+		for(int x=0; x<all.length; x++) { 
+			if(dangles[x]) edges.add(all[x]);
 		}
 		
 		return edges;
@@ -576,17 +721,20 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	
 	/**
 	 * Iterates through all of the nodes in the LineageDAG and tags the head and feet for quick retrieval later. 
+	 * A node with no edges at all is tagged only as a foot.
 	 * @param col
 	 * @return the same collection passed.
 	 */
 	protected static LineageDAG tagGraphHeadsAndFeet(LineageDAG col) {
 		col.getFingerPrint().startTimer("HeadsAndFeet");
-		for(PLUSObject o : col.getNodes()) {
-			if(col.getOutboundEdgesByNode(o.getId()).size()<=0) 
-				col.tagNode(o.getId(), ProvenanceCollection.TAG_FOOT, ProvenanceCollection.TAG_VALUE_TRUE);
-			else if(col.getInboundEdgesByNode(o.getId()).size()<=0)
-				col.tagNode(o.getId(), ProvenanceCollection.TAG_HEAD, ProvenanceCollection.TAG_VALUE_TRUE);			
-		}		
+		DegreeIndex degrees = col.getDegreeIndex();
+		
+		for(String oid : degrees.getFeet())
+			col.tagNode(oid, ProvenanceCollection.TAG_FOOT, ProvenanceCollection.TAG_VALUE_TRUE);
+		for(String oid : degrees.getHeads()) {
+			if(degrees.isFoot(oid)) continue;
+			col.tagNode(oid, ProvenanceCollection.TAG_HEAD, ProvenanceCollection.TAG_VALUE_TRUE);			
+		}
 		col.getFingerPrint().stopTimer("HeadsAndFeet");
 		
 		return col;
@@ -600,41 +748,34 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 */
 	public static LineageDAG computeEdgeVoting(LineageDAG dag) {		
 		dag.getFingerPrint().startTimer("EdgeVoting"); 
-		Iterator <PLUSEdge> edgeIt = dag.getEdges().iterator();
+		final CompactGraph graph = dag.getCompactGraph();
 		
 		int votesShow = 0; 
 		int votesHide = 0; 
 		int votesInfer = 0; 
+		
+		// Each edge's votes depend only on its own ends, so they're collected in parallel.  Applying them changes 
+		// the DAG, so that's done here, in edge order.
+		final EdgeMarking [] fromVotes = new EdgeMarking[graph.countEdges()];
+		final EdgeMarking [] toVotes = new EdgeMarking[graph.countEdges()];
+		
+		DAGPipeline.forRange(graph.countEdges(), new DAGPipeline.Range() { 
+			public void run(int from, int to) { 
+				for(int edge=from; edge<to; edge++) collectVotes(graph.getEdge(edge), edge, fromVotes, toVotes);
+			}
+		});
 				
-		while(edgeIt.hasNext()) { 			
-			PLUSEdge pedge = (PLUSEdge)edgeIt.next();
+		for(int edge=0; edge<graph.countEdges(); edge++) { 			
+			PLUSEdge pedge = graph.getEdge(edge);
 			PLUSObject fromObj = pedge.getFrom();
 			PLUSObject toObj   = pedge.getTo();
 			
-			EdgeMarking fromVote = null;
-			EdgeMarking toVote = null;
-			
-			//log.info("pruneByEdgeVoting: " + fromObj + " , " + toObj);
-			//log.info("pruneEdgeVoting: " + pedge.getFrom() + " -> " + pedge.getTo());
-						
 			// This happens when the from or the to node was never added to the graph because
 			// there was no suitable surrogate.  (User not authorized to see any version) 
 			if(fromObj == null || toObj == null) continue; 			
 			
-			if(fromObj.isSurrogate()) {
-				SurrogateDetail fromSurrogate = fromObj.getSurrogateDetail();				
-				fromVote = fromSurrogate.getMarking(pedge, toObj);
-				// System.out.println("FROMVOTE: " + fromVote); 
-			}
-			
-			if(toObj.isSurrogate()) {
-				SurrogateDetail toSurrogate = toObj.getSurrogateDetail();
-				toVote = toSurrogate.getMarking(pedge, fromObj);
-				// System.out.println("TOVOTE:  " + toVote); 
-			}
-			
-			if(fromVote == null) fromVote = EdgeMarking.SHOW; 
-			if(toVote == null) toVote = EdgeMarking.SHOW; 
+			EdgeMarking fromVote = fromVotes[edge];
+			EdgeMarking toVote = toVotes[edge];
 						
 			if(EdgeMarking.SHOW.equals(fromVote)) votesShow++;
 			else if(EdgeMarking.HIDE.equals(fromVote)) votesHide++;
@@ -645,8 +786,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 			else votesInfer++; 
 			
 			// log.info("Setting fromVote " + fromVote + " toVote " + toVote);
-			pedge.setFromMarking(fromVote);
-			pedge.setToMarking(toVote);
+			graph.setMarkings(edge, fromVote, toVote);
 			
 			log.fine("computeEdgeVoting: " + 
 					 pedge.getFrom().getName() + " => " + 
@@ -663,7 +803,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 				dag.tagNode(fromObj.getId(), "connected", "true");
 				dag.tagNode(toObj.getId(), "connected", "true");
 			} // End if
-		} // End while		
+		} // End for		
 						
 		dag.getMetadata().put("Votes-Show", ""+votesShow);
 		dag.getMetadata().put("Votes-Hide", ""+votesHide); 
@@ -673,58 +813,58 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		return dag;
 	} // End computeEdgeVoting
 	
+	/**
+	 * Ask each end of an edge how it should be marked.  Ends that aren't surrogates, or have no opinion, vote show.
+	 * This only reads the edge and its ends, so it's safe to call for different edges at the same time.
+	 */
+	private static void collectVotes(PLUSEdge pedge, int edge, EdgeMarking [] fromVotes, EdgeMarking [] toVotes) { 
+		PLUSObject fromObj = pedge.getFrom();
+		PLUSObject toObj   = pedge.getTo();
+		if(fromObj == null || toObj == null) return;
+		
+		EdgeMarking fromVote = null;
+		EdgeMarking toVote = null;
+		
+		if(fromObj.isSurrogate()) {
+			SurrogateDetail fromSurrogate = fromObj.getSurrogateDetail();				
+			fromVote = fromSurrogate.getMarking(pedge, toObj);
+		}
+		
+		if(toObj.isSurrogate()) {
+			SurrogateDetail toSurrogate = toObj.getSurrogateDetail();
+			toVote = toSurrogate.getMarking(pedge, fromObj);
+		}
+		
+		fromVotes[edge] = (fromVote == null ? EdgeMarking.SHOW : fromVote); 
+		toVotes[edge] = (toVote == null ? EdgeMarking.SHOW : toVote); 
+	} // End collectVotes
+	
 	/**
 	 * When a DAG is first built, the code comes across some list of nodes that are directly tainted.
 	 * This function traces forwards in the graph, and marks everything downstream of any directly tainted node
-	 * as also being tainted (indirectly).  
+	 * as also being tainted (indirectly).  All sources are traced together in one pass; the resulting taint
+	 * tags aren't stored, but show up in getTags.
 	 * TODO: Taint propagation "blockers".  Shouldn't some nodes have some signal that prevents further 
 	 * propagation?  (I.e. the tainted input is too remote, or not important).  This method needs to get smarter.
+	 * @see TaintIndex
 	 */
 	public static LineageDAG traceTaintSources(LineageDAG dag) {
 		HashMap<String,ArrayList<Taint>> taintSources = Neo4JPLUSObjectFactory.getTaintSources(dag);
 		
-		Set <String> e = taintSources.keySet();
 		dag.getFingerPrint().startTimer("TraceTaintSources");
-		
-		// Run through each object in the tainted sources, and mark everything forwards in the graph as tainted.
-		// Note that some nodes will be tainted by multiple sources, and may get multiple markings.
-		for(String taintedOID : e) {  
-			dag.tagNode(taintedOID, "tainted-by-" + taintedOID, taintedOID); 
-			
-			// Check to see if the original source of taint is itself marked as tainted.
-			// It should be.
-			if(!dag.hasTag(taintedOID, ProvenanceCollection.TAINT_FLAG)) 
-				dag.tagNode(taintedOID, ProvenanceCollection.TAINT_FLAG, taintedOID); 
-			
-			// Build a queue and a visitation list.
-			List <PLUSObject> queue = new ArrayList <PLUSObject> (); 
-			queue = dag.getFLING(dag.getNode(taintedOID));
-			Hashtable <PLUSObject, Boolean> visited = new Hashtable <PLUSObject, Boolean> (); 
-			while(queue.size() > 0) { 								
-				PLUSObject next = queue.remove(0);
-				if(visited.containsKey(next)) continue;  // Skip it if we've already seen it (avoids cycles) 
-				
-				// Tag that it's tainted, and by which ID.
-				dag.tagNode(next.getId(), "tainted-by-" + taintedOID, taintedOID);
-												
-				HashMap<String,String> tflags = dag.getTags(next.getId()); 
-				if(tflags == null || tflags.isEmpty()) {
-					dag.tagNode(next.getId(), ProvenanceCollection.TAINT_FLAG, taintedOID); 
-				} else if(!(""+tflags.get(ProvenanceCollection.TAINT_FLAG)).contains(taintedOID)) {
-					String val = tflags.get(ProvenanceCollection.TAINT_FLAG);
-					val = (val == null ? "" : ",") + taintedOID;
-					dag.tagNode(next.getId(), ProvenanceCollection.TAINT_FLAG, val); 
-				}
-								
-				List <PLUSObject> fling = dag.getFLING(next);
-				for(int z=0; z<fling.size(); z++) { queue.add(fling.get(z)); } 
-			} // End while			
-		} // End while
-		
+		dag.setTaint(new TaintIndex(dag.getCompactGraph(), taintSources.keySet()));
 		dag.getFingerPrint().stopTimer("TraceTaintSources");
+		
 		return dag;
 	} // End traceTaintSources
 	
+	/** Use the results of tracing taint through this DAG. */
+	protected void setTaint(TaintIndex taint) { 
+		this.taint = taint;
+		getMetadata().put("TaintSources", ""+taint.countSources());
+		getMetadata().put("TaintedNodes", ""+taint.getTaintedNodes().size());
+	} // End setTaint
+	
 	/**
 	 * Given a LineageDAG that contains MarkedEdges, this function tries to draw new lines to cover up the ones
 	 * that were inferred.  It further DELETES all edges from the graph marked inferred.
@@ -735,7 +875,14 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		Iterator <PLUSEdge> edgeIt = dag.getEdges().iterator(); 
 		// log.fine("Starting to look for inferrable edges in DAG..."); 
 		ArrayList <PLUSEdge> hitList = new ArrayList <PLUSEdge> ();   // List of things we'll prune later.
-		ArrayList <PLUSEdge> toAdd = new ArrayList <PLUSEdge> ();     // List of newly-generated edges.
+		
+		// Newly-generated edges, by "from->to".  Neighboring inferred edges usually share visible sets, so the same
+		// edge is generated many times over; keeping one per pair means each is only added to the DAG once.
+		LinkedHashMap <String,PLUSEdge> toAdd = new LinkedHashMap <String,PLUSEdge> ();
+		int duplicateEdges = 0;
+		
+		// Visible sets are computed once per node and shared by every inferred edge that needs them.
+		VisibleSetEngine visibleSets = new VisibleSetEngine(dag);
 		
 		// Keep track of a list of IDs that have removed edges.  After the surrogate algorithm
 		// runs, we'll want to remove any orphaned nodes that got disconnected by the algorithm.
@@ -826,7 +973,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 			} // End else
 			
 			long s = System.currentTimeMillis();
-			ArrayList <PLUSObject> blingSet = buildVisibleSet(dag, dag.getNode(blingSetID), "bling");
+			Set <PLUSObject> blingSet = visibleSets.getVisibleSet(dag.getNode(blingSetID), "bling");
 			long e = System.currentTimeMillis();
 			
 			// Timing/performance junk.
@@ -835,7 +982,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 			if(i < visSetMin) visSetMin = i; 
 			
 			s = System.currentTimeMillis();			
-			ArrayList <PLUSObject> flingSet = buildVisibleSet(dag, dag.getNode(flingSetID), "fling");
+			Set <PLUSObject> flingSet = visibleSets.getVisibleSet(dag.getNode(flingSetID), "fling");
 			e = System.currentTimeMillis();
 			
 			i = e-s;
@@ -850,18 +997,21 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 			// for(PLUSObject o : flingSet) log.fine(o.getName());			
 			
 			// Now connect blingset * flingset with edges.
-			for(int x=0; x<blingSet.size(); x++) {
-				PLUSObject b = blingSet.get(x);
-				for(int y=0; y<flingSet.size(); y++) { 					
-					PLUSObject f = flingSet.get(y);
+			for(PLUSObject b : blingSet) {
+				for(PLUSObject f : flingSet) { 					
 					// log.info("Drawing computable edge " + b.getName() + " => " + f.getName());
+					String key = b.getId() + "->" + f.getId();
+					if(toAdd.containsKey(key)) duplicateEdges++;
+					
 					PLUSEdge inferrable = new PLUSEdge(b, f, pedge.getWorkflow(), PLUSEdge.EDGE_TYPE_UNSPECIFIED);
 					inferrable.setSourceHints(new SignPost("Surrogate Algorithm"));
 
 					// Inferrable edges always are marked show.
 					inferrable.setFromMarking(EdgeMarking.SHOW);
 					inferrable.setToMarking(EdgeMarking.SHOW);
-					toAdd.add(inferrable);
+					
+					// The last edge drawn between a pair wins, as it would if each were added to the DAG in turn.
+					toAdd.put(key, inferrable);
 					
 					// This shouldn't happen.  But we want to know about it if it does.
 					if(b.getId().equals(f.getId())) log.info("LOOP EDGE!  " + b.getName()); 
@@ -886,15 +1036,17 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		dag.getMetadata().put("VisibleSetMin", ""+visSetMin);
 		dag.getMetadata().put("preMarkEdges", ""+dag.countEdges());
 		dag.getMetadata().put("inferredEdges", ""+inferredEdges);
+		dag.getMetadata().put("VisibleSetsComputed", ""+visibleSets.countComputed());
+		dag.getMetadata().put("DuplicateInferredEdges", ""+duplicateEdges);
 		
 		dag.getFingerPrint().startTimer("AddComputedEdges"); 
 		// Have to add these outside the loop to avoid concurrent modifications.
-		for(int x=0; x<toAdd.size(); x++) {
+		for(PLUSEdge computed : toAdd.values()) {
 			log.fine("Adding computed edge " + 
-					 toAdd.get(x).getFrom().getName() + " -> " + 
-					 toAdd.get(x).getTo().getName());
+					 computed.getFrom().getName() + " -> " + 
+					 computed.getTo().getName());
 			
-			dag.addEdge(toAdd.get(x), true); 
+			dag.addEdge(computed, true); 
 		} // End for
 		dag.getFingerPrint().stopTimer("AddComputedEdges");
 		
@@ -934,6 +1086,7 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 	 * @param operation "bling" or "fling"
 	 * @return a list of objects that are related via that operation, that have no inferred links further upstream.
 	 * @throws PLUSException
+	 * @see VisibleSetEngine for a version that shares work between calls.
 	 */
 	protected static ArrayList <PLUSObject> buildVisibleSet(LineageDAG dag, PLUSObject source, String operation) throws PLUSException {
 		if(!"bling".equals(operation) && !"fling".equals(operation))
@@ -1005,12 +1158,8 @@ public class LineageDAG extends ViewedCollection implements FocusedCollection {
 		LineageDAG d = new LineageDAG(viewer);
 		d.addAll(col);
 		
-		d = LineageDAG.computeEdgeVoting(d);   // Edge voting for surrogates
-		d = LineageDAG.traceTaintSources(d);   // Trace indirect taints from direct taints
-		d = LineageDAG.drawInferrableEdges(d); // Draw inferred edges based on surrogate alg.
-		d = LineageDAG.tagHeadAndFeet(d);
-		
-		return d;
+		// Edge voting, taint tracing, inferred edges, and heads and feet.
+		return DAGPipeline.run(d);
 	} // End fromCollection
 
 	public PLUSObject getFocus() { return focus; }  
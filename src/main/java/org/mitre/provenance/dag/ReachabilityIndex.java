@@ -0,0 +1,201 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Answers "is there a FLING path from one node to another?" for a fixed graph, without searching.
+ *
+ * <p>This is a pruned landmark labeling.  Every node gets two labels:  the landmarks that can reach it (in), and
+ * the landmarks it can reach (out).  There is a path from u to w exactly when out(u) and in(w) share a landmark.
+ * Nodes are taken as landmarks in decreasing order of connectedness; each one is pushed forwards and backwards
+ * through the graph by breadth-first search, which stops wherever the labels built so far already answer the
+ * question.  On provenance graphs most searches stop almost at once, so labels stay short and a query is a merge of
+ * two short sorted arrays.
+ *
+ * <p>The index is a snapshot of a CompactGraph; it must be rebuilt if the graph's edges change.
+ * @see LineageDAG#getReachabilityIndex()
+ * @author moxious
+ */
+public class ReachabilityIndex {
+	/** The graph indexed; node numbers are its node numbers. */
+	protected CompactGraph graph;
+
+	/** Landmark ranks that reach each node, sorted. */
+	protected int [][] in;
+	protected int [] inSize;
+
+	/** Landmark ranks each node reaches, sorted. */
+	protected int [][] out;
+	protected int [] outSize;
+
+	/** Successors and predecessors of each node. */
+	protected int [][] succ;
+	protected int [][] pred;
+
+	/**
+	 * Index a graph.
+	 * @param graph the graph to index
+	 */
+	public ReachabilityIndex(CompactGraph graph) {
+		this.graph = graph;
+		int n = graph.countNodes();
+
+		succ = new int[n][];
+		pred = new int[n][];
+
+		for(int x=0; x<n; x++) {
+			succ[x] = new int[graph.outDegree(x)];
+			for(int k=0; k<succ[x].length; k++) succ[x][k] = graph.getTo(graph.outEdge(x, k));
+
+			pred[x] = new int[graph.inDegree(x)];
+			for(int k=0; k<pred[x].length; k++) pred[x][k] = graph.getFrom(graph.inEdge(x, k));
+		}
+
+		in = new int[n][];
+		out = new int[n][];
+		inSize = new int[n];
+		outSize = new int[n];
+
+		for(int x=0; x<n; x++) {
+			in[x] = new int[2];
+			out[x] = new int[2];
+		}
+
+		label(order());
+	} // End ReachabilityIndex
+
+	/** @return node positions, most connected first. */
+	private Integer [] order() {
+		Integer [] order = new Integer[succ.length];
+		for(int x=0; x<order.length; x++) order[x] = x;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long da = (long)(succ[a].length + 1) * (pred[a].length + 1);
+				long db = (long)(succ[b].length + 1) * (pred[b].length + 1);
+				if(da != db) return (da > db ? -1 : 1);
+				return a.compareTo(b);
+			}
+		});
+
+		return order;
+	} // End order
+
+	/**
+	 * Build the labels.  Landmarks are processed in rank order, so every label is appended to in increasing order
+	 * and stays sorted.
+	 */
+	private void label(Integer [] order) {
+		int n = order.length;
+		int [] queue = new int[n];
+		int [] seen = new int[n];
+		Arrays.fill(seen, -1);
+		int stamp = 0;
+
+		for(int rank=0; rank<n; rank++) {
+			int v = order[rank];
+
+			// Forward:  v reaches everything this search gets to, unless something ranked higher already says so.
+			stamp++;
+			int head = 0, tail = 0;
+			queue[tail++] = v;
+			seen[v] = stamp;
+
+			while(head < tail) {
+				int w = queue[head++];
+				if(intersects(out[v], outSize[v], in[w], inSize[w])) continue;
+
+				append(true, w, rank);
+				for(int s : succ[w]) {
+					if(seen[s] != stamp) { seen[s] = stamp; queue[tail++] = s; }
+				}
+			} // End while
+
+			// Backward:  everything this search gets to reaches v.
+			stamp++;
+			head = 0; tail = 0;
+			queue[tail++] = v;
+			seen[v] = stamp;
+
+			while(head < tail) {
+				int w = queue[head++];
+				if(intersects(out[w], outSize[w], in[v], inSize[v])) continue;
+
+				append(false, w, rank);
+				for(int p : pred[w]) {
+					if(seen[p] != stamp) { seen[p] = stamp; queue[tail++] = p; }
+				}
+			} // End while
+		} // End for
+	} // End label
+
+	private void append(boolean toIn, int node, int rank) {
+		int [][] labels = (toIn ? in : out);
+		int [] sizes = (toIn ? inSize : outSize);
+
+		if(sizes[node] == labels[node].length)
+			labels[node] = Arrays.copyOf(labels[node], labels[node].length * 2);
+		labels[node][sizes[node]++] = rank;
+	} // End append
+
+	/** @return true if two sorted arrays have an element in common. */
+	private static boolean intersects(int [] a, int aSize, int [] b, int bSize) {
+		int i = 0, j = 0;
+		while(i < aSize && j < bSize) {
+			if(a[i] == b[j]) return true;
+			if(a[i] < b[j]) i++;
+			else j++;
+		}
+		return false;
+	} // End intersects
+
+	/** @return true if the given OID was in the graph when it was indexed. */
+	public boolean contains(String oid) {
+		return graph.indexOf(oid) >= 0;
+	}
+
+	/** @return the number of nodes indexed. */
+	public int countNodes() { return graph.countNodes(); }
+
+	/** @return the total number of landmark entries in all labels; a measure of the index's size. */
+	public long countLabels() {
+		long total = 0;
+		for(int x=0; x<inSize.length; x++) total += inSize[x] + outSize[x];
+		return total;
+	}
+
+	/**
+	 * Determine whether a FLING path of at least one edge leads from one node to another.  A node reaches itself
+	 * only if it is on a cycle.
+	 * @param fromOID the starting node
+	 * @param toOID the ending node
+	 * @return true if the path exists, false if it doesn't or either node isn't indexed.
+	 */
+	public boolean reaches(String fromOID, String toOID) {
+		int f = graph.indexOf(fromOID);
+		int t = graph.indexOf(toOID);
+		if(f < 0 || t < 0) return false;
+
+		if(f != t) return intersects(out[f], outSize[f], in[t], inSize[t]);
+
+		for(int s : succ[f]) {
+			if(intersects(out[s], outSize[s], in[t], inSize[t])) return true;
+		}
+		return false;
+	} // End reaches
+} // End ReachabilityIndex
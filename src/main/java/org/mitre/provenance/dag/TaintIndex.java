@@ -0,0 +1,210 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+
+/**
+ * Records which taint sources reach each node of a DAG.  Sources are numbered, and every node downstream of at
+ * least one source carries a bit set of the sources that reach it.
+ *
+ * <p>Sets are computed in a single pass over the part of the graph reachable from any source:  nodes are visited in
+ * topological order, and each one passes its set on to the nodes it flows to, so every reachable edge is followed
+ * exactly once no matter how many sources there are.  If the reachable graph has a cycle, the nodes that couldn't
+ * be ordered are finished by propagating changes until nothing new is learned.
+ *
+ * <p>Nothing is written into the DAG's tags; the taint tags are produced on request by {@link #getTags(String)}.
+ * @see LineageDAG#traceTaintSources(LineageDAG)
+ * @author moxious
+ */
+public class TaintIndex {
+	/** Tags naming an individual source start with this prefix. */
+	public static final String TAINTED_BY_PREFIX = "tainted-by-";
+
+	/** Source OIDs, in the order they were numbered. */
+	protected List<String> sources = new ArrayList<String>();
+
+	/** Maps the OID of every tainted node to the sources that reach it. */
+	protected Map<String,BitSet> reachedBy = new LinkedHashMap<String,BitSet>();
+
+	/** An index with no taint in it. */
+	public TaintIndex() { ; }
+
+	/**
+	 * Trace taint through a DAG.
+	 * @param graph the graph to trace
+	 * @param sourceOIDs the OIDs of the nodes that are directly tainted.  Those that aren't in the graph are ignored.
+	 */
+	public TaintIndex(CompactGraph graph, Collection<String> sourceOIDs) {
+		BitSet [] bits = new BitSet[graph.countNodes()];
+		ArrayDeque<Integer> start = new ArrayDeque<Integer>();
+
+		for(String oid : sourceOIDs) {
+			int n = graph.indexOf(oid);
+			if(n < 0 || bits[n] != null) continue;
+
+			bits[n] = new BitSet();
+			bits[n].set(sources.size());
+			sources.add(oid);
+			start.add(n);
+		}
+
+		if(!sources.isEmpty()) propagate(graph, bits, start);
+
+		for(int n=0; n<bits.length; n++)
+			if(bits[n] != null) reachedBy.put(graph.getNode(n).getId(), bits[n]);
+	} // End TaintIndex
+
+	/**
+	 * Push every source's bit downstream.
+	 * @param bits the sources reaching each node, filled in as they're found.
+	 * @param start the source nodes.
+	 */
+	protected void propagate(CompactGraph graph, BitSet [] bits, ArrayDeque<Integer> start) {
+		// Find everything reachable, and how many reachable edges point at each node.  -1 means not reachable.
+		int [] inDegree = new int[graph.countNodes()];
+		Arrays.fill(inDegree, -1);
+
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>(start);
+		for(int s : start) inDegree[s] = 0;
+		int reachable = start.size();
+
+		while(!queue.isEmpty()) {
+			int n = queue.poll();
+
+			for(int k=0; k<graph.outDegree(n); k++) {
+				int to = graph.getTo(graph.outEdge(n, k));
+				if(inDegree[to] < 0) {
+					inDegree[to] = 0;
+					queue.add(to);
+					reachable++;
+				}
+				inDegree[to]++;
+			}
+		} // End while
+
+		// Kahn's algorithm:  a node passes on its set once everything upstream of it has.
+		for(int n=0; n<inDegree.length; n++)
+			if(inDegree[n] == 0) queue.add(n);
+
+		int ordered = 0;
+		while(!queue.isEmpty()) {
+			int n = queue.poll();
+			ordered++;
+
+			for(int k=0; k<graph.outDegree(n); k++) {
+				int to = graph.getTo(graph.outEdge(n, k));
+				merge(bits, to, bits[n]);
+				if(--inDegree[to] == 0) queue.add(to);
+			}
+		} // End while
+
+		if(ordered == reachable) return;
+
+		// Whatever is left sits on or below a cycle.  Sets only grow, so this terminates.
+		for(int n=0; n<inDegree.length; n++)
+			if(inDegree[n] > 0 && bits[n] != null) queue.add(n);
+
+		while(!queue.isEmpty()) {
+			int n = queue.poll();
+
+			for(int k=0; k<graph.outDegree(n); k++) {
+				int to = graph.getTo(graph.outEdge(n, k));
+				if(merge(bits, to, bits[n])) queue.add(to);
+			}
+		} // End while
+	} // End propagate
+
+	/**
+	 * Add bits to a node's set.
+	 * @return true if the node's set changed.
+	 */
+	private static boolean merge(BitSet [] sets, int n, BitSet bits) {
+		if(sets[n] == null) {
+			sets[n] = (BitSet)bits.clone();
+			return true;
+		}
+
+		BitSet missing = (BitSet)bits.clone();
+		missing.andNot(sets[n]);
+		if(missing.isEmpty()) return false;
+
+		sets[n].or(missing);
+		return true;
+	} // End merge
+
+	/** @return true if any source reaches the given OID. */
+	public boolean isTainted(String oid) {
+		return reachedBy.containsKey(oid);
+	}
+
+	/**
+	 * @param oid the node of interest
+	 * @return the OIDs of the sources that reach it, in source order; empty if it isn't tainted.
+	 */
+	public String [] getSources(String oid) {
+		BitSet b = reachedBy.get(oid);
+		if(b == null) return new String [] {};
+
+		String [] result = new String [b.cardinality()];
+		int x = 0;
+		for(int i=b.nextSetBit(0); i>=0; i=b.nextSetBit(i+1))
+			result[x++] = sources.get(i);
+
+		return result;
+	} // End getSources
+
+	/** @return the OIDs of all tainted nodes. */
+	public Set<String> getTaintedNodes() {
+		return Collections.unmodifiableSet(reachedBy.keySet());
+	}
+
+	/** @return the number of distinct taint sources. */
+	public int countSources() { return sources.size(); }
+
+	/**
+	 * Produce the taint tags for a node:  one "tainted-by-" tag per source, and a
+	 * {@link ProvenanceCollection#TAINT_FLAG} tag listing all of them, separated by commas.
+	 * @param oid the node of interest
+	 * @return a new map of tags, which is empty if the node isn't tainted.
+	 */
+	public HashMap<String,String> getTags(String oid) {
+		HashMap<String,String> tags = new HashMap<String,String>();
+		String [] srcs = getSources(oid);
+		if(srcs.length == 0) return tags;
+
+		StringBuffer flag = new StringBuffer();
+		for(String s : srcs) {
+			tags.put(TAINTED_BY_PREFIX + s, s);
+			if(flag.length() > 0) flag.append(",");
+			flag.append(s);
+		}
+
+		tags.put(ProvenanceCollection.TAINT_FLAG, flag.toString());
+		return tags;
+	} // End getTags
+} // End TaintIndex
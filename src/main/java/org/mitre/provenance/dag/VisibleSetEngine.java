@@ -0,0 +1,162 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.dag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.plusobject.PLUSObject;
+
+/**
+ * Computes visible sets for a DAG whose edges have been marked by edge voting.  The visible set of a node in one
+ * direction is the set of nearest nodes upstream (bling) or downstream (fling) that are reachable through edges that
+ * aren't hidden, passing through nodes only as long as their side of the edge is marked infer.
+ *
+ * <p>Visible sets are memoized per node and direction.  A node's set is the union of its neighbors' contributions,
+ * and a neighbor behind an infer marking contributes its own visible set, so every set is computed once, in
+ * dependency order, and shared by every edge that needs it.  The walk is iterative, so long chains of inferred
+ * nodes can't overflow the stack; a cycle of infer markings contributes nothing past the point where it closes.
+ *
+ * <p>The engine works over the DAG's CompactGraph.  The DAG's edge markings must not change while an engine is in
+ * use.
+ * @see LineageDAG#drawInferrableEdges(LineageDAG)
+ * @author moxious
+ */
+public class VisibleSetEngine {
+	protected LineageDAG dag;
+	protected CompactGraph graph;
+
+	protected ArrayList<Set<PLUSObject>> blingSets;
+	protected ArrayList<Set<PLUSObject>> flingSets;
+
+	protected int computed = 0;
+
+	/** One node whose visible set is being computed. */
+	private static class Frame {
+		int node;
+		/** The next of the node's edges to look at */
+		int edge = 0;
+		LinkedHashSet<PLUSObject> set = new LinkedHashSet<PLUSObject>();
+		/** The neighbor whose set is being computed; its result is added to this set when it is done. */
+		int waitingOn = -1;
+
+		Frame(int node) {
+			this.node = node;
+		}
+	} // End Frame
+
+	public VisibleSetEngine(LineageDAG dag) {
+		this.dag = dag;
+		this.graph = dag.getCompactGraph();
+
+		int n = graph.countNodes();
+		blingSets = new ArrayList<Set<PLUSObject>>(Collections.nCopies(n, (Set<PLUSObject>)null));
+		flingSets = new ArrayList<Set<PLUSObject>>(Collections.nCopies(n, (Set<PLUSObject>)null));
+	} // End VisibleSetEngine
+
+	/** @return the number of distinct visible sets computed so far; lookups that were already known are not counted. */
+	public int countComputed() { return computed; }
+
+	/**
+	 * Find the visible set of a node.
+	 * @param source the node to start from
+	 * @param operation "bling" or "fling"
+	 * @return an unmodifiable set of the nearest visible nodes in that direction.
+	 * @throws PLUSException if the operation is invalid, the node isn't in the DAG, or an edge loops from a node to
+	 * itself.
+	 */
+	public Set<PLUSObject> getVisibleSet(PLUSObject source, String operation) throws PLUSException {
+		if(!"bling".equals(operation) && !"fling".equals(operation))
+			throw new PLUSException("Illegal operation");
+
+		int start = graph.indexOf(source.getId());
+		if(start < 0) throw new PLUSException("No such object " + source.getId() + " in DAG");
+
+		boolean bling = "bling".equals(operation);
+		ArrayList<Set<PLUSObject>> memo = (bling ? blingSets : flingSets);
+
+		Set<PLUSObject> known = memo.get(start);
+		if(known != null) return known;
+
+		dag.getFingerPrint().startTimer("VisibleSet");
+
+		ArrayList<Frame> stack = new ArrayList<Frame>();
+		boolean [] inProgress = new boolean[graph.countNodes()];
+
+		stack.add(new Frame(start));
+		inProgress[start] = true;
+
+		while(!stack.isEmpty()) {
+			Frame f = stack.get(stack.size() - 1);
+
+			if(f.waitingOn >= 0) {
+				f.set.addAll(memo.get(f.waitingOn));
+				f.waitingOn = -1;
+			}
+
+			Frame next = null;
+			int degree = (bling ? graph.inDegree(f.node) : graph.outDegree(f.node));
+
+			while(next == null && f.edge < degree) {
+				int e = (bling ? graph.inEdge(f.node, f.edge) : graph.outEdge(f.node, f.edge));
+				f.edge++;
+
+				if(graph.getVerdict(e) == CompactGraph.MARK_HIDE) continue;
+
+				int nextNode = (bling ? graph.getFrom(e) : graph.getTo(e));
+				if(nextNode == f.node) {
+					PLUSObject o = graph.getNode(f.node);
+					throw new PLUSException("Horrors!  " + o.getName() + " " + operation + " is topsy-turvy!");
+				}
+
+				// If we're going BLING-direction, then we want to know if nextNode's outgoing marking is visible.
+				// If we're going FLING-direction, then we want to know if nextNode's incoming marking is visible.
+				// Remember that no marking also counts as visible.  If the node didn't vote...
+				byte relevant = (bling ? graph.getFromMarking(e) : graph.getToMarking(e));
+				if(relevant == CompactGraph.MARK_NONE) relevant = CompactGraph.MARK_SHOW;
+
+				if(relevant == CompactGraph.MARK_SHOW) {
+					f.set.add(graph.getNode(nextNode));
+				} else if(relevant == CompactGraph.MARK_INFER) {
+					Set<PLUSObject> done = memo.get(nextNode);
+
+					if(done != null) f.set.addAll(done);
+					else if(!inProgress[nextNode]) {
+						// Compute the neighbor's set first, then come back to this node.
+						f.waitingOn = nextNode;
+						next = new Frame(nextNode);
+					}
+				}
+			} // End while
+
+			if(next != null) {
+				stack.add(next);
+				inProgress[next.node] = true;
+				continue;
+			}
+
+			memo.set(f.node, Collections.unmodifiableSet(f.set));
+			inProgress[f.node] = false;
+			stack.remove(stack.size() - 1);
+			computed++;
+		} // End while
+
+		dag.getFingerPrint().stopTimer("VisibleSet");
+		return memo.get(start);
+	} // End getVisibleSet
+} // End VisibleSetEngine
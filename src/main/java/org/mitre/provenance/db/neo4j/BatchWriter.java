@@ -0,0 +1,294 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSActor;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.surrogate.SurrogateCache;
+import org.mitre.provenance.tools.PLUSUtils;
+import org.mitre.provenance.user.PrivilegeClass;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Writes a whole provenance collection to the database.  Rather than storing items one at a time, which costs
+ * several index lookups and a nested transaction per object and edge, the writer first resolves every identifier
+ * the collection refers to: which OIDs already exist (in batched index queries), the owners of its objects, and its
+ * privilege classes, each looked up only once.  It then writes the collection in chunks, committing once per chunk.
+ *
+ * <p>The result is the same as storing actors, then objects, then edges, then non-provenance edges one by one:
+ * actors and objects whose IDs already exist are skipped, and everything else is created.  Edges whose endpoints can't be
+ * found cause an exception before anything is written.  Because each chunk commits on its own, a failure while
+ * writing can leave earlier chunks stored; when called inside an enclosing transaction, nothing is committed
+ * until that transaction is.
+ * @see Neo4JStorage#store(ProvenanceCollection)
+ * @author moxious
+ */
+public class BatchWriter {
+	protected static final Logger log = Logger.getLogger(BatchWriter.class.getName());
+
+	/** Default number of items written per transaction */
+	public static final int DEFAULT_CHUNK_SIZE = 5000;
+
+	/** Number of OIDs checked per read transaction */
+	public static final int LOOKUP_BATCH_SIZE = 500;
+
+	protected int chunkSize;
+
+	/** Nodes for every OID the collection refers to that is already stored, or written by this writer */
+	protected Map<String,Node> oids = new HashMap<String,Node>();
+	/** Nodes for owners, by AID */
+	protected Map<String,Node> actors = new HashMap<String,Node>();
+	/** Nodes for privilege classes, by ID */
+	protected Map<String,Node> privileges = new HashMap<String,Node>();
+	/** Nodes for non-provenance identifiers, by NPID */
+	protected Map<String,Node> npids = new HashMap<String,Node>();
+
+	protected Transaction tx = null;
+	protected int inChunk = 0;
+
+	public BatchWriter() { this(DEFAULT_CHUNK_SIZE); }
+
+	/**
+	 * @param chunkSize the number of items to write in each transaction.
+	 */
+	public BatchWriter(int chunkSize) {
+		this.chunkSize = (chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Store a collection.
+	 * @param col the provenance collection
+	 * @return the number of items written or found already present, counted the same way as
+	 * Neo4JStorage.store(ProvenanceCollection) always has.
+	 * @throws PLUSException if an edge refers to an object that is neither in the collection nor the database, or
+	 * if the write fails.
+	 */
+	public int store(ProvenanceCollection col) throws PLUSException {
+		long start = System.currentTimeMillis();
+		int x = 0;
+		
+		// Surrogates may depend on lineage, so those remembered for either end of a new edge are dropped.
+		Set<String> ends = new LinkedHashSet<String>();
+
+		resolve(col);
+
+		try {
+			begin();
+
+			// Actors go first, since objects may be owned by them.
+			for(PLUSActor a : col.getActors()) {
+				x++;
+				if(actors.containsKey(a.getId())) continue;
+
+				actors.put(a.getId(), Neo4JStorage.createNode(a));
+				wrote();
+			}
+
+			for(PLUSObject o : col.getNodes()) {
+				x++;
+
+				if(oids.containsKey(o.getId())) {
+					log.warning("Skipping storage of " + o + " under OID " + o.getId() + " because that OID already exists.");
+					continue;
+				}
+
+				ArrayList<Node> pcNodes = new ArrayList<Node>();
+				for(PrivilegeClass pc : o.getPrivileges().getPrivilegeSet())
+					pcNodes.add(privileges.get(pc.getId()));
+
+				oids.put(o.getId(), Neo4JStorage.createObjectNode(o, ownerOf(o), pcNodes));
+				wrote();
+			}
+
+			for(PLUSEdge e : col.getEdges()) {
+				Neo4JStorage.createEdge(oids.get(e.getFrom().getId()), oids.get(e.getTo().getId()), e);
+				ends.add(e.getFrom().getId());
+				ends.add(e.getTo().getId());
+				x++;
+				wrote();
+			}
+
+			for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
+				String toId = npe.getTo();
+				Node to = (PLUSUtils.isPLUSOID(toId) ? oids.get(toId) : npidNode(toId));
+
+				Neo4JStorage.createNPE(oids.get(npe.getFrom()), to, npe);
+				x++;
+				wrote();
+			}
+
+			commit();
+		} finally {
+			if(tx != null) { tx.close(); tx = null; }
+			for(String oid : ends) SurrogateCache.invalidate(oid);
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		log.fine("Stored " + x + " items in " + elapsed + "ms (" +
+				(elapsed > 0 ? (x * 1000L / elapsed) : x) + " items/sec)");
+		return x;
+	} // End store
+
+	/**
+	 * Look up everything the collection refers to, and check that all edges can be written.
+	 */
+	protected void resolve(ProvenanceCollection col) throws PLUSException {
+		// Every OID the collection mentions.
+		Set<String> needed = new LinkedHashSet<String>();
+		for(PLUSObject o : col.getNodes()) needed.add(o.getId());
+		for(PLUSEdge e : col.getEdges()) {
+			needed.add(e.getFrom().getId());
+			needed.add(e.getTo().getId());
+		}
+		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
+			needed.add(npe.getFrom());
+			if(PLUSUtils.isPLUSOID(npe.getTo())) needed.add(npe.getTo());
+		}
+
+		findExisting(needed);
+
+		// Edge endpoints that are neither stored nor about to be.
+		for(PLUSEdge e : col.getEdges()) {
+			if(!resolvable(col, e.getFrom().getId()))
+				throw new PLUSException("Cannot store edge " + e + " where from OID is not in the store!");
+			if(!resolvable(col, e.getTo().getId()))
+				throw new PLUSException("Cannot store edge " + e + " where to OID is not in the store!");
+		}
+
+		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
+			if(!resolvable(col, npe.getFrom()))
+				throw new PLUSException("Cannot store NPE " + npe.getFrom() + " -(" + npe.getType() + ")-> " +
+						npe.getTo() + " where 'from' OID is not in the store!");
+			if(PLUSUtils.isPLUSOID(npe.getTo()) && !resolvable(col, npe.getTo()))
+				throw new PLUSException("Cannot store NPE " + npe.getFrom() + " -(" + npe.getType() + ")-> " +
+						npe.getTo() + " where 'to' OID is not in the store!");
+		}
+
+		// The collection's actors, and the owners of its new objects; those that aren't stored along with the 
+		// collection must already exist.
+		Set<String> aids = new LinkedHashSet<String>();
+		for(PLUSActor a : col.getActors()) aids.add(a.getId());
+
+		for(PLUSObject o : col.getNodes()) {
+			if(oids.containsKey(o.getId())) continue;
+			String aid = (o.getOwner() != null ? o.getOwner().getId() : null);
+			if(aid != null && !"".equals(aid.trim())) aids.add(aid);
+		}
+
+		findExistingActors(aids);
+
+		for(PLUSObject o : col.getNodes()) {
+			if(oids.containsKey(o.getId())) continue;
+			for(PrivilegeClass pc : o.getPrivileges().getPrivilegeSet()) {
+				if(!privileges.containsKey(pc.getId())) privileges.put(pc.getId(), Neo4JStorage.getOrCreate(pc));
+			}
+		}
+	} // End resolve
+
+	/** @return true if the OID is stored, or is an object in the collection that will be. */
+	private boolean resolvable(ProvenanceCollection col, String oid) {
+		return oids.containsKey(oid) || col.containsObjectID(oid);
+	}
+
+	/**
+	 * Find which of a set of OIDs are already stored, with one read transaction per LOOKUP_BATCH_SIZE OIDs.
+	 */
+	protected void findExisting(Set<String> needed) {
+		List<String> batch = new ArrayList<String>();
+		List<String> all = new ArrayList<String>(needed);
+
+		for(int i=0; i<all.size(); i++) {
+			batch.add(all.get(i));
+			if(batch.size() < LOOKUP_BATCH_SIZE && i < all.size() - 1) continue;
+
+			for(Map.Entry<String,Node> found : Neo4JStorage.oidsExist(batch).entrySet()) {
+				if(!oids.containsKey(found.getKey())) oids.put(found.getKey(), found.getValue());
+			}
+
+			batch.clear();
+		} // End for
+	} // End findExisting
+
+	/**
+	 * Find which of a set of AIDs are already stored, with one read transaction per LOOKUP_BATCH_SIZE AIDs.
+	 */
+	protected void findExistingActors(Set<String> needed) {
+		List<String> batch = new ArrayList<String>();
+		List<String> all = new ArrayList<String>(needed);
+
+		for(int i=0; i<all.size(); i++) {
+			batch.add(all.get(i));
+			if(batch.size() < LOOKUP_BATCH_SIZE && i < all.size() - 1) continue;
+
+			for(Map.Entry<String,Node> found : Neo4JStorage.actorsExist(batch).entrySet()) {
+				if(!actors.containsKey(found.getKey())) actors.put(found.getKey(), found.getValue());
+			}
+
+			batch.clear();
+		} // End for
+	} // End findExistingActors
+
+	/** @return the node of the object's owner, or null if it has none or the owner doesn't exist. */
+	protected Node ownerOf(PLUSObject o) {
+		String aid = (o.getOwner() != null ? o.getOwner().getId() : null);
+		if(aid == null || "".equals(aid.trim())) return null;
+
+		Node n = actors.get(aid);
+		if(n == null)
+			log.warning("Cannot store owner of " + o + " because AID " + aid + " doesn't exist!  Actors must be pre-saved.");
+		return n;
+	} // End ownerOf
+
+	/** @return the node for a non-provenance identifier, creating it if necessary. */
+	protected Node npidNode(String npid) {
+		Node n = npids.get(npid);
+		if(n == null) {
+			n = Neo4JStorage.getNPID(npid, true);
+			npids.put(npid, n);
+		}
+		return n;
+	} // End npidNode
+
+	private void begin() {
+		tx = Neo4JStorage.beginTx();
+		inChunk = 0;
+	}
+
+	private void commit() {
+		tx.success();
+		tx.close();
+		tx = null;
+	}
+
+	/** Count one item written, and commit the chunk if it is full. */
+	private void wrote() {
+		if(++inChunk < chunkSize) return;
+		commit();
+		begin();
+	}
+} // End BatchWriter
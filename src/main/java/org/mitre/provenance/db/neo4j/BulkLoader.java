@@ -0,0 +1,479 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mitre.provenance.Metadata;
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSActivity;
+import org.mitre.provenance.plusobject.PLUSActor;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSWorkflow;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.json.ProvenanceCollectionDeserializer;
+import org.mitre.provenance.tools.PLUSUtils;
+import org.mitre.provenance.user.PrivilegeClass;
+import org.mitre.provenance.user.User;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.impl.lucene.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Command-line tool that creates a new database from D3-JSON files, as produced by JSONConverter, using the Neo4J
+ * batch insertion API.  The batch inserter writes the store directly with no transactions, so it is much faster than
+ * reporting the same collections through a client, but it can only be used on a database that nothing else has open.
+ * To be safe, this tool only creates new databases, and refuses to run against a directory that already holds one.
+ *
+ * <p>The database produced is the same as one set up by Neo4JStorage: it has the same labels, uniqueness constraints,
+ * schema indexes, auto-indexed relationship properties, recency and full-text indexes, default objects, and privilege class lattice.  The sample data that Neo4JStorage loads
+ * into new databases is not added.
+ *
+ * <p>Each file is read into memory and written in turn, so only one file's collection is held at a time; node ids
+ * for every identifier loaded so far are kept, so that later files may refer to objects in earlier ones.  As with
+ * Neo4JStorage.store, objects and actors whose identifiers have already been loaded are skipped.  Edges whose
+ * endpoints haven't been loaded are skipped with a warning.
+ *
+ * @see org.mitre.provenance.plusobject.json.JSONConverter#provenanceCollectionToD3Json(ProvenanceCollection)
+ * @author moxious
+ */
+public class BulkLoader {
+	protected static final Logger log = Logger.getLogger(BulkLoader.class.getName());
+
+	/** Name of the legacy index Neo4J uses for auto-indexed node properties; only written if Neo4JStorage.LEGACY_NODE_INDEX is set */
+	public static final String NODE_AUTO_INDEX = "node_auto_index";
+	/** Name of the legacy index Neo4J uses for auto-indexed relationship properties */
+	public static final String RELATIONSHIP_AUTO_INDEX = "relationship_auto_index";
+
+	protected static final Label LABEL_NODE = DynamicLabel.label(Neo4JStorage.LABEL_NAME_NODE);
+	protected static final Label LABEL_ACTOR = DynamicLabel.label(Neo4JStorage.LABEL_NAME_ACTOR);
+	protected static final Label LABEL_PRIVCLASS = DynamicLabel.label(Neo4JStorage.LABEL_NAME_PRIVCLASS);
+	protected static final Label LABEL_NONPROV = DynamicLabel.label(Neo4JStorage.LABEL_NAME_NONPROV);
+
+	protected static final Set<String> NODE_KEYS = new HashSet<String>(Arrays.asList(Neo4JStorage.NODE_KEYS_INDEXABLE.split(",")));
+	protected static final Set<String> RELATIONSHIP_KEYS = new HashSet<String>(Arrays.asList(Neo4JStorage.RELATIONSHIP_KEYS_INDEXABLE.split(",")));
+
+	protected BatchInserter inserter;
+	protected BatchInserterIndexProvider indexProvider;
+	protected BatchInserterIndex nodeIndex;
+	protected BatchInserterIndex relationshipIndex;
+	protected BatchInserterIndex fullTextIndex;
+
+	protected Map<String,Long> oids = new HashMap<String,Long>();
+	protected Map<String,Long> actors = new HashMap<String,Long>();
+	protected Map<String,Long> privileges = new HashMap<String,Long>();
+	protected Map<String,Long> npids = new HashMap<String,Long>();
+	
+	/** Recency buckets filled so far; their markers are written on shutdown. */
+	protected Set<String> bucketKeys = new HashSet<String>();
+	
+	/** Number of objects loaded so far carrying each content hash; their counter nodes are written on shutdown. */
+	protected Map<String,Long> hashCounts = new HashMap<String,Long>();
+	
+	/** Metadata indexes declared by configuration; composite ones have their properties written as objects are loaded. */
+	protected List<MetadataIndex.Definition> metadataIndexes = MetadataIndex.getConfigured();
+
+	protected long objectsLoaded = 0;
+	protected long relationshipsLoaded = 0;
+	protected long skipped = 0;
+
+	/**
+	 * Open a new database for bulk loading.
+	 * @param storeDir the directory to create the database in.  It must not already contain a database.
+	 * @throws PLUSException if the directory already holds a database.
+	 */
+	public BulkLoader(File storeDir) throws PLUSException {
+		if(containsDatabase(storeDir))
+			throw new PLUSException("Refusing to bulk load into " + storeDir.getAbsolutePath() + ": it already contains a database, " +
+		                            "which may be in use.  The bulk loader only creates new databases.");
+
+		inserter = BatchInserters.inserter(storeDir.getAbsolutePath());
+		indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+		nodeIndex = indexProvider.nodeIndex(NODE_AUTO_INDEX, MapUtil.stringMap("provider", "lucene", "type", "exact"));
+		relationshipIndex = indexProvider.relationshipIndex(RELATIONSHIP_AUTO_INDEX, MapUtil.stringMap("provider", "lucene", "type", "exact"));
+		fullTextIndex = indexProvider.nodeIndex(FullTextIndex.INDEX_NAME, FullTextIndex.INDEX_CONFIG);
+
+		setup();
+	} // End BulkLoader
+
+	/** @return true if the directory holds any Neo4J store files. */
+	public static boolean containsDatabase(File storeDir) {
+		if(!storeDir.exists()) return false;
+
+		String [] names = storeDir.list();
+		if(names == null) return true;   // A file, not a directory; don't touch it.
+
+		for(String name : names)
+			if(name.startsWith("neostore") || name.equals("store_lock")) return true;
+
+		return false;
+	} // End containsDatabase
+
+	/**
+	 * Write the constraints, default objects, and privilege lattice that Neo4JStorage writes to every new database.
+	 * @see Neo4JStorage#ONE_TIME_SETUP()
+	 * @see Neo4JStorage#ensureSchema()
+	 */
+	protected void setup() throws PLUSException {
+		for(String [] key : Neo4JStorage.UNIQUE_KEYS)
+			inserter.createDeferredConstraint(DynamicLabel.label(key[0])).assertPropertyIsUnique(key[1]).create();
+
+		Set<String> indexed = new HashSet<String>();
+		for(String [] key : Neo4JStorage.INDEXED_KEYS) {
+			inserter.createDeferredSchemaIndex(DynamicLabel.label(key[0])).on(key[1]).create();
+			if(Neo4JStorage.LABEL_NAME_NODE.equals(key[0])) indexed.add(key[1]);
+		}
+		
+		// Every object loaded is indexed, so the indexes are ready as soon as the database is opened.
+		Label indexLabel = DynamicLabel.label(Neo4JStorage.LABEL_NAME_METADATA_INDEX);
+		for(MetadataIndex.Definition d : metadataIndexes) {
+			if(indexed.add(d.getProperty())) inserter.createDeferredSchemaIndex(LABEL_NODE).on(d.getProperty()).create();
+			inserter.createNode(MapUtil.map(MetadataIndex.PROP_KEYS, d.getName(), MetadataIndex.PROP_READY, true), indexLabel);
+		}
+
+		for(PrivilegeClass [] pair : Neo4JStorage.defaultPrivilegeLattice()) {
+			long a = privilegeClass(pair[0]);
+			long b = privilegeClass(pair[1]);
+			inserter.createRelationship(a, b, Neo4JStorage.DOMINATES, null);
+		}
+
+		actor(User.DEFAULT_USER_GOD);
+		actor(User.PUBLIC);
+		object(PLUSWorkflow.DEFAULT_WORKFLOW);
+		object(PLUSActivity.UNKNOWN_ACTIVITY);
+	} // End setup
+
+	/**
+	 * Load a collection into the database.
+	 * @param col the collection to load
+	 */
+	public void load(ProvenanceCollection col) throws PLUSException {
+		for(PLUSActor a : col.getActors()) actor(a);
+		for(PLUSObject o : col.getNodes()) object(o);
+
+		for(PLUSEdge e : col.getEdges()) {
+			Long from = oids.get(e.getFrom().getId());
+			Long to = oids.get(e.getTo().getId());
+
+			if(from == null || to == null) {
+				log.warning("Skipping edge " + e + " because an endpoint has not been loaded.");
+				skipped++;
+				continue;
+			}
+
+			Map<String,Object> props = new HashMap<String,Object>();
+			if(e.getWorkflow() != null) props.put(Neo4JStorage.PROP_WORKFLOW, e.getWorkflow().getId());
+			relationship(from, to, new Neo4JStorage.RT(e.getType()), props);
+		}
+
+		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
+			Long from = oids.get(npe.getFrom());
+			Long to = (PLUSUtils.isPLUSOID(npe.getTo()) ? oids.get(npe.getTo()) : npid(npe.getTo()));
+
+			if(from == null || to == null) {
+				log.warning("Skipping NPE " + npe + " because an endpoint has not been loaded.");
+				skipped++;
+				continue;
+			}
+
+			Map<String,Object> props = new HashMap<String,Object>();
+			props.put(Neo4JStorage.PROP_TYPE, npe.getType());
+			props.put(Neo4JStorage.PROP_NPEID, npe.getId());
+			props.put(Neo4JStorage.PROP_CREATED, npe.getCreated());
+			props.put(Neo4JStorage.PROP_CREATED_BUCKET, bucket(RecencyIndex.Kind.NPE, npe.getCreated()));
+			relationship(from, to, Neo4JStorage.NPE, props);
+		}
+	} // End load
+
+	/**
+	 * Read a D3-JSON file and load its collection into the database.
+	 * @param f the file to read
+	 */
+	public void load(File f) throws IOException, PLUSException {
+		Gson g = new GsonBuilder().registerTypeAdapter(ProvenanceCollection.class, new ProvenanceCollectionDeserializer()).create();
+
+		try (Reader r = new FileReader(f)) {
+			ProvenanceCollection col = g.fromJson(r, ProvenanceCollection.class);
+			if(col == null) throw new PLUSException("No collection found in " + f);
+			load(col);
+		}
+	} // End load
+
+	/**
+	 * Mark the recency buckets filled, count the content hashes, flush indexes and close the database.  The deferred constraints are checked at this point; the database can't be
+	 * used until this has been called.
+	 */
+	public void shutdown() {
+		Label bucketLabel = DynamicLabel.label(Neo4JStorage.LABEL_NAME_BUCKET);
+		bucketKeys.add(RecencyIndex.STAMPED_KEY);
+		for(String key : bucketKeys) 
+			inserter.createNode(MapUtil.map(RecencyIndex.PROP_KEY, key), bucketLabel);
+		bucketKeys.clear();
+		
+		Label hashLabel = DynamicLabel.label(Neo4JStorage.LABEL_NAME_HASH);
+		Label duplicateLabel = DynamicLabel.label(Neo4JStorage.LABEL_NAME_DUPLICATE);
+		for(Map.Entry<String,Long> e : hashCounts.entrySet()) {
+			Map<String,Object> props = MapUtil.map(ContentHashIndex.PROP_HASH, e.getKey(), ContentHashIndex.PROP_COUNT, e.getValue());
+			if(e.getValue() > 1) inserter.createNode(props, hashLabel, duplicateLabel);
+			else inserter.createNode(props, hashLabel);
+		}
+		hashCounts.clear();
+		inserter.createNode(MapUtil.map(ContentHashIndex.PROP_HASH, ContentHashIndex.BUILT_HASH, ContentHashIndex.PROP_COUNT, 0L), hashLabel);
+		
+		nodeIndex.flush();
+		relationshipIndex.flush();
+		fullTextIndex.flush();
+		indexProvider.shutdown();
+		inserter.shutdown();
+	} // End shutdown
+
+	/** @return the number of objects, actors, privilege classes and non-provenance identifiers loaded so far. */
+	public long getObjectsLoaded() { return objectsLoaded; }
+	/** @return the number of relationships loaded so far. */
+	public long getRelationshipsLoaded() { return relationshipsLoaded; }
+	/** @return the number of items skipped so far because they were already loaded or were missing an endpoint. */
+	public long getSkipped() { return skipped; }
+
+	/** @return the recency bucket of an item, noting that it's in use. */
+	protected long bucket(RecencyIndex.Kind kind, long created) { 
+		long b = RecencyIndex.bucketOf(created);
+		bucketKeys.add(RecencyIndex.key(kind, b));
+		return b;
+	}
+	
+	/** Create the node for an actor, unless one with the same ID has already been loaded. */
+	protected Long actor(PLUSActor a) throws PLUSException {
+		Long id = actors.get(a.getId());
+		if(id != null) { skipped++; return id; }
+
+		id = node(Neo4JStorage.storableProperties(a), LABEL_ACTOR);
+		actors.put(a.getId(), id);
+		return id;
+	} // End actor
+
+	/** Create the node for a privilege class, unless one with the same ID has already been loaded. */
+	protected long privilegeClass(PrivilegeClass pc) {
+		Long id = privileges.get(pc.getId());
+		if(id != null) return id;
+
+		id = node(Neo4JStorage.storableProperties(pc), LABEL_PRIVCLASS);
+		privileges.put(pc.getId(), id);
+		return id;
+	} // End privilegeClass
+
+	/** @return the node for a non-provenance identifier, creating it if necessary. */
+	protected long npid(String npid) {
+		Long id = npids.get(npid);
+		if(id != null) return id;
+
+		Map<String,Object> props = new HashMap<String,Object>();
+		props.put(Neo4JStorage.PROP_NONPROV_ID, npid);
+		id = node(props, LABEL_NONPROV);
+		npids.put(npid, id);
+		return id;
+	} // End npid
+
+	/** Create the node for an object, along with its ownership and privileges, unless its OID has already been loaded. */
+	protected void object(PLUSObject o) throws PLUSException {
+		if(oids.containsKey(o.getId())) {
+			log.warning("Skipping storage of " + o + " under OID " + o.getId() + " because that OID already exists.");
+			skipped++;
+			return;
+		}
+
+		String hash = ContentHashIndex.hashOf(o.getMetadata().get(Metadata.CONTENT_HASH_SHA_256));
+
+		Map<String,Object> props = Neo4JStorage.storableProperties(o);
+		props.putAll(Neo4JStorage.metadataProperties(o));
+		if(hash != null) props.put(ContentHashIndex.PROP_OBJECT_HASH, hash);
+		
+		Map<String,Object> metadata = new HashMap<String,Object>();
+		for(Object k : o.getMetadata().keySet()) metadata.put("" + k, Neo4JStorage.formatProperty(o.getMetadata().get(k)));
+		props.putAll(MetadataIndex.properties(metadataIndexes, metadata));
+		props.put(Neo4JStorage.PROP_CREATED_BUCKET, bucket(RecencyIndex.Kind.NODE, o.getCreated()));
+
+		long id = node(props, LABEL_NODE);
+		oids.put(o.getId(), id);
+		
+		Map<String,Object> text = FullTextIndex.fields(o);
+		if(!text.isEmpty()) fullTextIndex.add(id, text);
+		
+		if(hash != null) {
+			Long count = hashCounts.get(hash);
+			hashCounts.put(hash, (count == null ? 1 : count + 1));
+		}
+
+		String aid = (o.getOwner() != null ? o.getOwner().getId() : null);
+		if(aid != null && !"".equals(aid.trim())) {
+			Long owner = actors.get(aid);
+			if(owner == null)
+				log.warning("Cannot store owner of " + o + " because AID " + aid + " doesn't exist!  Actors must be pre-saved.");
+			else
+				relationship(owner, id, Neo4JStorage.OWNS, null);
+		}
+
+		for(PrivilegeClass pc : o.getPrivileges().getPrivilegeSet())
+			relationship(id, privilegeClass(pc), Neo4JStorage.CONTROLLED_BY, null);
+	} // End object
+
+	private long node(Map<String,Object> props, Label label) {
+		long id = inserter.createNode(props, label);
+
+		if(Neo4JStorage.LEGACY_NODE_INDEX) {
+			Map<String,Object> indexed = indexable(props, NODE_KEYS);
+			if(!indexed.isEmpty()) nodeIndex.add(id, indexed);
+		}
+
+		objectsLoaded++;
+		return id;
+	} // End node
+
+	private long relationship(long from, long to, RelationshipType type, Map<String,Object> props) {
+		long id = inserter.createRelationship(from, to, type, props);
+
+		if(props != null) {
+			Map<String,Object> indexed = indexable(props, RELATIONSHIP_KEYS);
+			if(!indexed.isEmpty()) relationshipIndex.add(id, indexed);
+		}
+
+		relationshipsLoaded++;
+		return id;
+	} // End relationship
+
+	/** @return the subset of the properties that the auto-indexer would have indexed. */
+	private static Map<String,Object> indexable(Map<String,Object> props, Set<String> keys) {
+		Map<String,Object> result = new HashMap<String,Object>();
+		for(String k : props.keySet())
+			if(keys.contains(k) && props.get(k) != null) result.put(k, props.get(k));
+		return result;
+	}
+
+	public static Options makeCLIOptions() {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("dir")
+				          .hasArg()
+				          .isRequired(false)
+				          .withDescription("Directory to create the new database in.  Defaults to the location Neo4JStorage uses.")
+				          .create("db"));
+
+		return options;
+	}
+
+	public static void usage() {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("BulkLoader [-db dir] file-or-directory...", makeCLIOptions());
+	}
+
+	/** @return the files named, with directories replaced by the .json files they contain. */
+	protected static List<File> expand(List<String> names) {
+		List<File> files = new ArrayList<File>();
+
+		for(String name : names) {
+			File f = new File(name);
+			File [] contents = f.listFiles();
+
+			if(contents == null) files.add(f);
+			else {
+				Arrays.sort(contents);
+				for(File c : contents) if(c.isFile() && c.getName().endsWith(".json")) files.add(c);
+			}
+		}
+
+		return files;
+	} // End expand
+
+	/**
+	 * Loads the D3-JSON files (or directories of them) named as arguments into a new database.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String [] args) throws Exception {
+		CommandLineParser parser = new GnuParser();
+		CommandLine line = null;
+
+		try { line = parser.parse(makeCLIOptions(), args); }
+		catch(ParseException exc) {
+			usage();
+			System.exit(1);
+		}
+
+		List<File> files = expand(line.getArgList());
+		if(files.isEmpty()) {
+			usage();
+			System.exit(1);
+		}
+
+		File storeDir = (line.getOptionValue("db") != null ? new File(line.getOptionValue("db")) : Neo4JStorage.getStorageLocation());
+
+		BulkLoader loader = null;
+		try { loader = new BulkLoader(storeDir); }
+		catch(PLUSException exc) {
+			System.err.println(exc.getMessage());
+			System.exit(1);
+		}
+
+		long start = System.currentTimeMillis();
+
+		try {
+			for(File f : files) {
+				long before = loader.getObjectsLoaded() + loader.getRelationshipsLoaded();
+				long t = System.currentTimeMillis();
+
+				loader.load(f);
+
+				long items = loader.getObjectsLoaded() + loader.getRelationshipsLoaded() - before;
+				System.out.println(f + ": " + items + " items in " + (System.currentTimeMillis() - t) + "ms");
+			}
+		} finally {
+			loader.shutdown();
+		}
+
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		long total = loader.getObjectsLoaded() + loader.getRelationshipsLoaded();
+
+		System.out.println("Loaded " + loader.getObjectsLoaded() + " nodes and " + loader.getRelationshipsLoaded() +
+				" relationships from " + files.size() + " files into " + storeDir.getAbsolutePath() + " in " + elapsed + "ms (" +
+				(total * 1000L / elapsed) + " items/sec); " + loader.getSkipped() + " items skipped.");
+	} // End main
+} // End BulkLoader
@@ -0,0 +1,269 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.Metadata;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Finds the objects whose content has a given SHA-256 hash, and the hashes shared by the most objects.
+ *
+ * <p>The hash an object was stored with ({@link Metadata#CONTENT_HASH_SHA_256}) has a schema index, so finding every
+ * object with the same content is a single index lookup.  Each distinct hash also has a :ContentHash node counting
+ * the objects that carry it; the count is kept up to date as objects are stored and deleted.  Hashes carried by more
+ * than one object are labeled :DuplicateContent as well, so listing the largest groups only looks at those.  A hash's
+ * node is kept when its count drops to zero, so that a writer waiting to lock it never finds it deleted.
+ *
+ * <p>Hashes are trimmed of surrounding whitespace when objects are stored, and when they are looked up.
+ *
+ * <p>Stores written before this index existed have their counts built the first time they are opened.
+ * @author moxious
+ */
+public class ContentHashIndex {
+	protected static final Logger log = Logger.getLogger(ContentHashIndex.class.getName());
+
+	/** Property of an object node holding its content hash */
+	public static final String PROP_OBJECT_HASH = Neo4JStorage.METADATA_PREFIX + ":" + Metadata.CONTENT_HASH_SHA_256;
+
+	/** Property of a content hash node holding the hash */
+	public static final String PROP_HASH = "hash";
+
+	/** Property of a content hash node holding the number of objects that carry it */
+	public static final String PROP_COUNT = "count";
+
+	/**
+	 * Hash of the node recording that the counts have been built.  No object carries it, since objects with an empty
+	 * hash aren't counted.
+	 */
+	protected static final String BUILT_HASH = "";
+
+	/** Number of hashes counted per transaction when an older store is opened */
+	public static final int BUILD_BATCH_SIZE = 10000;
+
+	protected static final Label LABEL_HASH = DynamicLabel.label(Neo4JStorage.LABEL_NAME_HASH);
+	protected static final Label LABEL_DUPLICATE = DynamicLabel.label(Neo4JStorage.LABEL_NAME_DUPLICATE);
+
+	/** @return the hash of an object, or null if it has none. */
+	protected static String hashOf(Object value) {
+		if(value == null) return null;
+		String hash = ("" + value).trim();
+		return ("".equals(hash) ? null : hash);
+	}
+
+	/** @return the content hash node of a hash, or null if no object carries it.  Must be called within a transaction. */
+	protected static Node findHash(String hash) {
+		return Neo4JStorage.findNode(LABEL_HASH, PROP_HASH, hash);
+	}
+
+	/**
+	 * Count a new object under its hash, if it has one.  Must be called from within the transaction that stores it.
+	 */
+	static void add(PLUSObject o) {
+		String hash = hashOf(o.getMetadata().get(Metadata.CONTENT_HASH_SHA_256));
+		if(hash != null) adjust(hash, 1);
+	}
+
+	/**
+	 * Stop counting an object that is being deleted.  Must be called from within the transaction that deletes it.
+	 */
+	static void remove(Node n) {
+		String hash = hashOf(n.getProperty(PROP_OBJECT_HASH, null));
+		if(hash != null) adjust(hash, -1);
+	}
+
+	/**
+	 * Change the number of objects carrying a hash, creating its node if needed.
+	 */
+	protected static void adjust(String hash, long delta) {
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("hash", hash);
+
+		// MERGE locks on the uniqueness constraint, so concurrent writers can't create the same hash twice.
+		ResourceIterator<Node> it = Neo4JStorage.execute("merge (h:" + Neo4JStorage.LABEL_NAME_HASH + " {" + PROP_HASH + ": {hash}}) " +
+		                                                 "return h", params).columnAs("h");
+		Node h = it.next();
+		it.close();
+
+		// Lock the node before reading the count, so that concurrent writers don't lose each other's changes.
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			tx.acquireWriteLock(h);
+
+			long count = ((Number)h.getProperty(PROP_COUNT, 0L)).longValue() + delta;
+			setCount(h, count);
+
+			tx.success();
+		}
+	} // End adjust
+
+	private static void setCount(Node h, long count) {
+		// The node isn't deleted at zero:  another writer may already have merged it, and be waiting for its lock.
+		if(count < 0) count = 0;
+
+		h.setProperty(PROP_COUNT, count);
+		if(count > 1 && !h.hasLabel(LABEL_DUPLICATE)) h.addLabel(LABEL_DUPLICATE);
+		else if(count <= 1 && h.hasLabel(LABEL_DUPLICATE)) h.removeLabel(LABEL_DUPLICATE);
+	} // End setCount
+
+	/**
+	 * Build the counts if the store doesn't have them yet.  Called by Neo4JStorage.initialize().
+	 */
+	static void load() {
+		boolean built = false;
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			built = (findHash(BUILT_HASH) != null);
+			tx.success();
+		}
+
+		if(!built) build();
+	} // End load
+
+	/**
+	 * Count the objects carrying each hash in the store, replacing any counts there already are.
+	 * @return the number of distinct hashes.
+	 */
+	public static long build() {
+		Map<String,Long> counts = new HashMap<String,Long>();
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			ResourceIterator<Map<String,Object>> rows =
+					Neo4JStorage.execute("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ") " +
+			                             "where has(n.`" + PROP_OBJECT_HASH + "`) " +
+			                             "return n.`" + PROP_OBJECT_HASH + "` as hash, count(n) as c").iterator();
+
+			while(rows.hasNext()) {
+				Map<String,Object> row = rows.next();
+				String hash = hashOf(row.get("hash"));
+				if(hash == null) continue;
+
+				Long prev = counts.get(hash);
+				counts.put(hash, (prev == null ? 0 : prev) + ((Number)row.get("c")).longValue());
+			}
+
+			rows.close();
+			tx.success();
+		}
+
+		List<String> hashes = new ArrayList<String>(counts.keySet());
+
+		for(int start=0; start < hashes.size(); start += BUILD_BATCH_SIZE) {
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				for(String hash : hashes.subList(start, Math.min(hashes.size(), start + BUILD_BATCH_SIZE))) {
+					Node h = findHash(hash);
+					if(h == null) {
+						h = Neo4JStorage.db.createNode(LABEL_HASH);
+						h.setProperty(PROP_HASH, hash);
+					}
+
+					setCount(h, counts.get(hash));
+				}
+
+				tx.success();
+			}
+		}
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			if(findHash(BUILT_HASH) == null) {
+				Node marker = Neo4JStorage.db.createNode(LABEL_HASH);
+				marker.setProperty(PROP_HASH, BUILT_HASH);
+				marker.setProperty(PROP_COUNT, 0L);
+			}
+
+			tx.success();
+		}
+
+		if(!hashes.isEmpty()) log.info("Content hash index: counted " + hashes.size() + " distinct hashes");
+		return hashes.size();
+	} // End build
+
+	/**
+	 * Find the nodes of the objects carrying a hash.  Must be called within a transaction.
+	 * @param hash the content hash
+	 * @param max the most nodes to return
+	 * @return the nodes.
+	 */
+	static List<Node> findObjects(String hash, int max) {
+		List<Node> nodes = new ArrayList<Node>();
+		hash = hashOf(hash);
+		if(hash == null) return nodes;
+
+		ResourceIterator<Node> it = Neo4JStorage.db.findNodesByLabelAndProperty(
+				Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE), PROP_OBJECT_HASH, hash).iterator();
+
+		while(it.hasNext() && nodes.size() < max) nodes.add(it.next());
+		it.close();
+
+		return nodes;
+	} // End findObjects
+
+	/**
+	 * @param hash the content hash
+	 * @return the number of objects carrying it.
+	 */
+	public static long getGroupSize(String hash) {
+		if(hashOf(hash) == null) return 0;
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			Node h = findHash(hash);
+			long count = (h == null ? 0 : ((Number)h.getProperty(PROP_COUNT, 0L)).longValue());
+
+			tx.success();
+			return count;
+		}
+	} // End getGroupSize
+
+	/**
+	 * List the hashes carried by the most objects.
+	 * @param max the most hashes to list
+	 * @return the number of objects carrying each hash, largest first.  Only hashes carried by more than one object
+	 * are listed.
+	 */
+	public static LinkedHashMap<String,Long> getLargestGroups(int max) {
+		LinkedHashMap<String,Long> groups = new LinkedHashMap<String,Long>();
+
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", max);
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			ResourceIterator<Map<String,Object>> rows =
+					Neo4JStorage.execute("match (h:" + Neo4JStorage.LABEL_NAME_DUPLICATE + ") " +
+			                             "return h." + PROP_HASH + " as hash, h." + PROP_COUNT + " as c " +
+			                             "order by h." + PROP_COUNT + " desc, h." + PROP_HASH + " " +
+			                             "limit {max}", params).iterator();
+
+			while(rows.hasNext()) {
+				Map<String,Object> row = rows.next();
+				groups.put("" + row.get("hash"), ((Number)row.get("c")).longValue());
+			}
+
+			rows.close();
+			tx.success();
+		}
+
+		return groups;
+	} // End getLargestGroups
+} // End ContentHashIndex
@@ -0,0 +1,366 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.Metadata;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * A full-text index over the names of provenance objects and a selected set of their metadata, for searching as the
+ * user types.
+ *
+ * <p>Text is lowercased and split into words at anything that isn't a letter or digit.  Each word is indexed whole, and
+ * as the three-letter sequences (trigrams) it contains, in a Lucene index kept alongside the graph.  A search term is
+ * split the same way; each of its words must occur in the name or metadata of an object, either as a whole word, the
+ * start of one, or anywhere inside one, which the trigrams find without looking at every object.  Lucene ranks the
+ * objects found: whole-word matches above partial ones, and names above metadata.  Since trigrams can match a word
+ * that doesn't contain the search word (e.g. "abcbcd" has every trigram of "abcd") each result is checked before it
+ * is returned.
+ *
+ * <p>The metadata indexed is chosen by the plus.search.metadata system property, a comma-separated list of keys.
+ * Objects are indexed as they are stored and removed as they are deleted.  A store that doesn't have the index yet
+ * has it built the first time it is opened; after changing which metadata is indexed, call {@link #rebuild()}.
+ * @author moxious
+ */
+public class FullTextIndex {
+	protected static final Logger log = Logger.getLogger(FullTextIndex.class.getName());
+
+	/** Name of the legacy index holding the words and trigrams */
+	public static final String INDEX_NAME = "plus_fulltext";
+
+	/** Configuration of the index.  Values are normalized before they are indexed, so it's an exact index. */
+	public static final Map<String,String> INDEX_CONFIG = MapUtil.stringMap(IndexManager.PROVIDER, "lucene", "type", "exact");
+
+	/** Metadata keys whose values are indexed */
+	public static final List<String> METADATA_KEYS = Collections.unmodifiableList(Arrays.asList(
+			System.getProperty("plus.search.metadata", "description,Source,URL,Analyst,Specialty").split("\\s*,\\s*")));
+
+	protected static final String NAME_WORD = "name_word";
+	protected static final String NAME_GRAM = "name_gram";
+	protected static final String META_WORD = "meta_word";
+	protected static final String META_GRAM = "meta_gram";
+
+	/** Length of the letter sequences indexed for matching inside words */
+	public static final int GRAM_LENGTH = 3;
+
+	/** Most trigrams of one search word put in a query; the rest are left to the check of each result. */
+	protected static final int MAX_QUERY_GRAMS = 16;
+
+	/** Number of objects indexed per transaction when the index is built */
+	public static final int BUILD_BATCH_SIZE = 10000;
+
+	/** A matching object and its score. */
+	public static class Hit {
+		public final Node node;
+		public final float score;
+
+		public Hit(Node node, float score) {
+			this.node = node;
+			this.score = score;
+		}
+	} // End Hit
+
+	/** @return the index.  Must be called within a transaction. */
+	protected static Index<Node> index() {
+		return Neo4JStorage.db.index().forNodes(INDEX_NAME, INDEX_CONFIG);
+	}
+
+	/** @return text lowercased and split into words. */
+	public static List<String> words(String text) {
+		List<String> words = new ArrayList<String>();
+		if(text == null) return words;
+
+		for(String w : text.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+			if(!"".equals(w)) words.add(w);
+
+		return words;
+	} // End words
+
+	/** @return the distinct letter sequences of GRAM_LENGTH in a word, in order. */
+	public static Set<String> grams(String word) {
+		Set<String> grams = new LinkedHashSet<String>();
+		for(int x=0; x + GRAM_LENGTH <= word.length(); x++) grams.add(word.substring(x, x + GRAM_LENGTH));
+		return grams;
+	} // End grams
+
+	/**
+	 * Compute the index entries of an object.
+	 * @param name the object's name
+	 * @param metadata the stored values of its metadata, by key; only METADATA_KEYS are used.
+	 * @return the values to index under each field.
+	 */
+	protected static Map<String,Object> fields(Object name, Map<String,Object> metadata) {
+		Set<String> nameWords = new LinkedHashSet<String>(words(name == null ? null : "" + name));
+		Set<String> metaWords = new LinkedHashSet<String>();
+
+		for(String k : METADATA_KEYS) {
+			Object v = metadata.get(k);
+			if(v instanceof String []) { for(String s : (String[])v) metaWords.addAll(words(s)); }
+			else if(v != null) metaWords.addAll(words("" + v));
+		}
+
+		Map<String,Object> fields = new HashMap<String,Object>();
+		put(fields, NAME_WORD, NAME_GRAM, nameWords);
+		put(fields, META_WORD, META_GRAM, metaWords);
+		return fields;
+	} // End fields
+
+	private static void put(Map<String,Object> fields, String wordField, String gramField, Set<String> words) {
+		if(words.isEmpty()) return;
+
+		Set<String> grams = new LinkedHashSet<String>();
+		for(String w : words) grams.addAll(grams(w));
+
+		fields.put(wordField, words.toArray(new String[]{}));
+		if(!grams.isEmpty()) fields.put(gramField, grams.toArray(new String[]{}));
+	} // End put
+
+	/** @return the index entries of an object about to be stored. */
+	protected static Map<String,Object> fields(PLUSObject o) {
+		Map<String,Object> metadata = new HashMap<String,Object>();
+		Metadata m = o.getMetadata();
+
+		for(String k : METADATA_KEYS)
+			if(m.containsKey(k)) metadata.put(k, Neo4JStorage.formatProperty(m.get(k)));
+
+		return fields(o.getName(), metadata);
+	} // End fields
+
+	/** @return the index entries of a stored object.  Must be called within a transaction. */
+	protected static Map<String,Object> fields(Node n) {
+		Map<String,Object> metadata = new HashMap<String,Object>();
+
+		for(String k : METADATA_KEYS) {
+			Object v = n.getProperty(Neo4JStorage.getMetadataPropertyName(k), null);
+			if(v != null) metadata.put(k, v);
+		}
+
+		return fields(n.getProperty(Neo4JStorage.PROP_NAME, null), metadata);
+	} // End fields
+
+	/**
+	 * Index an object's node.  Must be called from within the transaction that creates it.
+	 */
+	static void add(Node n, PLUSObject o) {
+		add(index(), n, fields(o));
+	}
+
+	private static void add(Index<Node> index, Node n, Map<String,Object> fields) {
+		for(String k : fields.keySet()) index.add(n, k, fields.get(k));
+	}
+
+	/**
+	 * Remove an object's node from the index.  Must be called from within the transaction that deletes it.
+	 */
+	static void remove(Node n) {
+		index().remove(n);
+	}
+
+	/**
+	 * Build the index if the store doesn't have one yet.  Called by Neo4JStorage.initialize().
+	 */
+	static void load() {
+		boolean exists = false;
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			exists = Neo4JStorage.db.index().existsForNodes(INDEX_NAME);
+			tx.success();
+		}
+
+		if(!exists) build();
+	} // End load
+
+	/**
+	 * Throw the index away and build it again from the objects in the store.
+	 * @return the number of objects indexed.
+	 */
+	public static long rebuild() {
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			if(Neo4JStorage.db.index().existsForNodes(INDEX_NAME)) index().delete();
+			tx.success();
+		}
+
+		return build();
+	} // End rebuild
+
+	/** Index every object in the store, BUILD_BATCH_SIZE per transaction.  @return the number of objects indexed. */
+	protected static long build() {
+		List<Long> ids = new ArrayList<Long>();
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			// Creates the index, so that it exists even if the store is empty.
+			index();
+
+			ResourceIterator<Node> nodes = GlobalGraphOperations.at(Neo4JStorage.db)
+					.getAllNodesWithLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE)).iterator();
+			while(nodes.hasNext()) ids.add(nodes.next().getId());
+			nodes.close();
+
+			tx.success();
+		}
+
+		for(int start=0; start < ids.size(); start += BUILD_BATCH_SIZE) {
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				Index<Node> index = index();
+
+				for(Long id : ids.subList(start, Math.min(ids.size(), start + BUILD_BATCH_SIZE))) {
+					Node n = Neo4JStorage.db.getNodeById(id);
+					add(index, n, fields(n));
+				}
+
+				tx.success();
+			}
+		}
+
+		if(!ids.isEmpty()) log.info("Full-text index: indexed " + ids.size() + " objects");
+		return ids.size();
+	} // End build
+
+	/**
+	 * Build the Lucene query for a search.
+	 * @param words the words of the search term
+	 * @param namesOnly if true, only names are searched.
+	 * @return the query, or null if there is nothing to search for.
+	 */
+	protected static String buildQuery(List<String> words, boolean namesOnly) {
+		if(words.isEmpty()) return null;
+		StringBuilder b = new StringBuilder();
+
+		for(String w : words) {
+			b.append("+(");
+
+			b.append(NAME_WORD + ":" + w + "^8 ");
+			b.append(NAME_WORD + ":" + w + "*^4 ");
+			if(!namesOnly) {
+				b.append(META_WORD + ":" + w + "^2 ");
+				b.append(META_WORD + ":" + w + "* ");
+			}
+
+			// Words shorter than a trigram can only be found at the start of a word.
+			List<String> grams = new ArrayList<String>(grams(w));
+			if(grams.size() > MAX_QUERY_GRAMS) grams = grams.subList(0, MAX_QUERY_GRAMS);
+
+			if(!grams.isEmpty()) {
+				b.append(gramClause(NAME_GRAM, grams) + "^2 ");
+				if(!namesOnly) b.append(gramClause(META_GRAM, grams) + "^0.5 ");
+			}
+
+			b.append(") ");
+		}
+
+		return b.toString().trim();
+	} // End buildQuery
+
+	private static String gramClause(String field, List<String> grams) {
+		StringBuilder b = new StringBuilder("(");
+		for(String g : grams) b.append("+" + field + ":" + g + " ");
+		return b.toString().trim() + ")";
+	}
+
+	/** @return true if every search word is in one of the indexed words of a node. */
+	protected static boolean matches(Node n, List<String> words, boolean namesOnly) {
+		Map<String,Object> fields = fields(n);
+		List<String> indexed = new ArrayList<String>();
+
+		for(String f : (namesOnly ? new String[] { NAME_WORD } : new String[] { NAME_WORD, META_WORD })) {
+			String [] v = (String[])fields.get(f);
+			if(v != null) indexed.addAll(Arrays.asList(v));
+		}
+
+		for(String w : words) {
+			boolean found = false;
+			for(String iw : indexed) if(iw.contains(w)) { found = true; break; }
+			if(!found) return false;
+		}
+
+		return true;
+	} // End matches
+
+	/**
+	 * Search for objects, best match first.  Must be called within a transaction.
+	 * @param term the search term
+	 * @param namesOnly if true, only names are searched, not metadata.
+	 * @param offset the number of matches to skip
+	 * @param max the most matches to return
+	 * @return the matching object nodes and their scores, best first.
+	 */
+	static List<Hit> search(String term, boolean namesOnly, int offset, int max) {
+		List<Hit> results = new ArrayList<Hit>();
+		List<String> words = words(term);
+		String query = buildQuery(words, namesOnly);
+		if(query == null || max <= 0) return results;
+
+		log.fine("Full-text query: " + query);
+		IndexHits<Node> hits = index().query(new QueryContext(query).sortByScore());
+
+		try {
+			int skipped = 0;
+
+			while(hits.hasNext() && results.size() < max) {
+				Node n = hits.next();
+				float score = hits.currentScore();
+				if(!matches(n, words, namesOnly)) continue;
+
+				if(skipped < offset) skipped++;
+				else results.add(new Hit(n, score));
+			}
+		} finally {
+			hits.close();
+		}
+
+		return results;
+	} // End search
+	
+	/**
+	 * Find the objects whose names contain every word of a term, to narrow down a set of nodes already at hand.  Must be
+	 * called within a transaction.
+	 * @param term the search term
+	 * @param max the most matches worth returning
+	 * @return the ids of the matching nodes, or null if the index can't stand in for checking each node:  the term has 
+	 * characters other than letters and digits, which the index doesn't hold, or a word shorter than a trigram, which the 
+	 * index only finds at the start of words, or more than max objects match.
+	 */
+	public static Set<Long> findNameMatches(String term, int max) { 
+		if(term == null || !term.trim().matches("[\\p{L}\\p{N}]+")) return null;
+		for(String w : words(term)) if(w.length() < GRAM_LENGTH) return null;
+		
+		List<Hit> hits = search(term, true, 0, max + 1);
+		if(hits.size() > max) return null;
+		
+		Set<Long> ids = new HashSet<Long>();
+		for(Hit h : hits) ids.add(h.node.getId());
+		return ids;
+	} // End findNameMatches
+} // End FullTextIndex
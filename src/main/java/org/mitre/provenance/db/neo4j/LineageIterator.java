@@ -0,0 +1,204 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.SourcedObject;
+import org.mitre.provenance.user.User;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PathExpander;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.BranchState;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+/**
+ * Streams the full ancestry (BLING) or descendancy (FLING) of an object, as discovered by a single breadth-first
+ * traversal in the database with global node uniqueness.  Each node is visited and materialized exactly once, no matter
+ * how many paths lead to it.  Each visited node is returned, followed by the provenance edges that connect it to nodes
+ * visited before it; so every edge is returned once, after both of its endpoints.
+ *
+ * <p>Each object is returned as the version suitable for the viewing user:  the object itself, or its preferred surrogate, 
+ * with edges pointed at whichever version was returned.  An object the user can see no version of is left out, along 
+ * with its edges, and the traversal doesn't continue past it; objects beyond it are still returned if a visible path
+ * reaches them.
+ *
+ * <p>The traversal can be bounded by depth, by number of nodes, and by elapsed time.  When a budget is exhausted, iteration
+ * ends early and isTruncated() will return true.
+ *
+ * <p>This iterator holds a read transaction open until it is exhausted; callers who stop early must call close().
+ * @see Neo4JPLUSObjectFactory#iterateFullLineage(String, User, String, int, int, long)
+ * @author moxious
+ */
+public class LineageIterator implements Iterator<SourcedObject> {
+	protected static final Logger log = Logger.getLogger(LineageIterator.class.getName());
+
+	/** Provenance relationship types followed by the traversal. */
+	protected static final RelationshipType [] PROVENANCE_TYPES = new RelationshipType [] {
+		Neo4JStorage.CONTRIBUTED, Neo4JStorage.MARKS, Neo4JStorage.UNSPECIFIED,
+		Neo4JStorage.INPUT_TO, Neo4JStorage.GENERATED, Neo4JStorage.TRIGGERED
+	};
+
+	protected Transaction tx;
+	protected User viewer;
+	protected Iterator<Node> nodes;
+	protected int maxNodes;
+	protected long deadline;
+	protected boolean finished = false;
+	protected boolean truncated = false;
+
+	/** The version of each visited node returned to the viewer, by node id. */
+	protected HashMap<Long,PLUSObject> visited = new HashMap<Long,PLUSObject>();
+	
+	/** Nodes the viewer can see no version of. */
+	protected HashSet<Long> hidden = new HashSet<Long>();
+	protected HashSet<Long> relsReturned = new HashSet<Long>();
+	protected MaterializationContext ctx = new MaterializationContext();
+	protected LinkedList<SourcedObject> pending = new LinkedList<SourcedObject>();
+
+	/**
+	 * @param start the node to start from
+	 * @param viewer the user viewing the lineage
+	 * @param direction "bling" for ancestors, "fling" for descendants
+	 * @param maxDepth the maximum number of hops from start to go, or zero or less for no limit
+	 * @param maxNodes the maximum number of nodes to return, or zero or less for no limit
+	 * @param maxMillis the maximum time to spend traversing, or zero or less for no limit
+	 * @throws PLUSException if the direction is invalid
+	 */
+	LineageIterator(Node start, User viewer, String direction, int maxDepth, int maxNodes, long maxMillis) throws PLUSException {
+		Direction dir = null;
+		if("bling".equals(direction)) dir = Direction.INCOMING;
+		else if("fling".equals(direction)) dir = Direction.OUTGOING;
+		else throw new PLUSException("Invalid direction " + direction + ": valid is bling, fling");
+
+		// Don't go past what the viewer can't see.  This has to happen in the expander rather than an evaluator:  with
+		// global node uniqueness, a node reached through a hidden one would be marked visited before an evaluator
+		// could throw it away, and any visible path to it found later would be rejected.
+		TraversalDescription desc = Neo4JStorage.traversalDescription().breadthFirst().uniqueness(Uniqueness.NODE_GLOBAL)
+				.expand(new VisibleExpander(dir));
+		if(maxDepth > 0) desc = desc.evaluator(Evaluators.toDepth(maxDepth));
+
+		this.viewer = (viewer == null ? User.PUBLIC : viewer);
+		this.maxNodes = maxNodes;
+		this.deadline = (maxMillis > 0 ? System.currentTimeMillis() + maxMillis : Long.MAX_VALUE);
+
+		tx = Neo4JStorage.beginTx();
+		nodes = desc.traverse(start).nodes().iterator();
+	} // End LineageIterator
+
+	/** 
+	 * Expands along provenance relationships in one direction, except from nodes the viewer can't see.  Nodes are
+	 * expanded only after the traversal has returned them, so a node is known to be hidden before it's expanded.
+	 */
+	protected class VisibleExpander implements PathExpander<Object> {
+		protected Direction dir;
+		
+		protected VisibleExpander(Direction dir) { this.dir = dir; }
+		
+		public Iterable<Relationship> expand(Path path, BranchState<Object> state) {
+			if(hidden.contains(path.endNode().getId())) return Collections.<Relationship>emptyList();
+			return path.endNode().getRelationships(dir, PROVENANCE_TYPES);
+		}
+
+		public PathExpander<Object> reverse() { return new VisibleExpander(dir.reverse()); }
+	} // End VisibleExpander
+
+	/** @return true if iteration stopped because the node or time budget ran out, rather than because the lineage was exhausted. */
+	public boolean isTruncated() { return truncated; }
+
+	/** @return the number of nodes visited so far. */
+	public int countVisited() { return visited.size(); }
+
+	public boolean hasNext() {
+		while(pending.isEmpty() && !finished) {
+			try { advance(); }
+			catch(PLUSException exc) {
+				close();
+				throw new RuntimeException(exc);
+			}
+		}
+
+		return !pending.isEmpty();
+	}
+
+	public SourcedObject next() {
+		if(!hasNext()) throw new NoSuchElementException();
+		return pending.removeFirst();
+	}
+
+	public void remove() { throw new UnsupportedOperationException(); }
+
+	/** Release the transaction held by this iterator.  Safe to call more than once. */
+	public void close() {
+		finished = true;
+
+		if(tx != null) {
+			// Read-only; see the note on tx.success() in Neo4JPLUSObjectFactory#newDAG
+			tx.close();
+			tx = null;
+		}
+	} // End close
+
+	/** Visit the next node of the traversal, queueing it and the edges that connect it to already-visited nodes. */
+	protected void advance() throws PLUSException {
+		if(!nodes.hasNext()) {
+			close();
+			return;
+		}
+
+		if((maxNodes > 0 && visited.size() >= maxNodes) || System.currentTimeMillis() > deadline) {
+			truncated = true;
+			close();
+			return;
+		}
+
+		Node n = nodes.next();
+		if(!n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE))) return;
+
+		PLUSObject suitable = Neo4JPLUSObjectFactory.newObject(n, ctx).getVersionSuitableFor(viewer);
+		if(suitable == null) {
+			hidden.add(n.getId());
+			return;
+		}
+
+		visited.put(n.getId(), suitable);
+		pending.add(suitable);
+
+		for(Relationship r : n.getRelationships(Direction.BOTH, PROVENANCE_TYPES)) {
+			if(!visited.containsKey(r.getOtherNode(n).getId())) continue;
+			if(!relsReturned.add(r.getId())) continue;   // Self-loops show up twice.
+
+			PLUSEdge e = Neo4JPLUSObjectFactory.newPLUSEdge(r, ctx);
+			e.setFrom(visited.get(r.getStartNode().getId()));
+			e.setTo(visited.get(r.getEndNode().getId()));
+			pending.add(e);
+		}
+	} // End advance
+} // End LineageIterator
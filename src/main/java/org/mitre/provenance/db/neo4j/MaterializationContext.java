@@ -0,0 +1,90 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.HashMap;
+
+import org.mitre.provenance.plusobject.PLUSActor;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSWorkflow;
+import org.mitre.provenance.user.PrivilegeClass;
+
+/**
+ * Remembers the objects built from database nodes during one request, so that a node that is reached many times
+ * (as a traversal result, as an edge endpoint, as an edge's workflow, as the owner of many objects, or as a privilege
+ * class shared by many objects) is only turned into a Java object once.
+ *
+ * <p>A context should live only as long as a single request, so that it never hands back stale data.  It is not
+ * thread-safe.
+ * @see Neo4JPLUSObjectFactory#newObject(org.neo4j.graphdb.Node, MaterializationContext)
+ * @author moxious
+ */
+public class MaterializationContext {
+	protected HashMap<Long,PLUSObject> objects = new HashMap<Long,PLUSObject>();
+	protected HashMap<Long,PLUSActor> actors = new HashMap<Long,PLUSActor>();
+	protected HashMap<Long,PrivilegeClass> privilegeClasses = new HashMap<Long,PrivilegeClass>();
+
+	/** Workflows are also found by OID, from the workflow property of edges */
+	protected HashMap<String,PLUSWorkflow> workflows = new HashMap<String,PLUSWorkflow>();
+
+	protected int built = 0;
+	protected int reused = 0;
+
+	/** @return the object previously built from the given node, or null if there is none. */
+	public PLUSObject getObject(long nodeId) { return count(objects.get(nodeId)); }
+
+	/** @return the actor previously built from the given node, or null if there is none. */
+	public PLUSActor getActor(long nodeId) { return count(actors.get(nodeId)); }
+
+	/** @return the privilege class previously built from the given node, or null if there is none. */
+	public PrivilegeClass getPrivilegeClass(long nodeId) { return count(privilegeClasses.get(nodeId)); }
+
+	/** @return the workflow previously built with the given OID, or null if there is none. */
+	public PLUSWorkflow getWorkflow(String oid) { return count(workflows.get(oid)); }
+
+	public void putObject(long nodeId, PLUSObject o) {
+		built++;
+		objects.put(nodeId, o);
+		if(o instanceof PLUSWorkflow) workflows.put(o.getId(), (PLUSWorkflow)o);
+	}
+
+	public void putActor(long nodeId, PLUSActor a) {
+		built++;
+		actors.put(nodeId, a);
+	}
+
+	public void putPrivilegeClass(long nodeId, PrivilegeClass pc) {
+		built++;
+		privilegeClasses.put(nodeId, pc);
+	}
+
+	/** @return the number of objects, actors and privilege classes built in this context. */
+	public int countBuilt() { return built; }
+
+	/** @return the number of times an already-built item was handed back instead of being built again. */
+	public int countReused() { return reused; }
+
+	/** @return the number of objects built in this context. */
+	public int countObjects() { return objects.size(); }
+
+	private <T> T count(T item) {
+		if(item != null) reused++;
+		return item;
+	}
+
+	public String toString() {
+		return "MaterializationContext: " + built + " built, " + reused + " reused";
+	}
+} // End MaterializationContext
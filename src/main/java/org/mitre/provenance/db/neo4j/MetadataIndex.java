@@ -0,0 +1,468 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.mitre.provenance.PLUSException;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Schema indexes over declared metadata keys, so that objects can be found by their metadata without scanning every
+ * object in the store.
+ *
+ * <p>An index over a single key is a schema index on the property the key is stored in.  Neo4J schema indexes only
+ * cover one property, so an index over several keys is a schema index on a derived property holding all of their values
+ * together.  That property is written for every declared index as objects are stored.
+ *
+ * <p>Indexes are declared with the plus.index.metadata system property, a comma-separated list in which the keys of
+ * a composite index are joined with "+", e.g. "file_uuid,Source+URL".  More can be declared at runtime with
+ * {@link #declare(Collection)}, which builds the index over the objects already stored in the background.  Every
+ * declared index is remembered in the store, so it stays in use after a restart.
+ *
+ * <p>When a metadata query has values for the keys of more than one index, the one with the fewest matching objects
+ * is used.  Every match is checked against all of the query's values before it is returned, so an index only decides
+ * how many objects are read, never which ones are returned.
+ * @see Neo4JPLUSObjectFactory#loadByMetadata(org.mitre.provenance.user.User, org.mitre.provenance.Metadata, int)
+ * @author moxious
+ */
+public class MetadataIndex {
+	protected static final Logger log = Logger.getLogger(MetadataIndex.class.getName());
+
+	/** System property declaring the indexed metadata keys */
+	public static final String CONFIG_PROPERTY = "plus.index.metadata";
+
+	/** Keys indexed when the system property isn't set; these are the keys looked up by PROCtor and /object/taint. */
+	public static final String DEFAULT_CONFIG = "file_uuid,meta_id";
+
+	/** Separates the keys of a composite index in its declaration */
+	public static final String KEY_SEPARATOR = "+";
+
+	/** Prefix of the derived properties holding the values of composite indexes */
+	public static final String INDEX_PREFIX = "index";
+
+	/** Separates the values held in a composite index's property */
+	protected static final String VALUE_SEPARATOR = "\u001f";
+
+	/** Property of an index's marker node holding its name */
+	public static final String PROP_KEYS = "keys";
+
+	/** Property of an index's marker node recording that the objects stored before it was declared are indexed */
+	public static final String PROP_READY = "ready";
+
+	/** Number of objects indexed per transaction when an index is built */
+	public static final int BUILD_BATCH_SIZE = 10000;
+
+	/** Time between the passes that index objects stored by transactions that were in flight when an index was declared */
+	public static final long SETTLE_MILLIS = 1000;
+
+	/** Most matches counted when comparing how selective indexes are */
+	public static final int PROBE_LIMIT = 1000;
+
+	protected static final Label LABEL_INDEX = DynamicLabel.label(Neo4JStorage.LABEL_NAME_METADATA_INDEX);
+
+	public enum State { BUILDING, READY, FAILED };
+
+	/**
+	 * An index over one or more metadata keys.
+	 */
+	public static class Definition {
+		protected final List<String> keys;
+		protected final String name;
+		protected final String property;
+		protected volatile State state = State.BUILDING;
+		protected volatile long indexed = 0;
+
+		/** @param keys the metadata keys; their order doesn't matter. */
+		protected Definition(Collection<String> keys) {
+			this.keys = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(keys)));
+
+			StringBuffer b = new StringBuffer();
+			for(String k : this.keys) b.append(b.length() == 0 ? "" : KEY_SEPARATOR).append(k);
+			name = b.toString();
+
+			property = (isComposite() ? INDEX_PREFIX + ":" + name : Neo4JStorage.getMetadataPropertyName(this.keys.get(0)));
+		}
+
+		/** @return the metadata keys, sorted. */
+		public List<String> getKeys() { return keys; }
+		/** @return the name of the index, its keys joined by KEY_SEPARATOR. */
+		public String getName() { return name; }
+		/** @return the node property the schema index is on. */
+		public String getProperty() { return property; }
+		/** @return true if the index is over more than one key. */
+		public boolean isComposite() { return keys.size() > 1; }
+		/** @return whether the index can be used yet. */
+		public State getState() { return state; }
+		/** @return the number of existing objects indexed by the build so far. */
+		public long getIndexed() { return indexed; }
+
+		/**
+		 * @param values the stored value of each metadata key
+		 * @return the value of the derived property, or null if an object with these values isn't indexed.
+		 */
+		protected Object valueOf(Map<String,?> values) {
+			StringBuffer b = new StringBuffer();
+
+			for(int x=0; x<keys.size(); x++) {
+				Object v = values.get(keys.get(x));
+				// Lists are stored as arrays, which can't be told apart once they're joined with other values.
+				if(v == null || v.getClass().isArray()) return null;
+				if(!isComposite()) return v;
+				b.append(x == 0 ? "" : VALUE_SEPARATOR).append(v);
+			}
+
+			return b.toString();
+		} // End valueOf
+
+		/** @return the value of the derived property for a node, or null if it isn't indexed. */
+		protected Object valueOf(PropertyContainer n) {
+			Map<String,Object> values = new HashMap<String,Object>();
+			for(String k : keys) values.put(k, n.getProperty(Neo4JStorage.getMetadataPropertyName(k), null));
+			return valueOf(values);
+		}
+
+		public String toString() { return name + " (" + state + ")"; }
+	} // End Definition
+
+	/** Declared indexes, by name */
+	protected static final Map<String,Definition> indexes = new ConcurrentHashMap<String,Definition>();
+
+	/** Builds indexes over existing objects one at a time, in the background. */
+	protected static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "MetadataIndex builder");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Parse a declaration of indexes.
+	 * @param config comma-separated indexes, each a list of keys joined with KEY_SEPARATOR
+	 * @return the keys of each index
+	 */
+	public static List<List<String>> parse(String config) {
+		List<List<String>> result = new ArrayList<List<String>>();
+		if(config == null) return result;
+
+		for(String index : config.split("\\s*,\\s*")) {
+			List<String> keys = new ArrayList<String>();
+			for(String k : index.split("\\s*" + Pattern.quote(KEY_SEPARATOR) + "\\s*"))
+				if(!"".equals(k.trim())) keys.add(k.trim());
+
+			if(!keys.isEmpty()) result.add(keys);
+		}
+
+		return result;
+	} // End parse
+
+	/**
+	 * Declare the configured indexes and pick up those declared earlier in the store.  Indexes that haven't finished
+	 * building are built in the background.  Called by Neo4JStorage.initialize().
+	 */
+	static synchronized void load() {
+		indexes.clear();
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			ResourceIterator<Node> it = GlobalGraphOperations.at(Neo4JStorage.db).getAllNodesWithLabel(LABEL_INDEX).iterator();
+
+			while(it.hasNext()) {
+				Node n = it.next();
+				Definition d = new Definition(parse("" + n.getProperty(PROP_KEYS)).get(0));
+				if(Boolean.TRUE.equals(n.getProperty(PROP_READY, false))) d.state = State.READY;
+				indexes.put(d.getName(), d);
+			}
+
+			it.close();
+			tx.success();
+		}
+
+		// A store written by the bulk loader has the markers but may lack the schema indexes of runtime declarations.
+		for(Definition d : indexes.values()) {
+			Neo4JStorage.ensureIndex(Neo4JStorage.LABEL_NAME_NODE, d.getProperty());
+			if(d.state != State.READY) build(d);
+		}
+
+		for(Definition d : getConfigured()) {
+			try { declare(d.getKeys()); }
+			catch(PLUSException exc) { log.severe("Unable to declare metadata index " + d.getName() + ": " + exc.getMessage()); }
+		}
+	} // End load
+
+	/**
+	 * Declare an index, if it isn't already.  Objects stored from now on are indexed; those already stored are indexed
+	 * in the background, and the index isn't used until they all are.
+	 * @param keys the metadata keys
+	 * @return the index.
+	 * @throws PLUSException if no keys are given.
+	 */
+	public static synchronized Definition declare(Collection<String> keys) throws PLUSException {
+		if(keys == null || keys.isEmpty()) throw new PLUSException("An index needs at least one metadata key");
+		for(String k : keys) {
+			if(k == null || "".equals(k.trim()) || k.contains(KEY_SEPARATOR) || k.contains(","))
+				throw new PLUSException("Invalid metadata key '" + k + "'");
+		}
+
+		Definition d = new Definition(keys);
+		Definition existing = indexes.get(d.getName());
+		if(existing != null) return existing;
+
+		Neo4JStorage.ensureIndex(Neo4JStorage.LABEL_NAME_NODE, d.getProperty());
+
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("keys", d.getName());
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			Neo4JStorage.execute("merge (i:" + Neo4JStorage.LABEL_NAME_METADATA_INDEX + " {" + PROP_KEYS + ": {keys}})", params).dumpToString();
+			tx.success();
+		}
+
+		// From here on, stores index new objects, so the build only has to cover those stored before now.
+		indexes.put(d.getName(), d);
+		log.info("Declared metadata index " + d.getName());
+
+		build(d);
+		return d;
+	} // End declare
+
+	/** @return the declared indexes. */
+	public static List<Definition> getIndexes() {
+		return new ArrayList<Definition>(indexes.values());
+	}
+
+	/** @return the indexes declared by the plus.index.metadata system property, whether or not they are in use. */
+	static List<Definition> getConfigured() {
+		List<Definition> result = new ArrayList<Definition>();
+		for(List<String> keys : parse(System.getProperty(CONFIG_PROPERTY, DEFAULT_CONFIG))) result.add(new Definition(keys));
+		return result;
+	}
+
+	/**
+	 * Write the derived properties of the declared composite indexes to a new object's node.  Must be called from
+	 * within the transaction that stores it, after its metadata is set.
+	 */
+	static void add(Node n) {
+		for(Definition d : indexes.values()) {
+			if(!d.isComposite()) continue;
+
+			Object v = d.valueOf(n);
+			if(v != null) n.setProperty(d.getProperty(), v);
+		}
+	} // End add
+
+	/**
+	 * @param definitions the indexes
+	 * @param metadata the stored value of each metadata key of an object
+	 * @return the derived properties of the composite indexes, for writing without a transaction.
+	 * @see BulkLoader
+	 */
+	static Map<String,Object> properties(Collection<Definition> definitions, Map<String,?> metadata) {
+		Map<String,Object> props = new HashMap<String,Object>();
+
+		for(Definition d : definitions) {
+			if(!d.isComposite()) continue;
+
+			Object v = d.valueOf(metadata);
+			if(v != null) props.put(d.getProperty(), v);
+		}
+
+		return props;
+	} // End properties
+
+	/**
+	 * Index the objects already stored in the background.
+	 */
+	protected static void build(final Definition d) {
+		d.state = State.BUILDING;
+		d.indexed = 0;
+
+		builder.submit(new Runnable() {
+			public void run() {
+				try {
+					if(d.isComposite()) fill(d);
+
+					// The schema index itself is populated by Neo4J; wait for it before using it.
+					if(!Neo4JStorage.awaitSchema(SchemaMigration.ONLINE_TIMEOUT)) throw new PLUSException("Schema index on " + d.getProperty() + " failed");
+					markReady(d);
+					d.state = State.READY;
+					log.info("Metadata index " + d.getName() + " ready; indexed " + d.indexed + " existing objects");
+				} catch(Exception exc) {
+					d.state = State.FAILED;
+					log.severe("Unable to build metadata index " + d.getName() + ": " + exc.getMessage());
+				}
+			}
+		});
+	} // End build
+
+	/**
+	 * Write a composite index's property to every stored object that has all of its keys but not the property,
+	 * BUILD_BATCH_SIZE per transaction.  A store that began before the index was declared doesn't write the property,
+	 * and may commit after a pass has looked; so passes are repeated, SETTLE_MILLIS apart, until one finds nothing new.
+	 */
+	protected static void fill(Definition d) throws InterruptedException {
+		StringBuffer condition = new StringBuffer();
+		for(String k : d.getKeys())
+			condition.append(condition.length() == 0 ? "" : " and ").append("has(n.`" + Neo4JStorage.getMetadataPropertyName(k) + "`)");
+
+		String query = "match (n:" + Neo4JStorage.LABEL_NAME_NODE + ") " +
+		               "where " + condition + " and not has(n.`" + d.getProperty() + "`) " +
+		               "return id(n) as id";
+
+		// Nodes whose values can't be indexed never get the property; they're only looked at once.
+		Set<Long> seen = new HashSet<Long>();
+		List<Long> ids = null;
+		int passes = 0;
+
+		do {
+			if(passes++ > 0) Thread.sleep(SETTLE_MILLIS);
+
+			ids = new ArrayList<Long>();
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				ResourceIterator<Object> it = Neo4JStorage.execute(query).columnAs("id");
+				while(it.hasNext()) {
+					Long id = ((Number)it.next()).longValue();
+					if(seen.add(id)) ids.add(id);
+				}
+				it.close();
+				tx.success();
+			}
+
+			for(int start=0; start < ids.size(); start += BUILD_BATCH_SIZE) {
+				try (Transaction tx = Neo4JStorage.beginTx()) {
+					for(Long id : ids.subList(start, Math.min(ids.size(), start + BUILD_BATCH_SIZE))) {
+						try {
+							Node n = Neo4JStorage.db.getNodeById(id);
+							Object v = d.valueOf(n);
+							if(v != null) n.setProperty(d.getProperty(), v);
+						} catch(NotFoundException exc) { ; } // Deleted since the scan.
+
+						d.indexed++;
+					}
+
+					tx.success();
+				}
+			}
+		} while(!ids.isEmpty() || passes < 2);
+	} // End fill
+
+	private static void markReady(Definition d) {
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("keys", d.getName());
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			Neo4JStorage.execute("match (i:" + Neo4JStorage.LABEL_NAME_METADATA_INDEX + " {" + PROP_KEYS + ": {keys}}) " +
+			                     "set i." + PROP_READY + " = true", params).dumpToString();
+			tx.success();
+		}
+	} // End markReady
+
+	/**
+	 * Find objects by metadata through the most selective declared index.  Must be called within a transaction.
+	 * @param values the value of each metadata key, as stored
+	 * @param max the most nodes to return
+	 * @return the nodes of objects with all of the values, or null if no ready index covers any of the keys, or only
+	 * composite indexes do and none of them finds a candidate.
+	 */
+	static List<Node> find(Map<String,?> values, int max) {
+		Label label = Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE);
+		Schema schema = Neo4JStorage.db.schema();
+
+		Definition best = null;
+		Object bestValue = null;
+		int bestCount = Integer.MAX_VALUE;
+
+		for(Definition d : indexes.values()) {
+			if(d.state != State.READY || !values.keySet().containsAll(d.getKeys())) continue;
+
+			IndexDefinition id = Neo4JStorage.findIndex(schema, label, d.getProperty());
+			if(id == null || schema.getIndexState(id) != Schema.IndexState.ONLINE) continue;
+
+			Object v = d.valueOf(values);
+			if(v == null) continue;
+
+			int count = probe(label, d.getProperty(), v);
+			
+			// Neo4J maintains a single key's index itself, so finding nothing there is an answer.  A composite property 
+			// is written by this class, so finding nothing there only means the index can't help.
+			if(count == 0 && !d.isComposite()) return new ArrayList<Node>();
+			if(count == 0) continue;
+
+			if(count < bestCount || (count == bestCount && d.getKeys().size() > best.getKeys().size())) {
+				best = d;
+				bestValue = v;
+				bestCount = count;
+			}
+		}
+
+		if(best == null) return null;
+
+		List<Node> nodes = new ArrayList<Node>();
+		ResourceIterator<Node> it = Neo4JStorage.db.findNodesByLabelAndProperty(label, best.getProperty(), bestValue).iterator();
+
+		while(it.hasNext() && nodes.size() < max) {
+			Node n = it.next();
+			if(matches(n, values)) nodes.add(n);
+		}
+
+		it.close();
+		return nodes;
+	} // End find
+
+	/** @return the number of nodes an index lookup finds, up to PROBE_LIMIT. */
+	private static int probe(Label label, String property, Object value) {
+		int count = 0;
+		ResourceIterator<Node> it = Neo4JStorage.db.findNodesByLabelAndProperty(label, property, value).iterator();
+		while(it.hasNext() && count < PROBE_LIMIT) { it.next(); count++; }
+		it.close();
+		return count;
+	} // End probe
+
+	/** 
+	 * @return true if a node has every value, compared the way cypher's = compares them.  Lists are stored as arrays
+	 * (see Neo4JStorage#formatProperty), and arrays are equal when their elements are. 
+	 */
+	private static boolean matches(Node n, Map<String,?> values) {
+		for(Map.Entry<String,?> e : values.entrySet()) {
+			Object stored = n.getProperty(Neo4JStorage.getMetadataPropertyName(e.getKey()), null);
+			if(!Arrays.deepEquals(new Object [] { e.getValue() }, new Object [] { stored })) return false;
+		}
+
+		return true;
+	} // End matches
+} // End MetadataIndex
@@ -16,6 +16,7 @@ package org.mitre.provenance.db.neo4j;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,6 +28,8 @@ import java.util.logging.Logger;
 import org.apache.commons.collections.iterators.IteratorChain;
 import org.mitre.provenance.Metadata;
 import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.client.ProvenanceClient;
+import org.mitre.provenance.dag.DAGPipeline;
 import org.mitre.provenance.dag.LineageDAG;
 import org.mitre.provenance.dag.TraversalSettings;
 import org.mitre.provenance.dag.ViewedCollection;
@@ -44,6 +47,7 @@ import org.mitre.provenance.plusobject.PLUSString;
 import org.mitre.provenance.plusobject.PLUSURL;
 import org.mitre.provenance.plusobject.PLUSWorkflow;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.SourcedObject;
 import org.mitre.provenance.plusobject.marking.Taint;
 import org.mitre.provenance.tools.LRUCache;
 import org.mitre.provenance.tools.PLUSUtils;
@@ -106,10 +110,13 @@ public class Neo4JPLUSObjectFactory {
 		String query = "match (n:" + Neo4JStorage.getLabel(Neo4JStorage.LabelType.PRIVCLASS).name() + ") " +
                 "return n " +
 				"order by n.created desc " + 
-		        "limit " + MAX_OBJECTS;
+		        "limit {max}";
+		
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", MAX_OBJECTS);
 		
 		try (Transaction tx = Neo4JStorage.beginTx()) {			
-			Iterator <Node> ns = Neo4JStorage.execute(query).columnAs("n");
+			Iterator <Node> ns = Neo4JStorage.execute(query, params).columnAs("n");
 					
 			while(ns.hasNext()) results.add(newPrivilegeClass(ns.next()));
 			tx.success();
@@ -147,7 +154,8 @@ public class Neo4JPLUSObjectFactory {
 	
 	/**
 	 * Load objects from the database by a given set of metadata fields.  Objects returned will be those that have ALL of the key/value pairs
-	 * specified.
+	 * specified.  If a declared metadata index covers some of the fields, the most selective one is used to find them; otherwise
+	 * every object is checked.
 	 * @param user the user inspecting the data
 	 * @param fields the fields to use for the query
 	 * @param maxReturn the maximum number of objects to return
@@ -159,36 +167,69 @@ public class Neo4JPLUSObjectFactory {
 		
 		if(maxReturn <= 0 || maxReturn > MAX_OBJECTS) maxReturn = MAX_OBJECTS;
 		
+		// Property names can't be parameters, so the query text varies with the set of keys only; all values
+		// are parameters.  Keys are sorted so that the same set of keys always produces the same query text.
 		StringBuffer whereClause = new StringBuffer("");
-		Iterator<?> i = fields.keySet().iterator();
+		Map<String,Object> params = new HashMap<String,Object>();
+		Map<String,Object> values = new HashMap<String,Object>();
+		ArrayList<String> keys = new ArrayList<String>(fields.keySet());
+		Collections.sort(keys);
 		
-		while(i.hasNext()) {
-			Object k = i.next();
+		for(int x=0; x<keys.size(); x++) {
+			String k = keys.get(x);
 			String propName = Neo4JStorage.getMetadataPropertyName(k);
-			whereClause.append("n.`" + propName + "`=\"" + Neo4JStorage.formatProperty(fields.get(k)) + "\" ");
-			if(i.hasNext()) whereClause.append("and ");
+			whereClause.append("n.`" + propName + "`={v" + x + "} ");
+			// Lists are stored as arrays, and compared with them element by element; anything else is compared as text.
+			Object v = Neo4JStorage.formatProperty(fields.get(k));
+			params.put("v" + x, (v.getClass().isArray() ? v : "" + v));
+			values.put(k, params.get("v" + x));
+			if(x < keys.size() - 1) whereClause.append("and ");
 		}
+		
+		params.put("max", maxReturn);
 				
-		String query = "match (n:" + Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE) + ") " + 
+		String query = "match (n:" + Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE).name() + ") " + 
 		        "where " + whereClause +  
                 "return n " + 
-		        "limit " + maxReturn;
+		        "limit {max}";
 		
-		// System.out.println(query);
-		Iterator <Node> ns = Neo4JStorage.execute(query).columnAs("n");
+		MaterializationContext ctx = new MaterializationContext();
 		
-		while(ns.hasNext()) {
-			PLUSObject o = newObject(ns.next());
-			PLUSObject s = o.getVersionSuitableFor(user);
-			if(s != null) d.addNode(s);			
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			List<Node> indexed = MetadataIndex.find(values, maxReturn);
+			
+			// System.out.println(query);
+			Iterator <Node> ns = (indexed != null ? indexed.iterator() : Neo4JStorage.execute(query, params).<Node>columnAs("n"));
+			
+			while(ns.hasNext()) {
+				PLUSObject o = newObject(ns.next(), ctx);
+				PLUSObject s = o.getVersionSuitableFor(user);
+				if(s != null) d.addNode(s);			
+			}
+			
+			tx.success();
 		}
 		
 		return d;
 	} // End loadByMetadata
 	
 	public static PLUSActor newActor(Node n) throws PLUSException {
+		return newActor(n, new MaterializationContext());
+	}
+	
+	/**
+	 * Create a PLUSActor from a node, or return the one already created from that node in the given context.
+	 * @param n the actor's node
+	 * @param ctx the context of the current request
+	 * @return a PLUSActor
+	 * @throws PLUSException
+	 */
+	public static PLUSActor newActor(Node n, MaterializationContext ctx) throws PLUSException {
 		if(n == null) throw new PLUSException("null PLUSActor node");
 		
+		PLUSActor cached = ctx.getActor(n.getId());
+		if(cached != null) return cached;
+		
 		try (Transaction tx = Neo4JStorage.beginTx()) {		
 			String type = (String)n.getProperty(Neo4JStorage.PROP_TYPE);
 			
@@ -204,14 +245,31 @@ public class Neo4JPLUSObjectFactory {
 			else result = (PLUSActor)new PLUSActor().setProperties(new Neo4JPropertySet(n), null);
 			
 			tx.success();
+			ctx.putActor(n.getId(), result);
 			return result;
 		}
 	} // End newActor
 	
 	public static PrivilegeClass newPrivilegeClass(Node n) throws PLUSException { 
+		return newPrivilegeClass(n, new MaterializationContext());
+	}
+	
+	/**
+	 * Create a PrivilegeClass from a node, or return the one already created from that node in the given context.
+	 * @param n the privilege class's node
+	 * @param ctx the context of the current request
+	 * @return a PrivilegeClass
+	 * @throws PLUSException
+	 */
+	public static PrivilegeClass newPrivilegeClass(Node n, MaterializationContext ctx) throws PLUSException { 
 		if(n == null) throw new PLUSException("null Privilege node");
-		PrivilegeClass pc = new PrivilegeClass(1);
+		
+		PrivilegeClass pc = ctx.getPrivilegeClass(n.getId());
+		if(pc != null) return pc;
+		
+		pc = new PrivilegeClass(1);
 		pc.setProperties(new Neo4JPropertySet(n), null);
+		ctx.putPrivilegeClass(n.getId(), pc);
 		return pc;
 	}
 	
@@ -249,17 +307,26 @@ public class Neo4JPLUSObjectFactory {
 	}
 		
 	public static PLUSEdge newEdge(Relationship r) throws PLUSException { 
+		return newEdge(r, new MaterializationContext());
+	}
+	
+	/**
+	 * Create a PLUSEdge from a relationship, reusing endpoint and workflow objects already created in the given context.
+	 * @param r the relationship
+	 * @param ctx the context of the current request
+	 * @return a PLUSEdge
+	 * @throws PLUSException
+	 */
+	public static PLUSEdge newEdge(Relationship r, MaterializationContext ctx) throws PLUSException { 
 		try(Transaction tx = Neo4JStorage.beginTx()) {
 			//String from = ""+r.getStartNode().getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID, "");
 			//String to = ""+r.getEndNode().getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID, "")		
 			String wkflow = ""+r.getProperty(Neo4JStorage.PROP_WORKFLOW);
 			String type = r.getType().name();
 			
-			Node workflowNode = Neo4JStorage.oidExists(wkflow);
-			
-			PLUSObject from = newObject(r.getStartNode());
-			PLUSObject to = newObject(r.getEndNode());
-			PLUSWorkflow workflow = (PLUSWorkflow)(workflowNode == null ? null : newObject(workflowNode));
+			PLUSObject from = newObject(r.getStartNode(), ctx);
+			PLUSObject to = newObject(r.getEndNode(), ctx);
+			PLUSWorkflow workflow = findWorkflow(wkflow, ctx);
 			
 			tx.success();
 			
@@ -267,6 +334,21 @@ public class Neo4JPLUSObjectFactory {
 		}
 	} // End newEdge
 	
+	/**
+	 * Find the workflow with a given OID, using the one already created in the given context if there is one.
+	 * @return the workflow, or null if it doesn't exist.
+	 */
+	protected static PLUSWorkflow findWorkflow(String wfid, MaterializationContext ctx) throws PLUSException { 
+		if(wfid == null) return null;
+		
+		PLUSWorkflow wf = ctx.getWorkflow(wfid);
+		if(wf != null) return wf;
+		
+		Node n = Neo4JStorage.oidExists(wfid);
+		if(n == null) return null;
+		return (PLUSWorkflow)newObject(n, ctx);
+	} // End findWorkflow
+	
 	public static PLUSObject newObject(String oid) throws PLUSException {
 		Node n = Neo4JStorage.oidExists(oid);
 		if(n == null) throw new DoesNotExistException(oid);
@@ -274,8 +356,23 @@ public class Neo4JPLUSObjectFactory {
 	}
 	
 	public static PLUSObject newObject(Node n) throws PLUSException { 
+		return newObject(n, new MaterializationContext());
+	}
+	
+	/**
+	 * Create a PLUSObject from a node, or return the one already created from that node in the given context.
+	 * Owners and privilege classes are likewise shared with other objects created in the same context.
+	 * @param n the object's node
+	 * @param ctx the context of the current request
+	 * @return a PLUSObject
+	 * @throws PLUSException
+	 */
+	public static PLUSObject newObject(Node n, MaterializationContext ctx) throws PLUSException { 
 		if(n == null) throw new PLUSException("Cannot create PLUSObject from null");
 		
+		PLUSObject cached = ctx.getObject(n.getId());
+		if(cached != null) return cached;
+		
 		try (Transaction tx = Neo4JStorage.beginTx()) {
 			if(!Neo4JStorage.isPLUSObjectNode(n)) throw new PLUSException("Node " + n.getId() + " isn't a PLUSObject node");
 			
@@ -313,7 +410,7 @@ public class Neo4JPLUSObjectFactory {
 			
 			int x=0;
 			for(Relationship r : n.getRelationships(Direction.INCOMING, Neo4JStorage.OWNS)) {
-				PLUSActor a = newActor(r.getStartNode());
+				PLUSActor a = newActor(r.getStartNode(), ctx);
 				o.setOwner(a);
 
 				if(x > 0) log.warning("Duplicate owner " + a + " on node " + o);
@@ -323,12 +420,13 @@ public class Neo4JPLUSObjectFactory {
 			
 			PrivilegeSet ps = new PrivilegeSet();
 			for(Relationship r : n.getRelationships(Direction.OUTGOING, Neo4JStorage.CONTROLLED_BY)) {
-				PrivilegeClass pc = newPrivilegeClass(r.getEndNode());
+				PrivilegeClass pc = newPrivilegeClass(r.getEndNode(), ctx);
 				ps.addPrivilege(pc);
 			}
 			o.setPrivileges(ps);
 		
 			tx.success();
+			ctx.putObject(n.getId(), o);
 			
 			return o;
 		}		
@@ -353,15 +451,121 @@ public class Neo4JPLUSObjectFactory {
 	 * @param includeNPEs if true, the resulting collection will include NonProvenanceEdge objects.
 	 * @return a ProvenanceCollection containing the search results.
 	 * @throws PLUSException
+	 * @see Neo4JPLUSObjectFactory#getIncidentEdgesByOID(Iterable, User, String, boolean, boolean)
 	 */
 	public static ProvenanceCollection getIncidentEdges(Iterable<String>oids, User user, String direction, boolean includeProvEdges, boolean includeNPEs) 
 			throws PLUSException { 
+		return getIncidentEdges(oids, user, direction, includeProvEdges, includeNPEs, new MaterializationContext());
+	}
+	
+	/**
+	 * Get edges incident to a particular set of object identifiers, building objects within the given context.
+	 * @see Neo4JPLUSObjectFactory#getIncidentEdges(Iterable, User, String, boolean, boolean)
+	 */
+	public static ProvenanceCollection getIncidentEdges(Iterable<String>oids, User user, String direction, boolean includeProvEdges, boolean includeNPEs,
+			MaterializationContext ctx) throws PLUSException { 
+		LineageDAG col = new LineageDAG(user);
+		
+		for(ProvenanceCollection perOID : getIncidentEdgesByOID(oids, user, direction, includeProvEdges, includeNPEs, ctx).values())
+			col.addAll(perOID);
+		
+		return col;
+	} // End getIncidentEdges
+	
+	/** The largest number of OIDs whose edges are fetched by a single query. */
+	public static final int INCIDENT_EDGE_BATCH_SIZE = 500;
+	
+	/**
+	 * Get edges incident to a particular set of object identifiers, grouped by the object they are incident to.  The OIDs
+	 * are resolved to nodes through the node id cache and schema index, and all of their incident relationships are returned by one query
+	 * (or one query per INCIDENT_EDGE_BATCH_SIZE OIDs).  A relationship or node that turns up more than once is only turned
+	 * into a PLUS object once.
+	 * @param oids the set of PLUSObject oids to search for
+	 * @param user the user who wants the data
+	 * @param direction which set of edges you want.  Can be "bling", "fling", or "both".  All other values throw an exception.
+	 * @param includeProvEdges if true, the results will include PLUSEdge objects.
+	 * @param includeNPEs if true, the results will include NonProvenanceEdge objects.
+	 * @return a map from each OID that has incident edges to a collection of those edges.  OIDs with no incident edges
+	 * (or that don't exist) will not be in the map.
+	 * @throws PLUSException
+	 */
+	public static Map<String,ProvenanceCollection> getIncidentEdgesByOID(Iterable<String>oids, User user, String direction, 
+			boolean includeProvEdges, boolean includeNPEs) throws PLUSException { 
+		return getIncidentEdgesByOID(oids, user, direction, includeProvEdges, includeNPEs, new MaterializationContext());
+	}
+	
+	/**
+	 * Get edges incident to a particular set of object identifiers, grouped by OID, building objects within the given context.
+	 * @see Neo4JPLUSObjectFactory#getIncidentEdgesByOID(Iterable, User, String, boolean, boolean)
+	 */
+	public static Map<String,ProvenanceCollection> getIncidentEdgesByOID(Iterable<String>oids, User user, String direction, 
+			boolean includeProvEdges, boolean includeNPEs, MaterializationContext ctx) throws PLUSException { 
 		if(!includeProvEdges && !includeNPEs) throw new PLUSException("No results possible!");
 		
-		LineageDAG col = new LineageDAG(user);
+		String matchClause = buildIncidentMatchClause(direction, includeProvEdges, includeNPEs);		
+		String query = "start n=node({startNodes}) " + 
+				"match " + matchClause + " " +  
+				"where has(m.oid) " + 
+				"return n.oid as oid, r ";
+		
+		HashMap<String,ProvenanceCollection> results = new HashMap<String,ProvenanceCollection>();
+		HashMap<Long,Object> relsBuilt = new HashMap<Long,Object>();
 		
-		String matchClause = "";
+		ArrayList<String> batch = new ArrayList<String>();
+		Iterator<String> it = oids.iterator();
+		
+		while(it.hasNext()) { 
+			batch.add(it.next());
+			if(batch.size() < INCIDENT_EDGE_BATCH_SIZE && it.hasNext()) continue;
+			
+			Map<String,Object>params = new HashMap<String,Object>();
+			params.put("startNodes", Neo4JStorage.getNodeIds(batch));
+			batch.clear();
+			
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				ExecutionResult result = Neo4JStorage.execute(query, params);
+				
+				for(Map<String,Object> row : result) { 
+					String oid = (String)row.get("oid");
+					Relationship r = (Relationship)row.get("r");
+					
+					Object item = relsBuilt.get(r.getId());
+					if(item == null) { 
+						if(includeNPEs && Neo4JStorage.NPE.name().equals(r.getType().name())) item = newNonProvenanceEdge(r);
+						else if(includeProvEdges) item = newPLUSEdge(r, ctx);
+						else throw new PLUSException("This shouldn't be possible.");
+						
+						relsBuilt.put(r.getId(), item);
+					}
+					
+					ProvenanceCollection col = results.get(oid);
+					if(col == null) { 
+						col = new LineageDAG(user);
+						results.put(oid, col);
+					}
+					
+					if(item instanceof NonProvenanceEdge) col.addNonProvenanceEdge((NonProvenanceEdge)item);
+					else col.addEdge((PLUSEdge)item);
+				} // End for
+				
+				// TODO
+				// In Neo4J 2.0.1, tx.success() sometimes causes a failed transaction exception due to "unable to commit".
+				// This happens in READ-ONLY CYPHER QUERIES.
+				// Link to discussion thread:  https://groups.google.com/d/msg/neo4j/w1L_21z0z04/VNBN5epvgYMJ
+				// Temporary work-around is to remove tx.success().
+				// This is *not* the right thing to do, but it works for now until neo4j addresses the issue.			
+				// tx.success();				
+			} // End try
+		} // End while
 		
+		return results;
+	} // End getIncidentEdgesByOID
+	
+	/**
+	 * Build the cypher match clause from n to m over the requested relationship types, in the requested direction.
+	 * @see Neo4JPLUSObjectFactory#getIncidentEdgesByOID(Iterable, User, String, boolean, boolean)
+	 */
+	protected static String buildIncidentMatchClause(String direction, boolean includeProvEdges, boolean includeNPEs) throws PLUSException { 
 		ArrayList<String>relTypes = new ArrayList<String>();
 		
 		if(includeProvEdges) { 
@@ -385,46 +589,15 @@ public class Neo4JPLUSObjectFactory {
 		}
 		
 		if("fling".equals(direction))
-			matchClause = "n-" + relClause + "]->m";
+			return "n-" + relClause + "]->m";
 		else if("bling".equals(direction))
-			matchClause = "n<-" + relClause + "]-m";
+			return "n<-" + relClause + "]-m";
 		else if("both".equals(direction))
-			matchClause = "n-" + relClause + "]-m";		
-		else throw new PLUSException("Invalid direction: " + direction + " valid is fling, bling, both");
+			return "n-" + relClause + "]-m";		
 		
-		for(String oid : oids) {
-			Map<String,Object>params = new HashMap<String,Object>();
-			params.put(Neo4JStorage.PROP_PLUSOBJECT_ID, oid);
-
-			String query = "start n=node:node_auto_index(oid={oid}) " + 
-					"match " + matchClause + " " +  
-					"where has(m.oid) " + 
-					"return r ";
-			
-			try (Transaction tx = Neo4JStorage.beginTx()) {
-				ExecutionResult result = Neo4JStorage.execute(query, params);
-				Iterator<Relationship> rels = result.columnAs("r");
-	
-				while(rels.hasNext()) { 
-					Relationship r = rels.next();
+		throw new PLUSException("Invalid direction: " + direction + " valid is fling, bling, both");
+	} // End buildIncidentMatchClause
 	
-					if(includeNPEs && Neo4JStorage.NPE.name().equals(r.getType().name())) col.addNonProvenanceEdge(newNonProvenanceEdge(r));
-					else if(includeProvEdges) col.addEdge(newPLUSEdge(r));
-					else throw new PLUSException("This shouldn't be possible.");
-				} // End while
-				
-				// TODO
-				// In Neo4J 2.0.1, tx.success() sometimes causes a failed transaction exception due to "unable to commit".
-				// This happens in READ-ONLY CYPHER QUERIES.
-				// Link to discussion thread:  https://groups.google.com/d/msg/neo4j/w1L_21z0z04/VNBN5epvgYMJ
-				// Temporary work-around is to remove tx.success().
-				// This is *not* the right thing to do, but it works for now until neo4j addresses the issue.			
-				// tx.success();				
-			} // End try
-		} // End for
-		
-		return col;
-	} // End getIncidentEdges
 
 	/**
 	 * Create a new NonProvenanceEdge from an underlying Relationship.
@@ -459,6 +632,18 @@ public class Neo4JPLUSObjectFactory {
 	 * @throws PLUSException
 	 */
 	public static PLUSEdge newPLUSEdge(Relationship r) throws PLUSException { 
+		return newPLUSEdge(r, new MaterializationContext());
+	}
+	
+	/**
+	 * Create a new PLUSEdge object from a given underlying Relationship, reusing any endpoint or workflow objects
+	 * that were already built in the given context.
+	 * @param r the relationship
+	 * @param ctx the context of the current request
+	 * @return a PLUSEdge
+	 * @throws PLUSException
+	 */
+	public static PLUSEdge newPLUSEdge(Relationship r, MaterializationContext ctx) throws PLUSException { 
 		try(Transaction tx = Neo4JStorage.beginTx()) {
 			String wfid = (String)r.getProperty(Neo4JStorage.PROP_WORKFLOW, null);
 			
@@ -467,16 +652,14 @@ public class Neo4JPLUSObjectFactory {
 			if(PLUSWorkflow.DEFAULT_WORKFLOW.getId().equals(wfid)) {
 				wf = PLUSWorkflow.DEFAULT_WORKFLOW;
 			} else if(wfid != null) {
-				Node n = Neo4JStorage.oidExists(wfid);
-				if(n == null) 
+				wf = findWorkflow(wfid, ctx);
+				if(wf == null) 
 					log.warning("Edge workflow identified by " + wfid + " doesn't exist!");			
-				else
-					wf = (PLUSWorkflow)newObject(n);
 			} // End if
 		
 			tx.success();
-			return new PLUSEdge(newObject(r.getStartNode()),
-					            newObject(r.getEndNode()), 
+			return new PLUSEdge(newObject(r.getStartNode(), ctx),
+					            newObject(r.getEndNode(), ctx), 
 					            wf,
 					            r.getType().name());
 		}
@@ -484,7 +667,8 @@ public class Neo4JPLUSObjectFactory {
 	
 	/**
 	 * Get a list of non provenance edges from the store.
-	 * @param externalId the external identifier the edges are attached to.  If null, it will be treated as a wildcard.
+	 * @param externalId the external identifier the edges are attached to.  If null, it will be treated as a wildcard, 
+	 * and the newest edges in the store are returned.
 	 * @param user the user looking at the data
 	 * @param maxReturn the maximum number to return
 	 * @return a provenanec collection.
@@ -492,29 +676,52 @@ public class Neo4JPLUSObjectFactory {
 	 */
 	public static ProvenanceCollection getNonProvenanceEdges(String externalId, User user, int maxReturn) throws PLUSException {
 		if(user == null) throw new PLUSException("null user");
+		if(externalId == null) return getRecentNonProvenanceEdges(user, null, maxReturn).getItems();
 		
 		ViewedCollection col = new ViewedCollection(user);
 		if(maxReturn <= 0 || maxReturn > MAX_OBJECTS) maxReturn = MAX_OBJECTS;
 		
-		String query = null;
-		if(externalId == null) 
-			query = "start r=relationship:relationship_auto_index(\"npeid:*\") " +
-		            "where has(r.created) " + 
-			        "return r " + 
-		            "order by r.created desc " + 
-				    "limit " + maxReturn;
-		else 
-			query = "start n=node:node_auto_index(npid=\"" + externalId + "\") " + 
-		            "match n-[r:NPID]-m " + 
-					"return r " + 
-		            "order by r.created desc " + 
-					"limit " + maxReturn;
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", maxReturn);
+		params.put("npid", externalId);
+		
+		String query = "match (n:" + Neo4JStorage.LABEL_NAME_NONPROV + " {npid: {npid}})-[r:" + Neo4JStorage.NPE.name() + "]-m " + 
+					   "return r " + 
+		               "order by r.created desc " + 
+					   "limit {max}";
 			
-		Iterator<Relationship> results = Neo4JStorage.execute(query).columnAs("r");
+		Iterator<Relationship> results = Neo4JStorage.execute(query, params).columnAs("r");
 		while(results.hasNext()) col.addNonProvenanceEdge(newNonProvenanceEdge(results.next()));
 		return col;
 	} // End getNonProvenanceEdges
 	
+	/**
+	 * Get a page of the newest non provenance edges in the store, found through the recency index.
+	 * @param user the user looking at the data
+	 * @param before if not null, the cursor of the previous page; only older edges are returned.
+	 * @param maxReturn the maximum number to return
+	 * @return the page of edges; its cursor leads to the next.
+	 * @throws PLUSException
+	 * @see RecencyIndex
+	 */
+	public static RecencyIndex.Page<ProvenanceCollection> getRecentNonProvenanceEdges(User user, RecencyIndex.Cursor before, int maxReturn) throws PLUSException {
+		if(user == null) throw new PLUSException("null user");
+		
+		ViewedCollection col = new ViewedCollection(user);
+		if(maxReturn <= 0 || maxReturn > MAX_OBJECTS) maxReturn = MAX_OBJECTS;
+		
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			List<Relationship> rels = RecencyIndex.findNPEs(0, Long.MAX_VALUE, before, maxReturn);
+			for(Relationship r : rels) col.addNonProvenanceEdge(newNonProvenanceEdge(r));
+			
+			RecencyIndex.Cursor next = (rels.size() < maxReturn ? null : 
+				RecencyIndex.cursorAfter(rels.get(rels.size() - 1), Neo4JStorage.PROP_NPEID));
+			
+			tx.success();
+			return new RecencyIndex.Page<ProvenanceCollection>(col, next);
+		}
+	} // End getRecentNonProvenanceEdges
+	
 	/**
 	 * Given a set of parameters, build a Cypher query which will return the appropriate data
 	 * from the underlying neo4j database.
@@ -522,34 +729,32 @@ public class Neo4JPLUSObjectFactory {
 	 * @param maxNodes maximum nodes the query should return
 	 * @param maxDistance maximum path distance to traverse
 	 * @param followNPIDs whether or not non-provenance edges and IDs should be followed.
+	 * @param params a map which will be filled in with the values of the parameters the query uses.
 	 * @return a cypher query
 	 */
-	protected static String buildQuery(Iterable<String>ids, int maxNodes, int maxDistance, boolean followNPIDs) {
+	protected static String buildQuery(Iterable<String>ids, int maxNodes, int maxDistance, boolean followNPIDs, Map<String,Object>params) {
 		StringBuffer b = new StringBuffer("start ");
 		
 		/* Formula for the query we are building...
-		 start n=node:node_auto_index('oid:("first identifier", "second identifier")') 
+		 start n=node({startNodes}) 
 		 match n-[r:myEdge*..5]-m 
 		 return m 
+		 
+		 where startNodes is the list of neo4j node ids of the OIDs.
 		*/
 		
-		b.append("n=node:node_auto_index('oid:(");
-		Iterator<String>iter = ids.iterator();
-				
-		while(iter.hasNext()) {
-			String oid = iter.next();
-			b.append("\"" + oid + "\""); 
-			if(iter.hasNext()) b.append(", "); 
-		}
-		b.append(")') "); // End of "start" clause.
+		b.append("n=node({startNodes}) "); // End of "start" clause.
+		params.put("startNodes", Neo4JStorage.getNodeIds(ids));
 
 		/* MATCH SECTION */
 		String relationshipsSought = "contributed|marks|`input to`|unspecified|triggered|generated";
 		if(followNPIDs) relationshipsSought = relationshipsSought + "|NPE";
 
+		// Path lengths can't be parameters in cypher, so this part of the query varies with maxDistance.
 		b.append("match n-[r:" + relationshipsSought + "*.." + maxDistance + "]-m ");
 		b.append("return m ");		
-		b.append("limit " + maxNodes);
+		b.append("limit {maxNodes}");
+		params.put("maxNodes", maxNodes);
 		return b.toString();
 	}
 	
@@ -665,14 +870,24 @@ public class Neo4JPLUSObjectFactory {
 	 *  
 	 */	
 	public static LineageDAG newDAG(String id, User user, TraversalSettings settings) throws PLUSException {
+		return newDAG(id, user, settings, new MaterializationContext());
+	}
+	
+	/**
+	 * Creates a new DAG, building objects within the given context.
+	 * @see Neo4JPLUSObjectFactory#newDAG(String, User, TraversalSettings)
+	 */
+	public static LineageDAG newDAG(String id, User user, TraversalSettings settings, MaterializationContext ctx) throws PLUSException {
 		// TODO workflow expansion - see TraversalSettings
 		
-		// This method needs refactoring.  It traverses by nodes, but then lists edges individually.  When doing so, it has the
-		// side-effect of looking up nodes and creating new ones.  It would probably be more efficient to just traverse by
-		// edges, and create the nodes as you go.
-		// Also, possibly a bigger problem:  if each time you add a node, you spider out and add the edges, then for very dense
-		// graphs this defeats the "depth-first" option.  At each node, you spider out on the edges (breadth first), add those
-		// incident nodes, and exhaust your total node limit before you've gone very deep into the graph.		
+		// Discovery is driven entirely by the traversal, so its order (breadth or depth first) and depth limit are exactly
+		// what settings asks for.  Every provenance node the traversal visits counts toward settings.n, whether or not
+		// the user can see it.  A relationship is only converted into an edge once both of its ends have been visited, 
+		// so the DAG never holds more than settings.n nodes, and nothing beyond them is ever materialized or surrogated.  
+		// A visited node with relationships to nodes that never get visited is tagged as having more available instead.
+		// Nodes are materialized once each through ctx, and owners, privilege classes and workflows are shared through ctx.
+		// The traversal only records what it finds; surrogates for everything the user can't see are then computed
+		// together, and the findings are added to the DAG in the order the traversal made them.
 		log.fine(user.getName() + " traversing " + id + " with " + settings);
 
 		Node startingPoint = null;
@@ -690,6 +905,21 @@ public class Neo4JPLUSObjectFactory {
 
 		dag.getFingerPrint().startTimer("Build");
 		
+		int builtBefore = ctx.countBuilt();
+		int reusedBefore = ctx.countReused();
+		HashSet<Long> seenRelIds = new HashSet<Long>();
+		HashSet<Long> visitedIds = new HashSet<Long>();
+		
+		// Relationships from a visited node to one not visited (yet), with the OID of the visited end.
+		HashMap<Long,String> unmatched = new HashMap<Long,String>();
+		int visited = 0;
+		
+		// Visited nodes, edges and NPEs, in the order they were found.
+		ArrayList<Object> steps = new ArrayList<Object>();
+		
+		// The version of each node that goes in the DAG, by OID:  the node itself, or a surrogate (null if there's none).
+		HashMap<String,PLUSObject> suitable = new HashMap<String,PLUSObject>();
+		
 		dag.getFingerPrint().startTimer("TraverseIterator");
 		// log.info("Traversing from " + id);
 		
@@ -698,33 +928,27 @@ public class Neo4JPLUSObjectFactory {
 				// log.info("Traversing through " + n);
 				dag.getFingerPrint().stopTimer("TraverseIterator");
 				
+				if(!n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE))) {
+					dag.getFingerPrint().startTimer("TraverseIterator");
+					continue;
+				}
+				
 				// Throttle at this many nodes maximum.
 				// If n is negative, then there's no limit.
-				if(settings.n > 0 && (settings.n <= dag.countNodes())) {
+				if(settings.n > 0 && visited >= settings.n) {
 					dag.getFingerPrint().startTimer("TraverseIterator");
 					break;			
 				}
-							
-				if(!n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE))) {
-					dag.getFingerPrint().startTimer("TraverseIterator");
-					continue;
-				}
 				
+				visited++;
+				visitedIds.add(n.getId());
+							
 				if(settings.includeNodes) {
 					dag.getFingerPrint().startTimer("CreatePLUSObject");
-					PLUSObject o = Neo4JPLUSObjectFactory.newObject(n).getVersionSuitableFor(user);
+					steps.add(newObject(n, ctx));
 					dag.getFingerPrint().stopTimer("CreatePLUSObject"); 
-					
-					if(o != null) { 
-						// log.info("Added node " + o.getId() + " with owner " + o.getOwner());
-						dag.addNode(o);
-						
-						if(o.getOwner() != null) dag.addActor(o.getOwner());
-					}
 				} 
 	
-				HashSet<Long> seenRelIds = new HashSet<Long>();
-				
 				if(settings.includeEdges) { 
 					Iterable<Relationship> rels = n.getRelationships(							
 							Neo4JStorage.CONTRIBUTED, Neo4JStorage.MARKS, 
@@ -733,20 +957,16 @@ public class Neo4JPLUSObjectFactory {
 					
 					dag.getFingerPrint().startTimer("SpiderRelationships");
 					for(Relationship r : rels)  {
-						if(seenRelIds.contains(r.getId())) continue;
+						// A relationship is seen once from each of its ends; it becomes an edge when seen from the second.
+						if(!visitedIds.contains(r.getOtherNode(n).getId())) {
+							unmatched.put(r.getId(), "" + n.getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID));
+							continue;
+						}
 						
-						PLUSEdge e = newPLUSEdge(r);
-						seenRelIds.add(r.getId());
-						// log.info("Added edge " + e);
-						dag.addEdge(e);
+						unmatched.remove(r.getId());
+						if(!seenRelIds.add(r.getId())) continue;   // Self-loops show up twice.
 						
-						// Check to see if we've hit our maximum number of nodes.
-						// REMEMBER:  when creating a new edge, that sometimes has the side-effect of creating a new
-						// node that's incident to that edge.
-						if(settings.n > 0 && (settings.n <= dag.countNodes())) {
-							dag.getFingerPrint().startTimer("TraverseIterator");
-							break;			
-						}
+						steps.add(newPLUSEdge(r, ctx));
 					}
 					dag.getFingerPrint().stopTimer("SpiderRelationships");					
 				} // End if
@@ -755,16 +975,9 @@ public class Neo4JPLUSObjectFactory {
 					dag.getFingerPrint().startTimer("SpiderNPEs");
 					Iterable<Relationship> rels = n.getRelationships(Neo4JStorage.NPE);
 					for(Relationship r : rels) {
-						NonProvenanceEdge np = newNonProvenanceEdge(r);
-						// log.info("Added NPE " + np);
-						dag.addNonProvenanceEdge(np);
+						if(!seenRelIds.add(r.getId())) continue;
 						
-						String oid = np.getFrom();
-						if(!dag.containsObjectID(oid)) { 
-							// This should never occur.  Since we're going through all
-							// provenance nodes, 
-							log.warning("When adding NPE " + np + " found we were missing incident OID " + oid);
-						}			
+						steps.add(newNonProvenanceEdge(r));
 					}
 					dag.getFingerPrint().stopTimer("SpiderNPEs");
 				} // End if
@@ -772,6 +985,52 @@ public class Neo4JPLUSObjectFactory {
 				dag.getFingerPrint().startTimer("TraverseIterator");
 			} // End for
 			
+			dag.getFingerPrint().stopTimer("TraverseIterator");
+			
+			dag.getFingerPrint().startTimer("ResolveSurrogates");
+			resolveSuitableVersions(steps, user, suitable);
+			dag.getFingerPrint().stopTimer("ResolveSurrogates");
+			
+			for(Object step : steps) {
+				if(step instanceof PLUSObject) {
+					PLUSObject o = suitable.get(((PLUSObject)step).getId());
+					
+					if(o != null) { 
+						// log.info("Added node " + o.getId() + " with owner " + o.getOwner());
+						dag.addNode(o);
+						
+						if(o.getOwner() != null) dag.addActor(o.getOwner());
+					}
+				} else if(step instanceof PLUSEdge) {
+					PLUSEdge e = (PLUSEdge)step;
+					PLUSObject from = suitable.get(e.getFrom().getId());
+					PLUSObject to = suitable.get(e.getTo().getId());
+					
+					if(from == null || to == null) {
+						log.fine("Skipping edge " + e + " because the viewer can see no version of one of its ends.");
+						continue;
+					}
+					
+					// With the suitable ends already present, the DAG points the edge at them.
+					if(!dag.containsObjectID(from.getId())) dag.addNode(from);
+					if(!dag.containsObjectID(to.getId())) dag.addNode(to);
+					
+					// log.info("Added edge " + e);
+					dag.addEdge(e);
+				} else {
+					NonProvenanceEdge np = (NonProvenanceEdge)step;
+					// log.info("Added NPE " + np);
+					dag.addNonProvenanceEdge(np);
+					
+					String oid = np.getFrom();
+					if(!dag.containsObjectID(oid)) { 
+						// This should never occur.  Since we're going through all
+						// provenance nodes, 
+						log.warning("When adding NPE " + np + " found we were missing incident OID " + oid);
+					}
+				}
+			} // End for
+			
 			// TODO
 			// In Neo4J 2.0.1, tx.success() sometimes causes a failed transaction exception due to "unable to commit".
 			// This happens in READ-ONLY CYPHER QUERIES.
@@ -782,8 +1041,11 @@ public class Neo4JPLUSObjectFactory {
 		} //catch(TransactionFailureException exc) { 
 		//	log.severe("Transaction failed: " + exc.getMessage());
 		//}
-				
-		dag.getFingerPrint().stopTimer("TraverseIterator");
+		
+		dag.getFingerPrint().count("NodesVisited", visited);
+		dag.getFingerPrint().count("ItemsMaterialized", ctx.countBuilt() - builtBefore);
+		dag.getFingerPrint().count("MaterializationsAvoided", ctx.countReused() - reusedBefore);
+		dag.getFingerPrint().count("RelationshipsMaterialized", seenRelIds.size());
 		
 		// Add actors that are relevant to the graph.
 		for(PLUSObject o : dag.getNodes()) {
@@ -795,27 +1057,16 @@ public class Neo4JPLUSObjectFactory {
 		dag.getFingerPrint().stopTimer("Build"); 		
 		
 		// Because of max size constraints, we will frequently load less
-		// of the graph than is actually in the database.  This method loops
-		// through the edges, and tags nodes as having "more" information, whenever
-		// there's an edge where the other end isnt in the dag.
+		// of the graph than is actually in the database.  Nodes with relationships
+		// to nodes that weren't visited are tagged as having "more" information.
 		// This information lets GUI displays of the graph signify that a node isn't
 		// actually a dead-end in the provenance graph.
-		for(PLUSEdge e : dag.getEdges()) {
-			if(dag.contains(e.getFrom()) && !dag.contains(e.getTo()))
-				dag.tagNode(e.getFrom(), LineageDAG.TAG_MORE_AVAILABLE, "true");
-			else if(!dag.contains(e.getFrom()) && dag.contains(e.getTo()))
-				dag.tagNode(e.getTo(), LineageDAG.TAG_MORE_AVAILABLE, "true"); 
+		for(String oid : new HashSet<String>(unmatched.values())) {
+			if(dag.containsObjectID(oid)) dag.tagNode(oid, LineageDAG.TAG_MORE_AVAILABLE, "true");
 		} // End for
 		
-		dag = LineageDAG.computeEdgeVoting(dag);   // Edge voting for surrogates
-		dag = LineageDAG.traceTaintSources(dag);   // Trace indirect taints from direct taints
-		dag = LineageDAG.drawInferrableEdges(dag); // Draw inferred edges based on surrogate alg.
-		dag = LineageDAG.tagHeadAndFeet(dag);
-				
-		List<PLUSEdge> danglers = LineageDAG.detectDanglers(dag);
-		
-		if(danglers.size() > 0) 
-			log.warning("Collection " + dag + " contains " + danglers.size() + " dangling edges."); 
+		// Edge voting, taint tracing, inferred edges, heads and feet, and danglers.
+		dag = DAGPipeline.run(dag);
 				
 		dag.getFingerPrint().startTimer("GraphFunctions");
 		dag.getFingerPrint().finished(dag);
@@ -826,6 +1077,43 @@ public class Neo4JPLUSObjectFactory {
 		return dag;
 	} // End newDAG
 	
+	/**
+	 * Work out which version of each node found by a traversal a user should be given.  Whether the user can see each
+	 * node is decided here, against the in-memory privilege lattice; surrogates for the ones they can't see are then 
+	 * computed together, in parallel where their SGFs allow it.
+	 * @param steps the nodes, edges and NPEs found, in traversal order.  Nodes and the ends of edges are considered.
+	 * @param user the user who will see the DAG
+	 * @param suitable filled in with the version of each node to use, by OID, or null if there is none.
+	 * @throws PLUSException
+	 * @see DAGPipeline#resolveSurrogates(List, User)
+	 */
+	protected static void resolveSuitableVersions(List<Object> steps, User user, Map<String,PLUSObject> suitable) throws PLUSException {
+		ArrayList<PLUSObject> hidden = new ArrayList<PLUSObject>();
+		ArrayList<PLUSObject> candidates = new ArrayList<PLUSObject>();
+		
+		for(Object step : steps) {
+			if(step instanceof PLUSObject) candidates.add((PLUSObject)step);
+			else if(step instanceof PLUSEdge) {
+				candidates.add(((PLUSEdge)step).getFrom());
+				candidates.add(((PLUSEdge)step).getTo());
+			}
+		}
+		
+		for(PLUSObject o : candidates) {
+			if(suitable.containsKey(o.getId())) continue;
+			
+			if(ProvenanceClient.instance.canSee(user, o)) suitable.put(o.getId(), o);
+			else {
+				suitable.put(o.getId(), null);
+				hidden.add(o);
+			}
+		}
+		
+		List<PLUSObject> surrogates = DAGPipeline.resolveSurrogates(hidden, user);
+		for(int x=0; x<hidden.size(); x++) 
+			suitable.put(hidden.get(x).getId(), surrogates.get(x));
+	} // End resolveSuitableVersions
+	
 	/**
 	 * <p>Creates a new DAG, with configurable properties, and a full DAG fingerprint.
 	 * This method will call the surrogate algorithm and compute what the specified user is 
@@ -886,8 +1174,9 @@ public class Neo4JPLUSObjectFactory {
 		col.getFingerPrint().startTimer("sumAccessTime");
 		
 		// Build a Cypher query which will get all of the relevant nodes.
-		String query = buildQuery(oids, maxNodes, maxHops, true);
-		ExecutionResult result = Neo4JStorage.execute(query);
+		Map<String,Object> params = new HashMap<String,Object>();
+		String query = buildQuery(oids, maxNodes, maxHops, true, params);
+		ExecutionResult result = Neo4JStorage.execute(query, params);
 
 		// The result of the query...
 		Iterator<Node> nodes = result.columnAs("m");
@@ -911,11 +1200,12 @@ public class Neo4JPLUSObjectFactory {
 		chain.addIterator(startingPoints.iterator());
 		chain.addIterator(nodes);		
 		
+		MaterializationContext ctx = new MaterializationContext();
 		while(chain.hasNext()) {
 			Node n = (Node)chain.next();
 			
 			if(includeNodes && n.hasProperty(Neo4JStorage.PROP_PLUSOBJECT_ID)) {
-				PLUSObject o = Neo4JPLUSObjectFactory.newObject(n).getVersionSuitableFor(user);
+				PLUSObject o = Neo4JPLUSObjectFactory.newObject(n, ctx).getVersionSuitableFor(user);
 				if(o != null) { 
 					// log.info("Added node " + o.getId());
 					col.addNode(o);
@@ -969,15 +1259,8 @@ public class Neo4JPLUSObjectFactory {
 				col.tagNode(e.getTo(), LineageDAG.TAG_MORE_AVAILABLE, "true"); 
 		} // End for
 		
-		col = LineageDAG.computeEdgeVoting(col);   // Edge voting for surrogates
-		col = LineageDAG.traceTaintSources(col);   // Trace indirect taints from direct taints
-		col = LineageDAG.drawInferrableEdges(col); // Draw inferred edges based on surrogate alg.
-		col = LineageDAG.tagHeadAndFeet(col);
-				
-		List<PLUSEdge> danglers = LineageDAG.detectDanglers(col);
-		
-		if(danglers.size() > 0) 
-			log.warning("Collection " + col + " contains " + danglers.size() + " dangling edges."); 
+		// Edge voting, taint tracing, inferred edges, heads and feet, and danglers.
+		col = DAGPipeline.run(col);
 		
 		col.getFingerPrint().stopTimer("DiscoverCollection");
 		
@@ -988,19 +1271,11 @@ public class Neo4JPLUSObjectFactory {
 		return col;		
 	} // End newDAG
 		
-	/**
-	 * Takes a basic user-entered search term, and formats it as a regular expression suitable for name matching.
-	 * @param term
-	 * @return
-	 */
-	private static String formatRegex(String term) { 
-		if(term == null || term.trim().equals("")) return ".";
-		
-		// The first bit makes it case-insensitive in cypher.
-		return "(?i).*" + term.trim()
-			.replaceAll("\\s+", "\\s+")
-			.replaceAll("[:\\-\\+;\\[\\]\\{\\}\\(\\)]", ".") + ".*";			
-	} // End formatRegex
+	/** Tag given to each search result, holding its rank among all results, starting with 1. */
+	public static final String SEARCH_RANK_TAG = "searchRank";
+	
+	/** Tag given to each search result, holding its relevance score. */
+	public static final String SEARCH_SCORE_TAG = "searchScore";
 	
 	/**
 	 * Search for provenance objects by name.
@@ -1010,28 +1285,37 @@ public class Neo4JPLUSObjectFactory {
 	 */
 	public static ProvenanceCollection searchFor(String term, User user) { return searchFor(term, user, DEFAULT_SEARCH_RESULTS); }
 	
-	public static ProvenanceCollection searchFor(String term, User user, int max) {
-		String query = "match (n:Provenance) where n.name =~ {searchCriteria} return n order by n.created desc limit " + max;
-		
-		String expr = formatRegex(term);
-		log.fine("search expression=" + expr);
+	public static ProvenanceCollection searchFor(String term, User user, int max) { return searchFor(term, user, 0, max, false); }
+	
+	/**
+	 * Search for provenance objects using the full-text index.  Each word of the term must occur somewhere in an object's 
+	 * words, whole or in part.  Since collections are unordered, each result is tagged with its rank (SEARCH_RANK_TAG) 
+	 * and score (SEARCH_SCORE_TAG).
+	 * @param term a search term
+	 * @param user the user permitted to see the data
+	 * @param offset the number of results to skip, for paging
+	 * @param max the maximum number of results to return
+	 * @param includeMetadata if true, indexed metadata is searched as well as names.
+	 * @return a provenance collection containing the results, or null on error.
+	 * @see FullTextIndex
+	 */
+	public static ProvenanceCollection searchFor(String term, User user, int offset, int max, boolean includeMetadata) {
+		if(max <= 0) max = DEFAULT_SEARCH_RESULTS;
+		if(offset < 0) offset = 0;
 		
-		Map<String,Object>params = new HashMap<String,Object>();
-		params.put("searchCriteria", expr);
-				
 		ProvenanceCollection col = new ProvenanceCollection();
 		
 		try (Transaction tx = Neo4JStorage.beginTx()) {
-			ExecutionResult result = Neo4JStorage.execute(query, params);
-			Iterator<Node> nodes = result.columnAs("n");
-		
-			while(nodes.hasNext()) { 
-				Node n = nodes.next();
-	
+			MaterializationContext ctx = new MaterializationContext();
+			int rank = offset;
+			
+			for(FullTextIndex.Hit hit : FullTextIndex.search(term, !includeMetadata, offset, max)) {
 				try {
-					col.addNode(Neo4JPLUSObjectFactory.newObject(n));
+					PLUSObject o = Neo4JPLUSObjectFactory.newObject(hit.node, ctx);
+					col.addNode(o);
+					col.tagNode(o, SEARCH_RANK_TAG, "" + (++rank));
+					col.tagNode(o, SEARCH_SCORE_TAG, "" + hit.score);
 				} catch (PLUSException e) {
-					// TODO Auto-generated catch block
 					e.printStackTrace();
 					return null;
 				}
@@ -1054,20 +1338,15 @@ public class Neo4JPLUSObjectFactory {
 		}
 	}
 	
-	// BLING method appears to only retrieve one hop backward.  This recursive method retrieves all BLING.
+	/**
+	 * Retrieves all BLING (the full ancestry) of an object, with no limits.  An object that doesn't exist has none.
+	 * @see Neo4JPLUSObjectFactory#getFullLineage(String, User, String, int, int, long)
+	 */
 	public static ProvenanceCollection getFullBLING(String oid, User user) {
-		ProvenanceCollection col = new ProvenanceCollection();
 		try {
-			ProvenanceCollection additions = Neo4JPLUSObjectFactory.getIncidentEdges(Arrays.asList(new String[] { oid }), user, "bling", true, false);
-			col.addAll(additions);
-			Iterator<PLUSObject> nodeIt = additions.getNodesInOrderedList().iterator();
-			while (nodeIt.hasNext()) {
-				PLUSObject o = nodeIt.next();
-				if (!oid.equals(o.getId())) {
-					col.addAll(Neo4JPLUSObjectFactory.getFullBLING(o.getId() , user));
-				}
-			}
-			return col;
+			return getFullLineage(oid, user, "bling", -1, -1, -1);
+		} catch (DoesNotExistException e) {
+			return new ViewedCollection(user);
 		} catch (PLUSException e) {
 			e.printStackTrace();
 			return null;
@@ -1092,26 +1371,74 @@ public class Neo4JPLUSObjectFactory {
 		return null;
 	} // End getFLING
 	
-	// getFLING method appears to only retrieve one hop forward.  This recursive method retrieves all FLING.
+	/**
+	 * Retrieves all FLING (the full descendancy) of an object, with no limits.  An object that doesn't exist has none.
+	 * @see Neo4JPLUSObjectFactory#getFullLineage(String, User, String, int, int, long)
+	 */
 	public static ProvenanceCollection getFullFLING(String oid, User user) {
-		ProvenanceCollection col = new ProvenanceCollection();
 		try {
-			ProvenanceCollection additions = Neo4JPLUSObjectFactory.getIncidentEdges(Arrays.asList(new String[] { oid }), user, "fling", true, false);
-			col.addAll(additions);
-			Iterator<PLUSObject> nodeIt = additions.getNodesInOrderedList().iterator();
-			while (nodeIt.hasNext()) {
-				PLUSObject o = nodeIt.next();
-				if (!oid.equals(o.getId())) {
-					col.addAll(Neo4JPLUSObjectFactory.getFullFLING(o.getId() , user));
-				}
-			}
-			return col;
+			return getFullLineage(oid, user, "fling", -1, -1, -1);
+		} catch (DoesNotExistException e) {
+			return new ViewedCollection(user);
 		} catch (PLUSException e) {
 			e.printStackTrace();
 			return null;
 		}
 	} // End getFullFLING
 	
+	/** Metadata key set to "true" on a lineage collection when a budget stopped the traversal before it was complete. */
+	public static final String METADATA_LINEAGE_TRUNCATED = "lineage:truncated";
+	
+	/**
+	 * Retrieve the full ancestry or descendancy of an object, bounded by the given budgets.  
+	 * @param oid the object to start from
+	 * @param user the user viewing the lineage; objects they can't see are replaced by surrogates, or left out.
+	 * @param direction "bling" for ancestors, "fling" for descendants
+	 * @param maxDepth the maximum number of hops to go, or zero or less for no limit
+	 * @param maxNodes the maximum number of nodes to return, or zero or less for no limit
+	 * @param maxMillis the maximum time in milliseconds to spend, or zero or less for no limit
+	 * @return a collection for the user containing the starting object, its ancestors or descendants, and the edges between them.  
+	 * If a budget ran out, the collection's metadata will contain METADATA_LINEAGE_TRUNCATED=true.
+	 * @throws PLUSException
+	 * @see Neo4JPLUSObjectFactory#iterateFullLineage(String, User, String, int, int, long)
+	 */
+	public static ViewedCollection getFullLineage(String oid, User user, String direction, int maxDepth, int maxNodes, long maxMillis) throws PLUSException { 
+		ViewedCollection col = new ViewedCollection(user);
+		LineageIterator it = iterateFullLineage(oid, user, direction, maxDepth, maxNodes, maxMillis);
+		
+		try { 
+			while(it.hasNext()) { 
+				SourcedObject o = it.next();
+				if(o instanceof PLUSEdge) col.addEdge((PLUSEdge)o);
+				else col.addNode((PLUSObject)o);
+			}
+		} finally { 
+			it.close();
+		}
+		
+		if(it.isTruncated()) col.getMetadata().put(METADATA_LINEAGE_TRUNCATED, "true");
+		return col;
+	} // End getFullLineage
+	
+	/**
+	 * Stream the full ancestry or descendancy of an object, bounded by the given budgets.  This is a single traversal
+	 * in which each node is visited only once.  The iterator holds a transaction open until it is exhausted or closed.
+	 * @param oid the object to start from
+	 * @param user the user viewing the lineage; objects they can't see are replaced by surrogates, or left out.
+	 * @param direction "bling" for ancestors, "fling" for descendants
+	 * @param maxDepth the maximum number of hops to go, or zero or less for no limit
+	 * @param maxNodes the maximum number of nodes to return, or zero or less for no limit
+	 * @param maxMillis the maximum time in milliseconds to spend, or zero or less for no limit
+	 * @return an iterator over the objects and edges discovered.
+	 * @throws PLUSException if the object doesn't exist, or the direction is invalid.
+	 * @see LineageIterator
+	 */
+	public static LineageIterator iterateFullLineage(String oid, User user, String direction, int maxDepth, int maxNodes, long maxMillis) throws PLUSException { 
+		Node start = Neo4JStorage.oidExists(oid);
+		if(start == null) throw new DoesNotExistException(oid);
+		return new LineageIterator(start, user, direction, maxDepth, maxNodes, maxMillis);
+	} // End iterateFullLineage
+	
 	/**
 	 * Get the most recently created provenance objects.
 	 * @param user the user permitted to see the data
@@ -1119,37 +1446,90 @@ public class Neo4JPLUSObjectFactory {
 	 * @return a provenance collection containing the most recently created items.
 	 */
 	public static ProvenanceCollection getRecentlyCreated(User user, int max) {
+		RecencyIndex.Page<ProvenanceCollection> page = getCreated(user, 0, Long.MAX_VALUE, null, max);
+		return (page == null ? null : page.getItems());
+	} // End getRecentlyCreated
+	
+	/**
+	 * Get a page of provenance objects created in a time range, newest first.  These are found through the recency
+	 * index, so only the objects in the hours covered are read.
+	 * @param user the user permitted to see the data
+	 * @param from the earliest creation time included
+	 * @param to the creation time before which objects are included
+	 * @param before if not null, the cursor of the previous page; only older objects are returned.
+	 * @param max the maximum number of results to return
+	 * @return the page of objects; its cursor leads to the next.  Objects the user can't see are left out, so a page may 
+	 * hold fewer than max objects even when there are more to come.  Returns null on error.
+	 * @see RecencyIndex
+	 */
+	public static RecencyIndex.Page<ProvenanceCollection> getCreated(User user, long from, long to, RecencyIndex.Cursor before, int max) {
+		return getCreated(user, from, to, before, max, null);
+	} // End getCreated
+	
+	/**
+	 * Get a page of the newest provenance objects whose content has a hash.
+	 * @param user the user permitted to see the data
+	 * @param before if not null, the cursor of the previous page; only older objects are returned.
+	 * @param max the maximum number of results to return
+	 * @return the page of objects, or null on error.
+	 * @see #getCreated(User, long, long, RecencyIndex.Cursor, int)
+	 * @see Metadata#CONTENT_HASH_SHA_256
+	 */
+	public static RecencyIndex.Page<ProvenanceCollection> getRecentlyHashed(User user, RecencyIndex.Cursor before, int max) {
+		return getCreated(user, 0, Long.MAX_VALUE, before, max, "has(n.`" + ContentHashIndex.PROP_OBJECT_HASH + "`)");
+	} // End getRecentlyHashed
+	
+	/**
+	 * Get the provenance objects whose content has a given hash.  These are found through the schema index on the hash.
+	 * @param user the user permitted to see the data
+	 * @param hash the SHA-256 hash of the content
+	 * @param max the maximum number of results to return
+	 * @return the objects carrying the hash that the user may see.
+	 * @throws PLUSException
+	 * @see ContentHashIndex
+	 */
+	public static ProvenanceCollection getObjectsByContentHash(User user, String hash, int max) throws PLUSException {
+		if(max <= 0 || max > MAX_OBJECTS) max = MAX_OBJECTS;
+		
+		ViewedCollection col = new ViewedCollection(user);
+		
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			MaterializationContext ctx = new MaterializationContext();
+			for(Node n : ContentHashIndex.findObjects(hash, max)) col.addNode(newObject(n, ctx));
+			
+			tx.success();
+		}
+		
+		return col;
+	} // End getObjectsByContentHash
+	
+	private static RecencyIndex.Page<ProvenanceCollection> getCreated(User user, long from, long to, RecencyIndex.Cursor before, int max, String condition) {
 		if(max <= 0) max = 20;
 		if(max > MAX_OBJECTS) {
 			log.warning("Maximum objects that can be returned is " + MAX_OBJECTS + " not " + max); 
 			max = MAX_OBJECTS;
 		}
 		
-		String query = "match (n:" + Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE).name() + ") " +
-				       "return n " + 
-	                   "order by n.created desc " + 
-	                   "limit " + max;
-				
 		ViewedCollection col = new ViewedCollection(user);		
 
 		try (Transaction tx = Neo4JStorage.beginTx()) {
-			ExecutionResult result = Neo4JStorage.execute(query);
-			ResourceIterator<Node> nodes = result.columnAs("n");
+			List<Node> nodes = RecencyIndex.findNodes(from, to, before, max, condition);
+			MaterializationContext ctx = new MaterializationContext();
 			
-			while(nodes.hasNext()) { 
-				Node n = nodes.next();
+			for(Node n : nodes) { 
 				try {
-					col.addNode(newObject(n));
+					col.addNode(newObject(n, ctx));
 				} catch (PLUSException e) {
 					log.severe("Failed to add node: " + e.getMessage());
 					e.printStackTrace();
-					
-					nodes.close();					
 					return null;
 				} // End catch
-			} // End while
-		
-			nodes.close();
+			} // End for
+			
+			// The cursor comes from the last node read, not the last one the user can see, so that paging moves on
+			// past objects the user isn't allowed to see.
+			RecencyIndex.Cursor next = (nodes.size() < max ? null : 
+				RecencyIndex.cursorAfter(nodes.get(nodes.size() - 1), Neo4JStorage.PROP_PLUSOBJECT_ID));
 			
 			// TODO
 			// In Neo4J 2.0.1, tx.success() sometimes causes a failed transaction exception due to "unable to commit".
@@ -1159,12 +1539,9 @@ public class Neo4JPLUSObjectFactory {
 			// This is *not* the right thing to do, but it works for now until neo4j addresses the issue.			
 			// tx.success();
 			
-			return col;
-		} //catch(TransactionFailureException exc) { 
-		//	log.severe("Failed transaction on get most recent: " + exc.getMessage()); 
-		//	return col; 
-		//}  
-	}	
+			return new RecencyIndex.Page<ProvenanceCollection>(col, next);
+		} 
+	} // End getCreated
 	
 	/**
 	 * Mark an object as "tainted". This creates a new Taint object and links
@@ -1235,21 +1612,21 @@ public class Neo4JPLUSObjectFactory {
 	public static ProvenanceCollection getIndirectTaintSources(PLUSObject obj, User user) throws PLUSException { 
 		ViewedCollection pc = new ViewedCollection(user);
 
-		String query = "start n=node:node_auto_index(oid={oid}) " + 
-		               "match taintNode-[r1:marks]->intermediates-[r:contributed|`input to`|unspecified|triggered|generated*]->n " +
+		String query = "match taintNode-[r1:marks]->intermediates-[r:contributed|`input to`|unspecified|triggered|generated*]->" + 
+		               "(n:" + Neo4JStorage.LABEL_NAME_NODE + " {oid: {oid}}) " +
 				       "where has(taintNode.subtype) and " +  
-		               "taintNode.subtype = '" + Taint.PLUS_SUBTYPE_TAINT + "' " + 
+		               "taintNode.subtype = {subtype} " + 
 				       "return taintNode limit 50";
 
 		Map<String,Object> params = new HashMap<String,Object>();
 		params.put("oid", obj.getId());
-		
-		Neo4JStorage.execute(query, params); 
+		params.put("subtype", Taint.PLUS_SUBTYPE_TAINT);
 		
 		ExecutionResult result = Neo4JStorage.execute(query, params);
 		Iterator<Node> ns = result.columnAs("taintNode");
 
-		while(ns.hasNext()) pc.addNode(Neo4JPLUSObjectFactory.newObject(ns.next()));		
+		MaterializationContext ctx = new MaterializationContext();
+		while(ns.hasNext()) pc.addNode(Neo4JPLUSObjectFactory.newObject(ns.next(), ctx));		
 		
 		return pc;
 	} // End traceRemoteTaintSources
@@ -1321,20 +1698,29 @@ public class Neo4JPLUSObjectFactory {
 	 * @throws PLUSException 
 	 */
 	public static ProvenanceCollection extractCollection(ExecutionResult er, User viewer) throws PLUSException { 
+		return extractCollection(er, viewer, new MaterializationContext());
+	}
+	
+	/**
+	 * Extract a collection from a cypher result, building objects within the given context.  Queries that return the
+	 * same node in many rows or columns will only have it built once.
+	 * @see Neo4JPLUSObjectFactory#extractCollection(ExecutionResult, User)
+	 */
+	public static ProvenanceCollection extractCollection(ExecutionResult er, User viewer, MaterializationContext ctx) throws PLUSException { 
 		ViewedCollection col = new ViewedCollection(viewer);
 		
 		for(Map<String,Object> row : er) { 
 			for(String k : row.keySet()) {
 				Object val = row.get(k);
 				if(val instanceof Node) {
-					Object t = transmogrify((Node)val);
+					Object t = transmogrify((Node)val, ctx);
 					
 					if(t == null) continue;
 					if(t instanceof PLUSObject) col.addNode((PLUSObject)t); 
 					else if(t instanceof PLUSActor) col.addActor((PLUSActor)t); 
 					else if(t instanceof NonProvenanceEdge) col.addNonProvenanceEdge((NonProvenanceEdge)t); 
 				} else if(val instanceof Relationship) { 
-					Object t = transmogrify((Relationship)val);
+					Object t = transmogrify((Relationship)val, ctx);
 
 					if(t == null) continue;
 					else if(t instanceof PLUSEdge) col.addEdge((PLUSEdge)t);
@@ -1344,7 +1730,7 @@ public class Neo4JPLUSObjectFactory {
 					
 					if(p.length() == 0) {
 						for(Node n : p.nodes()) {
-							Object t = transmogrify(n);
+							Object t = transmogrify(n, ctx);
 							
 							if(t == null) continue;
 							if(t instanceof PLUSObject) col.addNode((PLUSObject)t); 
@@ -1353,7 +1739,7 @@ public class Neo4JPLUSObjectFactory {
 						}
 					} else { 					
 						for(Relationship r : p.relationships()) { 
-							Object t = transmogrify(r);
+							Object t = transmogrify(r, ctx);
 							if(t == null) continue;
 							else if(t instanceof PLUSEdge) col.addEdge((PLUSEdge)t); 
 							else if(t instanceof NonProvenanceEdge) col.addNonProvenanceEdge((NonProvenanceEdge)t); 						
@@ -1363,6 +1749,7 @@ public class Neo4JPLUSObjectFactory {
 			}
 		}
 		
+		log.fine("extractCollection: " + ctx);
 		return col;
 	} // End extractCollection
 	
@@ -1383,10 +1770,18 @@ public class Neo4JPLUSObjectFactory {
 	 * @throws PLUSException
 	 */
 	protected static Object transmogrify(Node n) throws PLUSException { 
+		return transmogrify(n, new MaterializationContext());
+	}
+	
+	/**
+	 * Same as transmogrify(n), reusing any objects already built in the given context.
+	 * @see Neo4JPLUSObjectFactory#transmogrify(Node)
+	 */
+	protected static Object transmogrify(Node n, MaterializationContext ctx) throws PLUSException { 
 		if(n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE))) {
-			return newObject(n);
+			return newObject(n, ctx);
 		} else if(n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.ACTOR))) {
-			return newActor(n); 
+			return newActor(n, ctx); 
 		} else if(n.hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NONPROV))) {
 			Iterator<Relationship> rels = n.getRelationships(Direction.INCOMING, Neo4JStorage.NPE).iterator();						
 			if(rels.hasNext()) return newNonProvenanceEdge(rels.next());
@@ -1402,8 +1797,16 @@ public class Neo4JPLUSObjectFactory {
 	 * @throws PLUSException
 	 */
 	protected static Object transmogrify(Relationship r) throws PLUSException { 
+		return transmogrify(r, new MaterializationContext());
+	}
+	
+	/**
+	 * Same as transmogrify(r), reusing any endpoint objects already built in the given context.
+	 * @see Neo4JPLUSObjectFactory#transmogrify(Relationship)
+	 */
+	protected static Object transmogrify(Relationship r, MaterializationContext ctx) throws PLUSException { 
 		if(r.getStartNode().hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE)) && r.getEndNode().hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE)))					
-			return newEdge(r);
+			return newEdge(r, ctx);
 		else if(r.getStartNode().hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE)) && r.getEndNode().hasLabel(Neo4JStorage.getLabel(Neo4JStorage.LabelType.NONPROV))) {
 			return newNonProvenanceEdge(r); 
 		} else { 
@@ -17,11 +17,13 @@ package org.mitre.provenance.db.neo4j;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.mitre.provenance.Metadata;
@@ -35,8 +37,9 @@ import org.mitre.provenance.plusobject.PLUSEdge;
 import org.mitre.provenance.plusobject.PLUSObject;
 import org.mitre.provenance.plusobject.PLUSWorkflow;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.surrogate.SurrogateCache;
 import org.mitre.provenance.surrogate.SurrogateGeneratingFunction;
-import org.mitre.provenance.tools.LRUCache;
+import org.mitre.provenance.tools.ConcurrentLRUCache;
 import org.mitre.provenance.tools.PLUSUtils;
 import org.mitre.provenance.user.PrivilegeClass;
 import org.mitre.provenance.user.PrivilegeSet;
@@ -49,14 +52,19 @@ import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
-import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.graphdb.index.IndexManager;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 
 /**
@@ -135,12 +143,104 @@ public class Neo4JStorage {
 	/** Property that indicates name */
 	public static final String PROP_NAME = "name";
 	
+	/** 
+	 * Node properties that were automatically indexed in node_auto_index.  Nodes are now found through the schema 
+	 * indexes in UNIQUE_KEYS and INDEXED_KEYS instead, and the auto-index is only kept up to date if LEGACY_NODE_INDEX is set.
+	 */
+	public static final String NODE_KEYS_INDEXABLE = "oid,npid,type,subtype,name,aid,pid";
+	
+	/** 
+	 * If true, node properties are still written to node_auto_index as well as the schema indexes, so that the store 
+	 * can be opened by older versions.  Nothing reads that index any more.  Set with -Dplus.neo4j.legacyNodeIndex=true.
+	 */
+	public static final boolean LEGACY_NODE_INDEX = Boolean.getBoolean("plus.neo4j.legacyNodeIndex");
+	
+	/** Property holding the hour an object or NPE was created in, for the recency index */
+	public static final String PROP_CREATED_BUCKET = "createdBucket";
+	
+	/** Relationship properties that are automatically indexed in relationship_auto_index */
+	public static final String RELATIONSHIP_KEYS_INDEXABLE = "workflow,npeid," + PROP_CREATED_BUCKET;
+	
+	/** Name of the label affixed to all provenance object nodes */
+	public static final String LABEL_NAME_NODE = "Provenance";
+	
+	/** Name of the label affixed to all PLUSActor nodes */
+	public static final String LABEL_NAME_ACTOR = "Actor";
+	
+	/** Name of the label affixed to all PrivilegeClass nodes */
+	public static final String LABEL_NAME_PRIVCLASS = "PrivilegeClass";
+	
+	/** Name of the label affixed to all non provenance ID nodes */
+	public static final String LABEL_NAME_NONPROV = "NonProvenance";
+	
+	/** Name of the label of the nodes marking which recency buckets are in use */
+	public static final String LABEL_NAME_BUCKET = "RecencyBucket";
+	
+	/** Name of the label of the nodes counting the objects that share each content hash */
+	public static final String LABEL_NAME_HASH = "ContentHash";
+	
+	/** Name of the label added to content hash nodes shared by more than one object */
+	public static final String LABEL_NAME_DUPLICATE = "DuplicateContent";
+	
+	/** Name of the label of the nodes recording which metadata indexes are declared */
+	public static final String LABEL_NAME_METADATA_INDEX = "MetadataIndex";
+	
+	/** Label and property pairs that are unique; each uniqueness constraint is backed by a schema index. */
+	public static final String [][] UNIQUE_KEYS = new String [][] {
+		{ LABEL_NAME_NODE, PROP_PLUSOBJECT_ID }, 
+		{ LABEL_NAME_ACTOR, PROP_ACTOR_ID }, 
+		{ LABEL_NAME_PRIVCLASS, PROP_PRIVILEGE_ID }, 
+		{ LABEL_NAME_NONPROV, PROP_NONPROV_ID },
+		{ LABEL_NAME_BUCKET, RecencyIndex.PROP_KEY },
+		{ LABEL_NAME_HASH, ContentHashIndex.PROP_HASH },
+		{ LABEL_NAME_METADATA_INDEX, MetadataIndex.PROP_KEYS }
+	};
+	
+	/** Label and property pairs with a schema index, for properties that aren't unique. */
+	public static final String [][] INDEXED_KEYS = new String [][] { 
+		{ LABEL_NAME_NODE, PROP_TYPE },
+		{ LABEL_NAME_NODE, PROP_SUBTYPE }, 
+		{ LABEL_NAME_NODE, PROP_NAME },
+		{ LABEL_NAME_NODE, PROP_CREATED_BUCKET },
+		{ LABEL_NAME_NODE, ContentHashIndex.PROP_OBJECT_HASH },
+		{ LABEL_NAME_ACTOR, PROP_NAME },
+		{ LABEL_NAME_PRIVCLASS, PROP_NAME }
+	};
+	
 	/** Maximum path link that will be traversed as part of cypher queries */
 	public static final int MAX_PATH_LENGTH = 100;
 
 	/** Reference to the Neo4J Graph Database service */
 	protected static GraphDatabaseService db = null;	
 	
+	/** 
+	 * Shared cypher engine.  The engine keeps its own cache of parsed and planned queries, so it must live as long
+	 * as the database does; creating one per query throws that cache away.
+	 */
+	protected static ExecutionEngine engine = null;
+	
+	/** Number of entries the engine's plan cache holds; this is the neo4j default for query_cache_size. */
+	public static final int QUERY_CACHE_SIZE = 1000;
+	
+	/** 
+	 * The query texts most recently executed, as many as the engine's plan cache holds.  This doesn't look inside the 
+	 * engine; it only counts how often the same text is executed again, which is when the engine can reuse a plan.
+	 */
+	private static final ConcurrentLRUCache<String,Boolean> recentQueries = new ConcurrentLRUCache<String,Boolean>(QUERY_CACHE_SIZE);
+	
+	/** Number of external identifiers whose node ids are remembered */
+	public static final int NODE_ID_CACHE_SIZE = 50000;
+	
+	/** 
+	 * Maps external identifiers (oid, npid, pid, aid) to the ids of the nodes that hold them, so that existence checks
+	 * don't need to go to the index.  Keys are the identifier property name, a colon, and the identifier.
+	 * @see Neo4JStorage#cachedNode(String, String)
+	 */
+	private static final ConcurrentLRUCache<String,Long> nodeIds = new ConcurrentLRUCache<String,Long>(NODE_ID_CACHE_SIZE);
+	
+	/** In-memory copy of the privilege class lattice, used to answer dominance checks without a query. */
+	protected static final PrivilegeLattice lattice = new PrivilegeLattice();
+	
 	/** Label affixed to all provenance object nodes */
 	private static Label LABEL_NODE = null;
 	
@@ -188,7 +288,8 @@ public class Neo4JStorage {
 		// This simple statement causes several pieces of privilege information to be written.
 		// assertDominates(PrivilegeClass.ADMIN, PrivilegeClass.PUBLIC);
 		
-		setupConstraints();
+		// The schema was set up by initialize(); wait for it, so that the objects stored next are found by index.
+		awaitSchema(60);
 
 		// Store basics that should always be there.
 		store(PLUSWorkflow.DEFAULT_WORKFLOW);
@@ -210,49 +311,129 @@ public class Neo4JStorage {
 	 * @throws PLUSException
 	 */
 	protected static void createPrivilegeClassLattice() throws PLUSException { 	
+		for(PrivilegeClass [] pair : defaultPrivilegeLattice()) 
+			Neo4JStorage.assertDominates(pair[0], pair[1]);
+	} // End createLattice
+	
+	/**
+	 * @return the domination relationships every new database starts with, as pairs where the first class dominates the second.
+	 */
+	public static List<PrivilegeClass[]> defaultPrivilegeLattice() { 
+		List<PrivilegeClass[]> pairs = new ArrayList<PrivilegeClass[]>();
+		
 		PrivilegeClass[] levels = new  PrivilegeClass[10];
 		for(int x=1; x<=10; x++) levels[x-1] = new PrivilegeClass(x);
 		
-		Neo4JStorage.assertDominates(PrivilegeClass.ADMIN, PrivilegeClass.NATIONAL_SECURITY);
-		Neo4JStorage.assertDominates(PrivilegeClass.NATIONAL_SECURITY, PrivilegeClass.EMERGENCY_HIGH);
-		Neo4JStorage.assertDominates(PrivilegeClass.EMERGENCY_HIGH, PrivilegeClass.EMERGENCY_LOW);
-		Neo4JStorage.assertDominates(PrivilegeClass.ADMIN, PrivilegeClass.PRIVATE_MEDICAL);
-		Neo4JStorage.assertDominates(PrivilegeClass.PRIVATE_MEDICAL, PrivilegeClass.PUBLIC);
-		Neo4JStorage.assertDominates(PrivilegeClass.EMERGENCY_LOW, PrivilegeClass.PUBLIC);
-		Neo4JStorage.assertDominates(PrivilegeClass.NATIONAL_SECURITY, PrivilegeClass.PUBLIC);
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.ADMIN, PrivilegeClass.NATIONAL_SECURITY });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.NATIONAL_SECURITY, PrivilegeClass.EMERGENCY_HIGH });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.EMERGENCY_HIGH, PrivilegeClass.EMERGENCY_LOW });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.ADMIN, PrivilegeClass.PRIVATE_MEDICAL });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.PRIVATE_MEDICAL, PrivilegeClass.PUBLIC });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.EMERGENCY_LOW, PrivilegeClass.PUBLIC });
+		pairs.add(new PrivilegeClass[] { PrivilegeClass.NATIONAL_SECURITY, PrivilegeClass.PUBLIC });
 		
 		for(int x=10; x>0; x--) { 
-			if(x >= 2) Neo4JStorage.assertDominates(levels[x-1], levels[x-2]);
+			if(x >= 2) pairs.add(new PrivilegeClass[] { levels[x-1], levels[x-2] });
 		}
-	} // End createLattice
+		
+		return pairs;
+	} // End defaultPrivilegeLattice
 	
 	/**
-	 * Called as part of the one-time setup of a database; establishes new constraints on data that will be created.
+	 * Create whichever of the uniqueness constraints in UNIQUE_KEYS and schema indexes in INDEXED_KEYS the database 
+	 * doesn't have yet.  This is run every time the database is opened, so stores created before an index was added 
+	 * get it without any other migration step.  New indexes are populated in the background; until they are online, 
+	 * lookups still return the right answer, but scan the label to find it.
+	 * @return the number of constraints and indexes created.
+	 * @see SchemaMigration
 	 */
-	private static void setupConstraints() {
-		String [] setupConstraints = new String [] {
-				"CREATE CONSTRAINT ON (node:" + LABEL_NODE.name() + ") ASSERT node." + PROP_PLUSOBJECT_ID + " IS UNIQUE",
-				"CREATE CONSTRAINT ON (actor:" + LABEL_ACTOR.name() + ") ASSERT actor." + PROP_ACTOR_ID + " IS UNIQUE",
-				"CREATE CONSTRAINT ON (pc:" + LABEL_PRIVCLASS.name() + ") ASSERT pc." + PROP_PRIVILEGE_ID + " IS UNIQUE",
-				"CREATE CONSTRAINT ON (npid:" + LABEL_NONPROV.name() + ") ASSERT npid." + PROP_NONPROV_ID + " IS UNIQUE"
-		};
-
+	public static int ensureSchema() {
+		if(db == null) initialize();
+		int created = 0;
+		
+		for(String [] key : UNIQUE_KEYS) {
+			Label label = DynamicLabel.label(key[0]);
+			
+			// Each change gets its own transaction, so that one failure (e.g. existing duplicates) doesn't stop the rest.
+			try (Transaction tx = db.beginTx()) {
+				if(findConstraint(db.schema(), label, key[1]) == null) {
+					log.info("Creating uniqueness constraint on :" + key[0] + "(" + key[1] + ")");
+					db.schema().constraintFor(label).assertPropertyIsUnique(key[1]).create();
+					created++;
+				}
+				
+				tx.success();
+			} catch(Exception exc) { 
+				log.severe("Unable to create uniqueness constraint on :" + key[0] + "(" + key[1] + "): " + exc.getMessage());
+			}
+		}
+		
+		for(String [] key : INDEXED_KEYS) { 
+			if(ensureIndex(key[0], key[1])) created++;
+		}
+		
+		return created;
+	} // End ensureSchema
+	
+	/**
+	 * Create a schema index, unless the database already has it.
+	 * @param labelName the label indexed
+	 * @param prop the property indexed
+	 * @return true if the index was created.
+	 */
+	static boolean ensureIndex(String labelName, String prop) { 
+		Label label = DynamicLabel.label(labelName);
+		
 		try (Transaction tx = db.beginTx()) {
-			for(String cypherConstraintQuery : setupConstraints) {
-				log.info(cypherConstraintQuery);
-				ExecutionResult r = execute(cypherConstraintQuery);				
-				for(String col : r.columns()) {
-					ResourceIterator<Object> it = r.columnAs(col);
-					while(it.hasNext())
-						System.out.println(it.next());
-					it.close();
-				}				
+			boolean create = (findIndex(db.schema(), label, prop) == null);
+			if(create) { 
+				log.info("Creating schema index on :" + labelName + "(" + prop + ")");
+				db.schema().indexFor(label).on(prop).create();
 			}
-
+			
+			tx.success();
+			return create;
+		} catch(Exception exc) { 
+			log.severe("Unable to create schema index on :" + labelName + "(" + prop + "): " + exc.getMessage());
+			return false;
+		}
+	} // End ensureIndex
+	
+	/** @return the uniqueness constraint on a label and property, or null if there is none.  Must be called within a transaction. */
+	protected static ConstraintDefinition findConstraint(Schema schema, Label label, String prop) { 
+		for(ConstraintDefinition cd : schema.getConstraints(label)) { 
+			for(String k : cd.getPropertyKeys()) if(prop.equals(k)) return cd;
+		}
+		
+		return null;
+	} // End findConstraint
+	
+	/** @return the schema index on a label and property, or null if there is none.  Must be called within a transaction. */
+	protected static IndexDefinition findIndex(Schema schema, Label label, String prop) { 
+		for(IndexDefinition id : schema.getIndexes(label)) { 
+			for(String k : id.getPropertyKeys()) if(prop.equals(k)) return id;
+		}
+		
+		return null;
+	} // End findIndex
+	
+	/**
+	 * Wait for every schema index to finish populating.
+	 * @param seconds the longest to wait
+	 * @return true if they are all online, false if the wait timed out or an index failed.
+	 */
+	public static boolean awaitSchema(long seconds) { 
+		if(db == null) initialize();
+		
+		try (Transaction tx = db.beginTx()) { 
+			db.schema().awaitIndexesOnline(seconds, TimeUnit.SECONDS);
 			tx.success();
+			return true;
+		} catch(IllegalStateException exc) { 
+			log.warning("Schema indexes not online after " + seconds + "s: " + exc.getMessage());
+			return false;
 		}
-		return;
-	} // End setupConstraints
+	} // End awaitSchema
 	
 	/**
 	 * Initializes the database, sets up auto-indexing of various properties, and calls one-time setup
@@ -265,34 +446,41 @@ public class Neo4JStorage {
 			return;
 		}
 		
-		File storageLoc = null;
-		
-		if(System.getenv("PROVENANCE_DB_LOCATION") != null) {
-			storageLoc = new File(System.getenv("PROVENANCE_DB_LOCATION"));
-		} else {		
-			storageLoc = new File(System.getProperty("user.home"), "provenance.db");
-		}
+		File storageLoc = getStorageLocation();
 		
 		if(storageLoc.exists())
 			log.fine("Opening existing Neo4J Embedded Database at " + storageLoc.getAbsolutePath());
 		else
 			log.fine("Creating new Neo4J Embedded Database at " + storageLoc.getAbsolutePath());
 		
-		db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(storageLoc.getAbsolutePath()).	
-			    setConfig(GraphDatabaseSettings.node_keys_indexable, "oid,npid,type,subtype,name,aid,pid" ).
-			    setConfig(GraphDatabaseSettings.relationship_keys_indexable, "workflow,npeid" ).
-			    setConfig(GraphDatabaseSettings.node_auto_indexing, "true").
-			    setConfig(GraphDatabaseSettings.relationship_auto_indexing, "true").
-			    newGraphDatabase();
+		// Relationships can't have schema indexes, so their properties are still auto-indexed.
+		GraphDatabaseBuilder builder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(storageLoc.getAbsolutePath()).	
+			    setConfig(GraphDatabaseSettings.relationship_keys_indexable, RELATIONSHIP_KEYS_INDEXABLE ).
+			    setConfig(GraphDatabaseSettings.relationship_auto_indexing, "true");
+		
+		if(LEGACY_NODE_INDEX) 
+			builder.setConfig(GraphDatabaseSettings.node_keys_indexable, NODE_KEYS_INDEXABLE ).
+			        setConfig(GraphDatabaseSettings.node_auto_indexing, "true");
+		
+		db = builder.newGraphDatabase();
+		
+		engine = new ExecutionEngine(db);
+		db.registerTransactionEventHandler(new LatticeCommitHandler());
 				
 		registerShutdownHook(); 
 	
-		assert(db.index().getNodeAutoIndexer().isEnabled());
 		assert(db.index().getRelationshipAutoIndexer().isEnabled());
 	
 		initLabels();
+		ensureSchema();
+		RecencyIndex.load();
+		FullTextIndex.load();
+		ContentHashIndex.load();
+		MetadataIndex.load();
 		
 		try { 
+			loadPrivilegeLattice();
+			
 			// Check to see if anything is in the database.  The default workflow should
 			// always be there.
 			Node n = Neo4JStorage.oidExists(PLUSWorkflow.DEFAULT_WORKFLOW.getId());
@@ -302,22 +490,62 @@ public class Neo4JStorage {
 		} catch(Exception exc) { exc.printStackTrace(); }
 	} // End doSetup
 	
+	/**
+	 * @return the directory holding the database: the value of the plus.neo4j.location system property if it is set, then
+	 * the PROVENANCE_DB_LOCATION environment variable if it is set, or provenance.db in the user's home directory otherwise.
+	 * It is read each time the database is initialized.
+	 */
+	public static File getStorageLocation() { 
+		if(System.getProperty("plus.neo4j.location") != null) 
+			return new File(System.getProperty("plus.neo4j.location"));
+		
+		if(System.getenv("PROVENANCE_DB_LOCATION") != null) 
+			return new File(System.getenv("PROVENANCE_DB_LOCATION"));
+		
+		return new File(System.getProperty("user.home"), "provenance.db");
+	} // End getStorageLocation
+	
 	/** Initializes labels used for storage
 	 * @see #Neo4JStorage{@link #LABEL_NODE}
 	 */
 	private static void initLabels() {
 		// log.info("Initializing labels.");
 		try (Transaction tx = db.beginTx()) {
-			LABEL_NODE = DynamicLabel.label("Provenance");
-			LABEL_ACTOR = DynamicLabel.label("Actor");
-			LABEL_PRIVCLASS = DynamicLabel.label("PrivilegeClass");
-			LABEL_NONPROV = DynamicLabel.label("NonProvenance");
+			LABEL_NODE = DynamicLabel.label(LABEL_NAME_NODE);
+			LABEL_ACTOR = DynamicLabel.label(LABEL_NAME_ACTOR);
+			LABEL_PRIVCLASS = DynamicLabel.label(LABEL_NAME_PRIVCLASS);
+			LABEL_NONPROV = DynamicLabel.label(LABEL_NAME_NONPROV);
 			tx.success();
 			
 			// log.info("LABEL_NODE=" + LABEL_NODE);
 		}		
 	}
 	
+	/**
+	 * Loads all privilege classes and the domination relationships between them into the in-memory lattice.
+	 * @see PrivilegeLattice
+	 */
+	private static void loadPrivilegeLattice() { 
+		lattice.clear();
+		
+		String classQuery = "match (n:" + LABEL_PRIVCLASS.name() + ") return n.pid as pid";
+		String domQuery = "match (a:" + LABEL_PRIVCLASS.name() + ")-[:" + DOMINATES.name() + "]->(b:" + LABEL_PRIVCLASS.name() + ") " + 
+		                  "return a.pid as a, b.pid as b";
+		
+		try (Transaction tx = db.beginTx()) {
+			ResourceIterator<Object> pids = execute(classQuery).columnAs("pid");
+			while(pids.hasNext()) lattice.addClass(""+pids.next());
+			pids.close();
+			
+			for(Map<String,Object> row : execute(domQuery)) 
+				lattice.addDominates(""+row.get("a"), ""+row.get("b"));
+			
+			tx.success();
+		}
+		
+		log.fine("Loaded privilege lattice with " + lattice.size() + " classes.");
+	} // End loadPrivilegeLattice
+	
 	/**
 	 * Shuts down the database; use of Neo4JStorage after this call results in undefined results.
 	 */
@@ -326,6 +554,10 @@ public class Neo4JStorage {
 			if(db != null) {
 				db.shutdown();
 				db = null;
+				engine = null;
+				
+				recentQueries.clear();
+				nodeIds.clear();
 			} else {
 				log.severe("Shutdown failed: db was not initiatlized."); 
 			}
@@ -358,19 +590,16 @@ public class Neo4JStorage {
 	public static Node getNPID(String npid, boolean create) {
 		if(db == null) initialize();
 		
+		Node n = npidExists(npid);
+		if(n != null) return n;
+		
 		try(Transaction tx = db.beginTx()) {
-			Node n = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_NONPROV_ID, npid).getSingle();
-			
-			if(n != null) { 
-				tx.success(); 
-				return n; 
-			}
-			
 			if(create) { 
 				n = db.createNode();
 				n.setProperty(PROP_NONPROV_ID, npid);
 				n.addLabel(LABEL_NONPROV);
 				tx.success();
+				cacheNode(PROP_NONPROV_ID, npid, n);
 				return n;
 			}  
 			
@@ -394,10 +623,11 @@ public class Neo4JStorage {
 		ProvenanceCollection col = new ProvenanceCollection();
 		
 		Node n = exists(actor);
+		MaterializationContext ctx = new MaterializationContext();
 		
 		for(Relationship r : n.getRelationships(Direction.OUTGOING, OWNS)) {
 			if(isPLUSObjectNode(r.getEndNode()))
-				col.addNode(Neo4JPLUSObjectFactory.newObject(r.getEndNode()));
+				col.addNode(Neo4JPLUSObjectFactory.newObject(r.getEndNode(), ctx));
 		}
 		
 		log.info(col.countNodes() + " nodes owned by " + actor);
@@ -449,12 +679,15 @@ public class Neo4JStorage {
 		        "where has(n.aid) " +  // TODO this portion of the query looks redundant; consider removing/testing 
                 "return n " + 
 		        "order by n.name desc " + 
-		        "limit " + maxNumber;
+		        "limit {max}";
+		
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", maxNumber);
 
 		ProvenanceCollection col = new ProvenanceCollection();
 		
 		try (Transaction tx = db.beginTx()) { 
-			ExecutionResult result = Neo4JStorage.execute(query);
+			ExecutionResult result = Neo4JStorage.execute(query, params);
 			ResourceIterator<Node> ns = result.columnAs("n");
 						
 			while(ns.hasNext()) {
@@ -498,8 +731,8 @@ public class Neo4JStorage {
 		if(db == null) initialize();
 		
 		try (Transaction tx = db.beginTx()) { 
-			Node f = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PLUSOBJECT_ID, edge.getFrom()).getSingle();
-			Node t = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PLUSOBJECT_ID, edge.getTo()).getSingle();
+			Node f = oidExists(edge.getFrom().getId());
+			Node t = oidExists(edge.getTo().getId());
 			
 			if(f == null) return false;
 			if(t == null) return false; 
@@ -533,6 +766,7 @@ public class Neo4JStorage {
 
 		Map<String,Object>params = new HashMap<String,Object>();
 		params.put("wf", wf.getId());
+		params.put("max", maximum);
 
 		/*
 		 * TODO
@@ -541,18 +775,20 @@ public class Neo4JStorage {
 		 */
 		String query = "start r=relationship:relationship_auto_index(workflow={wf}) " +                 
 			    "return r " +
-				"limit " + maximum;
+				"limit {max}";
 		
 		try (Transaction tx = db.beginTx()) { 		
 			ResourceIterator<Relationship> rs = Neo4JStorage.execute(query, params).columnAs("r");		
+			MaterializationContext ctx = new MaterializationContext();
 			
 			try { 
 				while(rs.hasNext()) { 
 					Relationship r = rs.next();
-								
-					d.addNode(Neo4JPLUSObjectFactory.newObject(r.getStartNode()));
-					d.addNode(Neo4JPLUSObjectFactory.newObject(r.getEndNode()));
-					d.addEdge(Neo4JPLUSObjectFactory.newEdge(r));			
+					
+					// Endpoints built here are reused by newEdge below, and by later edges sharing them.
+					d.addNode(Neo4JPLUSObjectFactory.newObject(r.getStartNode(), ctx));
+					d.addNode(Neo4JPLUSObjectFactory.newObject(r.getEndNode(), ctx));
+					d.addEdge(Neo4JPLUSObjectFactory.newEdge(r, ctx));			
 				}
 			} catch(PLUSException exc) {
 				exc.printStackTrace();
@@ -578,7 +814,7 @@ public class Neo4JStorage {
 	
 	/**
 	 * One privilege class dominates another when it is at an equal or higher level of security.  All classes
-	 * trivially dominate themselves.
+	 * trivially dominate themselves.  This is answered from the in-memory lattice, and does not touch the database.
 	 * @param one the class to use as a basis.
 	 * @param other the class to compare against.
 	 * @return true if one object dominates other, false otherwise.
@@ -587,27 +823,18 @@ public class Neo4JStorage {
 	public static boolean dominates(PrivilegeClass one, PrivilegeClass other) throws PLUSException {
 		if(one.equals(other)) return true;   // Every class trivially dominates itself.
 		if(PrivilegeClass.ADMIN.equals(one)) return true; // ADMIN dominates everything.
-
-		String query = "start n=node:node_auto_index(pid=\"" + one.getId() + "\") " + 
-                "match n-[r:" + Neo4JStorage.DOMINATES.name() + "*..100]->m " +   
-		        "where has(m.pid) and m.pid = \"" + other.getId() + "\" " + 
-                "return m ";
 		
-		try(Transaction tx = Neo4JStorage.beginTx()) { 
-			PrivilegeClass pc = Neo4JPLUSObjectFactory.newPrivilegeClass((Node)Neo4JStorage.execute(query).columnAs("m").next());
-			tx.success();
-			if(pc.getName().equals(other.getName())) return true;
-			throw new PLUSException("Inconsistency:  " + pc.getName() + " vs " + other.getName());
-		} catch(NoSuchElementException nse) {
-			// This happens when no element was returned by the query, i.e. this privilege class doesn't dominate the other.
-			return false;
-		} catch(Exception exc) { 
-			log.severe(exc.getMessage());
-			exc.printStackTrace();
-			return false;
-		}		
+		if(db == null) initialize();
+		return lattice.dominates(one.getId(), other.getId());
 	} // End dominates
 	
+	/**
+	 * @return the generation of the privilege lattice, which changes whenever a dominance check might start
+	 * giving a different answer.
+	 * @see PrivilegeLattice#getGeneration()
+	 */
+	public static long getLatticeGeneration() { return lattice.getGeneration(); }
+	
 	/**
 	 * Write a domination relationship between a and b, meaning that any privilege which b has, a also has.
 	 * @param a a PrivilegeClass
@@ -631,6 +858,7 @@ public class Neo4JStorage {
 			}
 		}
 		
+		// The lattice learns of the new relationship once it commits.
 		try (Transaction tx = db.beginTx()) {
 			boolean r = n1.createRelationshipTo(n2, DOMINATES) != null;
 			tx.success();
@@ -638,6 +866,32 @@ public class Neo4JStorage {
 		} 
 	} // End assertDominates
 	
+	/**
+	 * Adds domination relationships to the in-memory lattice once the transaction creating them commits.  Adding them
+	 * any earlier would grant privileges the store doesn't, if the transaction (or one it is nested in) rolls back.
+	 * @see #assertDominates(PrivilegeClass, PrivilegeClass)
+	 */
+	protected static class LatticeCommitHandler extends TransactionEventHandler.Adapter<List<String[]>> {
+		public List<String[]> beforeCommit(TransactionData data) throws Exception {
+			List<String[]> pairs = null;
+			
+			for(Relationship r : data.createdRelationships()) { 
+				if(!r.isType(DOMINATES)) continue;
+				if(pairs == null) pairs = new ArrayList<String[]>();
+				pairs.add(new String[] { 
+					"" + r.getStartNode().getProperty(PROP_PRIVILEGE_ID), 
+					"" + r.getEndNode().getProperty(PROP_PRIVILEGE_ID) 
+				});
+			}
+			
+			return pairs;
+		} // End beforeCommit
+		
+		public void afterCommit(TransactionData data, List<String[]> pairs) { 
+			if(pairs != null) for(String[] p : pairs) lattice.addDominates(p[0], p[1]);
+		}
+	} // End LatticeCommitHandler
+	
 	/**
 	 * Get or create a privilege class node in the graph database.
 	 * @param pc the privilege class
@@ -648,7 +902,10 @@ public class Neo4JStorage {
 		if(db == null) initialize();
 		
 		Node n = privilegeClassExistsById(pc.getId());		
-		if(n == null) n = store(pc);
+		if(n == null) { 
+			n = store(pc);
+			lattice.addClass(pc.getId());
+		}
 		return n;
 	}
 	
@@ -708,16 +965,7 @@ public class Neo4JStorage {
 		
 		assert(db != null); 
 		
-		Node result = null;
-		try (Transaction tx = db.beginTx()) {
-			IndexManager mgr = db.index();
-			IndexHits<Node> hits = mgr.getNodeAutoIndexer().getAutoIndex().get(PROP_PRIVILEGE_ID, id);
-		
-			result = hits.getSingle();		
-			tx.success();
-		}
-		
-		return result;		
+		return findNode(LABEL_PRIVCLASS, PROP_PRIVILEGE_ID, id);
 	} // End privilegeClassExistsById
 	
 	/**
@@ -731,9 +979,7 @@ public class Neo4JStorage {
 		
 		if(name == null || "".equals(name)) throw new PLUSException("Name cannot be empty or null");
 		
-		Node result = db.index().getNodeAutoIndexer().getAutoIndex().get("name", name).getSingle();	
-		
-		return result;
+		return findNode(LABEL_PRIVCLASS, PROP_NAME, name);
 	} // End privilegeExistsByName
 	
 	/**
@@ -767,6 +1013,9 @@ public class Neo4JStorage {
 		
 		if(aid == null || "".equals(aid)) return null;
 		
+		Node cached = cachedNode(PROP_ACTOR_ID, aid);
+		if(cached != null) return cached;
+		
 		Map<String,Object> params = new HashMap<String,Object>();
 		params.put(PROP_ACTOR_ID, aid);
 		
@@ -778,6 +1027,7 @@ public class Neo4JStorage {
 		}
 		
 		Node n = ns.next();
+		cacheNode(PROP_ACTOR_ID, aid, n);
 		return n;
 	} // End actorExists
 	
@@ -787,7 +1037,13 @@ public class Neo4JStorage {
 	
 	public static Node pidExists(String pid) {
 		if(db == null) initialize();
-		return db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PRIVILEGE_ID, pid).getSingle();
+		
+		Node cached = cachedNode(PROP_PRIVILEGE_ID, pid);
+		if(cached != null) return cached;
+		
+		Node n = findNode(LABEL_PRIVCLASS, PROP_PRIVILEGE_ID, pid);
+		cacheNode(PROP_PRIVILEGE_ID, pid, n);
+		return n;
 	}
 	
 	/**
@@ -799,11 +1055,12 @@ public class Neo4JStorage {
 	public static Node npidExists(String npid) {
 		if(db == null) initialize();
 		
-		try(Transaction tx = db.beginTx()) {
-			Node n = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_NONPROV_ID, npid).getSingle();
-			tx.success();
-			return n;
-		}
+		Node cached = cachedNode(PROP_NONPROV_ID, npid);
+		if(cached != null) return cached;
+		
+		Node n = findNode(LABEL_NONPROV, PROP_NONPROV_ID, npid);
+		cacheNode(PROP_NONPROV_ID, npid, n);
+		return n;
 	}
 	
 	/**
@@ -815,13 +1072,164 @@ public class Neo4JStorage {
 	public static Node oidExists(String oid) {
 		if(db == null) initialize(); 		
 		
-		try (Transaction tx = db.beginTx()) {			
-			Node n = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PLUSOBJECT_ID, oid).getSingle();
+		Node cached = cachedNode(PROP_PLUSOBJECT_ID, oid);
+		if(cached != null) return cached;
+		
+		Node n = findNode(LABEL_NODE, PROP_PLUSOBJECT_ID, oid);
+		cacheNode(PROP_PLUSOBJECT_ID, oid, n);
+		return n;
+	}
+	
+	/**
+	 * Find the nodes of a set of provenance IDs, from the node id cache where possible and otherwise with one index 
+	 * lookup each, all in a single transaction.
+	 * @param oids the IDs to look for
+	 * @return a map from each ID that exists to its node.  IDs that don't exist are left out.
+	 */
+	public static Map<String,Node> oidsExist(Iterable<String> oids) { 
+		if(db == null) initialize();
+		
+		Map<String,Node> found = new HashMap<String,Node>();
+		List<String> uncached = new ArrayList<String>();
+		
+		for(String oid : oids) { 
+			Node n = cachedNode(PROP_PLUSOBJECT_ID, oid);
+			if(n != null) found.put(oid, n);
+			else uncached.add(oid);
+		}
+		
+		if(uncached.isEmpty()) return found;
+		
+		try (Transaction tx = db.beginTx()) {
+			for(String oid : uncached) { 
+				Node n = findNode(LABEL_NODE, PROP_PLUSOBJECT_ID, oid);
+				if(n == null) continue;
+				
+				found.put(oid, n);
+				cacheNode(PROP_PLUSOBJECT_ID, oid, n);
+			}
+			
+			tx.success();
+		}
+		
+		return found;
+	} // End oidsExist
+	
+	/**
+	 * Find the nodes of a set of actor IDs, from the node id cache where possible and otherwise with one index 
+	 * lookup each, all in a single transaction.
+	 * @param aids the IDs to look for
+	 * @return a map from each ID that exists to its node.  IDs that don't exist are left out.
+	 */
+	public static Map<String,Node> actorsExist(Iterable<String> aids) { 
+		if(db == null) initialize();
+		
+		Map<String,Node> found = new HashMap<String,Node>();
+		List<String> uncached = new ArrayList<String>();
+		
+		for(String aid : aids) { 
+			Node n = cachedNode(PROP_ACTOR_ID, aid);
+			if(n != null) found.put(aid, n);
+			else uncached.add(aid);
+		}
+		
+		if(uncached.isEmpty()) return found;
+		
+		try (Transaction tx = db.beginTx()) {
+			for(String aid : uncached) { 
+				Node n = findNode(LABEL_ACTOR, PROP_ACTOR_ID, aid);
+				if(n == null) continue;
+				
+				found.put(aid, n);
+				cacheNode(PROP_ACTOR_ID, aid, n);
+			}
+			
+			tx.success();
+		}
+		
+		return found;
+	} // End actorsExist
+	
+	/**
+	 * @param oids a set of provenance IDs
+	 * @return the neo4j ids of the nodes of those that exist, suitable for a cypher "start n=node({ids})" clause.
+	 */
+	public static List<Long> getNodeIds(Iterable<String> oids) { 
+		List<Long> ids = new ArrayList<Long>();
+		for(Node n : oidsExist(oids).values()) ids.add(n.getId());
+		return ids;
+	} // End getNodeIds
+	
+	/**
+	 * Look up a node by its label and an identifying property, through the schema index on that pair.  This doesn't
+	 * consult the node id cache.
+	 * @param label the label the node carries
+	 * @param prop the property name
+	 * @param value the property value
+	 * @return the first node found, or null if there is none.
+	 */
+	protected static Node findNode(Label label, String prop, String value) { 
+		if(value == null) return null;
+		
+		try (Transaction tx = db.beginTx()) {
+			ResourceIterator<Node> it = db.findNodesByLabelAndProperty(label, prop, value).iterator();
+			Node n = (it.hasNext() ? it.next() : null);
+			it.close();
+			
 			tx.success();
 			return n;
 		}
+	} // End findNode
+	
+	/**
+	 * Look up a node in the node id cache.
+	 * @param prop the name of the identifying property, e.g. PROP_PLUSOBJECT_ID
+	 * @param id the identifier
+	 * @return the node holding that identifier, or null if it isn't cached.  A null return doesn't mean the node 
+	 * doesn't exist.
+	 */
+	protected static Node cachedNode(String prop, String id) { 
+		if(id == null) return null;
+		
+		String key = prop + ":" + id;
+		Long nodeId = nodeIds.get(key);
+		if(nodeId == null) return null;
+		
+		try (Transaction tx = db.beginTx()) {
+			Node n = null;
+			try { n = db.getNodeById(nodeId); } 
+			catch(NotFoundException exc) { ; } 
+			
+			// Always mark success; a nested read that doesn't would roll back the caller's transaction.
+			tx.success();
+			
+			// Node ids are reused after deletion, and a cached write may have been rolled back, so 
+			// make sure the node still carries the identifier.
+			if(n != null && id.equals(n.getProperty(prop, null))) return n;
+		}
+		
+		nodeIds.remove(key);
+		return null;
+	} // End cachedNode
+	
+	/** Remember which node holds a given identifier.  Null nodes are not cached. */
+	protected static void cacheNode(String prop, String id, Node n) { 
+		if(id == null || n == null) return;
+		nodeIds.put(prop + ":" + id, n.getId());
+	}
+	
+	/** Forget which node holds a given identifier. */
+	protected static void uncacheNode(String prop, String id) { 
+		if(id == null) return;
+		nodeIds.remove(prop + ":" + id);
 	}
 	
+	/** @return the number of existence checks answered from the node id cache. */
+	public static long getNodeIdCacheHits() { return nodeIds.getHits(); } 
+	
+	/** @return the number of existence checks that had to consult the index. */
+	public static long getNodeIdCacheMisses() { return nodeIds.getMisses(); }
+	
 	public static boolean store(PLUSEdge edge) throws PLUSException { 
 		return store(Arrays.asList(new PLUSEdge [] { edge }));
 	}
@@ -829,6 +1237,9 @@ public class Neo4JStorage {
 	public static boolean store(Iterable<PLUSEdge>edges) throws PLUSException {
 		if(db == null) initialize(); 
 		
+		// Surrogates may depend on lineage, so those remembered for either end of a new edge are dropped.
+		HashSet<String> ends = new HashSet<String>();
+		
 		try (Transaction tx = db.beginTx()) {
 			for(PLUSEdge e : edges) {
 				log.fine("STORE edge of type " + e.getType() + " (" + e.getFrom() + " => " + e.getTo() + ")");
@@ -839,16 +1250,28 @@ public class Neo4JStorage {
 				if(from == null) throw new PLUSException("Cannot store edge " + e + " where from OID is not in the store!");
 				if(to == null) throw new PLUSException("Cannot store edge " + e + " where to OID is not in the store!"); 
 							
-				Relationship rel = from.createRelationshipTo(to, new RT(e.getType()));
-				rel.setProperty("workflow", (e.getWorkflow() != null ? e.getWorkflow().getId() : null));				
+				createEdge(from, to, e);
+				ends.add(e.getFrom().getId());
+				ends.add(e.getTo().getId());
 			} // End for
 			
 			tx.success();
-		} 
+		} finally { 
+			for(String oid : ends) SurrogateCache.invalidate(oid);
+		}
 		
 		return true;
 	} // End store
 	
+	/**
+	 * Create the relationship for an edge between two existing nodes.  Must be called from within a transaction.
+	 */
+	static Relationship createEdge(Node from, Node to, PLUSEdge e) { 
+		Relationship rel = from.createRelationshipTo(to, new RT(e.getType()));
+		rel.setProperty("workflow", (e.getWorkflow() != null ? e.getWorkflow().getId() : null));
+		return rel;
+	} // End createEdge
+	
 	public static boolean store(NonProvenanceEdge npe) throws PLUSException { 
 		if(db == null) initialize(); 
 		
@@ -876,11 +1299,7 @@ public class Neo4JStorage {
 				otherSide = getNPID(toId, true);
 			}
 			
-			Relationship rel = a.createRelationshipTo(otherSide, NPE);
-			
-			rel.setProperty(PROP_TYPE, npe.getType());
-			rel.setProperty(PROP_NPEID, npe.getId());
-			rel.setProperty(PROP_CREATED, npe.getCreated()); 
+			createNPE(a, otherSide, npe);
 			
 			// log.warning("STOREd NPE to identifier " + npe.getIncidentForeignID());
 			
@@ -890,6 +1309,19 @@ public class Neo4JStorage {
 		return true;
 	}
 	
+	/**
+	 * Create the relationship for a non-provenance edge between two existing nodes.  Must be called from within a transaction.
+	 */
+	static Relationship createNPE(Node from, Node to, NonProvenanceEdge npe) { 
+		Relationship rel = from.createRelationshipTo(to, NPE);
+		
+		rel.setProperty(PROP_TYPE, npe.getType());
+		rel.setProperty(PROP_NPEID, npe.getId());
+		rel.setProperty(PROP_CREATED, npe.getCreated()); 
+		RecencyIndex.add(rel, npe.getCreated());
+		return rel;
+	} // End createNPE
+	
 	/**
 	 * Re-formats a raw object for property storage in Neo4J.  See PropertyContainer in the neo4j docs to find out which are valid options.
 	 * 
@@ -936,45 +1368,69 @@ public class Neo4JStorage {
 		}
 
 		try (Transaction tx = db.beginTx()) {						
-			Node provObj = store((PropertyCapable)o);
-
-			provObj.addLabel(LABEL_NODE);
-			
-			Metadata m = o.getMetadata();
-
-			for(Object k : m.keySet()) { 
-				try { provObj.setProperty(getMetadataPropertyName(k), formatProperty(m.get(k))); } 
-				catch(Exception exc) { 
-					String err = "Failed to log metadata property '" + k + "' => " + m.get(k) + " of type " + m.get(k).getClass().getName();
-					throw new PLUSException(err, exc); 
-				}
-			} 
-			
+			Node actor = null;
 			String aid = (o.getOwner() != null ? o.getOwner().getId() : null);			
 			if(aid != null && !"".equals(aid.trim())) {
 				log.fine("Creating OWNS relationship to " + o + " from " + aid);
-				Node actor = actorExists(aid);					
-				if(actor == null) {
+				actor = actorExists(aid);					
+				if(actor == null) 
 					log.warning("Cannot store owner of " + o + " because AID " + aid + " doesn't exist!  Actors must be pre-saved.");
-				} else { 					
-					actor.createRelationshipTo(provObj, OWNS);
-					//	provObj.createRelationshipTo(actor, OWNS);
-				} // End else
 			} else { 
 				log.finest("Object " + o + " not owned."); 
 			}
 
-			PrivilegeSet ps = o.getPrivileges();
-			for(PrivilegeClass pc : ps.getPrivilegeSet()) {
-				Node pcn = getOrCreate(pc);
-				provObj.createRelationshipTo(pcn, CONTROLLED_BY);
-			}
+			ArrayList<Node> pcNodes = new ArrayList<Node>();
+			for(PrivilegeClass pc : o.getPrivileges().getPrivilegeSet()) 
+				pcNodes.add(getOrCreate(pc));
+			
+			Node provObj = createObjectNode(o, actor, pcNodes);
 			
 			tx.success();
 			return provObj;
 		} 
 	} // End store
 	
+	/**
+	 * Create the node for a PLUSObject, along with its metadata, ownership, and privileges.  No check for duplicates is done.
+	 * Must be called from within a transaction.
+	 * @param o the object to store
+	 * @param owner the node of the object's owner, or null if it has none.
+	 * @param privilegeClasses the nodes of the privilege classes that control the object.
+	 * @return the new node
+	 * @throws PLUSException
+	 */
+	static Node createObjectNode(PLUSObject o, Node owner, Iterable<Node> privilegeClasses) throws PLUSException { 
+		Node provObj = createNode(o);
+		
+		provObj.addLabel(LABEL_NODE);
+		RecencyIndex.add(provObj, o.getCreated());
+		FullTextIndex.add(provObj, o);
+		ContentHashIndex.add(o);
+		
+		Metadata m = o.getMetadata();
+
+		for(Object k : m.keySet()) { 
+			try { provObj.setProperty(getMetadataPropertyName(k), formatProperty(m.get(k))); } 
+			catch(Exception exc) { 
+				String err = "Failed to log metadata property '" + k + "' => " + m.get(k) + " of type " + m.get(k).getClass().getName();
+				throw new PLUSException(err, exc); 
+			}
+		} 
+		
+		// The hash is counted and looked up trimmed, so it's stored that way too.
+		String hash = ContentHashIndex.hashOf(m.get(Metadata.CONTENT_HASH_SHA_256));
+		if(hash != null) provObj.setProperty(ContentHashIndex.PROP_OBJECT_HASH, hash);
+		
+		MetadataIndex.add(provObj);
+		
+		if(owner != null) owner.createRelationshipTo(provObj, OWNS);
+		
+		for(Node pcn : privilegeClasses) 
+			provObj.createRelationshipTo(pcn, CONTROLLED_BY);
+		
+		return provObj;
+	} // End createObjectNode
+	
 	/**
 	 * Given a metadata key name, this returns the name of the neo4j property used to store that metadata property.
 	 * @param keyName a metadata keyname.
@@ -993,33 +1449,9 @@ public class Neo4JStorage {
 	 */
 	public static int store(ProvenanceCollection col) throws PLUSException {
 		if(db == null) initialize(); 
-		int x = 0;
 				
 		log.fine("Storing provenance collection " + col);
-		try (Transaction tx = db.beginTx()) {
-			// Actors need to be stored first because some other things may depend on their
-			// existence.   For example, if a node is owned by an actor that isn't in the database, then trying to store
-			// it is going to create problems.
-			for(PLUSActor a : col.getActors()) {
-				if(Neo4JStorage.store(a) != null) x++;				
-			}
-			
-			for(PLUSObject o : col.getNodes()) {
-				if(Neo4JStorage.store(o) != null) x++;				
-			}
-				
-			for(PLUSEdge e : col.getEdges()) {
-				if(Neo4JStorage.store(e)) x++;				
-			}
-			
-			for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
-				if(Neo4JStorage.store(npe)) x++;				
-			}
-			
-			tx.success();
-		} // End try
-		
-		return x;
+		return new BatchWriter().store(col);
 	}
 	
 	/**
@@ -1039,33 +1471,75 @@ public class Neo4JStorage {
 		Node n = null;
 				
 		try (Transaction tx = db.beginTx()) {			
-			n = db.createNode();
-			
-			if(n4jc instanceof PLUSActor) 
-				n.addLabel(LABEL_ACTOR);
-			else if(n4jc instanceof PrivilegeClass)
-				n.addLabel(LABEL_PRIVCLASS);
-			else if(n4jc instanceof PLUSObject)
-				n.addLabel(LABEL_NODE);
-			
-			Map<String,Object> map = n4jc.getStorableProperties();
-			
-			for(String k : map.keySet()) {
-				Object v = map.get(k);				
-				try { 					
-					n.setProperty(k, v == null ? "" : formatProperty(v));
-				} catch(Exception exc) { 
-					String err = "Failed to log property '" + k + "' => " + v + " of type " + v.getClass().getName(); 
-					log.severe(err);
-					throw new PLUSException(err, exc);
-				}
-			}
-			
+			n = createNode(n4jc);
 			tx.success();
 		} 
 		
 		return n;
 	} // End store
+	
+	/**
+	 * Create a labeled node holding the properties of a property capable object.  No check for duplicates is done.
+	 * Must be called from within a transaction.
+	 */
+	static Node createNode(PropertyCapable n4jc) throws PLUSException { 
+		Node n = db.createNode();
+		
+		if(n4jc instanceof PLUSActor) 
+			n.addLabel(LABEL_ACTOR);
+		else if(n4jc instanceof PrivilegeClass)
+			n.addLabel(LABEL_PRIVCLASS);
+		else if(n4jc instanceof PLUSObject)
+			n.addLabel(LABEL_NODE);
+		
+		Map<String,Object> map = storableProperties(n4jc);
+		
+		for(String k : map.keySet()) {
+			Object v = map.get(k);				
+			try { 					
+				n.setProperty(k, v);
+			} catch(Exception exc) { 
+				String err = "Failed to log property '" + k + "' => " + v + " of type " + v.getClass().getName(); 
+				log.severe(err);
+				throw new PLUSException(err, exc);
+			}
+		}
+		
+		if(n4jc instanceof PLUSActor) cacheNode(PROP_ACTOR_ID, ((PLUSActor)n4jc).getId(), n);
+		else if(n4jc instanceof PrivilegeClass) cacheNode(PROP_PRIVILEGE_ID, ((PrivilegeClass)n4jc).getId(), n);
+		else if(n4jc instanceof PLUSObject) cacheNode(PROP_PLUSOBJECT_ID, ((PLUSObject)n4jc).getId(), n);
+		
+		return n;
+	} // End createNode
+	
+	/**
+	 * @return the properties of a property capable object, formatted the way they are stored on its node.
+	 * @see Neo4JStorage#formatProperty(Object)
+	 */
+	public static Map<String,Object> storableProperties(PropertyCapable n4jc) { 
+		Map<String,Object> map = n4jc.getStorableProperties();
+		Map<String,Object> result = new HashMap<String,Object>();
+		
+		for(String k : map.keySet()) {
+			Object v = map.get(k);
+			result.put(k, v == null ? "" : formatProperty(v));
+		}
+		
+		return result;
+	} // End storableProperties
+	
+	/**
+	 * @return the metadata of an object, under the property names and in the format they are stored on its node.
+	 */
+	public static Map<String,Object> metadataProperties(PLUSObject o) { 
+		Map<String,Object> result = new HashMap<String,Object>();
+		Metadata m = o.getMetadata();
+		
+		for(Object k : m.keySet()) 
+			result.put(getMetadataPropertyName(k), formatProperty(m.get(k)));
+		
+		return result;
+	} // End metadataProperties
 							
 	/**
 	 * Same as delete(o, true)
@@ -1090,13 +1564,19 @@ public class Neo4JStorage {
 			if(deleteIncidentDanglingEdges) { 
 				for(Relationship r : n.getRelationships()) {
 					log.info("Deleting incident edge " + r.getId());
+					Object other = r.getOtherNode(n).getProperty(PROP_PLUSOBJECT_ID, null);
+					if(other != null) SurrogateCache.invalidate("" + other);
 					r.delete();
 				}
 			}
 			
+			FullTextIndex.remove(n);
+			ContentHashIndex.remove(n);
 			n.delete();
 			
 			tx.success();
+			uncacheNode(PROP_PLUSOBJECT_ID, o.getId());
+			SurrogateCache.invalidate(o.getId());
 			
 			if(Neo4JStorage.oidExists(o.getId()) != null) {
 				log.severe("OMGWTFBBQ!!!  Node " + o + " (" + o.getId() + ") still exists.  DELETE FAIL");
@@ -1165,15 +1645,19 @@ public class Neo4JStorage {
 		if(db == null) initialize(); 
 		if(maxReturn <= 0 || maxReturn > 1000) maxReturn = 100;
 		
-		String query = "match (n:Provenance {type:\"" + PLUSWorkflow.PLUS_TYPE_WORKFLOW + "\"}) " + 
+		String query = "match (n:Provenance {type:{type}}) " + 
 			           "return n " + 
 				       "order by n.created desc, n.name " + 
-			           "limit " + maxReturn;
+			           "limit {max}";
+		
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("type", PLUSWorkflow.PLUS_TYPE_WORKFLOW);
+		params.put("max", maxReturn);
 				
 		ArrayList<PLUSWorkflow> wfs = new ArrayList<PLUSWorkflow>();
 		
 		try (Transaction tx = db.beginTx()) {	
-			ResourceIterator<Node> ns = Neo4JStorage.execute(query).columnAs("n");
+			ResourceIterator<Node> ns = Neo4JStorage.execute(query, params).columnAs("n");
 
 			while(ns.hasNext()) { 
 				PLUSObject o = Neo4JPLUSObjectFactory.newObject(ns.next());
@@ -1193,24 +1677,31 @@ public class Neo4JStorage {
 		ProvenanceCollection col = new ProvenanceCollection();
 		if(maxReturn <= 0 || maxReturn > 1000) maxReturn = 100;
 		
-		StringBuffer luceneQuery = new StringBuffer("");
+		// Property names can't be parameters, so the query text varies with the set of keys; values are parameters.
+		// Keys are sorted so that the same set of keys always produces the same query text.
+		StringBuffer whereClause = new StringBuffer("");
+		Map<String,Object> params = new HashMap<String,Object>();
 		ArrayList<String>kz = new ArrayList<String>(searchTerms.keySet());
+		Collections.sort(kz);
 		
 		for(int x=0; x<kz.size(); x++) { 
-			luceneQuery.append(kz.get(x) + ":\\\"" + searchTerms.get(kz.get(x)) + "\\\"");
-			if(x < (kz.size() - 1)) luceneQuery.append(" AND ");
+			whereClause.append((x == 0 ? "where " : "and ") + "n.`" + kz.get(x) + "`={v" + x + "} ");
+			params.put("v" + x, searchTerms.get(kz.get(x)));
 		}
 		
-		String query = "start n=node:node_auto_index(\"" + luceneQuery.toString() + "\") " + 				
-                "where has(n.oid) " +				
+		String query = "match (n:" + LABEL_NODE.name() + ") " + 				
+                whereClause +				
 			    "return n " + 
-			    "limit " + maxReturn;					
+			    "limit {max}";
 		
-		Iterator<Node> ns = Neo4JStorage.execute(query).columnAs("n");
+		params.put("max", maxReturn);
+		
+		Iterator<Node> ns = Neo4JStorage.execute(query, params).columnAs("n");
 		
 		try (Transaction tx = db.beginTx()) {
+			MaterializationContext ctx = new MaterializationContext();
 			while(ns.hasNext()) { 
-				col.addNode(Neo4JPLUSObjectFactory.newObject(ns.next()));
+				col.addNode(Neo4JPLUSObjectFactory.newObject(ns.next(), ctx));
 			}
 			
 			tx.success();
@@ -1219,26 +1710,41 @@ public class Neo4JStorage {
 		return col;
 	} // End list
 	
+	/**
+	 * Execute a cypher query on the shared engine.  Values should be passed as parameters rather than concatenated into
+	 * the query text, so that the engine can reuse the plan for the query across calls.
+	 * @param cypherQuery the query template
+	 * @param params values for the parameters named in the template
+	 * @return the execution result
+	 */
 	public static ExecutionResult execute(String cypherQuery, Map<String,Object>params) {
 		if(db == null) initialize();
 		
-		ExecutionEngine engine = new ExecutionEngine(db);
-				
-		assert(db.index().getNodeAutoIndexer().isEnabled());
-				
-		StringBuffer sb = new StringBuffer("");
-		for(String k : params.keySet()) sb.append(" " + k + "=" + params.get(k));
-		
-		//log.info("EXECUTING: " + cypherQuery + " /" +sb);
-		return engine.execute(cypherQuery + " ", params);		
+		recordQueryText(cypherQuery);
+		//log.info("EXECUTING: " + cypherQuery + " /" + params);
+		return engine.execute(cypherQuery, params);		
 	}
 	
 	public static ExecutionResult execute(String cypherQuery) { 
 		if(db == null) initialize();
-		ExecutionEngine engine = new ExecutionEngine(db);
+		recordQueryText(cypherQuery);
 		// log.info("EXECUTING: " + cypherQuery);
-		return engine.execute(cypherQuery + " ");
+		return engine.execute(cypherQuery);
 	}
+	
+	/** Counts a query text as repeated if it is among the recently executed ones, and new otherwise. */
+	private static void recordQueryText(String cypherQuery) { 
+		if(recentQueries.get(cypherQuery) == null) recentQueries.put(cypherQuery, Boolean.TRUE);
+	} // End recordQueryText
+	
+	/** 
+	 * @return the number of queries executed whose text was among the last QUERY_CACHE_SIZE distinct texts executed.  
+	 * Queries that pass their values as parameters repeat their text, so this goes up as they're reused. 
+	 */
+	public static long getRepeatedQueryCount() { return recentQueries.getHits(); } 
+	
+	/** @return the number of queries executed whose text wasn't among the recent ones. */
+	public static long getNewQueryCount() { return recentQueries.getMisses(); }
 			
 	public static void main(String [] args) throws Exception { 
 		System.out.println(System.getenv("PROVENANCE_DB_LOCATION"));
@@ -1251,11 +1757,12 @@ public class Neo4JStorage {
 		
 		try (Transaction tx = db.beginTx()) { 
 			Node n = db.createNode();
+			n.addLabel(LABEL_NODE);
 			n.setProperty(PROP_PLUSOBJECT_ID, oid);
 			tx.success();
 		}  
 		
-		Node l = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PLUSOBJECT_ID, oid).getSingle();
+		Node l = findNode(LABEL_NODE, PROP_PLUSOBJECT_ID, oid);
 		System.out.println("Found node " + l.getId());
 				
 		try (Transaction tx = db.beginTx()) { 
@@ -1266,7 +1773,7 @@ public class Neo4JStorage {
 		System.out.println("Deleted node");
 		
 		System.out.println("Trying to load again:");
-		l = db.index().getNodeAutoIndexer().getAutoIndex().get(PROP_PLUSOBJECT_ID, oid).getSingle();
+		l = findNode(LABEL_NODE, PROP_PLUSOBJECT_ID, oid);
 		
 		System.out.println("Loaded:  " + l); 
 	}
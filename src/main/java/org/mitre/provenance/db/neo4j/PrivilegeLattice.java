@@ -0,0 +1,154 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory copy of the privilege class lattice stored in the database, along with its transitive closure.
+ * Each privilege class is given a dense integer index; the closure is kept as one bitset per class, where bit j
+ * of row i is set when class i dominates class j.  Dominance checks are then a single bit lookup.
+ *
+ * <p>The closure is updated incrementally as classes and domination relationships are added, so it never needs
+ * to be recomputed from scratch.  Reads may happen concurrently; writes are exclusive.  Every change that could
+ * alter the answer to a dominance check advances the lattice's generation, so that anything derived from those
+ * answers can tell when it is out of date.
+ *
+ * @see Neo4JStorage#dominates(org.mitre.provenance.user.PrivilegeClass, org.mitre.provenance.user.PrivilegeClass)
+ * @author moxious
+ */
+public class PrivilegeLattice {
+	/** Maps a privilege class ID to its index in the closure */
+	protected Map<String,Integer> indexes = new HashMap<String,Integer>();
+
+	/** Row i holds the set of class indexes that class i dominates */
+	protected ArrayList<BitSet> closure = new ArrayList<BitSet>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Advanced on every change to the lattice. */
+	private volatile long generation = 0;
+
+	/**
+	 * Add a privilege class to the lattice.  Adding a class that is already present has no effect.
+	 * @param pid the ID of the privilege class
+	 */
+	public void addClass(String pid) {
+		lock.writeLock().lock();
+		try {
+			if(!indexes.containsKey(pid)) {
+				indexOf(pid);
+				generation++;
+			}
+		} finally { lock.writeLock().unlock(); }
+	}
+
+	/**
+	 * Record that one class dominates another, and update the closure accordingly.  Both classes are added
+	 * to the lattice if they are not already present.
+	 * @param a the ID of the dominating class
+	 * @param b the ID of the dominated class
+	 */
+	public void addDominates(String a, String b) {
+		lock.writeLock().lock();
+
+		try {
+			int ai = indexOf(a);
+			int bi = indexOf(b);
+
+			if(closure.get(ai).get(bi)) return;  // Already implied.
+
+			// Everything that dominates a (including a itself) now dominates everything b dominates.
+			BitSet reachableFromB = (BitSet)closure.get(bi).clone();
+			for(BitSet row : closure) {
+				if(row.get(ai)) row.or(reachableFromB);
+			}
+
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	} // End addDominates
+
+	/**
+	 * @param a the ID of one privilege class
+	 * @param b the ID of another privilege class
+	 * @return true if a dominates b.  Every class dominates itself; classes that aren't in the lattice dominate
+	 * nothing but themselves.
+	 */
+	public boolean dominates(String a, String b) {
+		if(a == null || b == null) return false;
+		if(a.equals(b)) return true;
+
+		lock.readLock().lock();
+		try {
+			Integer ai = indexes.get(a);
+			Integer bi = indexes.get(b);
+			if(ai == null || bi == null) return false;
+			return closure.get(ai).get(bi);
+		} finally {
+			lock.readLock().unlock();
+		}
+	} // End dominates
+
+	/** @return true if the lattice contains a class with the given ID. */
+	public boolean contains(String pid) {
+		lock.readLock().lock();
+		try { return indexes.containsKey(pid); }
+		finally { lock.readLock().unlock(); }
+	}
+
+	/** @return the number of privilege classes in the lattice. */
+	public int size() {
+		lock.readLock().lock();
+		try { return indexes.size(); }
+		finally { lock.readLock().unlock(); }
+	}
+
+	/** @return a number that changes whenever classes or domination relationships are added or removed. */
+	public long getGeneration() { return generation; }
+
+	/** Remove all classes and relationships from the lattice. */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			indexes.clear();
+			closure.clear();
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns the index for a class, allocating one if necessary.  Caller must hold the write lock. */
+	private int indexOf(String pid) {
+		Integer idx = indexes.get(pid);
+		if(idx != null) return idx;
+
+		idx = closure.size();
+		indexes.put(pid, idx);
+
+		BitSet row = new BitSet();
+		row.set(idx);   // Every class trivially dominates itself.
+		closure.add(row);
+
+		return idx;
+	} // End indexOf
+} // End PrivilegeLattice
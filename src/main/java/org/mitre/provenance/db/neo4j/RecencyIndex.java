@@ -0,0 +1,417 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+
+import org.mitre.provenance.PLUSException;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Finds the most recently created objects and non-provenance edges without sorting the whole store.
+ *
+ * <p>Every object node and NPE relationship is stamped with the hour it was created in, which is indexed:  by a schema
+ * index for nodes, and by relationship_auto_index for NPEs.  The hours that have anything in them are marked by
+ * :RecencyBucket nodes, which are few enough to hold in memory.  A query walks the marked hours newest first, sorting
+ * only the contents of each, and stops as soon as it has enough.
+ *
+ * <p>Results are ordered by creation time and then ID, newest first.  A {@link Cursor} identifies the last item of a
+ * page, and asking for the items before it gives the next page; unlike an offset, it stays correct while new items are
+ * being added.
+ *
+ * <p>Stores written before this index existed are stamped the first time they are opened.
+ * @author moxious
+ */
+public class RecencyIndex {
+	protected static final Logger log = Logger.getLogger(RecencyIndex.class.getName());
+
+	/**
+	 * Width of a bucket in milliseconds.  Stored bucket numbers depend on it, so it can't be changed without
+	 * re-stamping the store.
+	 */
+	public static final long BUCKET_MILLIS = 60L * 60L * 1000L;
+
+	/** Property of a bucket marker holding its kind and number, e.g. "node:394182" */
+	public static final String PROP_KEY = "key";
+
+	/** Key of the marker recording that every item in the store has been stamped */
+	protected static final String STAMPED_KEY = "stamped";
+
+	/** Number of items stamped per transaction when an older store is opened */
+	public static final int STAMP_BATCH_SIZE = 10000;
+
+	/** What a bucket holds. */
+	public static enum Kind { NODE, NPE };
+
+	protected static final Label LABEL_BUCKET = DynamicLabel.label(Neo4JStorage.LABEL_NAME_BUCKET);
+
+	private static final ConcurrentSkipListSet<Long> nodeBuckets = new ConcurrentSkipListSet<Long>();
+	private static final ConcurrentSkipListSet<Long> npeBuckets = new ConcurrentSkipListSet<Long>();
+
+	/** The database the marker commit handler is registered with. */
+	private static GraphDatabaseService registeredWith = null;
+
+	/**
+	 * The position of an item in recency order.
+	 */
+	public static class Cursor {
+		public final long created;
+		public final String id;
+
+		public Cursor(long created, String id) {
+			this.created = created;
+			this.id = id;
+		}
+
+		/**
+		 * @param cursor a cursor as returned by toString()
+		 * @return the cursor, or null if the string is null or empty.
+		 * @throws PLUSException if the string isn't a cursor.
+		 */
+		public static Cursor parse(String cursor) throws PLUSException {
+			if(cursor == null || "".equals(cursor.trim())) return null;
+
+			// IDs may contain colons; the time never does.
+			int idx = cursor.indexOf(':');
+			if(idx <= 0) throw new PLUSException("Invalid cursor " + cursor);
+
+			try { return new Cursor(Long.parseLong(cursor.substring(0, idx)), cursor.substring(idx + 1)); }
+			catch(NumberFormatException exc) { throw new PLUSException("Invalid cursor " + cursor); }
+		} // End parse
+
+		public String toString() { return created + ":" + id; }
+	} // End Cursor
+
+	/**
+	 * A page of items, newest first.
+	 */
+	public static class Page<T> {
+		protected T items;
+		protected Cursor next;
+
+		public Page(T items, Cursor next) {
+			this.items = items;
+			this.next = next;
+		}
+
+		/** @return the items on this page */
+		public T getItems() { return items; }
+
+		/** @return the cursor to ask for the next page with, or null if this is the last. */
+		public Cursor getNext() { return next; }
+	} // End Page
+
+	/** @return the bucket an item created at a given time belongs in. */
+	public static long bucketOf(long created) {
+		long b = created / BUCKET_MILLIS;
+		return (created < 0 && created % BUCKET_MILLIS != 0 ? b - 1 : b);
+	}
+
+	protected static String key(Kind kind, long bucket) {
+		return kind.name().toLowerCase() + ":" + bucket;
+	}
+
+	protected static ConcurrentSkipListSet<Long> buckets(Kind kind) {
+		return (kind == Kind.NODE ? nodeBuckets : npeBuckets);
+	}
+
+	/** @return the number of buckets of a kind in use. */
+	public static int getBucketCount(Kind kind) { return buckets(kind).size(); }
+
+	/**
+	 * Remembers the buckets whose markers a transaction created, once it commits.  A marker is created inside the
+	 * caller's store transaction, so until then it may still be rolled back; a bucket remembered too early would never
+	 * get its marker written, and its contents would be lost to the index on restart.
+	 */
+	protected static class MarkerCommitHandler extends TransactionEventHandler.Adapter<List<String>> {
+		public List<String> beforeCommit(TransactionData data) throws Exception {
+			List<String> keys = null;
+			
+			for(PropertyEntry<Node> p : data.assignedNodeProperties()) {
+				if(!PROP_KEY.equals(p.key()) || !p.entity().hasLabel(LABEL_BUCKET)) continue;
+				if(keys == null) keys = new ArrayList<String>();
+				keys.add("" + p.value());
+			}
+
+			return keys;
+		} // End beforeCommit
+
+		public void afterCommit(TransactionData data, List<String> keys) {
+			if(keys != null) for(String key : keys) remember(key);
+		}
+	} // End MarkerCommitHandler
+
+	/** Add the bucket a marker key names to the in-memory set.  Keys that aren't buckets are ignored. */
+	protected static void remember(String key) {
+		int idx = key.indexOf(':');
+		if(idx < 0) return;
+
+		try {
+			Kind kind = Kind.valueOf(key.substring(0, idx).toUpperCase());
+			buckets(kind).add(Long.parseLong(key.substring(idx + 1)));
+		} catch(IllegalArgumentException exc) {
+			log.warning("Ignoring unrecognized recency bucket " + key);
+		}
+	} // End remember
+
+	/**
+	 * Read the bucket markers, stamping older stores first if they haven't been.  Called by Neo4JStorage.initialize(),
+	 * and safe to call again to re-read the markers from the store.
+	 */
+	public static synchronized void load() {
+		if(Neo4JStorage.db != registeredWith) {
+			Neo4JStorage.db.registerTransactionEventHandler(new MarkerCommitHandler());
+			registeredWith = Neo4JStorage.db;
+		}
+
+		nodeBuckets.clear();
+		npeBuckets.clear();
+
+		boolean stamped = false;
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			ResourceIterator<Node> markers = Neo4JStorage.db.findNodesByLabelAndProperty(LABEL_BUCKET, PROP_KEY, STAMPED_KEY).iterator();
+			stamped = markers.hasNext();
+			markers.close();
+
+			tx.success();
+		}
+
+		if(!stamped) stampAll();
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			ResourceIterator<Node> markers = GlobalGraphOperations.at(Neo4JStorage.db).getAllNodesWithLabel(LABEL_BUCKET).iterator();
+
+			while(markers.hasNext()) remember("" + markers.next().getProperty(PROP_KEY, ""));
+
+			markers.close();
+			tx.success();
+		}
+
+		log.fine("Recency index: " + nodeBuckets.size() + " object buckets, " + npeBuckets.size() + " NPE buckets");
+	} // End load
+
+	/**
+	 * Stamp every object and NPE that doesn't have a bucket yet, and mark the buckets they fill.
+	 */
+	protected static void stampAll() {
+		long nodes = stamp("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ") " +
+		                   "where has(n." + Neo4JStorage.PROP_CREATED + ") and not has(n." + Neo4JStorage.PROP_CREATED_BUCKET + ") " +
+		                   "with n limit {max} " +
+		                   "set n." + Neo4JStorage.PROP_CREATED_BUCKET + " = " + bucketExpression("n." + Neo4JStorage.PROP_CREATED) + " " +
+		                   "return count(n) as c");
+
+		long npes = stamp("match ()-[r:" + Neo4JStorage.NPE.name() + "]->() " +
+		                  "where has(r." + Neo4JStorage.PROP_CREATED + ") and not has(r." + Neo4JStorage.PROP_CREATED_BUCKET + ") " +
+		                  "with r limit {max} " +
+		                  "set r." + Neo4JStorage.PROP_CREATED_BUCKET + " = " + bucketExpression("r." + Neo4JStorage.PROP_CREATED) + " " +
+		                  "return count(r) as c");
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			for(Object b : distinct("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ") " +
+			                        "where has(n." + Neo4JStorage.PROP_CREATED_BUCKET + ") " +
+			                        "return distinct n." + Neo4JStorage.PROP_CREATED_BUCKET + " as b"))
+				mark(Kind.NODE, ((Number)b).longValue());
+
+			for(Object b : distinct("match ()-[r:" + Neo4JStorage.NPE.name() + "]->() " +
+			                        "where has(r." + Neo4JStorage.PROP_CREATED_BUCKET + ") " +
+			                        "return distinct r." + Neo4JStorage.PROP_CREATED_BUCKET + " as b"))
+				mark(Kind.NPE, ((Number)b).longValue());
+
+			Neo4JStorage.db.createNode(LABEL_BUCKET).setProperty(PROP_KEY, STAMPED_KEY);
+			tx.success();
+		}
+
+		if(nodes > 0 || npes > 0) log.info("Recency index: stamped " + nodes + " objects and " + npes + " NPEs");
+	} // End stampAll
+
+	/**
+	 * @param created a cypher expression for a creation time
+	 * @return a cypher expression for its bucket, computed as bucketOf() does.  Cypher's integer division rounds
+	 * towards zero, so times before the epoch are rounded down separately; floating point would lose precision.
+	 */
+	private static String bucketExpression(String created) {
+		return "case when " + created + " < 0 and " + created + " % {width} <> 0 " +
+		       "then " + created + " / {width} - 1 else " + created + " / {width} end";
+	} // End bucketExpression
+
+	/** Run a batched stamping query until it has nothing left to do.  @return the number of items stamped. */
+	private static long stamp(String query) {
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", STAMP_BATCH_SIZE);
+		params.put("width", BUCKET_MILLIS);
+
+		long total = 0;
+		long count = 0;
+
+		do {
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				ResourceIterator<Object> c = Neo4JStorage.execute(query, params).columnAs("c");
+				count = (c.hasNext() ? ((Number)c.next()).longValue() : 0);
+				c.close();
+
+				tx.success();
+			}
+
+			total += count;
+		} while(count >= STAMP_BATCH_SIZE);
+
+		return total;
+	} // End stamp
+
+	private static List<Object> distinct(String query) {
+		List<Object> values = new ArrayList<Object>();
+		ResourceIterator<Object> it = Neo4JStorage.execute(query).columnAs("b");
+		while(it.hasNext()) values.add(it.next());
+		it.close();
+		return values;
+	} // End distinct
+
+	/**
+	 * Stamp a new object node with its bucket.  Must be called from within the transaction that creates it.
+	 */
+	static void add(Node n, long created) {
+		long b = bucketOf(created);
+		n.setProperty(Neo4JStorage.PROP_CREATED_BUCKET, b);
+		if(!nodeBuckets.contains(b)) mark(Kind.NODE, b);
+	} // End add
+
+	/**
+	 * Stamp a new NPE relationship with its bucket.  Must be called from within the transaction that creates it.
+	 */
+	static void add(Relationship r, long created) {
+		long b = bucketOf(created);
+		r.setProperty(Neo4JStorage.PROP_CREATED_BUCKET, b);
+		if(!npeBuckets.contains(b)) mark(Kind.NPE, b);
+	} // End add
+
+	/**
+	 * Make sure a bucket's marker exists.  MERGE locks on the uniqueness constraint, so concurrent writers don't create
+	 * two.  The bucket is remembered in memory only once a transaction creating its marker commits; until then, or if
+	 * it is rolled back, later items in the bucket merge the marker again.
+	 * @see MarkerCommitHandler
+	 */
+	protected static void mark(Kind kind, long bucket) {
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("key", key(kind, bucket));
+
+		Neo4JStorage.execute("merge (b:" + Neo4JStorage.LABEL_NAME_BUCKET + " {" + PROP_KEY + ": {key}})", params).dumpToString();
+	} // End mark
+
+	/**
+	 * Find the newest object nodes created in a time range.  Must be called from within a transaction.
+	 * @param from the earliest creation time included
+	 * @param to the creation time before which items are included
+	 * @param before if not null, only nodes after this cursor in recency order are included.
+	 * @param max the most nodes to return
+	 * @return the nodes, newest first.
+	 */
+	static List<Node> findNodes(long from, long to, Cursor before, int max) {
+		return findNodes(from, to, before, max, null);
+	}
+
+	/**
+	 * Find the newest object nodes created in a time range that also meet a condition.  Must be called from within a
+	 * transaction.
+	 * @param condition if not null, a cypher predicate over n that the nodes must meet.
+	 * @see #findNodes(long, long, Cursor, int)
+	 */
+	static List<Node> findNodes(long from, long to, Cursor before, int max, String condition) {
+		String query = "match (n:" + Neo4JStorage.LABEL_NAME_NODE + " {" + Neo4JStorage.PROP_CREATED_BUCKET + ": {bucket}}) " +
+		               "where n.created >= {from} and n.created < {to} " +
+		               (condition == null ? "" : "and (" + condition + ") ") +
+		               (before == null ? "" : "and (n.created < {cc} or (n.created = {cc} and n.oid < {cid})) ") +
+		               "return n as x " +
+		               "order by n.created desc, n.oid desc " +
+		               "limit {max}";
+
+		return find(Kind.NODE, query, from, to, before, max);
+	} // End findNodes
+
+	/**
+	 * Find the newest NPE relationships created in a time range.  Must be called from within a transaction.
+	 * @see #findNodes(long, long, Cursor, int)
+	 */
+	static List<Relationship> findNPEs(long from, long to, Cursor before, int max) {
+		String query = "start r=relationship:relationship_auto_index(" + Neo4JStorage.PROP_CREATED_BUCKET + "={bucket}) " +
+		               "where r.created >= {from} and r.created < {to} " +
+		               (before == null ? "" : "and (r.created < {cc} or (r.created = {cc} and r.npeid < {cid})) ") +
+		               "return r as x " +
+		               "order by r.created desc, r.npeid desc " +
+		               "limit {max}";
+
+		return find(Kind.NPE, query, from, to, before, max);
+	} // End findNPEs
+
+	private static <T extends PropertyContainer> List<T> find(Kind kind, String query, long from, long to, Cursor before, int max) {
+		List<T> results = new ArrayList<T>();
+		if(max <= 0 || from >= to) return results;
+
+		long high = bucketOf(to - 1);
+		if(before != null) high = Math.min(high, bucketOf(before.created));
+		long low = bucketOf(from);
+		if(low > high) return results;
+
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("from", from);
+		params.put("to", to);
+		if(before != null) {
+			params.put("cc", before.created);
+			params.put("cid", before.id);
+		}
+
+		NavigableSet<Long> candidates = buckets(kind).subSet(low, true, high, true).descendingSet();
+
+		for(Long b : candidates) {
+			// The legacy relationship index holds values as strings.
+			params.put("bucket", (kind == Kind.NPE ? (Object)("" + b) : (Object)b));
+			params.put("max", max - results.size());
+
+			ResourceIterator<T> it = Neo4JStorage.execute(query, params).columnAs("x");
+			while(it.hasNext()) results.add(it.next());
+			it.close();
+
+			if(results.size() >= max) break;
+		}
+
+		return results;
+	} // End find
+
+	/**
+	 * @param last the last item of a page
+	 * @param idProperty the property holding its ID
+	 * @return the cursor following it
+	 */
+	static Cursor cursorAfter(PropertyContainer last, String idProperty) {
+		return new Cursor(((Number)last.getProperty(Neo4JStorage.PROP_CREATED)).longValue(), "" + last.getProperty(idProperty));
+	}
+} // End RecencyIndex
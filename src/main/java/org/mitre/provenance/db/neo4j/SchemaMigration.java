@@ -0,0 +1,279 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.db.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Moves an existing store from the legacy node_auto_index to label-based schema indexes.  Stores written by older
+ * versions may have nodes without the labels that schema lookups rely on, so this labels them, makes sure every
+ * constraint and index Neo4JStorage expects exists, waits for the indexes to come online, and optionally deletes the
+ * legacy node index.  Lookups keep working throughout, so it can be run against a database in use.
+ *
+ * <p>To show what the move bought, the time to look up a sample of objects by OID is measured through the legacy
+ * index first and through the schema index afterwards.  Both are reported by {@link #toString()}.
+ *
+ * <p>Running it again is harmless; a store that has already been migrated just gets its lookups timed.
+ * @see Neo4JStorage#ensureSchema()
+ * @author moxious
+ */
+public class SchemaMigration {
+	protected static final Logger log = Logger.getLogger(SchemaMigration.class.getName());
+
+	/** Name of the legacy index Neo4J used for auto-indexed node properties */
+	public static final String NODE_AUTO_INDEX = "node_auto_index";
+
+	/** Default number of OIDs whose lookups are timed */
+	public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+	/** Number of nodes labeled per transaction */
+	public static final int LABEL_BATCH_SIZE = 10000;
+
+	/** Longest to wait for new indexes to come online, in seconds */
+	public static final long ONLINE_TIMEOUT = 600;
+
+	protected int sampleSize;
+	protected boolean dropLegacy;
+
+	protected List<String> sample = new ArrayList<String>();
+	protected Map<String,Long> labeled = new HashMap<String,Long>();
+	protected int schemaCreated = 0;
+	protected boolean online = false;
+	protected boolean legacyDropped = false;
+	protected double legacyMicros = -1;
+	protected double schemaMicros = -1;
+
+	/**
+	 * @param sampleSize the number of OIDs whose lookups are timed
+	 * @param dropLegacy if true, the legacy node index is deleted once the schema indexes are online.  It is left alone
+	 * if Neo4JStorage.LEGACY_NODE_INDEX is set, since it is still being written.
+	 */
+	public SchemaMigration(int sampleSize, boolean dropLegacy) {
+		this.sampleSize = sampleSize;
+		this.dropLegacy = dropLegacy;
+	}
+
+	/**
+	 * Run the migration.
+	 * @return this migration, whose toString() reports what was done.
+	 */
+	public SchemaMigration run() {
+		Neo4JStorage.initialize();
+
+		takeSample();
+		legacyMicros = timeLegacyLookups();
+
+		// Nodes have to carry their labels before the indexes can find them.
+		label(Neo4JStorage.LABEL_NAME_ACTOR, "has(n." + Neo4JStorage.PROP_ACTOR_ID + ")");
+		label(Neo4JStorage.LABEL_NAME_PRIVCLASS, "has(n." + Neo4JStorage.PROP_PRIVILEGE_ID + ")");
+		label(Neo4JStorage.LABEL_NAME_NONPROV, "has(n." + Neo4JStorage.PROP_NONPROV_ID + ")");
+		label(Neo4JStorage.LABEL_NAME_NODE, "has(n." + Neo4JStorage.PROP_PLUSOBJECT_ID + ") and has(n." +
+				Neo4JStorage.PROP_TYPE + ") and has(n." + Neo4JStorage.PROP_SUBTYPE + ")");
+
+		schemaCreated = Neo4JStorage.ensureSchema();
+		online = Neo4JStorage.awaitSchema(ONLINE_TIMEOUT);
+		schemaMicros = timeSchemaLookups();
+
+		if(dropLegacy && online && !Neo4JStorage.LEGACY_NODE_INDEX) legacyDropped = dropLegacyIndex();
+
+		log.info(toString());
+		return this;
+	} // End run
+
+	/** Collect up to sampleSize OIDs, including those of nodes that aren't labeled yet. */
+	protected void takeSample() {
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			for(Node n : GlobalGraphOperations.at(Neo4JStorage.db).getAllNodes()) {
+				if(sample.size() >= sampleSize) break;
+
+				Object oid = n.getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID, null);
+				if(oid != null) sample.add("" + oid);
+			}
+
+			tx.success();
+		}
+	} // End takeSample
+
+	/**
+	 * Add a label to every node matching a condition that doesn't have it yet, LABEL_BATCH_SIZE nodes per transaction.
+	 * @param labelName the label
+	 * @param condition a cypher predicate over n
+	 */
+	protected void label(String labelName, String condition) {
+		String query = "match (n) where " + condition + " and not n:" + labelName + " " +
+		               "with n limit {max} " +
+		               "set n:" + labelName + " " +
+		               "return count(n) as c";
+
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("max", LABEL_BATCH_SIZE);
+
+		long total = 0;
+		long count = 0;
+
+		do {
+			try (Transaction tx = Neo4JStorage.beginTx()) {
+				ResourceIterator<Object> c = Neo4JStorage.execute(query, params).columnAs("c");
+				count = (c.hasNext() ? ((Number)c.next()).longValue() : 0);
+				c.close();
+
+				tx.success();
+			} catch(Exception exc) {
+				// Most likely two unlabeled nodes share an identifier, which the uniqueness constraint won't allow.
+				log.severe("Unable to label nodes :" + labelName + " after " + total + ": " + exc.getMessage());
+				break;
+			}
+
+			total += count;
+		} while(count >= LABEL_BATCH_SIZE);
+
+		if(total > 0) log.info("Labeled " + total + " nodes :" + labelName);
+		labeled.put(labelName, total);
+	} // End label
+
+	/** @return the mean time of a sample lookup through the legacy index in microseconds, or -1 if there is no such index. */
+	protected double timeLegacyLookups() {
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			if(!Neo4JStorage.db.index().existsForNodes(NODE_AUTO_INDEX)) return -1;
+			Index<Node> index = Neo4JStorage.db.index().forNodes(NODE_AUTO_INDEX);
+
+			// The first pass warms the caches; only the second is timed.
+			for(String oid : sample) index.get(Neo4JStorage.PROP_PLUSOBJECT_ID, oid).getSingle();
+
+			long start = System.nanoTime();
+			for(String oid : sample) index.get(Neo4JStorage.PROP_PLUSOBJECT_ID, oid).getSingle();
+			long elapsed = System.nanoTime() - start;
+
+			tx.success();
+			return mean(elapsed);
+		}
+	} // End timeLegacyLookups
+
+	/** @return the mean time of a sample lookup through the schema index in microseconds.  The node id cache isn't used. */
+	protected double timeSchemaLookups() {
+		Label label = Neo4JStorage.getLabel(Neo4JStorage.LabelType.NODE);
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			for(String oid : sample) Neo4JStorage.findNode(label, Neo4JStorage.PROP_PLUSOBJECT_ID, oid);
+
+			long start = System.nanoTime();
+			for(String oid : sample) Neo4JStorage.findNode(label, Neo4JStorage.PROP_PLUSOBJECT_ID, oid);
+			long elapsed = System.nanoTime() - start;
+
+			tx.success();
+			return mean(elapsed);
+		}
+	} // End timeSchemaLookups
+
+	private double mean(long elapsedNanos) {
+		return (sample.isEmpty() ? 0 : (elapsedNanos / 1000.0) / sample.size());
+	}
+
+	/** Delete the legacy node index.  @return true if it was deleted. */
+	protected boolean dropLegacyIndex() {
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			if(!Neo4JStorage.db.index().existsForNodes(NODE_AUTO_INDEX)) return false;
+
+			Neo4JStorage.db.index().forNodes(NODE_AUTO_INDEX).delete();
+			tx.success();
+			log.info("Deleted legacy index " + NODE_AUTO_INDEX);
+			return true;
+		}
+	} // End dropLegacyIndex
+
+	/** @return the number of nodes given each label. */
+	public Map<String,Long> getLabeled() { return labeled; }
+	/** @return the number of constraints and indexes created. */
+	public int getSchemaCreated() { return schemaCreated; }
+	/** @return true if every schema index came online. */
+	public boolean isOnline() { return online; }
+	/** @return the mean legacy lookup time in microseconds, or -1 if there was no legacy index. */
+	public double getLegacyMicros() { return legacyMicros; }
+	/** @return the mean schema lookup time in microseconds. */
+	public double getSchemaMicros() { return schemaMicros; }
+
+	public String toString() {
+		return "Schema migration: labeled " + labeled + ", created " + schemaCreated + " constraints/indexes, " +
+				(online ? "all indexes online" : "indexes NOT all online") +
+				(legacyDropped ? ", legacy node index deleted" : "") + ".  " +
+				"Mean OID lookup over " + sample.size() + " objects: " +
+				(legacyMicros < 0 ? "no legacy index" : String.format("legacy %.1fus", legacyMicros)) +
+				String.format(", schema %.1fus", schemaMicros) +
+				(legacyMicros > 0 && schemaMicros > 0 ? String.format(" (%.1fx)", legacyMicros / schemaMicros) : "");
+	} // End toString
+
+	public static Options makeCLIOptions() {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("n")
+				          .hasArg()
+				          .isRequired(false)
+				          .withDescription("Number of objects whose lookups are timed.  Defaults to " + DEFAULT_SAMPLE_SIZE + ".")
+				          .create("sample"));
+
+		options.addOption(OptionBuilder.isRequired(false)
+				          .withDescription("Delete the legacy node_auto_index once the schema indexes are online.")
+				          .create("dropLegacy"));
+
+		return options;
+	}
+
+	public static void usage() {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("SchemaMigration [-sample n] [-dropLegacy]", makeCLIOptions());
+	}
+
+	/**
+	 * Migrates the database at the location Neo4JStorage uses, and prints the report.
+	 */
+	public static void main(String [] args) throws Exception {
+		CommandLineParser parser = new GnuParser();
+		CommandLine line = null;
+
+		try { line = parser.parse(makeCLIOptions(), args); }
+		catch(ParseException exc) {
+			usage();
+			System.exit(1);
+		}
+
+		int sampleSize = DEFAULT_SAMPLE_SIZE;
+		try { if(line.getOptionValue("sample") != null) sampleSize = Integer.parseInt(line.getOptionValue("sample")); }
+		catch(NumberFormatException exc) {
+			usage();
+			System.exit(1);
+		}
+
+		System.out.println(new SchemaMigration(sampleSize, line.hasOption("dropLegacy")).run());
+		Neo4JStorage.shutdown();
+	} // End main
+} // End SchemaMigration
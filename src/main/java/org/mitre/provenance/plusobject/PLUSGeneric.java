@@ -43,4 +43,8 @@ public class PLUSGeneric extends PLUSObject {
 		super(other);
 		copy(other); 
 	}
+	
+	public PLUSGeneric clone() { 
+		return new PLUSGeneric(this);
+	}
 } // End PLUSGeneric
@@ -30,7 +30,10 @@ import org.mitre.provenance.PropertySet;
 import org.mitre.provenance.client.ProvenanceClient;
 import org.mitre.provenance.dag.DAGPath;
 import org.mitre.provenance.dag.LineageDAG;
+import org.mitre.provenance.db.neo4j.Neo4JStorage;
 import org.mitre.provenance.mediator.Mediator;
+import org.mitre.provenance.surrogate.SGFRegistry;
+import org.mitre.provenance.surrogate.SurrogateCache;
 import org.mitre.provenance.surrogate.SignPost;
 import org.mitre.provenance.surrogate.SurrogateGeneratingFunction;
 import org.mitre.provenance.surrogate.Surrogateable;
@@ -297,26 +300,17 @@ public class PLUSObject extends Surrogateable implements Comparable<Object>,
 	} // End getOwner
 
 	/**
-	 * Given a class, return a new instance object using the reflection API
+	 * Given a class, return the shared instance of it from the SGF registry.
 	 * 
 	 * @param c the fully qualified name of the SGF class (i.e. org.mitre.provenance.surrogate.BlahBlahBlah)
-	 * @return a new instance of that class.
+	 * @return the instance of that class.
 	 * @throws IllegalAccessException 
 	 * @throws InstantiationException 
 	 * @throws ClassNotFoundException 
-	 * @throws Exception
+	 * @see SGFRegistry#getInstance(String)
 	 */
 	private SurrogateGeneratingFunction getSGFInstance(String c) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
-		// log.info("getSGFInstance:  " + c);
-		Class<?> clazz = Class.forName(c);
-		
-		if(!SurrogateGeneratingFunction.class.isAssignableFrom(clazz)) {
-			log.severe("SGF isn't assignable from " + c + "!");
-		}
-		
-		SurrogateGeneratingFunction f = (SurrogateGeneratingFunction) clazz.newInstance();
-
-		return f;
+		return SGFRegistry.getInstance(c);
 	} // End getSGFInstance
 
 	public PLUSObject clone() {
@@ -337,16 +331,52 @@ public class PLUSObject extends Surrogateable implements Comparable<Object>,
 		if(user == null) throw new PLUSException("Must specify user!");
 		
 		if(ProvenanceClient.instance.canSee(user, this)) return this;
+		return getPreferredSurrogate(user);
+	}
+	
+	/**
+	 * Computes the surrogates of this object for a user, and picks the most preferable with the mediator.
+	 * This doesn't check whether the user may see the object itself; see getVersionSuitableFor(User).
+	 * The choice is remembered for users with the same privileges, and each of them gets a copy of the same surrogate.
+	 * @see SurrogateCache
+	 * @param user the user asking to see the object.
+	 * @return the preferred surrogate, or null if there are none suitable.
+	 * @throws PLUSException
+	 */
+	public PLUSObject getPreferredSurrogate(User user) throws PLUSException {
+		SurrogateCache.Entry cached = SurrogateCache.get(this, user);
+		if(cached != null) return cached.surrogate;
+		
+		long generation = SurrogateCache.getGeneration();
 		List<PLUSObject> surrogates = computeSurrogates(user);
 		
-		if(surrogates == null || surrogates.size() == 0) {
+		PLUSObject preferred = null;
+		if(surrogates == null || surrogates.size() == 0) 
 			log.info("No suitable surrogates of " + getId() + " for " + user.getName());
-			return null;
+		else preferred = new Mediator().getMostPreferable(surrogates);
+		
+		SurrogateCache.put(this, user, preferred, generation);
+		return preferred;
+	} // End getPreferredSurrogate
+	
+	/**
+	 * @return true if every SGF attached to this object may be run on any thread, false if surrogates of this object
+	 * must be computed on the thread that asks for them.
+	 * @see SurrogateGeneratingFunction#isThreadSafe()
+	 */
+	public boolean hasThreadSafeSGFs() {
+		if(sgfs == null) return true;
+		
+		for(String c : sgfs) {
+			try { 
+				if(!getSGFInstance(c).isThreadSafe()) return false;
+			} catch(Exception e) { 
+				return false;
+			}
 		}
 		
-		Mediator m = new Mediator();
-		return m.getMostPreferable(surrogates);
-	}
+		return true;
+	} // End hasThreadSafeSGFs
 	
 	/**
 	 * Use the SGFs attached to this object and generate relevant surrogates.
@@ -60,6 +60,14 @@ public class PLUSWorkflow extends PLUSObject {
 	public void setWhenStart(String when_start) { this.when_start = when_start; } 
 	public void setWhenEnd(String when_end) { this.when_end = when_end; } 
 
+	public PLUSWorkflow clone() { 
+		PLUSWorkflow w = new PLUSWorkflow();
+		w.copy(this);
+		w.setWhenStart(getWhenStart());
+		w.setWhenEnd(getWhenEnd());
+		return w;
+	}
+
 	public boolean isWorkflow() { return true; } 
 
 	public Map<String,Object> getStorableProperties() {
@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -77,6 +78,12 @@ public class ProvenanceCollection implements Cloneable {
 	/** Maps a special edge string key (id1-id2) to an edge */
 	protected Map <String,PLUSEdge> edges;         
 	
+	/** Maps an object ID to the edges leaving that object, keyed by the ID of the edge's to side */
+	protected Map <String,Map<String,PLUSEdge>> outbound;
+	
+	/** Maps an object ID to the edges entering that object, keyed by the ID of the edge's from side */
+	protected Map <String,Map<String,PLUSEdge>> inbound;
+	
 	/** Maps a special edge string key (id1-id2) to an NPE */
 	protected Map <String,NonProvenanceEdge> npes; 
 	
@@ -111,6 +118,8 @@ public class ProvenanceCollection implements Cloneable {
 	protected void empty() {
 		nodes = new HashMap<String,PLUSObject>();
 		edges = new HashMap<String,PLUSEdge>();
+		outbound = new HashMap<String,Map<String,PLUSEdge>>();
+		inbound = new HashMap<String,Map<String,PLUSEdge>>();
 		npes  = new HashMap<String,NonProvenanceEdge>();
 		actors = new HashMap<String,PLUSActor>();
 		metadata = new Metadata();
@@ -228,7 +237,8 @@ public class ProvenanceCollection implements Cloneable {
 	 * @param edge the edge to remove.
 	 */
 	public void removeEdge(PLUSEdge edge) { 		
-		edges.remove(getHashKey(edge)); 
+		PLUSEdge removed = edges.remove(getHashKey(edge));
+		if(removed != null) unindexEdge(removed);
 	} // End removeEdge
 	
 	/**
@@ -240,18 +250,50 @@ public class ProvenanceCollection implements Cloneable {
 	}
 	
 	/** Retrieves all inbound edges for the specified node */
-	public List<PLUSEdge> getInboundEdgesByNode(String oid)
-		{ return getEdgesByPattern("->" + oid); }
+	public List<PLUSEdge> getInboundEdgesByNode(String oid) { 
+		Map<String,PLUSEdge> adj = inbound.get(oid);
+		if(adj == null) return new ArrayList<PLUSEdge>();
+		return new ArrayList<PLUSEdge>(adj.values());
+	}
 	
 	/** Retrieves all outbound edges for the specified node */
-	public List<PLUSEdge> getOutboundEdgesByNode(String oid)
-		{ return getEdgesByPattern(oid + "->"); }
+	public List<PLUSEdge> getOutboundEdgesByNode(String oid) { 
+		Map<String,PLUSEdge> adj = outbound.get(oid);
+		if(adj == null) return new ArrayList<PLUSEdge>();
+		return new ArrayList<PLUSEdge>(adj.values());
+	}
 	
 	/** Retrieves all edges incident to the specified node. */
-	public List<PLUSEdge> getEdgesByNode(String oid) 
-		{ return getEdgesByPattern(oid); }  
+	public List<PLUSEdge> getEdgesByNode(String oid) { 
+		List<PLUSEdge> ret = getInboundEdgesByNode(oid);
+		
+		Map<String,PLUSEdge> out = outbound.get(oid);
+		if(out != null) { 
+			for(PLUSEdge e : out.values()) {
+				// A self-loop is already present from the inbound side.
+				if(!oid.equals(e.getTo().getId())) ret.add(e);
+			}
+		}
+		
+		return ret;
+	} // End getEdgesByNode
+	
+	/** @return the number of edges entering the specified node. */
+	public int countInboundEdges(String oid) { 
+		Map<String,PLUSEdge> adj = inbound.get(oid);
+		return adj == null ? 0 : adj.size();
+	}
 	
-	/** Retrieves all edges based on the specified pattern */
+	/** @return the number of edges leaving the specified node. */
+	public int countOutboundEdges(String oid) { 
+		Map<String,PLUSEdge> adj = outbound.get(oid);
+		return adj == null ? 0 : adj.size();
+	}
+	
+	/** 
+	 * Retrieves all edges whose key contains the specified pattern.  This scans every edge in the collection;
+	 * use the by-node methods for neighbor lookups. 
+	 */
 	protected List<PLUSEdge> getEdgesByPattern(String pattern) { 
 		ArrayList <PLUSEdge> ret = new ArrayList <PLUSEdge> ();			
 		for(String key : edges.keySet())
@@ -309,17 +351,53 @@ public class ProvenanceCollection implements Cloneable {
 		if(edge == null) return false;
 		String key = getHashKey(edge);
 		
-		if(force) { 
+		if(force || !edges.containsKey(key)) { 
 			edges.put(key, edge); 
+			indexEdge(edge);
 			return true; 
-		} else if(!edges.containsKey(key)) { 
-			edges.put(key, edge);
-			return true; 
-		} // End else if
+		} // End if
 		
 		return false; 
 	} // End addEdge	
 	
+	/** Records an edge in the inbound and outbound adjacency maps. */
+	private void indexEdge(PLUSEdge e) { 
+		String from = e.getFrom().getId();
+		String to = e.getTo().getId();
+		
+		Map<String,PLUSEdge> out = outbound.get(from);
+		if(out == null) { 
+			out = new LinkedHashMap<String,PLUSEdge>();
+			outbound.put(from, out);
+		}
+		out.put(to, e);
+		
+		Map<String,PLUSEdge> in = inbound.get(to);
+		if(in == null) { 
+			in = new LinkedHashMap<String,PLUSEdge>();
+			inbound.put(to, in);
+		}
+		in.put(from, e);
+	} // End indexEdge
+	
+	/** Removes an edge from the inbound and outbound adjacency maps. */
+	private void unindexEdge(PLUSEdge e) { 
+		String from = e.getFrom().getId();
+		String to = e.getTo().getId();
+		
+		Map<String,PLUSEdge> out = outbound.get(from);
+		if(out != null) { 
+			out.remove(to);
+			if(out.isEmpty()) outbound.remove(from);
+		}
+		
+		Map<String,PLUSEdge> in = inbound.get(to);
+		if(in != null) { 
+			in.remove(from);
+			if(in.isEmpty()) inbound.remove(to);
+		}
+	} // End unindexEdge
+	
 	/** Used to calculate the key under which an edge will be stored. */
 	private String getHashKey(String from_oid, String to_oid) { 
 		return from_oid + "->" + to_oid;
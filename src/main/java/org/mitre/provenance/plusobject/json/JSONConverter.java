@@ -23,6 +23,7 @@ import java.util.logging.Logger;
 import org.mitre.provenance.Metadata;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.dag.FingerPrint;
+import org.mitre.provenance.dag.GraphDelta;
 import org.mitre.provenance.dag.LineageDAG;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.npe.NonProvenanceEdge;
@@ -86,7 +87,7 @@ public class JSONConverter {
 		n.put(KEY_LABEL, nodeLabel);
 		n.put(KEY_TYPE, "npid");
 		n.put(KEY_SUBTYPE, "npid");
-		n.put(KEY_CREATED, npe.getCreated());
+		if(npe != null) n.put(KEY_CREATED, npe.getCreated());
 				
 		return n;
 	} // End npidNodeToD3
@@ -121,6 +122,152 @@ public class JSONConverter {
 		return n;
 	} // End provenanceObjectToD3
 	
+	/**
+	 * Represent an NPE as a D3 link.
+	 * @param npe the edge
+	 * @param fromIdx the index of its from end in the list of nodes, or null to leave source out.
+	 * @param toIdx the index of its to end in the list of nodes, or null to leave target out.
+	 */
+	protected static HashMap<String,Object> npeToD3(NonProvenanceEdge npe, Integer fromIdx, Integer toIdx) {
+		HashMap<String,Object> jsonEdge = new HashMap<String,Object>();
+
+		jsonEdge.put(KEY_NPEID, npe.getId());
+		if(fromIdx != null) jsonEdge.put(KEY_SOURCE, fromIdx);
+		if(toIdx != null) jsonEdge.put(KEY_TARGET, toIdx);
+		jsonEdge.put(KEY_FROM, npe.getFrom());
+		jsonEdge.put(KEY_TO, npe.getTo());
+		jsonEdge.put(KEY_LABEL, npe.getType());
+		jsonEdge.put(KEY_TYPE, "npe");			
+		jsonEdge.put(KEY_LEFT, new Boolean(false));
+		jsonEdge.put(KEY_RIGHT, new Boolean(true));
+		jsonEdge.put(KEY_CREATED, npe.getCreated());
+		if(npe.getSourceHints() != null) jsonEdge.put("sourceHints", npe.getSourceHints().toString());
+		
+		return jsonEdge;
+	} // End npeToD3
+	
+	/**
+	 * Represent a provenance edge as a D3 link.
+	 * @param e the edge
+	 * @param fromIdx the index of its from end in the list of nodes, or null to leave source out.
+	 * @param toIdx the index of its to end in the list of nodes, or null to leave target out.
+	 */
+	protected static HashMap<String,Object> edgeToD3(PLUSEdge e, Integer fromIdx, Integer toIdx) {
+		HashMap<String,Object> jsonEdge = new HashMap<String,Object>();
+		if(fromIdx != null) jsonEdge.put(KEY_SOURCE, fromIdx);
+		if(toIdx != null) jsonEdge.put(KEY_TARGET, toIdx); 
+		jsonEdge.put(KEY_FROM, e.getFrom().getId());
+		jsonEdge.put(KEY_TO, e.getTo().getId());
+		jsonEdge.put(KEY_LEFT, new Boolean(false)); 
+		jsonEdge.put(KEY_RIGHT, new Boolean(true)); 
+		jsonEdge.put(KEY_LABEL, e.getType());
+		jsonEdge.put(KEY_TYPE, e.getType());
+		if(e.getSourceHints() != null) jsonEdge.put("sourceHints", e.getSourceHints().toString()); 
+		jsonEdge.put(KEY_WORKFLOW, e.getWorkflow().getId());
+		
+		return jsonEdge;
+	} // End edgeToD3
+	
+	protected static HashMap<String,Object> actorToD3(PLUSActor a) {
+		HashMap<String,Object> actorProps = new HashMap<String,Object>();
+		
+		actorProps.put(KEY_ID, a.getId());
+		actorProps.put(KEY_NAME, a.getName());
+		actorProps.put("created", a.getCreated());
+		actorProps.put(KEY_TYPE, a.getType());
+		
+		return actorProps;
+	} // End actorToD3
+	
+	/**
+	 * This creates a JSON string describing the changes between two versions of a graph, using the same 
+	 * representation of nodes, links, actors and tags as {@link #provenanceCollectionToD3Json(ProvenanceCollection)}.
+	 * Since a delta isn't a complete graph, links carry no source and target indexes; clients should match nodes
+	 * and links by ID (from and to, or npeid for NPEs).  The structure is:
+	 * <pre>
+	 * { "delta": true, "version": ..., "since": ...,
+	 *   "added":   { "nodes": [...], "links": [...], "actors": [...] },
+	 *   "changed": { "nodes": [...], "links": [...] },
+	 *   "removed": { "nodes": [ids], "links": [{"from", "to"} or {"npeid"}], "actors": [ids] },
+	 *   "nodeTags": { oid: complete new tags }, "untagged": [ids] }
+	 * </pre>
+	 * @param delta the changes
+	 * @param version the token identifying the later version
+	 * @param since the token identifying the earlier version
+	 * @return a JSON string
+	 */
+	public static String graphDeltaToD3Json(GraphDelta delta, String version, String since) {
+		HashMap<String,Object> structure = new HashMap<String,Object>();
+		structure.put("delta", new Boolean(true));
+		structure.put("version", version);
+		structure.put("since", since);
+		
+		ArrayList<Object> nodes = new ArrayList<Object>();
+		ArrayList<Object> links = new ArrayList<Object>();
+		ArrayList<Object> actors = new ArrayList<Object>();
+		
+		for(PLUSObject obj : delta.getAddedNodes()) nodes.add(provenanceObjectToD3(obj));
+		for(String npid : delta.getAddedNPIDs()) {
+			NonProvenanceEdge referrer = null;
+			for(NonProvenanceEdge npe : delta.getAddedNPEs()) { 
+				if(npid.equals(npe.getFrom()) || npid.equals(npe.getTo())) { referrer = npe; break; } 
+			}
+			nodes.add(npidNodeToD3(npid, referrer));
+		}
+		
+		for(NonProvenanceEdge npe : delta.getAddedNPEs()) links.add(npeToD3(npe, null, null));
+		for(PLUSEdge e : delta.getAddedEdges()) links.add(edgeToD3(e, null, null));
+		for(PLUSActor a : delta.getAddedActors()) actors.add(actorToD3(a));
+		
+		HashMap<String,Object> added = new HashMap<String,Object>();
+		added.put("nodes", nodes);
+		added.put("links", links);
+		added.put("actors", actors);
+		structure.put("added", added);
+		
+		nodes = new ArrayList<Object>();
+		links = new ArrayList<Object>();
+		for(PLUSObject obj : delta.getChangedNodes()) nodes.add(provenanceObjectToD3(obj));
+		for(PLUSEdge e : delta.getChangedEdges()) links.add(edgeToD3(e, null, null));
+		
+		HashMap<String,Object> changed = new HashMap<String,Object>();
+		changed.put("nodes", nodes);
+		changed.put("links", links);
+		structure.put("changed", changed);
+		
+		nodes = new ArrayList<Object>();
+		links = new ArrayList<Object>();
+		actors = new ArrayList<Object>();
+		for(PLUSObject obj : delta.getRemovedNodes()) nodes.add(obj.getId());
+		nodes.addAll(delta.getRemovedNPIDs());
+		
+		for(NonProvenanceEdge npe : delta.getRemovedNPEs()) {
+			HashMap<String,Object> link = new HashMap<String,Object>();
+			link.put(KEY_NPEID, npe.getId());
+			links.add(link);
+		}
+		
+		for(PLUSEdge e : delta.getRemovedEdges()) {
+			HashMap<String,Object> link = new HashMap<String,Object>();
+			link.put(KEY_FROM, e.getFrom().getId());
+			link.put(KEY_TO, e.getTo().getId());
+			links.add(link);
+		}
+		
+		for(PLUSActor a : delta.getRemovedActors()) actors.add(a.getId());
+		
+		HashMap<String,Object> removed = new HashMap<String,Object>();
+		removed.put("nodes", nodes);
+		removed.put("links", links);
+		removed.put("actors", actors);
+		structure.put("removed", removed);
+		
+		structure.put("nodeTags", delta.getChangedTags());
+		structure.put("untagged", delta.getUntaggedNodes());
+		
+		return new GsonBuilder().setPrettyPrinting().create().toJson(structure);
+	} // End graphDeltaToD3Json
+	
 	/**
 	 * This creates a JSON string suitable to represent a given provenance collection for D3.
 	 * It broadly follows the format found at http://bl.ocks.org/mbostock/4062045#miserables.json
@@ -158,10 +305,8 @@ public class JSONConverter {
 		}
 		
 		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) {
-			String oid = npe.getId();
 			String id1 = npe.getFrom();
 			String id2 = npe.getTo();
-			String type = npe.getType();			
 						
 			Integer fromIdx = indexMapping.get(id1);
 			Integer toIdx = indexMapping.get(id2);
@@ -188,21 +333,7 @@ public class JSONConverter {
 				idx++;
 			}
 			
-			HashMap<String,Object> jsonEdge = new HashMap<String,Object>();
-
-			jsonEdge.put(KEY_NPEID, oid);
-			jsonEdge.put(KEY_SOURCE, fromIdx);
-			jsonEdge.put(KEY_TARGET, toIdx);
-			jsonEdge.put(KEY_FROM, id1);
-			jsonEdge.put(KEY_TO, id2);
-			jsonEdge.put(KEY_LABEL, type);
-			jsonEdge.put(KEY_TYPE, "npe");			
-			jsonEdge.put(KEY_LEFT, new Boolean(false));
-			jsonEdge.put(KEY_RIGHT, new Boolean(true));
-			jsonEdge.put(KEY_CREATED, npe.getCreated());
-			if(npe.getSourceHints() != null) jsonEdge.put("sourceHints", npe.getSourceHints().toString());
-				
-			links.add(jsonEdge);
+			links.add(npeToD3(npe, fromIdx, toIdx));
 		} // End foreach NPE
 				
 		for(PLUSEdge e : col.getEdges()) { 
@@ -220,36 +351,13 @@ public class JSONConverter {
 				continue;
 			} // End if
 			
-			HashMap<String,Object> jsonEdge = new HashMap<String,Object>();
-			jsonEdge.put(KEY_SOURCE, fromIdx);
-			jsonEdge.put(KEY_TARGET, toIdx); 
-			jsonEdge.put(KEY_FROM, e.getFrom().getId());
-			jsonEdge.put(KEY_TO, e.getTo().getId());
-			jsonEdge.put(KEY_LEFT, new Boolean(false)); 
-			jsonEdge.put(KEY_RIGHT, new Boolean(true)); 
-			jsonEdge.put(KEY_LABEL, e.getType());
-			jsonEdge.put(KEY_TYPE, e.getType());
-			if(e.getSourceHints() != null) jsonEdge.put("sourceHints", e.getSourceHints().toString()); 
-			jsonEdge.put(KEY_WORKFLOW, e.getWorkflow().getId());
-			
-			links.add(jsonEdge);
+			links.add(edgeToD3(e, fromIdx, toIdx));
 		} // End foreach PLUSEdge
 				
 		structure.put("nodes", nodes);
 		structure.put("links", links); 
 		
-		HashMap<String,Object> actorProps = null;
-		
-		for(PLUSActor a : col.getActors()) {
-			actorProps = new HashMap<String,Object>();
-			
-			actorProps.put(KEY_ID, a.getId());
-			actorProps.put(KEY_NAME, a.getName());
-			actorProps.put("created", a.getCreated());
-			actorProps.put(KEY_TYPE, a.getType());
-			
-			actors.add(actorProps);
-		}
+		for(PLUSActor a : col.getActors()) actors.add(actorToD3(a));
 		
 		structure.put("actors", actors);
 		
@@ -0,0 +1,109 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.db.neo4j.MetadataIndex;
+import org.mitre.provenance.user.PrivilegeClass;
+import org.mitre.provenance.user.User;
+
+import com.wordnik.swagger.annotations.Api;
+import com.wordnik.swagger.annotations.ApiOperation;
+import com.wordnik.swagger.annotations.ApiParam;
+import com.wordnik.swagger.annotations.ApiResponse;
+import com.wordnik.swagger.annotations.ApiResponses;
+
+/**
+ * Administrative services for maintaining the provenance store.  Only users holding the administrative privilege
+ * class may use them.
+ * @author moxious
+ */
+@Path("/admin")
+@Api(value = "/admin", description = "Administration of the provenance store")
+public class AdminServices {
+	protected static final Logger log = Logger.getLogger(AdminServices.class.getName());
+
+	@Path("/indexes")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@ApiOperation(value = "List the declared metadata indexes", notes="Each index is listed with its keys and whether it is ready to use.")
+	@ApiResponses(value = {
+	  @ApiResponse(code = 403, message = "Not an administrator")
+	})
+	public Response getIndexes(@Context HttpServletRequest req) {
+		if(!isAdmin(req)) return ServiceUtility.FORBIDDEN("Only administrators may inspect indexes");
+
+		List<HashMap<String,Object>> indexes = new ArrayList<HashMap<String,Object>>();
+		for(MetadataIndex.Definition d : MetadataIndex.getIndexes()) indexes.add(describe(d));
+
+		return ServiceUtility.OK(indexes);
+	} // End getIndexes
+
+	@Path("/indexes")
+	@POST
+	@Produces(MediaType.APPLICATION_JSON)
+	@ApiOperation(value = "Declare a metadata index",
+	              notes="Objects stored from now on are indexed at once; objects already stored are indexed in the " +
+	                    "background.  Poll GET /admin/indexes until the index is READY.  Declaring an index that " +
+	                    "already exists does nothing.")
+	@ApiResponses(value = {
+	  @ApiResponse(code = 400, message = "Invalid keys"),
+	  @ApiResponse(code = 403, message = "Not an administrator")
+	})
+	public Response declareIndex(@Context HttpServletRequest req,
+			@ApiParam(value = "Comma-separated metadata keys; more than one makes a composite index", required=true)
+			@FormParam("keys") String keys) {
+		if(!isAdmin(req)) return ServiceUtility.FORBIDDEN("Only administrators may build indexes");
+		if(keys == null || "".equals(keys.trim())) return ServiceUtility.BAD_REQUEST("Must specify keys");
+
+		try {
+			MetadataIndex.Definition d = MetadataIndex.declare(Arrays.asList(keys.trim().split("\\s*,\\s*")));
+			log.info("Metadata index " + d + " declared by " + ServiceUtility.getUser(req));
+			return ServiceUtility.OK(describe(d));
+		} catch(PLUSException exc) {
+			return ServiceUtility.BAD_REQUEST(exc.getMessage());
+		}
+	} // End declareIndex
+
+	protected static boolean isAdmin(HttpServletRequest req) {
+		User user = ServiceUtility.getUser(req);
+		return user.getPrivileges().contains(PrivilegeClass.ADMIN);
+	}
+
+	protected static HashMap<String,Object> describe(MetadataIndex.Definition d) {
+		HashMap<String,Object> map = new HashMap<String,Object>();
+		map.put("name", d.getName());
+		map.put("keys", d.getKeys());
+		map.put("state", "" + d.getState());
+		map.put("indexed", d.getIndexed());
+		return map;
+	} // End describe
+} // End AdminServices
@@ -37,11 +37,14 @@ import javax.ws.rs.core.Response;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.client.AbstractProvenanceClient;
 import org.mitre.provenance.client.LocalProvenanceClient;
+import org.mitre.provenance.dag.GraphDelta;
 import org.mitre.provenance.dag.TraversalSettings;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
 import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSSerializer;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.json.JSONConverter;
 import org.mitre.provenance.plusobject.json.JsonFormatException;
 import org.mitre.provenance.plusobject.json.ProvenanceCollectionDeserializer;
 import org.mitre.provenance.user.User;
@@ -70,6 +73,9 @@ import com.wordnik.swagger.annotations.ApiResponses;
 public class DAGServices {
 	protected static Logger log = Logger.getLogger(DAGServices.class.getName());
 	
+	/** Response header carrying the version token of a D3-JSON graph, to be passed back as "since". */
+	public static final String VERSION_HEADER = "X-Graph-Version";
+	
 	public class CollectionFormatException extends Exception {
 		private static final long serialVersionUID = 2819285921155590440L;
 		public CollectionFormatException(String msg) { super(msg); } 
@@ -78,7 +84,9 @@ public class DAGServices {
 	@Path("/{oid:.*}")	
 	@Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
 	@GET
-	@ApiOperation(value = "Get a provenance graph", notes = "More notes about this method", response = ProvenanceCollection.class)
+	@ApiOperation(value = "Get a provenance graph", notes = "D3-JSON responses carry a version token in the " + VERSION_HEADER + 
+			" header.  Passing it back as since returns only the changes made since that version, or the whole graph " + 
+			"if the token has expired.", response = ProvenanceCollection.class)
 	@ApiResponses(value = {
 	  @ApiResponse(code = 400, message = "Error loading graph"),
 	  @ApiResponse(code = 404, message = "Base object ID not found") 
@@ -103,7 +111,9 @@ public class DAGServices {
 			@ApiParam(value = "Return results backward of the starting point", required = false)
 			@DefaultValue("true") @QueryParam("backward") boolean backward,
 			@ApiParam(value = "If true, traverse via BFS.  If false, use DFS", required = false)
-			@DefaultValue("true") @QueryParam("breadthFirst") boolean breadthFirst) {				
+			@DefaultValue("true") @QueryParam("breadthFirst") boolean breadthFirst,
+			@ApiParam(value = "Version token of a graph previously returned; if given, return only what has changed since", required = false)
+			@QueryParam("since") String since) {				
 
 		TraversalSettings ts = new TraversalSettings();
 		ts.n = maxNodes;
@@ -122,7 +132,8 @@ public class DAGServices {
 		if(maxHops <= 0) return ServiceUtility.BAD_REQUEST("Max hops must be greater than zero");		
 		
 		try {
-			AbstractProvenanceClient client = new LocalProvenanceClient(ServiceUtility.getUser(req)); 
+			User user = ServiceUtility.getUser(req);
+			AbstractProvenanceClient client = new LocalProvenanceClient(user); 
 			
 			if((client.exists(oid) == null) && (Neo4JStorage.getNPID(oid, false) == null))  
 				return Response.status(Response.Status.NOT_FOUND).entity("Entity not found for " + oid).build();
@@ -130,7 +141,26 @@ public class DAGServices {
 			ProvenanceCollection col = client.getGraph(oid, ts);
 			log.info("D3 Graph for " + oid + " returned " + col); 
 			
-			return ServiceUtility.OK(col, req);					
+			// Only D3-JSON has a delta representation; everything else is always sent whole.
+			if(!GraphVersions.isEnabled() || ServiceUtility.suggestFormat(req) != PLUSSerializer.Format.D3_JSON)
+				return ServiceUtility.OK(col, req);
+			
+			ProvenanceCollection base = GraphVersions.get(since, user);
+			if(base == null) {
+				if(since != null) log.info("Graph version " + since + " unknown; sending whole graph for " + oid);
+				
+				Response full = ServiceUtility.OK(col, req);
+				if(full.getStatus() != Response.Status.OK.getStatusCode()) return full;
+				return Response.fromResponse(full).header(VERSION_HEADER, GraphVersions.register(user, col)).build();
+			}
+			
+			GraphDelta delta = GraphDelta.between(base, col);
+			log.info("D3 Graph for " + oid + " since " + since + ": " + delta);
+			
+			// An unchanged graph keeps its token, so repeated polls don't fill up the cache.
+			String version = (delta.isEmpty() ? since : GraphVersions.register(user, col));
+			return Response.ok(JSONConverter.graphDeltaToD3Json(delta, version, since), MediaType.APPLICATION_JSON)
+					.header(VERSION_HEADER, version).build();
 		} catch(PLUSException exc) { 
 			log.severe(exc.getMessage());
 			exc.printStackTrace();
@@ -34,6 +34,7 @@ import org.mitre.provenance.Metadata;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
+import org.mitre.provenance.db.neo4j.RecencyIndex;
 import org.mitre.provenance.npe.NonProvenanceEdge;
 import org.mitre.provenance.plusobject.PLUSActor;
 import org.mitre.provenance.plusobject.PLUSObject;
@@ -62,44 +63,48 @@ public class Feeds {
 	protected @Context UriInfo uriInfo;
 	
 	public static Integer maxResults = 30;
+	
+	/** Response header carrying the cursor of the next page of a latest-items feed, to be passed back as "before". */
+	public static final String CURSOR_HEADER = "X-Next-Cursor";
 
 	public Feeds() { ; } 
 	
 	/**
 	 * Returns the latest items reported to the database that have hashed content.  That is, their metadata
-	 * contains a reference to the field below.
+	 * contains a reference to the field below.  They are found through the recency index, so only the most recent
+	 * hours are read rather than every object in the store.
 	 * @param req
 	 * @param maxItems
+	 * @param before the cursor of the previous page, if any
 	 * @return D3-JSON formatted response
 	 * @see Metadata#CONTENT_HASH_SHA_256
 	 */
 	@Path("/hashedContent")
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	@ApiOperation(value = "Get latest hashed content", notes="Content identified by MD5, SHA hashes", response=ProvenanceCollection.class)
+	@ApiOperation(value = "Get latest hashed content", notes="Content identified by MD5, SHA hashes.  If there is older content, the " + 
+			CURSOR_HEADER + " header holds the cursor to pass as before to get it.", response=ProvenanceCollection.class)
 	@ApiResponses(value = {
 	  @ApiResponse(code = 400, message = "Error loading content"),	 
 	  @ApiResponse(code = 400, message = "Bad n value"),
+	  @ApiResponse(code = 400, message = "Invalid cursor"),
 	})		
 	public Response hashedContent(@Context HttpServletRequest req,
 			@ApiParam(value = "Maximum number of items to return", required = false)
-			@DefaultValue("10") @QueryParam("n") int maxItems) {
+			@DefaultValue("10") @QueryParam("n") int maxItems,
+			@ApiParam(value = "Cursor of the previous page, to fetch older content", required=false)
+			@QueryParam("before") String before) {
 		if(maxItems <= 0 || maxItems > maxResults) return ServiceUtility.BAD_REQUEST("Bad n value");
 
-		String propName = Neo4JStorage.getMetadataPropertyName(Metadata.CONTENT_HASH_SHA_256);
+		RecencyIndex.Cursor cursor = null;
+		try { cursor = RecencyIndex.Cursor.parse(before); } 
+		catch(PLUSException exc) { return ServiceUtility.BAD_REQUEST(exc.getMessage()); }
 		
-		String query = "match (n:Provenance) " + 
-	               	   "where has(n.`" + propName + "`) " +  
-	               	   "return n " +
-	               	   "order by n.created desc " + 
-	               	   "limit " + maxItems;
-	
-		try { 
-			return ServiceUtility.OK_ExecuteQuery(req, query, "n");
-		} catch(PLUSException exc) { 
-			exc.printStackTrace();
-			return ServiceUtility.ERROR(exc.getMessage());
-		}
+		RecencyIndex.Page<ProvenanceCollection> page = 
+				Neo4JPLUSObjectFactory.getRecentlyHashed(ServiceUtility.getUser(req), cursor, maxItems);
+		if(page == null) return ServiceUtility.ERROR("Unable to load hashed content");
+		
+		return withCursor(ServiceUtility.OK(page.getItems()), page.getNext());
 	}
 	
 	@Path("/connectedData")
@@ -136,26 +141,35 @@ public class Feeds {
 	@GET
 	@Produces({"application/rss+xml", MediaType.APPLICATION_JSON})
 	@ApiOperation(value = "Get latest external identifiers (non-provenance IDs)", 
-    notes="Any non-provenance identifiers associated with reported data", 
+    notes="Any non-provenance identifiers associated with reported data.  If there are older items, the " + CURSOR_HEADER + 
+          " header holds the cursor to pass as before to get them.", 
     response=ProvenanceCollection.class)
 	@ApiResponses(value = {
 			@ApiResponse(code = 400, message = "Error loading content"),	 
 			@ApiResponse(code = 400, message = "Bad n value"),
+			@ApiResponse(code = 400, message = "Invalid cursor"),
 	})				
 	public Response externalIdentifiers(@Context HttpServletRequest req, 
 			@ApiParam(value = "Maximum number of items to return", required = false)
 			@DefaultValue("30") @QueryParam("n") int maxItems,
 			@ApiParam(value = "Format of response: rdf or json", required = false)
-			@DefaultValue("rss") @QueryParam("format") String format) throws PLUSException, FeedException {
+			@DefaultValue("rss") @QueryParam("format") String format,
+			@ApiParam(value = "Cursor of the previous page, to fetch older items", required = false)
+			@QueryParam("before") String before) throws PLUSException, FeedException {
 		if(maxItems < 0) return ServiceUtility.BAD_REQUEST("Bad n value");
 		if(maxItems > maxResults) maxItems = maxResults;
 		
 		if(!"rss".equals(format) && !"json".equals(format)) return ServiceUtility.BAD_REQUEST("Illegal format");
 		
-		ProvenanceCollection col = Neo4JPLUSObjectFactory.getNonProvenanceEdges(null, ServiceUtility.getUser(req), maxItems);
+		RecencyIndex.Cursor cursor = null;
+		try { cursor = RecencyIndex.Cursor.parse(before); } 
+		catch(PLUSException exc) { return ServiceUtility.BAD_REQUEST(exc.getMessage()); }  
+		
+		RecencyIndex.Page<ProvenanceCollection> page = Neo4JPLUSObjectFactory.getRecentNonProvenanceEdges(ServiceUtility.getUser(req), cursor, maxItems);
+		ProvenanceCollection col = page.getItems();
 		
 		if("json".equals(format)) { 
-			return ServiceUtility.OK(col);
+			return withCursor(ServiceUtility.OK(col), page.getNext());
 		} else { 
 			String title = "Provenance Search Results";
 			String description = "Feed of external identifiers";	
@@ -177,7 +191,7 @@ public class Feeds {
 			
 			feed.setEntries(entries);
 	
-			return ServiceUtility.OK(feed);
+			return withCursor(ServiceUtility.OK(feed), page.getNext());
 		} // End else
 	} // End externalIdentifiers
 
@@ -334,18 +348,29 @@ public class Feeds {
 	@Path("/objects/latest")
 	@GET
 	@Produces({"application/rss+xml", MediaType.APPLICATION_JSON})
-	@ApiOperation(value = "Get latest reported objects", notes=" ", response=ProvenanceCollection.class)
+	@ApiOperation(value = "Get latest reported objects", notes="If there are older objects, the " + CURSOR_HEADER + 
+			" header holds the cursor to pass as before to get them.", response=ProvenanceCollection.class)
 	@ApiResponses(value = {
 			@ApiResponse(code = 400, message = "Error loading content"),	 			
+			@ApiResponse(code = 400, message = "Invalid cursor"),
 	})	
 	public Response latest(@Context HttpServletRequest req, 
 						   @ApiParam(value = "format of response; rss or json", required=true)
-			               @DefaultValue("rss") @QueryParam("format") String format) throws PLUSException, FeedException {
+			               @DefaultValue("rss") @QueryParam("format") String format,
+			               @ApiParam(value = "Cursor of the previous page, to fetch older objects", required=false)
+			               @QueryParam("before") String before) throws PLUSException, FeedException {
 		if(!"rss".equals(format) && !"json".equals(format)) 
 			return ServiceUtility.BAD_REQUEST("Invalid format");
 		
+		RecencyIndex.Cursor cursor = null;
+		try { cursor = RecencyIndex.Cursor.parse(before); } 
+		catch(PLUSException exc) { return ServiceUtility.BAD_REQUEST(exc.getMessage()); }
+		
 		// Fetch the objects
-		ProvenanceCollection objects = Neo4JPLUSObjectFactory.getRecentlyCreated(ServiceUtility.getUser(req), maxResults);	  
+		RecencyIndex.Page<ProvenanceCollection> page = 
+				Neo4JPLUSObjectFactory.getCreated(ServiceUtility.getUser(req), 0, Long.MAX_VALUE, cursor, maxResults);
+		if(page == null) return ServiceUtility.ERROR("Unable to load latest objects");
+		ProvenanceCollection objects = page.getItems();
 
 		// As a special case, since we're reporting this back to the client we have to add in the various actors, otherwise it
 		// won't deserialize properly.
@@ -356,7 +381,7 @@ public class Feeds {
 		log.info("latest objects: " + objects.countNodes());
 		
 		if("json".equals(format)) { 
-			return ServiceUtility.OK(objects);
+			return withCursor(ServiceUtility.OK(objects), page.getNext());
 		} else { 
 			String title = "Trusting Composed Information Provenance Feed: Latest Objects";
 			String description = "Feed of the most recently created lineage objects reported to IM-PLUS";
@@ -378,7 +403,13 @@ public class Feeds {
 				entries.add(FeedEntryFactory.getFeedEntry(object, uriInfo.getAbsolutePath().getPath())); 
 			feed.setEntries(entries);
 	
-			return ServiceUtility.OK(feed);
+			return withCursor(ServiceUtility.OK(feed), page.getNext());
 		} // End else
 	}
+	
+	/** @return the response with the cursor of the next page in its headers, if there is one and the response is OK. */
+	protected static Response withCursor(Response r, RecencyIndex.Cursor next) { 
+		if(next == null || r.getStatus() != Response.Status.OK.getStatusCode()) return r;
+		return Response.fromResponse(r).header(CURSOR_HEADER, next.toString()).build();
+	}
 } // End Feeds
@@ -19,6 +19,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -32,6 +33,7 @@ import javax.ws.rs.core.Response;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.dag.TraversalSettings;
 import org.mitre.provenance.dag.ViewedCollection;
+import org.mitre.provenance.db.neo4j.FullTextIndex;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
 import org.mitre.provenance.plusobject.PLUSActor;
@@ -67,6 +69,9 @@ import com.wordnik.swagger.annotations.ApiResponses;
 public class FitnessServices {
 	protected static Logger log = Logger.getLogger(FitnessServices.class.getName());
 	
+	/** Most objects matching a term that termFinder narrows its traversal to; beyond that, it checks every node. */
+	public static final int TERM_CANDIDATES = 10000;
+	
 	@GET
 	@Path("/{oid:.*}/timelag")
 	@ApiOperation(value = "Assess the time lag (oldest to newest) in a graph", notes="")
@@ -144,11 +149,24 @@ public class FitnessServices {
 			return ServiceUtility.BAD_REQUEST("Missing term");
 		
 		User user = ServiceUtility.getUser(req);
-		ViewedCollection col = new ViewedCollection(user);
 		
 		final Node startingPoint = Neo4JStorage.oidExists(oid);
 		if(startingPoint == null) return ServiceUtility.NOT_FOUND("No such object " + oid);
 		
+		return ServiceUtility.OK(termFinder(startingPoint, term, user), req);
+	} // End termFinder
+	
+	/**
+	 * Find the objects upstream of a starting point whose names contain a term, ignoring case.
+	 * @param startingPoint the node to start from
+	 * @param term the term to find
+	 * @param user the user viewing the results
+	 * @return the matching objects.
+	 * @throws PLUSException
+	 */
+	public static ViewedCollection termFinder(Node startingPoint, String term, User user) throws PLUSException { 
+		ViewedCollection col = new ViewedCollection(user);
+		
 		try (Transaction tx = Neo4JStorage.beginTx()) { 		
 			TraversalSettings s = new TraversalSettings();			
 			s.n = 500;
@@ -165,7 +183,13 @@ public class FitnessServices {
 			
 			final String termToFind = term.toLowerCase().trim();
 			
+			// The full-text index narrows down which nodes can match.  If nothing in the store does, there's no need
+			// to traverse at all.
+			Set<Long> candidates = FullTextIndex.findNameMatches(termToFind, TERM_CANDIDATES);
+			if(candidates != null && candidates.isEmpty()) return col;
+			
 			for(Node n : desc.traverse(startingPoint).nodes()) {
+				if(candidates != null && !candidates.contains(n.getId())) continue;
 				String name = (""+n.getProperty("name", "")).toLowerCase();
 				
 				if(name.indexOf(termToFind) != -1)
@@ -177,7 +201,7 @@ public class FitnessServices {
 			log.severe("Failed transaction: " + exc.getMessage());
 		}
 			
-		return ServiceUtility.OK(col, req);
+		return col;
 	} // End termFinder
 	
 	@GET 
@@ -228,8 +252,8 @@ length ( path )  AS PATH_LENGTH
 order by length ( path )
 		 */
 		
-		String query = "start myTarget=node:node_auto_index(oid={oid}) " + 
-	                   "match m-[r:contributed|marks|`input to`|unspecified|triggered|generated*]->myTarget " +
+		String query = "match m-[r:contributed|marks|`input to`|unspecified|triggered|generated*]->" + 
+	                   "(myTarget:" + Neo4JStorage.LABEL_NAME_NODE + " {oid: {oid}}) " +
 	                   "where has(m.ownerid) " + 
 				       "return m.ownerid as ownerid";
 		
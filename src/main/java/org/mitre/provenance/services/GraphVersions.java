@@ -0,0 +1,99 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.tools.ConcurrentLRUCache;
+import org.mitre.provenance.user.User;
+
+/**
+ * Remembers recently served graphs under version tokens, so that a client which sends back the token it was given
+ * can be sent only what has changed since.
+ *
+ * <p>A token only identifies a graph for the user it was issued to; anyone else presenting it is treated as if it had
+ * expired.  Up to {@link #CAPACITY} graphs are kept, least recently used first out; set the system property
+ * plus.graph.versions.size to change that, and zero to turn delta responses off.  Graphs are held as served, so they
+ * must not be modified once registered.
+ * @see DAGServices#getGraph
+ * @author moxious
+ */
+public class GraphVersions {
+	/** Maximum number of graphs remembered. */
+	public static final int CAPACITY = Integer.getInteger("plus.graph.versions.size", 256);
+
+	private static final ConcurrentLRUCache<String,Version> versions =
+			(CAPACITY > 0 ? new ConcurrentLRUCache<String,Version>(CAPACITY) : null);
+
+	/** Distinguishes tokens issued by different runs of the server. */
+	private static final String epoch = Long.toString(System.currentTimeMillis(), 36);
+	private static final AtomicLong counter = new AtomicLong(0);
+
+	private static class Version {
+		final String userId;
+		final ProvenanceCollection graph;
+
+		Version(String userId, ProvenanceCollection graph) {
+			this.userId = userId;
+			this.graph = graph;
+		}
+	} // End Version
+
+	/** @return true if graphs are being remembered. */
+	public static boolean isEnabled() { return versions != null; }
+
+	/**
+	 * Remember a graph served to a user.
+	 * @param user the user it was served to
+	 * @param graph the graph
+	 * @return the token identifying it, or null if graphs aren't being remembered.
+	 */
+	public static String register(User user, ProvenanceCollection graph) {
+		if(versions == null) return null;
+
+		String token = epoch + "-" + Long.toString(counter.incrementAndGet(), 36);
+		versions.put(token, new Version(user.getId(), graph));
+		return token;
+	} // End register
+
+	/**
+	 * Find the graph a token was issued for.
+	 * @param token the token
+	 * @param user the user presenting it
+	 * @return the graph, or null if the token is unknown, has been forgotten, or was issued to someone else.
+	 */
+	public static ProvenanceCollection get(String token, User user) {
+		if(versions == null || token == null) return null;
+
+		Version v = versions.get(token);
+		if(v == null || !v.userId.equals(user.getId())) return null;
+		return v.graph;
+	} // End get
+
+	/** Forget every graph. */
+	public static void clear() {
+		if(versions != null) versions.clear();
+	}
+
+	/** @return the number of graphs remembered. */
+	public static int size() { return (versions == null ? 0 : versions.size()); }
+
+	/** Return the number of tokens presented that were still remembered. */
+	public static long getHits() { return (versions == null ? 0 : versions.getHits()); }
+
+	/** Return the number of tokens presented that weren't. */
+	public static long getMisses() { return (versions == null ? 0 : versions.getMisses()); }
+} // End GraphVersions
@@ -42,6 +42,7 @@ import javax.ws.rs.core.UriInfo;
 import org.mitre.provenance.Metadata;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.dag.ViewedCollection;
+import org.mitre.provenance.db.neo4j.ContentHashIndex;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
 import org.mitre.provenance.plusobject.PLUSObject;
@@ -68,6 +69,9 @@ import com.wordnik.swagger.annotations.ApiResponses;
 public class ObjectServices {
 	protected static Logger log = Logger.getLogger(ObjectServices.class.getName());
 	
+	/** Response header carrying the number of objects that share a content hash */
+	public static final String GROUP_SIZE_HEADER = "X-Group-Size";
+	
 	@Context
 	UriInfo uriInfo;
 			
@@ -75,18 +79,21 @@ public class ObjectServices {
 	@POST
 	@Produces(MediaType.APPLICATION_JSON)
         // @Consumes("application/x-javascript")
-	@ApiOperation(value = "Search for provenance objects by a given search term", notes="", response=ProvenanceCollection.class)
+	@ApiOperation(value = "Search for provenance objects by a given search term", 
+	              notes="Each result is tagged with its searchRank and searchScore", response=ProvenanceCollection.class)
 	@ApiResponses(value = {
 	  @ApiResponse(code = 400, message="Error processing search")	  
 	})			
 	public Response search(@Context HttpServletRequest req,
 			@ApiParam(value="the search term to use", required=true) 
 	        @FormParam("searchTerm") String searchTerm,
-	        @ApiParam(value="maximum items to return", required=true) @DefaultValue("50") @QueryParam("n") int n) {
+	        @ApiParam(value="maximum items to return", required=true) @DefaultValue("50") @QueryParam("n") int n,
+	        @ApiParam(value="number of results to skip", required=false) @DefaultValue("0") @QueryParam("offset") int offset,
+	        @ApiParam(value="search indexed metadata as well as names", required=false) @DefaultValue("false") @QueryParam("metadata") boolean metadata) {
 		log.info("SEARCH POST '" + searchTerm + "'");
 		try { 			
 			//TODO : user
-			ProvenanceCollection col = Neo4JPLUSObjectFactory.searchFor(searchTerm, User.DEFAULT_USER_GOD, n);			
+			ProvenanceCollection col = Neo4JPLUSObjectFactory.searchFor(searchTerm, User.DEFAULT_USER_GOD, offset, n, metadata);			
 			return ServiceUtility.OK(col, req);			
 		} catch(Exception exc) { 
 			exc.printStackTrace();
@@ -97,18 +104,21 @@ public class ObjectServices {
 	@Path("/search/{term:.*}")	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	@ApiOperation(value = "Search for provenance objects by a given search term", notes="", response=ProvenanceCollection.class)
+	@ApiOperation(value = "Search for provenance objects by a given search term", 
+	              notes="Each result is tagged with its searchRank and searchScore", response=ProvenanceCollection.class)
 	@ApiResponses(value = {
 	  @ApiResponse(code = 400, message="Error processing search")	  
 	})			
 	public Response searchTerm(@Context HttpServletRequest req,
 			@ApiParam(value = "The ID of the actor", required=true) 
 	        @PathParam("term") String term,
-	        @ApiParam(value="maximum items to return", required=true) @DefaultValue("50") @QueryParam("n") int n) { 
+	        @ApiParam(value="maximum items to return", required=true) @DefaultValue("50") @QueryParam("n") int n,
+	        @ApiParam(value="number of results to skip", required=false) @DefaultValue("0") @QueryParam("offset") int offset,
+	        @ApiParam(value="search indexed metadata as well as names", required=false) @DefaultValue("false") @QueryParam("metadata") boolean metadata) { 
 		log.info("SEARCH GET '" + term + "'");
 		try { 
 			//TODO
-			ProvenanceCollection col = Neo4JPLUSObjectFactory.searchFor(term, ServiceUtility.getUser(req), n);
+			ProvenanceCollection col = Neo4JPLUSObjectFactory.searchFor(term, ServiceUtility.getUser(req), offset, n, metadata);
 			return ServiceUtility.OK(col, req);			
 		} catch(Exception exc) { 
 			exc.printStackTrace();
@@ -353,6 +363,59 @@ public class ObjectServices {
 		}		
 	}
 	
+	@Path("/hash/{hash:.*}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@ApiOperation(value="Get objects whose content has a particular SHA-256 hash", 
+	  notes="Returns a collection of the objects carrying the hash.  The " + GROUP_SIZE_HEADER + " header holds the " + 
+	        "number of objects carrying it, including any that weren't returned.", 
+	  response=ProvenanceCollection.class)
+	@ApiResponses(value = {
+			@ApiResponse(code = 400, message="Invalid hash or n value")	  
+	})						
+	public Response getObjectsByContentHash(@Context HttpServletRequest req, 
+			@ApiParam(value="SHA-256 content hash", required=true) @PathParam("hash") String hash,
+			@ApiParam(value="Maximum number of objects to return", required=false) @DefaultValue("50") @QueryParam("n") int max) {
+		if(hash == null || "".equals(hash.trim()) || hash.length() > 256)
+			return ServiceUtility.BAD_REQUEST("Invalid hash specified.");
+		if(max <= 0 || max > Neo4JPLUSObjectFactory.MAX_OBJECTS) return ServiceUtility.BAD_REQUEST("Bad n value");
+		
+		User user = ServiceUtility.getUser(req);
+		try {
+			ProvenanceCollection col = Neo4JPLUSObjectFactory.getObjectsByContentHash(user, hash.trim(), max);
+			Response r = ServiceUtility.OK(col, req);
+			if(r.getStatus() != Response.Status.OK.getStatusCode()) return r;
+			
+			return Response.fromResponse(r).header(GROUP_SIZE_HEADER, ContentHashIndex.getGroupSize(hash.trim())).build();
+		} catch (PLUSException e) {
+			e.printStackTrace();
+			return ServiceUtility.ERROR(e.getMessage());
+		}		
+	} // End getObjectsByContentHash
+	
+	@Path("/duplicates")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@ApiOperation(value="List the content hashes shared by the most objects", 
+	  notes="Returns each hash carried by more than one object, with the number of objects carrying it, largest first.")
+	@ApiResponses(value = {
+			@ApiResponse(code = 400, message="Bad n value")	  
+	})						
+	public Response getDuplicateContent(@Context HttpServletRequest req, 
+			@ApiParam(value="Maximum number of hashes to list", required=false) @DefaultValue("20") @QueryParam("n") int max) {
+		if(max <= 0 || max > Neo4JPLUSObjectFactory.MAX_OBJECTS) return ServiceUtility.BAD_REQUEST("Bad n value");
+		
+		ArrayList<Map<String,Object>> groups = new ArrayList<Map<String,Object>>();
+		for(Map.Entry<String,Long> e : ContentHashIndex.getLargestGroups(max).entrySet()) {
+			HashMap<String,Object> group = new HashMap<String,Object>();
+			group.put("hash", e.getKey());
+			group.put("count", e.getValue());
+			groups.add(group);
+		}
+		
+		return ServiceUtility.OK(groups);
+	} // End getDuplicateContent
+	
 	@Path("/npid/{npid:.*}")
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
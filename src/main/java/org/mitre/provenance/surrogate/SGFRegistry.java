@@ -0,0 +1,66 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.surrogate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Holds one instance of each surrogate generating function, keyed by class name.  Objects name their SGFs by class,
+ * so without this every surrogate computed would load and instantiate its SGFs by reflection.
+ *
+ * <p>Instances are shared between objects and between threads, so SGFs must not keep state between calls to
+ * generateSurrogate.  The SGFs shipped with PLUS keep none.
+ * @see org.mitre.provenance.plusobject.PLUSObject#computeSurrogates(org.mitre.provenance.user.User)
+ * @author moxious
+ */
+public class SGFRegistry {
+	private static final Logger log = Logger.getLogger(SGFRegistry.class.getName());
+
+	private static final ConcurrentHashMap<String,SurrogateGeneratingFunction> instances =
+			new ConcurrentHashMap<String,SurrogateGeneratingFunction>();
+
+	/**
+	 * Get the shared instance of an SGF, creating it the first time it's asked for.
+	 * @param className the fully qualified class name of the SGF
+	 * @return the instance for that class.
+	 * @throws ClassNotFoundException if there is no such class
+	 * @throws InstantiationException if it can't be created
+	 * @throws IllegalAccessException if its constructor isn't accessible
+	 */
+	public static SurrogateGeneratingFunction getInstance(String className)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		SurrogateGeneratingFunction f = instances.get(className);
+		if(f != null) return f;
+
+		Class<?> clazz = Class.forName(className);
+
+		if(!SurrogateGeneratingFunction.class.isAssignableFrom(clazz)) {
+			log.severe("SGF isn't assignable from " + className + "!");
+		}
+
+		f = (SurrogateGeneratingFunction) clazz.newInstance();
+
+		// If another thread got there first, use its instance so there is only ever one.
+		SurrogateGeneratingFunction previous = instances.putIfAbsent(className, f);
+		return (previous == null ? f : previous);
+	} // End getInstance
+
+	/** @return the number of SGFs instantiated so far. */
+	public static int size() { return instances.size(); }
+
+	/** Forget every instance, so each SGF will be created again when next needed. */
+	public static void clear() { instances.clear(); }
+} // End SGFRegistry
@@ -0,0 +1,213 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.surrogate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.provenance.Metadata;
+import org.mitre.provenance.db.neo4j.Neo4JStorage;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.tools.ConcurrentLRUCache;
+import org.mitre.provenance.user.PrivilegeClass;
+import org.mitre.provenance.user.PrivilegeSet;
+import org.mitre.provenance.user.User;
+
+/**
+ * Remembers the surrogate chosen for an object, so that users with equivalent privileges viewing the same object
+ * don't run its SGFs and the mediator again.  A missing surrogate (the object has none suitable) is remembered too.
+ *
+ * <p>Entries are grouped by OID.  Within an OID, a result is found by the viewer's privilege signature and the
+ * object's version:  its creation time, name, SGFs and the privileges it requires.  Changing any of those simply
+ * stops the old result from being found.  A result also records the generation of the privilege lattice it was
+ * computed under, and isn't used once the lattice has changed.  Deleting an object drops everything stored for its
+ * OID.  Since SGFs may build surrogates from an object's lineage (SurgicalSGF's edge voters, for instance), storing
+ * or deleting an edge drops everything stored for both of its ends.  {@link #invalidate(String)} does the same for 
+ * any other change.
+ *
+ * <p>The cache holds up to {@link #CAPACITY} OIDs, least recently used first out.  Set the system property
+ * plus.surrogate.cache.size to change that; zero turns caching off.
+ *
+ * <p>The cache keeps its own copy of each surrogate and hands every caller a fresh copy, so a DAG that changes the
+ * surrogate it was given doesn't change anyone else's.  SGFs whose output varies from call to call (RandomInferMarker,
+ * for instance) will give the same answer until the entry is dropped.
+ * @see PLUSObject#getPreferredSurrogate(User)
+ * @author moxious
+ */
+public class SurrogateCache {
+	/** Maximum number of OIDs whose surrogates are remembered. */
+	public static final int CAPACITY = Integer.getInteger("plus.surrogate.cache.size", 10000);
+
+	private static final ConcurrentLRUCache<String,ConcurrentHashMap<String,Entry>> cache =
+			(CAPACITY > 0 ? new ConcurrentLRUCache<String,ConcurrentHashMap<String,Entry>>(CAPACITY) : null);
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+	private static final AtomicLong stale = new AtomicLong(0);
+	private static final AtomicLong invalidations = new AtomicLong(0);
+
+	/** A remembered result. */
+	public static class Entry {
+		/** The surrogate chosen, or null if there was none suitable. */
+		public final PLUSObject surrogate;
+		final long generation;
+
+		Entry(PLUSObject surrogate, long generation) {
+			this.surrogate = surrogate;
+			this.generation = generation;
+		}
+	} // End Entry
+
+	/**
+	 * @return the current generation of the privilege lattice.  Read it before computing a surrogate and pass it to
+	 * {@link #put(PLUSObject, User, PLUSObject, long)}, so that a result computed while the lattice changed isn't used.
+	 */
+	public static long getGeneration() { return Neo4JStorage.getLatticeGeneration(); }
+
+	/** @return a copy of the surrogate whose metadata and privileges may be changed freely, or null if it is null. */
+	protected static PLUSObject copyOf(PLUSObject surrogate) {
+		if(surrogate == null) return null;
+
+		PLUSObject c = surrogate.clone();
+
+		Metadata md = new Metadata();
+		md.copy(surrogate.getMetadata());
+		md.setOwnerOID(surrogate.getMetadata().getOwnerOID());
+		c.setMetadata(md);
+
+		PrivilegeSet ps = new PrivilegeSet();
+		for(PrivilegeClass pc : surrogate.getPrivileges().getPrivilegeSet()) ps.addPrivilege(pc);
+		c.setPrivileges(ps);
+
+		// PLUSObject.copy() leaves the detail out, but without it the copy isn't a surrogate.
+		c.setSurrogateDetail(surrogate.getSurrogateDetail());
+		return c;
+	} // End copyOf
+
+	/** @return true if results are being cached. */
+	public static boolean isEnabled() { return cache != null; }
+
+	/** @return the key of a result within its OID's entries. */
+	protected static String keyFor(PLUSObject obj, User user) {
+		StringBuffer buf = new StringBuffer(user.getPrivileges().getSignature());
+		buf.append("|").append(obj.getCreated()).append("|").append(obj.getName());
+		buf.append("|").append(obj.getPrivileges().getSignature());
+		for(String sgf : obj.getSGFs()) buf.append("|").append(sgf);
+		return buf.toString();
+	} // End keyFor
+
+	/**
+	 * Look up the surrogate remembered for an object and user.
+	 * @param obj the object to stand in for
+	 * @param user the user viewing it
+	 * @return the remembered result, whose surrogate is a copy for this caller and may be null; or null if nothing
+	 * usable is remembered.
+	 */
+	public static Entry get(PLUSObject obj, User user) {
+		if(cache == null) return null;
+
+		ConcurrentHashMap<String,Entry> results = cache.get(obj.getId());
+		Entry e = (results == null ? null : results.get(keyFor(obj, user)));
+
+		if(e != null && e.generation != getGeneration()) {
+			stale.incrementAndGet();
+			e = null;
+		}
+
+		if(e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return new Entry(copyOf(e.surrogate), e.generation);
+	} // End get
+
+	/**
+	 * Remember the surrogate chosen for an object and user.
+	 * @param obj the object
+	 * @param user the user viewing it
+	 * @param surrogate the surrogate chosen, or null if there was none suitable.
+	 * @param generation the lattice generation read before the surrogate was computed.
+	 * @see #getGeneration()
+	 */
+	public static void put(PLUSObject obj, User user, PLUSObject surrogate, long generation) {
+		if(cache == null) return;
+
+		ConcurrentHashMap<String,Entry> results = cache.get(obj.getId());
+		if(results == null) {
+			// Another put for the same OID may be doing the same; only one map may win, or the other's entry is lost.
+			ConcurrentHashMap<String,Entry> fresh = new ConcurrentHashMap<String,Entry>();
+			results = cache.putIfAbsent(obj.getId(), fresh);
+			if(results == null) results = fresh;
+		}
+
+		String key = keyFor(obj, user);
+		Entry e = new Entry(copyOf(surrogate), generation);
+		results.put(key, e);
+
+		// If the OID was invalidated meanwhile, the map it was put in is no longer the cache's; don't leave the entry
+		// in it for anything still holding the map.
+		if(cache.get(obj.getId()) != results) results.remove(key, e);
+	} // End put
+
+	/**
+	 * Forget everything remembered about an OID.  Call this whenever an object changes in a way its version doesn't
+	 * capture.
+	 * @param oid the object's ID
+	 */
+	public static void invalidate(String oid) {
+		if(cache == null) return;
+		cache.remove(oid);
+		invalidations.incrementAndGet();
+	}
+
+	/** Forget everything.  Metrics are not reset. */
+	public static void clear() {
+		if(cache != null) cache.clear();
+	}
+
+	/** @return the number of OIDs with remembered results. */
+	public static int size() { return (cache == null ? 0 : cache.size()); }
+
+	/** Return the number of lookups that found a usable result. */
+	public static long getHits() { return hits.get(); }
+
+	/** Return the number of lookups that didn't, including those that found a stale one. */
+	public static long getMisses() { return misses.get(); }
+
+	/** Return the number of lookups that found a result computed under an earlier privilege lattice. */
+	public static long getStaleHits() { return stale.get(); }
+
+	/** Return the number of OIDs invalidated. */
+	public static long getInvalidations() { return invalidations.get(); }
+
+	/** Return the number of OIDs dropped to keep the cache within its capacity. */
+	public static long getEvictions() { return (cache == null ? 0 : cache.getEvictions()); }
+
+	/** @return the fraction of lookups that were hits, or zero if there haven't been any lookups. */
+	public static double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0 ? 0.0 : (double)h / (double)total);
+	}
+
+	/** @return a one-line summary of the cache's size and metrics. */
+	public static String describe() {
+		return "SurrogateCache: " + size() + "/" + CAPACITY + " objects, " + getHits() + " hits, " + getMisses() +
+				" misses (" + getStaleHits() + " stale), " + getInvalidations() + " invalidations, " +
+				getEvictions() + " evictions";
+	}
+} // End SurrogateCache
@@ -62,6 +62,17 @@ public abstract class SurrogateGeneratingFunction {
 		return true;
 	}
 	
+	/**
+	 * Indicate whether generateSurrogate may be called from any thread, outside of the caller's database transaction.
+	 * SGFs that answer true may be run in parallel on a shared pool.  An SGF that reads from the database, or that keeps
+	 * state between calls, should leave this returning false; it will then always be run on the thread that asked for
+	 * the surrogate.
+	 * @return true if the SGF only computes from its arguments, false otherwise.  The default is false.
+	 */
+	public boolean isThreadSafe() { 
+		return false;
+	}
+	
 	public String toString() { 
 		return new String("SGF: " + this.getClass().getCanonicalName()); 
 	}
@@ -54,4 +54,6 @@ public class GenericInvocationFuzzer extends SurrogateGeneratingFunction {
 		
 		return result;
 	} // End generateSurrogate	
+	
+	public boolean isThreadSafe() { return true; }
 } // End GenericInvocationFuzzer
@@ -71,4 +71,6 @@ public class GenericSGF extends SurrogateGeneratingFunction {
 		
 		return g;
 	} // End generateSurrogate
+	
+	public boolean isThreadSafe() { return true; }
 }
@@ -43,4 +43,6 @@ public class NodePlaceholderInferAll extends SurrogateGeneratingFunction {
 		g.getPrivileges().addPrivilege(PrivilegeClass.PUBLIC);
 		return g;
 	}
+	
+	public boolean isThreadSafe() { return true; }
 }
@@ -42,4 +42,6 @@ public class RandomInferMarker extends SurrogateGeneratingFunction {
 		result.setSurrogateDetail(det); 
 		return result;
 	} // End generateSurrogate
+	
+	public boolean isThreadSafe() { return true; }
 } // End RandomInferMarker
@@ -73,4 +73,6 @@ public class StringRedactionSurrogateFunction extends SurrogateGeneratingFunctio
 		
 		return surrogate; 
 	} // End generateSurrogate()
+	
+	public boolean isThreadSafe() { return true; }
 } // End DataSurrogateDetail()
@@ -0,0 +1,183 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.tools;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, size-bounded least-recently used cache.  Keys are spread across a number of segments by hash; each
+ * segment is an access-ordered map with its own lock and an equal share of the capacity, so threads working on
+ * different keys rarely contend.  Eviction is least-recently used within a segment.
+ *
+ * <p>Hits, misses and evictions are counted, and may be read at any time without locking.
+ * @see LRUCache for a single-threaded equivalent
+ * @author moxious
+ */
+public class ConcurrentLRUCache<K,V> {
+	/** Default number of independently locked segments */
+	public static final int DEFAULT_SEGMENTS = 16;
+
+	private final ArrayList<Segment> segments;
+	private final int capacity;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/** One independently locked part of the cache. */
+	private class Segment extends LinkedHashMap<K,V> {
+		private static final long serialVersionUID = 1L;
+		private final int max;
+
+		Segment(int max) {
+			super(16, 0.75f, true);
+			this.max = max;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+			if(size() <= max) return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	} // End Segment
+
+	/**
+	 * Create a cache with the default number of segments.
+	 * @param capacity the maximum number of entries to hold.
+	 */
+	public ConcurrentLRUCache(int capacity) {
+		this(capacity, DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * Create a cache.
+	 * @param capacity the maximum number of entries to hold.
+	 * @param segmentCount the number of independently locked segments.  Will be reduced if there would be fewer
+	 * than one entry per segment.
+	 */
+	public ConcurrentLRUCache(int capacity, int segmentCount) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity " + capacity);
+		if(segmentCount < 1) segmentCount = 1;
+		if(segmentCount > capacity) segmentCount = capacity;
+
+		this.capacity = capacity;
+		segments = new ArrayList<Segment>(segmentCount);
+
+		// Spread any remainder so the segment capacities add up to the total.
+		for(int x=0; x<segmentCount; x++)
+			segments.add(new Segment(capacity / segmentCount + (x < capacity % segmentCount ? 1 : 0)));
+	} // End ConcurrentLRUCache
+
+	private Segment segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments.get((h & 0x7fffffff) % segments.size());
+	}
+
+	/**
+	 * Get something out of the cache, marking it as recently used.
+	 * @param key the key you used to put it in.
+	 * @return the value stored, or null if there is none.
+	 */
+	public V get(K key) {
+		Segment s = segmentFor(key);
+		V val;
+		synchronized(s) { val = s.get(key); }
+
+		if(val != null) hits.incrementAndGet();
+		else misses.incrementAndGet();
+
+		return val;
+	} // End get
+
+	/**
+	 * Adds an entry to this cache.  If the cache is full, a least recently used entry is dropped.
+	 * @param key the key with which the specified value is to be associated; may not be null
+	 * @param value the value to associate with the key; may not be null
+	 */
+	public void put(K key, V value) {
+		if(key == null || value == null) throw new NullPointerException("Null keys and values are not cached");
+
+		Segment s = segmentFor(key);
+		synchronized(s) { s.put(key, value); }
+	}
+
+	/**
+	 * Adds an entry to this cache, unless there already is one for the key.  If the cache is full, a least recently 
+	 * used entry is dropped.
+	 * @param key the key with which the specified value is to be associated; may not be null
+	 * @param value the value to associate with the key; may not be null
+	 * @return the value already stored, which is kept; or null if there was none and the new value was stored.
+	 */
+	public V putIfAbsent(K key, V value) {
+		if(key == null || value == null) throw new NullPointerException("Null keys and values are not cached");
+
+		Segment s = segmentFor(key);
+		synchronized(s) {
+			V existing = s.get(key);
+			if(existing == null) s.put(key, value);
+			return existing;
+		}
+	} // End putIfAbsent
+
+	/** Removes any entry for the given key. */
+	public void remove(K key) {
+		Segment s = segmentFor(key);
+		synchronized(s) { s.remove(key); }
+	}
+
+	/** Removes all entries.  Metrics are not reset. */
+	public void clear() {
+		for(Segment s : segments) {
+			synchronized(s) { s.clear(); }
+		}
+	}
+
+	/** @return the number of entries currently held. */
+	public int size() {
+		int total = 0;
+		for(Segment s : segments) {
+			synchronized(s) { total += s.size(); }
+		}
+		return total;
+	}
+
+	/** @return the maximum number of entries held. */
+	public int getCapacity() { return capacity; }
+
+	/** Return the number of times the cache has been asked for an object it actually had. */
+	public long getHits() { return hits.get(); }
+
+	/** Return the number of times the cache has been asked for an object it didn't have. */
+	public long getMisses() { return misses.get(); }
+
+	/** Return the number of entries dropped to keep the cache within its capacity. */
+	public long getEvictions() { return evictions.get(); }
+
+	/** @return the fraction of lookups that were hits, or zero if there haven't been any lookups. */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0 ? 0.0 : (double)h / (double)total);
+	}
+
+	public String toString() {
+		return "ConcurrentLRUCache: " + size() + "/" + capacity + " entries, " +
+				getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+	}
+} // End ConcurrentLRUCache
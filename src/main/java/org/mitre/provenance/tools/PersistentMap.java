@@ -0,0 +1,448 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.tools;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map.  Adding or removing a key returns a new map and leaves this one unchanged; the two share all
+ * of their structure except the path to the key that changed, so each change costs time and space logarithmic in
+ * the size of the map rather than a full copy.
+ *
+ * <p>This is a hash array mapped trie:  a tree with up to 32 children per level, chosen by successive 5-bit slices
+ * of the key's hash.  Each level stores only the children present, and keys whose hashes are identical share a
+ * collision list.
+ *
+ * <p>Nothing reachable from a map is ever modified after it is built, and every field is final, so a map may be
+ * read from any number of threads without locking.  Iteration order is determined by the keys' hashes.
+ * @see LRUCache
+ * @author moxious
+ */
+public final class PersistentMap<K,V> implements Iterable<Map.Entry<K,V>> {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/** @return the map with no keys. */
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentMap<K,V> empty() { return EMPTY; }
+
+	/**
+	 * Build a map holding the same entries as an ordinary one.
+	 * @param map the entries to hold
+	 * @return a new map
+	 */
+	public static <K,V> PersistentMap<K,V> of(Map<? extends K, ? extends V> map) {
+		PersistentMap<K,V> result = empty();
+		for(Map.Entry<? extends K, ? extends V> e : map.entrySet()) result = result.plus(e.getKey(), e.getValue());
+		return result;
+	}
+
+	public int size() { return size; }
+	public boolean isEmpty() { return size == 0; }
+
+	/**
+	 * @param key the key to look up
+	 * @return the value stored under the key, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if(root == null) return null;
+		Leaf l = root.find(hash(key), key, 0);
+		return (l == null ? null : (V)l.value);
+	}
+
+	public boolean containsKey(Object key) {
+		return root != null && root.find(hash(key), key, 0) != null;
+	}
+
+	/**
+	 * @param key the key to store under
+	 * @param value the value to store
+	 * @return a map with the key mapped to the value.  If it already was, this map is returned.
+	 */
+	public PersistentMap<K,V> plus(K key, V value) {
+		boolean [] added = new boolean[1];
+		Node r = (root == null ? BitmapNode.EMPTY : root).plus(new Leaf(hash(key), key, value), 0, added);
+		if(r == root) return this;
+		return new PersistentMap<K,V>(r, added[0] ? size + 1 : size);
+	} // End plus
+
+	/**
+	 * @param key the key to remove
+	 * @return a map without the key.  If this map doesn't have it, this map is returned.
+	 */
+	public PersistentMap<K,V> minus(Object key) {
+		if(root == null) return this;
+		Node r = root.minus(hash(key), key, 0);
+		if(r == root) return this;
+		if(r == null) return empty();
+		return new PersistentMap<K,V>(r, size - 1);
+	} // End minus
+
+	/** Iterate over the map's entries.  Entries can't be changed. */
+	public Iterator<Map.Entry<K,V>> iterator() { return new EntryIterator<K,V>(root); }
+
+	/** @return a read-only view of the map's keys. */
+	public Set<K> keySet() {
+		return new AbstractSet<K>() {
+			public Iterator<K> iterator() {
+				final Iterator<Map.Entry<K,V>> it = PersistentMap.this.iterator();
+				return new Iterator<K>() {
+					public boolean hasNext() { return it.hasNext(); }
+					public K next() { return it.next().getKey(); }
+					public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+			public boolean contains(Object o) { return containsKey(o); }
+			public int size() { return size; }
+		};
+	} // End keySet
+
+	/** @return a read-only view of the map's values. */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			public Iterator<V> iterator() {
+				final Iterator<Map.Entry<K,V>> it = PersistentMap.this.iterator();
+				return new Iterator<V>() {
+					public boolean hasNext() { return it.hasNext(); }
+					public V next() { return it.next().getValue(); }
+					public void remove() { throw new UnsupportedOperationException(); }
+				};
+			}
+			public int size() { return size; }
+		};
+	} // End values
+
+	/** @return a read-only view of this map as a java.util.Map. */
+	public Map<K,V> asMap() {
+		return new AbstractMap<K,V>() {
+			public Set<Map.Entry<K,V>> entrySet() {
+				return new AbstractSet<Map.Entry<K,V>>() {
+					public Iterator<Map.Entry<K,V>> iterator() { return PersistentMap.this.iterator(); }
+					public int size() { return size; }
+				};
+			}
+			public V get(Object key) { return PersistentMap.this.get(key); }
+			public boolean containsKey(Object key) { return PersistentMap.this.containsKey(key); }
+			public int size() { return size; }
+		};
+	} // End asMap
+
+	public String toString() { return asMap().toString(); }
+
+	private static int hash(Object key) {
+		int h = (key == null ? 0 : key.hashCode());
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == b || (a != null && a.equals(b));
+	}
+
+	/** A key and its value. */
+	private static final class Leaf implements Map.Entry<Object,Object> {
+		final int hash;
+		final Object key;
+		final Object value;
+
+		Leaf(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Object getKey() { return key; }
+		public Object getValue() { return value; }
+		public Object setValue(Object v) { throw new UnsupportedOperationException("PersistentMap is immutable"); }
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Map.Entry)) return false;
+			Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+			return same(key, e.getKey()) && same(value, e.getValue());
+		}
+
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		public String toString() { return key + "=" + value; }
+	} // End Leaf
+
+	/** A level of the trie. */
+	private static abstract class Node {
+		/** @return the leaf for the key, or null. */
+		abstract Leaf find(int hash, Object key, int shift);
+
+		/**
+		 * @param added set to true if the key wasn't present before.
+		 * @return the node with the leaf added, or this node if nothing changed.
+		 */
+		abstract Node plus(Leaf leaf, int shift, boolean [] added);
+
+		/** @return the node without the key, this node if it didn't have it, or null if nothing is left. */
+		abstract Node minus(int hash, Object key, int shift);
+
+		/** @return the node's only entry if it holds exactly one leaf and no children, otherwise null. */
+		abstract Leaf single();
+
+		/** @return the node's slots, each a Leaf or a Node; never modified. */
+		abstract Object [] slots();
+	} // End Node
+
+	/** A level holding a child for each 5-bit slice of hash that is present. */
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		final int bitmap;
+		final Object [] slots;
+
+		BitmapNode(int bitmap, Object [] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+		private int index(int bit) { return Integer.bitCount(bitmap & (bit - 1)); }
+
+		Leaf find(int hash, Object key, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if((bitmap & bit) == 0) return null;
+
+			Object o = slots[index(bit)];
+			if(o instanceof Leaf) {
+				Leaf l = (Leaf)o;
+				return (l.hash == hash && same(l.key, key) ? l : null);
+			}
+
+			return ((Node)o).find(hash, key, shift + BITS);
+		} // End find
+
+		Node plus(Leaf leaf, int shift, boolean [] added) {
+			int bit = 1 << ((leaf.hash >>> shift) & MASK);
+			int idx = index(bit);
+
+			if((bitmap & bit) == 0) {
+				Object [] s = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, s, 0, idx);
+				s[idx] = leaf;
+				System.arraycopy(slots, idx, s, idx + 1, slots.length - idx);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, s);
+			}
+
+			Object o = slots[idx];
+			Object replacement;
+
+			if(o instanceof Leaf) {
+				Leaf l = (Leaf)o;
+				if(l.hash == leaf.hash && same(l.key, leaf.key)) {
+					if(l.value == leaf.value) return this;
+					replacement = leaf;
+				} else {
+					added[0] = true;
+					replacement = merge(l, leaf, shift + BITS);
+				}
+			} else {
+				Node n = (Node)o;
+				replacement = n.plus(leaf, shift + BITS, added);
+				if(replacement == n) return this;
+			}
+
+			Object [] s = slots.clone();
+			s[idx] = replacement;
+			return new BitmapNode(bitmap, s);
+		} // End plus
+
+		Node minus(int hash, Object key, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if((bitmap & bit) == 0) return this;
+
+			int idx = index(bit);
+			Object o = slots[idx];
+			Object replacement;
+
+			if(o instanceof Leaf) {
+				Leaf l = (Leaf)o;
+				if(l.hash != hash || !same(l.key, key)) return this;
+				replacement = null;
+			} else {
+				Node n = (Node)o;
+				Node m = n.minus(hash, key, shift + BITS);
+				if(m == n) return this;
+
+				// A child left holding a single entry is replaced by that entry.
+				replacement = m;
+				if(m != null && m.single() != null) replacement = m.single();
+			}
+
+			if(replacement != null) {
+				Object [] s = slots.clone();
+				s[idx] = replacement;
+				return new BitmapNode(bitmap, s);
+			}
+
+			if(slots.length == 1) return null;
+
+			Object [] s = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, s, 0, idx);
+			System.arraycopy(slots, idx + 1, s, idx, slots.length - idx - 1);
+			return new BitmapNode(bitmap & ~bit, s);
+		} // End minus
+
+		Leaf single() {
+			return (slots.length == 1 && slots[0] instanceof Leaf ? (Leaf)slots[0] : null);
+		}
+
+		Object [] slots() { return slots; }
+
+		/** Build the smallest subtree holding two leaves with different keys. */
+		private static Node merge(Leaf a, Leaf b, int shift) {
+			if(a.hash == b.hash) return new CollisionNode(a.hash, new Leaf [] { a, b });
+
+			int ma = (a.hash >>> shift) & MASK;
+			int mb = (b.hash >>> shift) & MASK;
+
+			if(ma == mb) return new BitmapNode(1 << ma, new Object [] { merge(a, b, shift + BITS) });
+			return new BitmapNode((1 << ma) | (1 << mb), (ma < mb ? new Object [] { a, b } : new Object [] { b, a }));
+		} // End merge
+	} // End BitmapNode
+
+	/** Keys whose hashes are identical. */
+	private static final class CollisionNode extends Node {
+		final int hash;
+		final Leaf [] leaves;
+
+		CollisionNode(int hash, Leaf [] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		private int indexOf(Object key) {
+			for(int x=0; x<leaves.length; x++)
+				if(same(leaves[x].key, key)) return x;
+			return -1;
+		}
+
+		Leaf find(int hash, Object key, int shift) {
+			if(hash != this.hash) return null;
+			int idx = indexOf(key);
+			return (idx < 0 ? null : leaves[idx]);
+		}
+
+		Node plus(Leaf leaf, int shift, boolean [] added) {
+			// A different hash means this list has to move down a level beside the new key.
+			if(leaf.hash != hash)
+				return new BitmapNode(1 << ((hash >>> shift) & MASK), new Object [] { this }).plus(leaf, shift, added);
+
+			int idx = indexOf(leaf.key);
+			Leaf [] l;
+
+			if(idx >= 0) {
+				if(leaves[idx].value == leaf.value) return this;
+				l = leaves.clone();
+				l[idx] = leaf;
+			} else {
+				l = new Leaf[leaves.length + 1];
+				System.arraycopy(leaves, 0, l, 0, leaves.length);
+				l[leaves.length] = leaf;
+				added[0] = true;
+			}
+
+			return new CollisionNode(hash, l);
+		} // End plus
+
+		Node minus(int hash, Object key, int shift) {
+			if(hash != this.hash) return this;
+			int idx = indexOf(key);
+			if(idx < 0) return this;
+			if(leaves.length == 1) return null;
+
+			Leaf [] l = new Leaf[leaves.length - 1];
+			System.arraycopy(leaves, 0, l, 0, idx);
+			System.arraycopy(leaves, idx + 1, l, idx, leaves.length - idx - 1);
+			return new CollisionNode(hash, l);
+		} // End minus
+
+		Leaf single() { return (leaves.length == 1 ? leaves[0] : null); }
+
+		Object [] slots() { return leaves; }
+	} // End CollisionNode
+
+	/** Walks the trie depth first. */
+	private static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+		private final Object [][] stack = new Object[8][];
+		private final int [] positions = new int[8];
+		private int depth = -1;
+		private Leaf next = null;
+
+		EntryIterator(Node root) {
+			if(root != null) {
+				stack[0] = root.slots();
+				depth = 0;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+
+			while(depth >= 0) {
+				if(positions[depth] >= stack[depth].length) {
+					depth--;
+					continue;
+				}
+
+				Object o = stack[depth][positions[depth]++];
+				if(o instanceof Leaf) {
+					next = (Leaf)o;
+					return;
+				}
+
+				depth++;
+				stack[depth] = ((Node)o).slots();
+				positions[depth] = 0;
+			} // End while
+		} // End advance
+
+		public boolean hasNext() { return next != null; }
+
+		@SuppressWarnings("unchecked")
+		public Map.Entry<K,V> next() {
+			if(next == null) throw new NoSuchElementException();
+			Map.Entry<K,V> result = (Map.Entry<K,V>)(Map.Entry<?,?>)next;
+			advance();
+			return result;
+		}
+
+		public void remove() { throw new UnsupportedOperationException("PersistentMap is immutable"); }
+	} // End EntryIterator
+} // End PersistentMap
@@ -17,6 +17,7 @@ package org.mitre.provenance.user;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import org.mitre.provenance.PLUSException;
@@ -128,6 +129,23 @@ public class PrivilegeSet {
 		}
 	}
 	
+	/** @return true if every class in the set must be dominated, false if any one will do. */
+	public boolean isConjunctive() { return conjunctive; }
+	
+	/**
+	 * A canonical description of this set:  whether it is conjunctive, and its distinct class IDs in sorted order.
+	 * Two sets with the same signature dominate, and are dominated by, exactly the same things.
+	 * @return the signature
+	 */
+	public String getSignature() { 
+		TreeSet<String> ids = new TreeSet<String>();
+		for(PrivilegeClass pc : set) ids.add(pc.getId());
+		
+		StringBuffer buf = new StringBuffer(conjunctive ? "AND" : "OR");
+		for(String id : ids) buf.append(",").append(id);
+		return buf.toString();
+	} // End getSignature
+	
 	public String toString() { 
 		StringBuffer buf = new StringBuffer("(PS: ");
 		
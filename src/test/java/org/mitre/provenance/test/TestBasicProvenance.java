@@ -14,29 +14,66 @@
  */
 package org.mitre.provenance.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mitre.provenance.Metadata;
 import org.mitre.provenance.client.LocalProvenanceClient;
 import org.mitre.provenance.client.ProvenanceClient;
+import org.mitre.provenance.dag.LineageDAG;
 import org.mitre.provenance.dag.TraversalSettings;
+import org.mitre.provenance.db.neo4j.BatchWriter;
+import org.mitre.provenance.db.neo4j.ContentHashIndex;
+import org.mitre.provenance.db.neo4j.FullTextIndex;
+import org.mitre.provenance.db.neo4j.MaterializationContext;
+import org.mitre.provenance.db.neo4j.MetadataIndex;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
+import org.mitre.provenance.db.neo4j.RecencyIndex;
+import org.mitre.provenance.db.neo4j.SchemaMigration;
+import org.mitre.provenance.plusobject.PLUSActor;
 import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.npe.NonProvenanceEdge;
 import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSString;
 import org.mitre.provenance.plusobject.PLUSWorkflow;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.services.FitnessServices;
 import org.mitre.provenance.simulate.SyntheticGraphProperties;
 import org.mitre.provenance.simulate.motif.RandomMotifCollection;
 import org.mitre.provenance.surrogate.sgf.SurgicalInferAll;
 import org.mitre.provenance.user.PrivilegeClass;
 import org.mitre.provenance.user.PrivilegeSet;
 import org.mitre.provenance.user.User;
+import org.neo4j.cypher.javacompat.ExecutionResult;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 
 public class TestBasicProvenance {
+	/** Opens up the factory's protected conversions to the tests. */
+	protected static class Factory extends Neo4JPLUSObjectFactory { 
+		public static Object build(Node n, MaterializationContext ctx) throws Exception { return transmogrify(n, ctx); }
+		public static Object build(Node n) throws Exception { return transmogrify(n); }
+		public static Object build(Relationship r, MaterializationContext ctx) throws Exception { return transmogrify(r, ctx); }
+		public static Object build(Relationship r) throws Exception { return transmogrify(r); }
+	} // End Factory
+	
     @Before
     public void setUp() {
     	Neo4JStorage.initialize();
@@ -53,6 +90,462 @@ public class TestBasicProvenance {
 		}
 	}
 	
+	@Test
+	public void testSchemaLookups() throws Exception { 
+		// Everything initialize() asks for is already there, and comes online.
+		assertTrue("Schema already present", Neo4JStorage.ensureSchema() == 0);
+		assertTrue("Schema indexes online", Neo4JStorage.awaitSchema(60));
+		
+		ProvenanceCollection objs = Neo4JPLUSObjectFactory.getRecentlyCreated(User.DEFAULT_USER_GOD, 5);
+		for(PLUSObject o : objs.getNodes()) 
+			assertTrue("Found by label index: " + o, Neo4JStorage.oidExists(o.getId()) != null);
+		
+		// Migrating a store that's already been migrated changes nothing.
+		SchemaMigration m = new SchemaMigration(50, false).run();
+		assertTrue("Migration created nothing", m.getSchemaCreated() == 0);
+		assertTrue("Migration left indexes online", m.isOnline());
+		assertTrue("Migration timed lookups", m.getSchemaMicros() >= 0);
+	}
+	
+	@Test
+	public void testDeleteThenLookup() throws Exception { 
+		PLUSString s = new PLUSString("Deleted after lookup", "content");
+		Neo4JStorage.store(s);
+		
+		// The first lookup caches the node; the next is answered from the cache.
+		assertTrue("Stored", Neo4JStorage.oidExists(s.getId()) != null);
+		long hits = Neo4JStorage.getNodeIdCacheHits();
+		assertTrue("Still there", Neo4JStorage.oidExists(s.getId()) != null);
+		assertTrue("Answered from the cache", Neo4JStorage.getNodeIdCacheHits() > hits);
+		
+		assertTrue("Deleted", Neo4JStorage.delete(s));
+		
+		// Once deleted, the cached node must not be handed back.
+		long misses = Neo4JStorage.getNodeIdCacheMisses();
+		assertTrue("Deleted object not found", Neo4JStorage.oidExists(s.getId()) == null);
+		assertTrue("Lookup went past the cache", Neo4JStorage.getNodeIdCacheMisses() > misses);
+		assertTrue("Deleted object not found in bulk", 
+				!Neo4JStorage.oidsExist(Arrays.asList(s.getId())).containsKey(s.getId()));
+		assertTrue("Deleting again fails", !Neo4JStorage.delete(s));
+	}
+	
+	@Test
+	public void testRecencyIndex() throws Exception { 
+		long t = System.currentTimeMillis();
+		PLUSString [] objs = new PLUSString[3];
+		
+		for(int x=0; x<objs.length; x++) { 
+			objs[x] = new PLUSString("Recent " + x, "Recent " + x);
+			objs[x].setCreated(t + x);
+			Neo4JStorage.store(objs[x]);
+		}
+		
+		// Newest first, two to a page.
+		RecencyIndex.Page<ProvenanceCollection> page = Neo4JPLUSObjectFactory.getCreated(User.DEFAULT_USER_GOD, t, t + objs.length, null, 2);
+		assertTrue("First page full", page.getItems().countNodes() == 2);
+		assertTrue("First page newest", page.getItems().containsObjectID(objs[2].getId()) && page.getItems().containsObjectID(objs[1].getId()));
+		assertTrue("More to come", page.getNext() != null);
+		
+		RecencyIndex.Cursor cursor = RecencyIndex.Cursor.parse(page.getNext().toString());
+		page = Neo4JPLUSObjectFactory.getCreated(User.DEFAULT_USER_GOD, t, t + objs.length, cursor, 2);
+		assertTrue("Second page holds the rest", page.getItems().countNodes() == 1 && page.getItems().containsObjectID(objs[0].getId()));
+		assertTrue("Last page", page.getNext() == null);
+		
+		NonProvenanceEdge npe = new NonProvenanceEdge(objs[2], "urn:recent:" + t, "identifies");
+		Neo4JStorage.store(npe);
+		
+		ProvenanceCollection npes = Neo4JPLUSObjectFactory.getRecentNonProvenanceEdges(User.DEFAULT_USER_GOD, null, 5).getItems();
+		boolean found = false;
+		for(NonProvenanceEdge e : npes.getNonProvenanceEdges()) if(e.getId().equals(npe.getId())) found = true;
+		assertTrue("Newest NPE in feed", found);
+	}
+	
+	@Test
+	public void testRecencyBucketAfterRollback() throws Exception { 
+		// An hour nothing else was created in.
+		long t = (RecencyIndex.bucketOf(System.currentTimeMillis()) - 24L * 365L * 30L - (System.nanoTime() % 10000L)) * RecencyIndex.BUCKET_MILLIS;
+		
+		PLUSString lost = new PLUSString("Rolled back", "Rolled back");
+		lost.setCreated(t);
+		try (Transaction tx = Neo4JStorage.beginTx()) { 
+			Neo4JStorage.store(lost);
+			tx.failure();
+		}
+		assertTrue("Rolled back", Neo4JStorage.oidExists(lost.getId()) == null);
+		
+		PLUSString kept = new PLUSString("Stored later", "Stored later");
+		kept.setCreated(t + 1);
+		Neo4JStorage.store(kept);
+		
+		// The bucket's marker has to have been written by the store that committed.
+		RecencyIndex.load();
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.getCreated(User.DEFAULT_USER_GOD, t, t + RecencyIndex.BUCKET_MILLIS, null, 5).getItems();
+		assertTrue("Found after reload", col.containsObjectID(kept.getId()));
+		assertTrue("Rolled back object not found", !col.containsObjectID(lost.getId()));
+	}
+	
+	@Test
+	public void testRecencyStampBeforeEpoch() throws Exception { 
+		long t = -RecencyIndex.BUCKET_MILLIS - (System.nanoTime() % 1000L) - 1;
+		assertTrue("Buckets round down", RecencyIndex.bucketOf(t) == -2 && RecencyIndex.bucketOf(-1) == -1);
+		
+		PLUSString old = new PLUSString("Before the epoch", "Before the epoch");
+		old.setCreated(t);
+		Neo4JStorage.store(old);
+		
+		// Make it look like a store written before the index existed, so opening it stamps the object again.
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("oid", old.getId());
+		try (Transaction tx = Neo4JStorage.beginTx()) { 
+			Neo4JStorage.execute("match (n:" + Neo4JStorage.LABEL_NAME_NODE + " {" + Neo4JStorage.PROP_PLUSOBJECT_ID + ": {oid}}) " +
+			                     "remove n." + Neo4JStorage.PROP_CREATED_BUCKET, params).dumpToString();
+			Neo4JStorage.execute("match (b:" + Neo4JStorage.LABEL_NAME_BUCKET + " {key: 'stamped'}) delete b").dumpToString();
+			tx.success();
+		}
+		
+		RecencyIndex.load();
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.getCreated(User.DEFAULT_USER_GOD, t, t + 1, null, 5).getItems();
+		assertTrue("Stamped into the bucket queries use", col.containsObjectID(old.getId()));
+	}
+	
+	@Test
+	public void testFullTextSearch() throws Exception { 
+		String word = "zq" + Long.toString(System.currentTimeMillis(), 36);
+		String hue = "cerulean" + word;
+		
+		PLUSString s = new PLUSString(word + " Quarterly Report", "content");
+		s.getMetadata().put("description", "Painted " + hue);
+		Neo4JStorage.store(s);
+		
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.searchFor(word.substring(1) + " report", User.DEFAULT_USER_GOD, 0, 10, false);
+		assertTrue("Found inside a word", col.containsObjectID(s.getId()));
+		assertTrue("Ranked", "1".equals(col.getTags(s.getId()).get(Neo4JPLUSObjectFactory.SEARCH_RANK_TAG)));
+		
+		assertTrue("Metadata not searched by default", 
+				!Neo4JPLUSObjectFactory.searchFor(hue, User.DEFAULT_USER_GOD, 0, 10, false).containsObjectID(s.getId()));
+		assertTrue("Metadata searched", 
+				Neo4JPLUSObjectFactory.searchFor(hue, User.DEFAULT_USER_GOD, 0, 10, true).containsObjectID(s.getId()));
+		assertTrue("Paged past the only match", 
+				Neo4JPLUSObjectFactory.searchFor(word, User.DEFAULT_USER_GOD, 1, 10, false).countNodes() == 0);
+		
+		Neo4JStorage.delete(s);
+		assertTrue("Deleted objects not found", Neo4JPLUSObjectFactory.searchFor(word, User.DEFAULT_USER_GOD, 0, 10, false).countNodes() == 0);
+	}
+	
+	@Test
+	public void testContentHashIndex() throws Exception { 
+		String hash = "feed" + Long.toString(System.currentTimeMillis(), 16);
+		
+		PLUSString [] copies = new PLUSString [] { new PLUSString("Copy 1", "same"), new PLUSString("Copy 2", "same"), new PLUSString("Copy 3", "same") }; 
+		for(PLUSString s : copies) {
+			s.getMetadata().put(Metadata.CONTENT_HASH_SHA_256, hash);
+			Neo4JStorage.store(s);
+		}
+		
+		assertTrue("Group counted", ContentHashIndex.getGroupSize(hash) == 3);
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.getObjectsByContentHash(User.DEFAULT_USER_GOD, hash, 10);
+		for(PLUSString s : copies) assertTrue("Found by hash", col.containsObjectID(s.getId()));
+		assertTrue("Limited", Neo4JPLUSObjectFactory.getObjectsByContentHash(User.DEFAULT_USER_GOD, hash, 2).countNodes() == 2);
+		assertTrue("Listed as duplicate", ContentHashIndex.getLargestGroups(Neo4JPLUSObjectFactory.MAX_OBJECTS).containsKey(hash));
+		
+		Neo4JStorage.delete(copies[0]);
+		assertTrue("Count follows deletes", ContentHashIndex.getGroupSize(hash) == 2);
+		Neo4JStorage.delete(copies[1]);
+		assertTrue("No longer a duplicate", !ContentHashIndex.getLargestGroups(Neo4JPLUSObjectFactory.MAX_OBJECTS).containsKey(hash));
+		Neo4JStorage.delete(copies[2]);
+		assertTrue("Gone", ContentHashIndex.getGroupSize(hash) == 0);
+		
+		// A hash that drops to zero can be counted again; and surrounding whitespace is trimmed when it's stored.
+		PLUSString padded = new PLUSString("Copy 4", "same");
+		padded.getMetadata().put(Metadata.CONTENT_HASH_SHA_256, "  " + hash + " ");
+		Neo4JStorage.store(padded);
+		assertTrue("Counted again", ContentHashIndex.getGroupSize(hash) == 1);
+		assertTrue("Padded hash found", Neo4JPLUSObjectFactory.getObjectsByContentHash(User.DEFAULT_USER_GOD, hash, 10).containsObjectID(padded.getId()));
+	}
+	
+	@Test
+	public void testMetadataIndex() throws Exception { 
+		MetadataIndex.Definition d = MetadataIndex.declare(Arrays.asList("testRegion", "testBatch"));
+		for(int x=0; x<600 && d.getState() == MetadataIndex.State.BUILDING; x++) Thread.sleep(100);
+		assertTrue("Index built", d.getState() == MetadataIndex.State.READY);
+		
+		String batch = "batch" + System.currentTimeMillis();
+		PLUSString north = new PLUSString("North", "n");
+		north.getMetadata().put("testRegion", "north");
+		north.getMetadata().put("testBatch", batch);
+		PLUSString south = new PLUSString("South", "s");
+		south.getMetadata().put("testRegion", "south");
+		south.getMetadata().put("testBatch", batch);
+		Neo4JStorage.store(north);
+		Neo4JStorage.store(south);
+		
+		Metadata query = new Metadata();
+		query.put("testRegion", "north");
+		query.put("testBatch", batch);
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10);
+		assertTrue("Found through composite index", col.countNodes() == 1 && col.containsObjectID(north.getId()));
+		
+		query.put("name", "South");
+		assertTrue("Every field checked", Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10).countNodes() == 0);
+		
+		assertTrue("Unindexed keys still searched", 
+				Neo4JPLUSObjectFactory.loadBySingleMetadataField(User.DEFAULT_USER_GOD, "testBatch", batch).countNodes() == 2);
+	}
+	
+	@Test
+	public void testMetadataIndexArrayValues() throws Exception { 
+		MetadataIndex.Definition d = MetadataIndex.declare(Arrays.asList("testBatch"));
+		for(int x=0; x<600 && d.getState() == MetadataIndex.State.BUILDING; x++) Thread.sleep(100);
+		assertTrue("Index built", d.getState() == MetadataIndex.State.READY);
+		
+		// Lists are stored as arrays; the index finds the batch, and the tags are compared element by element.
+		String batch = "tagged" + System.currentTimeMillis();
+		PLUSString tagged = new PLUSString("Tagged", "t");
+		tagged.getMetadata().put("testBatch", batch);
+		tagged.getMetadata().put("testTags", Arrays.asList("red", "green"));
+		Neo4JStorage.store(tagged);
+		
+		Metadata query = new Metadata();
+		query.put("testBatch", batch);
+		query.put("testTags", Arrays.asList("red", "green"));
+		ProvenanceCollection col = Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10);
+		assertTrue("Same list matches", col.countNodes() == 1 && col.containsObjectID(tagged.getId()));
+		
+		query.put("testTags", new String [] { "red", "green" });
+		assertTrue("Same array matches", Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10).countNodes() == 1);
+		
+		query.put("testTags", Arrays.asList("green", "red"));
+		assertTrue("Order matters", Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10).countNodes() == 0);
+		
+		query.put("testTags", Arrays.asList("red"));
+		assertTrue("Every element matters", Neo4JPLUSObjectFactory.loadByMetadata(User.DEFAULT_USER_GOD, query, 10).countNodes() == 0);
+	} // End testMetadataIndexArrayValues
+	
+	@Test
+	public void testNewDAGLimits() throws Exception { 
+		ProvenanceCollection col = new ProvenanceCollection();
+		PLUSString hub = new PLUSString("Hub", "hub");
+		col.addNode(hub);
+		
+		PLUSString first = null;
+		for(int x=0; x<20; x++) { 
+			PLUSString spoke = new PLUSString("Spoke " + x, "spoke");
+			if(first == null) first = spoke;
+			col.addNode(spoke);
+			col.addEdge(new PLUSEdge(hub, spoke));
+		}
+		
+		PLUSString far = new PLUSString("Far", "far");
+		col.addNode(far);
+		col.addEdge(new PLUSEdge(first, far));
+		Neo4JStorage.store(col);
+		
+		LineageDAG one = Neo4JPLUSObjectFactory.newDAG(hub.getId(), User.DEFAULT_USER_GOD, new TraversalSettings().setN(1));
+		assertTrue("n=1 on a hub is only the hub", one.countNodes() == 1 && one.containsObjectID(hub.getId()));
+		assertTrue("No edges out of the DAG", one.countEdges() == 0);
+		assertTrue("Hub has more available", "true".equals(one.getTags(hub.getId()).get(LineageDAG.TAG_MORE_AVAILABLE)));
+		assertTrue("Spokes weren't materialized", "0".equals(one.getFingerPrint().asMetadata().get("count:RelationshipsMaterialized")));
+		
+		LineageDAG five = Neo4JPLUSObjectFactory.newDAG(hub.getId(), User.DEFAULT_USER_GOD, new TraversalSettings().setN(5));
+		assertTrue("n=5 on a hub", five.countNodes() == 5);
+		for(PLUSEdge e : five.getEdges()) 
+			assertTrue("Both ends visited", five.contains(e.getFrom()) && five.contains(e.getTo()));
+		
+		LineageDAG shallow = Neo4JPLUSObjectFactory.newDAG(hub.getId(), User.DEFAULT_USER_GOD, 
+				new TraversalSettings().setN(100).setMaxDepth(1));
+		assertTrue("Depth 1 is the hub and its spokes", shallow.countNodes() == 21 && !shallow.containsObjectID(far.getId()));
+	}
+	
+	@Test
+	public void testFullLineageOfMissingObject() throws Exception { 
+		String oid = "urn:uuid:no-such-object";
+		assertTrue("No BLING", Neo4JPLUSObjectFactory.getFullBLING(oid, User.DEFAULT_USER_GOD).countNodes() == 0);
+		assertTrue("No FLING", Neo4JPLUSObjectFactory.getFullFLING(oid, User.DEFAULT_USER_GOD).countNodes() == 0);
+	}
+	
+	@Test
+	public void testTermFinderPunctuation() throws Exception { 
+		String word = "qz" + Long.toString(System.currentTimeMillis(), 36);
+		PLUSString input = new PLUSString(word + "-draft_v1.txt", "input");
+		PLUSString output = new PLUSString(word + " final", "output");
+		
+		ProvenanceCollection col = new ProvenanceCollection();
+		col.addNode(input);
+		col.addNode(output);
+		col.addEdge(new PLUSEdge(input, output));
+		Neo4JStorage.store(col);
+		
+		assertTrue("Punctuation isn't indexed", FullTextIndex.findNameMatches("-", FitnessServices.TERM_CANDIDATES) == null);
+		
+		Node start = Neo4JStorage.oidExists(output.getId());
+		for(String term : new String [] { "-", "_", ".", word + "-draft" }) 
+			assertTrue("Found " + term, FitnessServices.termFinder(start, term, User.DEFAULT_USER_GOD).containsObjectID(input.getId()));
+		
+		assertTrue("Word found through the index", 
+				FitnessServices.termFinder(start, word, User.DEFAULT_USER_GOD).containsObjectID(input.getId()));
+	}
+	
+	/** @return a key for each edge and NPE in a collection, comparable with {@link #incidentByQuery}. */
+	protected Set<String> edgeKeys(ProvenanceCollection col) { 
+		Set<String> keys = new HashSet<String>();
+		if(col == null) return keys;
+		for(PLUSEdge e : col.getEdges()) keys.add(e.getFrom().getId() + " -" + e.getType() + "-> " + e.getTo().getId());
+		for(NonProvenanceEdge npe : col.getNonProvenanceEdges()) keys.add("npe " + npe.getId());
+		return keys;
+	}
+	
+	/** Find an OID's incident edges with one query for that OID alone, the way getIncidentEdges used to. */
+	protected Set<String> incidentByQuery(String oid, String direction, boolean includeProvEdges, boolean includeNPEs) { 
+		ArrayList<String> types = new ArrayList<String>();
+		if(includeProvEdges) types.addAll(Arrays.asList("contributed", "`input to`", "unspecified", "marks", "triggered", "generated"));
+		if(includeNPEs) types.add("NPE");
+		
+		StringBuffer rel = new StringBuffer("[r:");
+		for(int x=0; x<types.size(); x++) rel.append(x > 0 ? "|" : "").append(types.get(x));
+		rel.append("]");
+		
+		String clause = ("fling".equals(direction) ? "-" + rel + "->" : "bling".equals(direction) ? "<-" + rel + "-" : "-" + rel + "-");
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("oid", oid);
+		
+		Set<String> keys = new HashSet<String>();
+		try (Transaction tx = Neo4JStorage.beginTx()) { 
+			ExecutionResult result = Neo4JStorage.execute("match (n:" + Neo4JStorage.LABEL_NAME_NODE + " {" + 
+					Neo4JStorage.PROP_PLUSOBJECT_ID + ": {oid}})" + clause + "(m) where has(m.oid) return r", params);
+			
+			for(Map<String,Object> row : result) { 
+				Relationship r = (Relationship)row.get("r");
+				if(Neo4JStorage.NPE.name().equals(r.getType().name())) keys.add("npe " + r.getProperty(Neo4JStorage.PROP_NPEID));
+				else keys.add(r.getStartNode().getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID) + " -" + r.getType().name() + "-> " + 
+						r.getEndNode().getProperty(Neo4JStorage.PROP_PLUSOBJECT_ID));
+			}
+		}
+		
+		return keys;
+	} // End incidentByQuery
+	
+	@Test
+	public void testIncidentEdgesByOID() throws Exception { 
+		// More spokes than fit in one batch, so the OIDs are split across queries.
+		ProvenanceCollection col = new ProvenanceCollection();
+		PLUSString hub = new PLUSString("Incident hub", "hub");
+		col.addNode(hub);
+		
+		List<PLUSString> spokes = new ArrayList<PLUSString>();
+		for(int x=0; x<Neo4JPLUSObjectFactory.INCIDENT_EDGE_BATCH_SIZE + 10; x++) { 
+			PLUSString spoke = new PLUSString("Incident spoke " + x, "spoke");
+			spokes.add(spoke);
+			col.addNode(spoke);
+			col.addEdge(new PLUSEdge(hub, spoke, PLUSWorkflow.DEFAULT_WORKFLOW, (x % 2 == 0 ? PLUSEdge.EDGE_TYPE_INPUT_TO : PLUSEdge.EDGE_TYPE_GENERATED)));
+		}
+		
+		col.addEdge(new PLUSEdge(spokes.get(0), spokes.get(1)));
+		Neo4JStorage.store(col);
+		
+		// A self-loop, and an NPE between two objects.
+		PLUSString loop = spokes.get(2);
+		Neo4JStorage.store(new PLUSEdge(loop, loop));
+		NonProvenanceEdge npe = new NonProvenanceEdge(spokes.get(3), hub, "sameAs");
+		Neo4JStorage.store(npe);
+		
+		List<String> oids = new ArrayList<String>();
+		oids.add(hub.getId());
+		for(PLUSString s : spokes) oids.add(s.getId());
+		oids.add("urn:uuid:no-such-incident-object");
+		
+		boolean [][] kinds = { { true, true }, { true, false }, { false, true } };
+		for(String direction : new String [] { "bling", "fling", "both" }) { 
+			for(boolean [] kind : kinds) { 
+				Map<String,ProvenanceCollection> byOID = 
+						Neo4JPLUSObjectFactory.getIncidentEdgesByOID(oids, User.DEFAULT_USER_GOD, direction, kind[0], kind[1]);
+				
+				for(String oid : oids) { 
+					Set<String> expected = incidentByQuery(oid, direction, kind[0], kind[1]);
+					String msg = direction + " prov=" + kind[0] + " npes=" + kind[1] + " for " + oid;
+					assertEquals("Same edges as the per-OID query, " + msg, expected, edgeKeys(byOID.get(oid)));
+					if(expected.isEmpty()) assertFalse("OIDs without edges are left out, " + msg, byOID.containsKey(oid));
+				}
+			}
+		}
+		
+		// Spot checks, so the comparison above isn't vacuous.
+		Map<String,ProvenanceCollection> both = 
+				Neo4JPLUSObjectFactory.getIncidentEdgesByOID(oids, User.DEFAULT_USER_GOD, "both", true, true);
+		assertEquals("Hub has every spoke and the NPE", spokes.size() + 1, edgeKeys(both.get(hub.getId())).size());
+		assertTrue("Self-loop found", edgeKeys(both.get(loop.getId())).contains(loop.getId() + " -" + PLUSEdge.EDGE_TYPE_CONTRIBUTED + "-> " + loop.getId()));
+		assertTrue("NPE found from both ends", edgeKeys(both.get(spokes.get(3).getId())).contains("npe " + npe.getId()) && 
+				edgeKeys(both.get(hub.getId())).contains("npe " + npe.getId()));
+		assertEquals("Last batch grouped too", 1, edgeKeys(both.get(spokes.get(spokes.size() - 1).getId())).size());
+		
+		Map<String,ProvenanceCollection> fling = 
+				Neo4JPLUSObjectFactory.getIncidentEdgesByOID(oids, User.DEFAULT_USER_GOD, "fling", true, false);
+		assertFalse("Spokes have nothing going out", fling.containsKey(spokes.get(5).getId()));
+		assertEquals("Hub's edges all go out", spokes.size(), edgeKeys(fling.get(hub.getId())).size());
+		assertFalse("Missing OID isn't there", both.containsKey("urn:uuid:no-such-incident-object"));
+	} // End testIncidentEdgesByOID
+	
+	@Test
+	public void testRepeatedQueryCount() throws Exception { 
+		// The column name makes this test's query texts different from any run before.  Index builders may run queries
+		// in the background, so the counts are only checked to have gone up by at least this test's share.
+		String column = "found" + Long.toString(System.nanoTime(), 36);
+		
+		try (Transaction tx = Neo4JStorage.beginTx()) { 
+			// Values written into the text make every query new.
+			long repeated = Neo4JStorage.getRepeatedQueryCount();
+			long fresh = Neo4JStorage.getNewQueryCount();
+			for(int x=0; x<3; x++) 
+				Neo4JStorage.execute("match (n:" + Neo4JStorage.LABEL_NAME_NODE + " {oid: 'urn:uuid:" + column + x + "'}) " + 
+						"return n as " + column).dumpToString();
+			assertTrue("Inlined values are new each time", Neo4JStorage.getNewQueryCount() >= fresh + 3);
+			
+			repeated = Neo4JStorage.getRepeatedQueryCount();
+			fresh = Neo4JStorage.getNewQueryCount();
+			
+			// Passed as a parameter, the text stays the same, so all but the first are repeats.
+			String query = "match (n:" + Neo4JStorage.LABEL_NAME_NODE + " {oid: {oid}}) return n as " + column;
+			for(int x=0; x<3; x++) { 
+				Map<String,Object> params = new HashMap<String,Object>();
+				params.put("oid", "urn:uuid:" + column + x);
+				Neo4JStorage.execute(query, params).dumpToString();
+			}
+			assertTrue("Parameterized query is new once", Neo4JStorage.getNewQueryCount() >= fresh + 1);
+			assertTrue("Then repeated", Neo4JStorage.getRepeatedQueryCount() >= repeated + 2);
+		}
+	} // End testRepeatedQueryCount
+	
+	@Test
+	public void testMaterializationContextReuse() throws Exception { 
+		PLUSString input = new PLUSString("Materialized input", "input");
+		PLUSString output = new PLUSString("Materialized output", "output");
+		ProvenanceCollection col = new ProvenanceCollection();
+		col.addNode(input);
+		col.addNode(output);
+		col.addEdge(new PLUSEdge(input, output));
+		Neo4JStorage.store(col);
+		
+		try (Transaction tx = Neo4JStorage.beginTx()) { 
+			Node n = Neo4JStorage.oidExists(input.getId());
+			Relationship r = n.getRelationships(Direction.OUTGOING, 
+					DynamicRelationshipType.withName(PLUSEdge.EDGE_TYPE_CONTRIBUTED)).iterator().next();
+			
+			MaterializationContext ctx = new MaterializationContext();
+			Object first = Factory.build(n, ctx);
+			assertTrue("Node becomes an object", first instanceof PLUSObject && input.getId().equals(((PLUSObject)first).getId()));
+			assertSame("Same context, same object", first, Factory.build(n, ctx));
+			assertTrue("Counted as reused", ctx.countReused() > 0);
+			
+			PLUSEdge edge = (PLUSEdge)Factory.build(r, ctx);
+			assertSame("Edge shares the endpoint already built", first, edge.getFrom());
+			
+			// The wrappers without a context build afresh each time.
+			assertNotSame("No context, new object", first, Factory.build(n));
+			PLUSEdge fresh = (PLUSEdge)Factory.build(r);
+			assertEquals("Same edge", output.getId(), fresh.getTo().getId());
+			assertNotSame("With its own endpoints", first, fresh.getFrom());
+		}
+	} // End testMaterializationContextReuse
+	
 	@Test
 	public void testPCs() throws Exception { 
 		List<PrivilegeClass> pcs = Neo4JPLUSObjectFactory.listPrivilegeClasses();
@@ -90,6 +583,28 @@ public class TestBasicProvenance {
 		assertTrue("Edge size reported correctly", rmc.countEdges() == edges); 		
 	}
 	
+	@Test
+	public void testBatchStore() throws Exception { 
+		PrivilegeSet ps = new PrivilegeSet();
+		ps.addPrivilege(PrivilegeClass.PUBLIC);
+		
+		SyntheticGraphProperties p = new SyntheticGraphProperties().setComponents(10).setPrivilegeSet(ps);
+		RandomMotifCollection rmc = new RandomMotifCollection(p);
+		
+		// A small chunk size makes sure the collection is spread across several transactions.
+		int stored = new BatchWriter(7).store(rmc);
+		assertTrue("Every item counted", stored == rmc.countNodes() + rmc.countEdges() + rmc.countNPEs() + rmc.countActors());
+		
+		for(PLUSObject o : rmc.getNodes())
+			assertTrue("Object stored: " + o, Neo4JStorage.oidExists(o.getId()) != null);
+		assertTrue("Collection has an owner", rmc.countActors() > 0);
+		for(PLUSActor a : rmc.getActors())
+			assertTrue("Actor stored: " + a, Neo4JStorage.actorExists(a.getId()) != null);
+		
+		// Storing it again skips the existing actors and objects, and counts them just like storing items one at a time.
+		assertTrue("Existing items counted", new BatchWriter().store(rmc) == stored);
+	}
+	
 	@Test
 	public void testRetrieval() throws Exception { 
 		ProvenanceClient.instance.listWorkflows(5);
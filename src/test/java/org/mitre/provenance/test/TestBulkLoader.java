@@ -0,0 +1,131 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.db.neo4j.BulkLoader;
+import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
+import org.mitre.provenance.db.neo4j.Neo4JStorage;
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSString;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.json.JSONConverter;
+import org.mitre.provenance.user.User;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Bulk loads a small collection into a new database, then opens that database through Neo4JStorage.  The shared
+ * database is shut down while this runs; other tests open it again when they start.
+ */
+public class TestBulkLoader {
+	/** @return the count a query returns in its "c" column, for objects with the given OIDs. */
+	protected long count(String query, List<String> oids) {
+		Map<String,Object> params = new HashMap<String,Object>();
+		params.put("oids", oids);
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			return ((Number)Neo4JStorage.execute(query, params).columnAs("c").next()).longValue();
+		}
+	} // End count
+
+	protected void delete(File f) {
+		File [] children = f.listFiles();
+		if(children != null) for(File c : children) delete(c);
+		f.delete();
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		ProvenanceCollection col = new ProvenanceCollection();
+		PLUSString a = new PLUSString("Bulk A", "a");
+		PLUSString b = new PLUSString("Bulk B", "b");
+		PLUSString c = new PLUSString("Bulk C", "c");
+		col.addNode(a);
+		col.addNode(b);
+		col.addNode(c);
+		col.addEdge(new PLUSEdge(a, b));
+		col.addEdge(new PLUSEdge(b, c));
+		col.addNonProvenanceEdge(new NonProvenanceEdge(a, c, "sameAs"));
+		col.addNonProvenanceEdge(new NonProvenanceEdge(a.getId(), "urn:bulk:external", "identifies"));
+
+		File dir = Files.createTempDirectory("plus-bulk").toFile();
+		File store = new File(dir, "store");
+		File json = new File(dir, "collection.json");
+		try (Writer w = new FileWriter(json)) {
+			w.write(JSONConverter.provenanceCollectionToD3Json(col));
+		}
+
+		String previous = System.getProperty("plus.neo4j.location");
+
+		try {
+			BulkLoader loader = new BulkLoader(store);
+			loader.load(json);
+			loader.shutdown();
+			assertEquals("Nothing skipped", 0, loader.getSkipped());
+			assertTrue("Store written", BulkLoader.containsDatabase(store));
+
+			try {
+				new BulkLoader(store);
+				fail("Refuses to load into an existing database");
+			} catch(PLUSException expected) { }
+
+			Neo4JStorage.shutdown();
+			System.setProperty("plus.neo4j.location", store.getAbsolutePath());
+			Neo4JStorage.initialize();
+
+			List<String> oids = new ArrayList<String>();
+			for(PLUSObject o : col.getNodes()) oids.add(o.getId());
+
+			assertEquals("Every object loaded", 3, count("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ") " +
+					"where n.oid in {oids} return count(n) as c", oids));
+			assertEquals("Every edge loaded", 2, count("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ")-[r]->(m:" +
+					Neo4JStorage.LABEL_NAME_NODE + ") where n.oid in {oids} and type(r) <> 'NPE' return count(r) as c", oids));
+			assertEquals("Every NPE loaded", 2, count("match (n:" + Neo4JStorage.LABEL_NAME_NODE + ")-[r:NPE]->() " +
+					"where n.oid in {oids} return count(r) as c", oids));
+
+			for(PLUSObject o : col.getNodes()) {
+				assertTrue("Found by OID: " + o, Neo4JStorage.oidExists(o.getId()) != null);
+				assertEquals("Same object", o.getName(), Neo4JPLUSObjectFactory.newObject(o.getId()).getName());
+			}
+
+			assertEquals("Edges found by OID", 2, Neo4JPLUSObjectFactory.getIncidentEdges(Arrays.asList(b.getId()),
+					User.DEFAULT_USER_GOD, "both", true, false).countEdges());
+			assertEquals("NPE between objects found by OID", 1, Neo4JPLUSObjectFactory.getIncidentNPEs(Arrays.asList(c.getId()),
+					User.DEFAULT_USER_GOD).countNPEs());
+		} finally {
+			Neo4JStorage.shutdown();
+			if(previous == null) System.clearProperty("plus.neo4j.location");
+			else System.setProperty("plus.neo4j.location", previous);
+			delete(dir);
+		}
+	} // End testBulkLoad
+} // End TestBulkLoader
@@ -0,0 +1,539 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+import org.mitre.provenance.EdgeMarking;
+import org.mitre.provenance.PLUSException;
+import org.mitre.provenance.dag.CompactGraph;
+import org.mitre.provenance.dag.DAGPath;
+import org.mitre.provenance.dag.DAGSnapshot;
+import org.mitre.provenance.dag.DegreeIndex;
+import org.mitre.provenance.dag.FingerPrint;
+import org.mitre.provenance.dag.GraphDelta;
+import org.mitre.provenance.dag.LineageDAG;
+import org.mitre.provenance.dag.LineageDAGTraverseFn;
+import org.mitre.provenance.dag.PathStep;
+import org.mitre.provenance.dag.VisibleSetEngine;
+import org.mitre.provenance.npe.NonProvenanceEdge;
+import org.mitre.provenance.plusobject.PLUSEdge;
+import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSString;
+import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.json.JSONConverter;
+import org.mitre.provenance.user.User;
+
+/**
+ * Checks the in-memory indexes kept by ProvenanceCollection, including that neighbor lookups
+ * do not grow with the total number of edges in the collection.
+ */
+public class TestCollectionIndexes {
+	protected static final Logger log = Logger.getLogger(TestCollectionIndexes.class.getName());
+
+	/** Builds a chain of the given length, where each node also points two steps ahead. */
+	protected ProvenanceCollection buildChain(int length, List<PLUSObject> nodesOut) {
+		ProvenanceCollection col = new ProvenanceCollection();
+
+		for(int x=0; x<length; x++) {
+			PLUSString s = new PLUSString("Node " + x, "Node " + x);
+			col.addNode(s);
+			nodesOut.add(s);
+		}
+
+		for(int x=0; x<length-1; x++) {
+			col.addEdge(new PLUSEdge(nodesOut.get(x), nodesOut.get(x+1)));
+			if(x < length - 2) col.addEdge(new PLUSEdge(nodesOut.get(x), nodesOut.get(x+2)));
+		}
+
+		return col;
+	} // End buildChain
+
+	@Test
+	public void testAdjacency() {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		ProvenanceCollection col = buildChain(10, nodes);
+
+		PLUSObject middle = nodes.get(5);
+		assertEquals("Two inbound edges", 2, col.getInboundEdgesByNode(middle.getId()).size());
+		assertEquals("Two outbound edges", 2, col.getOutboundEdgesByNode(middle.getId()).size());
+		assertEquals("Four incident edges", 4, col.getEdgesByNode(middle.getId()).size());
+
+		for(PLUSEdge e : col.getInboundEdgesByNode(middle.getId()))
+			assertTrue("Inbound edge terminates at node", e.getTo().getId().equals(middle.getId()));
+
+		col.removeEdge(col.getEdge(nodes.get(4), middle));
+		assertEquals("One inbound edge after removal", 1, col.getInboundEdgesByNode(middle.getId()).size());
+		assertEquals("Upstream node lost an outbound edge", 1, col.getOutboundEdgesByNode(nodes.get(4).getId()).size());
+
+		col.removeNode(middle, true);
+		assertEquals("No edges left on removed node", 0, col.getEdgesByNode(middle.getId()).size());
+		assertEquals("Downstream node lost an inbound edge", 1, col.getInboundEdgesByNode(nodes.get(6).getId()).size());
+
+		ProvenanceCollection copy = new ProvenanceCollection();
+		copy.addAll(col);
+		assertEquals("addAll carries adjacency",
+				col.getOutboundEdgesByNode(nodes.get(0).getId()).size(),
+				copy.getOutboundEdgesByNode(nodes.get(0).getId()).size());
+	} // End testAdjacency
+
+	@Test
+	public void testReachability() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(200, nodes));
+
+		PLUSObject first = nodes.get(0);
+		PLUSObject last = nodes.get(199);
+
+		assertTrue("First reaches last", dag.reaches(first, last));
+		assertTrue("Last is reachable from first", last.reachableFrom(first, dag));
+		assertFalse("Last doesn't reach first", last.canReach(first, dag));
+		assertFalse("No path from a node to itself", DAGPath.pathExists(dag, first, first));
+
+		// One step per edge, then a last step at the tail with no edge.
+		DAGPath path = new DAGPath(dag, first, last);
+		assertEquals("Shortest path uses the skip edges", 101, path.getLength());
+		assertEquals("Path starts at the head", first.getId(), path.getStep(0).getNode().getId());
+		assertEquals("Last step is the tail", last.getId(), path.getLastStep().getNode().getId());
+		assertTrue("Last step has no edge", path.getLastStep().getOutboundEdge() == null);
+		assertTrue("Path contains the tail", path.contains(last));
+		for(int x=1; x<path.getLength(); x++) {
+			PathStep prev = path.getStep(x-1);
+			assertEquals("Steps are contiguous", prev.getOutboundEdge().getTo().getId(), path.getStep(x).getNode().getId());
+		}
+		assertTrue("Path contains its first edge", path.contains(path.getStep(0).getOutboundEdge()));
+
+		assertFalse("No path backwards", new DAGPath(dag, last, first).exists());
+
+		// Closing the loop must be noticed.
+		dag.addEdge(new PLUSEdge(last, first), false);
+		assertTrue("Last reaches first once connected", dag.reaches(last, first));
+		assertTrue("First is on a cycle", dag.reaches(first, first));
+		assertEquals("Path around the cycle", 102, new DAGPath(dag, first, first).getLength());
+	} // End testReachability
+
+	@Test
+	public void testShortestMeetingNode() throws Exception {
+		// s -> a -> e -> c -> t and s -> b -> c -> t:  the search from t finds c, then e, before reaching a or b.
+		// Both e and c are then meeting nodes, at different depths from t; only going through c is shortest.
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		PLUSString s = new PLUSString("s", "s"), a = new PLUSString("a", "a"), b = new PLUSString("b", "b");
+		PLUSString z = new PLUSString("z", "z"), e = new PLUSString("e", "e"), c = new PLUSString("c", "c");
+		PLUSString t = new PLUSString("t", "t");
+		for(PLUSObject o : new PLUSObject [] { s, a, b, z, e, c, t }) dag.addNode(o);
+
+		dag.addEdge(new PLUSEdge(s, a), false);
+		dag.addEdge(new PLUSEdge(s, b), false);
+		dag.addEdge(new PLUSEdge(s, z), false);
+		dag.addEdge(new PLUSEdge(a, e), false);
+		dag.addEdge(new PLUSEdge(e, c), false);
+		dag.addEdge(new PLUSEdge(b, c), false);
+		dag.addEdge(new PLUSEdge(c, t), false);
+
+		DAGPath path = new DAGPath(dag, s, t);
+		assertEquals("Shortest path, plus the step at t", 4, path.getLength());
+		assertTrue("Through the nearer meeting node", path.contains(c) && !path.contains(e));
+	} // End testShortestMeetingNode
+
+	@Test
+	public void testCompactGraph() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(10, nodes));
+
+		// An edge to something outside the DAG doesn't count as a neighbor.  Adding the edge adds its node too.
+		PLUSString elsewhere = new PLUSString("Elsewhere", "Elsewhere");
+		dag.addEdge(new PLUSEdge(nodes.get(9), elsewhere), false);
+		dag.removeNode(elsewhere);
+
+		CompactGraph g = dag.getCompactGraph();
+		assertEquals("Every node numbered", 10, g.countNodes());
+		assertEquals("Every edge numbered", dag.countEdges(), g.countEdges());
+
+		int middle = g.indexOf(nodes.get(5).getId());
+		assertEquals("Two outbound edges", 2, g.outDegree(middle));
+		assertEquals("Two inbound edges", 2, g.inDegree(middle));
+		assertEquals("Dangling edge ignored", 0, g.outDegree(g.indexOf(nodes.get(9).getId())));
+		assertTrue("View is reused", g == dag.getCompactGraph());
+
+		final List<PLUSObject> visited = new ArrayList<PLUSObject>();
+		dag.traverse(new LineageDAGTraverseFn() {
+			public void visitNode(LineageDAG d, PLUSObject obj) { visited.add(obj); }
+		}, "fling", nodes.get(0));
+		assertEquals("Traversal visits each node once", 10, visited.size());
+
+		dag.removeEdge(dag.getEdge(nodes.get(4), nodes.get(5)));
+		assertFalse("View is rebuilt after a change", g == dag.getCompactGraph());
+		CompactGraph rebuilt = dag.getCompactGraph();
+		assertEquals("One inbound edge after removal", 1, rebuilt.inDegree(rebuilt.indexOf(nodes.get(5).getId())));
+	} // End testCompactGraph
+
+	@Test
+	public void testHeadsAndFeet() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(10, nodes));
+
+		DegreeIndex degrees = dag.getDegreeIndex();
+		assertEquals("One head", 1, dag.getGraphHeads().countNodes());
+		assertTrue("Chain starts at the head", degrees.isHead(nodes.get(0).getId()));
+		assertTrue("Chain ends at the foot", degrees.isFoot(nodes.get(9).getId()));
+		assertEquals("Max in", "2", dag.getFingerPrint().asMetadata().get(FingerPrint.MAX_IN_EDGES));
+		assertEquals("Max out", "2", dag.getFingerPrint().asMetadata().get(FingerPrint.MAX_OUT_EDGES));
+
+		// Cutting everything that enters node 5 makes it a head.
+		dag.removeEdge(dag.getEdge(nodes.get(4), nodes.get(5)));
+		dag.removeEdge(dag.getEdge(nodes.get(3), nodes.get(5)));
+		assertTrue("Cut node is a head", degrees.isHead(nodes.get(5).getId()));
+		assertEquals("Two heads", 2, dag.getGraphHeads().countNodes());
+		assertEquals("Edges counted", dag.countEdges(), degrees.countEdges());
+
+		// Edges to a removed node stop counting, and count again when it comes back.
+		dag.removeNode(nodes.get(0));
+		assertTrue("Next node is a head", degrees.isHead(nodes.get(1).getId()));
+		assertEquals("One edge left into node 2", 1, degrees.inDegree(nodes.get(2).getId()));
+
+		dag.addNode(nodes.get(0));
+		assertFalse("Next node is no longer a head", degrees.isHead(nodes.get(1).getId()));
+		assertEquals("Both edges into node 2", 2, degrees.inDegree(nodes.get(2).getId()));
+		assertEquals("Node count survives removal", "10", dag.getFingerPrint().asMetadata().get("Nodes"));
+
+		LineageDAG.tagHeadAndFeet(dag);
+		assertTrue("Head is tagged", dag.hasTag(nodes.get(5).getId(), ProvenanceCollection.TAG_HEAD));
+		assertTrue("Foot is tagged", dag.hasTag(nodes.get(9).getId(), ProvenanceCollection.TAG_FOOT));
+	} // End testHeadsAndFeet
+
+	@Test
+	public void testSnapshots() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(10, nodes));
+		dag.tagNode(nodes.get(3).getId(), "color", "red");
+
+		final DAGSnapshot base = dag.snapshot();
+		assertEquals("Snapshot has every node", 10, base.countNodes());
+		assertEquals("Snapshot has every edge", dag.countEdges(), base.countEdges());
+		assertEquals("Tags are copied", "red", base.getTags(nodes.get(3).getId()).get("color"));
+
+		// Changing the DAG afterwards doesn't change the snapshot.
+		dag.getEdge(nodes.get(0), nodes.get(1)).setFromMarking(EdgeMarking.HIDE);
+		dag.removeNode(nodes.get(9));
+		assertEquals("Snapshot keeps removed node", 10, base.countNodes());
+		assertTrue("Snapshot keeps its markings", base.getEdge(nodes.get(0).getId(), nodes.get(1).getId()).getFromMarking().isShow());
+
+		// Derived views leave their parent alone.
+		PLUSString surrogate = new PLUSString("Surrogate", "Surrogate");
+		surrogate.setId(nodes.get(5).getId());
+
+		DAGSnapshot view = base.withNode(surrogate)
+				.withoutNode(nodes.get(0).getId())
+				.withEdgeMarkings(nodes.get(1).getId(), nodes.get(2).getId(), EdgeMarking.INFER, EdgeMarking.INFER)
+				.withTag(nodes.get(3).getId(), "color", "blue");
+
+		assertEquals("View lost a node", 9, view.countNodes());
+		assertEquals("Base kept it", 10, base.countNodes());
+		assertTrue("View's edges point at the surrogate", view.getInboundEdgesByNode(surrogate.getId()).get(0).getTo() == surrogate);
+		assertTrue("Base's edges don't", base.getInboundEdgesByNode(surrogate.getId()).get(0).getTo() == nodes.get(5));
+		assertTrue("View has the new marking", view.getEdge(nodes.get(1).getId(), nodes.get(2).getId()).getFromMarking().isInfer());
+		assertTrue("Base has the old one", base.getEdge(nodes.get(1).getId(), nodes.get(2).getId()).getFromMarking().isShow());
+		assertEquals("View has the new tag", "blue", view.getTags(nodes.get(3).getId()).get("color"));
+		assertEquals("Base has the old tag", "red", base.getTags(nodes.get(3).getId()).get("color"));
+		assertEquals("Edges into the removed node are gone", 0, view.getOutboundEdgesByNode(nodes.get(0).getId()).size());
+
+		LineageDAG rebuilt = view.toLineageDAG();
+		assertEquals("Rebuilt DAG has the view's nodes", view.countNodes(), rebuilt.countNodes());
+		assertEquals("Rebuilt DAG has the view's edges", view.countEdges(), rebuilt.countEdges());
+
+		// Many threads can read one snapshot at once.
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> readers = new ArrayList<Thread>();
+		for(int t=0; t<4; t++) {
+			Thread reader = new Thread() {
+				public void run() {
+					try {
+						for(int x=0; x<1000; x++) {
+							int edges = 0;
+							for(PLUSObject o : base.getNodes()) edges += base.getOutboundEdgesByNode(o.getId()).size();
+							assertEquals(base.countEdges(), edges);
+						}
+					} catch(Throwable exc) { failures.add(exc); }
+				}
+			};
+			readers.add(reader);
+			reader.start();
+		}
+
+		for(Thread reader : readers) reader.join();
+		assertTrue("Concurrent reads agree: " + failures, failures.isEmpty());
+	} // End testSnapshots
+
+	@Test
+	public void testGraphDelta() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(10, nodes));
+		dag.tagNode(nodes.get(3).getId(), "color", "red");
+
+		DAGSnapshot base = dag.snapshot();
+		LineageDAG before = base.toLineageDAG();
+		assertTrue("Identical versions have no delta", GraphDelta.between(before, base.toLineageDAG()).isEmpty());
+
+		PLUSString renamed = new PLUSString("Renamed", "Renamed");
+		renamed.setId(nodes.get(5).getId());
+		PLUSString extra = new PLUSString("Extra", "Extra");
+
+		LineageDAG after = base.withNode(renamed)
+				.withoutNode(nodes.get(9).getId())
+				.withNode(extra)
+				.withEdge(new PLUSEdge(nodes.get(8), extra))
+				.withTag(nodes.get(3).getId(), "color", "blue")
+				.toLineageDAG();
+		after.addNonProvenanceEdge(new NonProvenanceEdge(nodes.get(1), "urn:example:1", "sameAs"));
+
+		GraphDelta delta = GraphDelta.between(before, after);
+		assertEquals("One node added", extra, delta.getAddedNodes().get(0));
+		assertEquals("One node changed", renamed, delta.getChangedNodes().get(0));
+		assertEquals("One node removed", nodes.get(9), delta.getRemovedNodes().get(0));
+		assertEquals("One edge added", 1, delta.getAddedEdges().size());
+		assertEquals("Edges into the removed node are removed", 2, delta.getRemovedEdges().size());
+		assertEquals("Re-pointed edges aren't changes", 0, delta.getChangedEdges().size());
+		assertEquals("One NPE added", 1, delta.getAddedNPEs().size());
+		assertEquals("Its NPID is new", "urn:example:1", delta.getAddedNPIDs().get(0));
+		assertEquals("New tags are reported whole", "blue", delta.getChangedTags().get(nodes.get(3).getId()).get("color"));
+		assertEquals("Nothing else changed", 9, delta.size());
+
+		GraphDelta back = GraphDelta.between(after, before);
+		assertEquals("Reverse delta removes the added node", extra, back.getRemovedNodes().get(0));
+		assertEquals("Reverse delta removes the NPID", "urn:example:1", back.getRemovedNPIDs().get(0));
+		assertEquals("Reverse delta is the same size", delta.size(), back.size());
+
+		String json = JSONConverter.graphDeltaToD3Json(delta, "v2", "v1");
+		assertTrue("JSON names the added node", json.contains(extra.getId()));
+		assertTrue("JSON names the removed node", json.contains(nodes.get(9).getId()));
+		assertFalse("JSON doesn't carry unchanged nodes", json.contains(nodes.get(0).getId()));
+		assertTrue("Delta is much smaller than the graph", json.length() < JSONConverter.provenanceCollectionToD3Json(after).length());
+	} // End testGraphDelta
+
+	/** Best per-lookup time, in nanoseconds, over several rounds of neighbor lookups on the collection. */
+	protected long timeNeighborLookups(ProvenanceCollection col, List<PLUSObject> nodes, int lookups) {
+		long best = Long.MAX_VALUE;
+
+		for(int round=0; round<5; round++) {
+			long start = System.nanoTime();
+			int found = 0;
+			for(int x=0; x<lookups; x++) {
+				String oid = nodes.get(x % nodes.size()).getId();
+				found += col.getOutboundEdgesByNode(oid).size() + col.getInboundEdgesByNode(oid).size();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			assertTrue("Lookups found edges", found > 0);
+			best = Math.min(best, elapsed / lookups);
+		} // End for
+
+		return Math.max(best, 1);
+	} // End timeNeighborLookups
+
+	/** Exposes the sizes of a collection's per-node adjacency maps. */
+	@Test
+	public void testSnapshotWithoutNodeDropsNPEs() throws Exception {
+		List<PLUSObject> nodes = new ArrayList<PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(buildChain(5, nodes));
+
+		String removed = nodes.get(0).getId();
+		NonProvenanceEdge kept = new NonProvenanceEdge(nodes.get(3), nodes.get(4), "sameAs");
+		dag.addNonProvenanceEdge(new NonProvenanceEdge(nodes.get(0), nodes.get(1), "sameAs"));
+		dag.addNonProvenanceEdge(new NonProvenanceEdge(nodes.get(2), nodes.get(0), "related"));
+		dag.addNonProvenanceEdge(new NonProvenanceEdge(nodes.get(0), "urn:snapshot:external", "identifies"));
+		dag.addNonProvenanceEdge(kept);
+
+		DAGSnapshot base = dag.snapshot();
+		assertEquals("Snapshot has every NPE", 4, base.countNPEs());
+
+		DAGSnapshot view = base.withoutNode(removed);
+		assertEquals("NPEs from or to the removed node are gone", 1, view.countNPEs());
+		for(NonProvenanceEdge npe : view.getNonProvenanceEdges()) {
+			assertFalse("No NPE from the removed node", removed.equals(npe.getFrom()));
+			assertFalse("No NPE to the removed node", removed.equals(npe.getTo()));
+		}
+		assertEquals("Others are kept", kept.getId(), view.getNonProvenanceEdges().iterator().next().getId());
+		assertEquals("Base keeps them all", 4, base.countNPEs());
+		assertEquals("Rebuilt DAG has only the kept NPE", 1, view.toLineageDAG().countNPEs());
+
+		assertTrue("Removing a missing node changes nothing", view.withoutNode(removed) == view);
+	} // End testSnapshotWithoutNodeDropsNPEs
+
+	/** Gives the test the visible-set walk drawInferrableEdges used before VisibleSetEngine. */
+	protected static class OldVisibleSets extends LineageDAG {
+		OldVisibleSets() { super(User.DEFAULT_USER_GOD); }
+
+		public static Set<PLUSObject> of(LineageDAG dag, PLUSObject source, String operation) throws PLUSException {
+			return new HashSet<PLUSObject>(buildVisibleSet(dag, source, operation));
+		}
+	} // End OldVisibleSets
+
+	/** @return an edge with the given markings. */
+	protected PLUSEdge marked(PLUSObject from, PLUSObject to, EdgeMarking fromMark, EdgeMarking toMark) {
+		PLUSEdge e = new PLUSEdge(from, to);
+		e.setFromMarking(fromMark);
+		e.setToMarking(toMark);
+		return e;
+	}
+
+	@Test
+	public void testInferredEdgesMatchOldVisibleSets() throws PLUSException {
+		// a and b feed h1, which feeds h2, which feeds c and d.  h1 and h2 are hidden behind infer markings, so every
+		// inferred edge around them has the same visible sets, and each pair of them is drawn over and over.
+		String [] names = { "a", "b", "h1", "h2", "c", "d", "e" };
+		Map<String,PLUSObject> n = new HashMap<String,PLUSObject>();
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		for(String name : names) {
+			PLUSString s = new PLUSString(name, name);
+			n.put(name, s);
+			dag.addNode(s);
+		}
+
+		EdgeMarking SHOW = EdgeMarking.SHOW, INFER = EdgeMarking.INFER, HIDE = EdgeMarking.HIDE;
+		dag.addEdge(marked(n.get("a"), n.get("h1"), SHOW, INFER));
+		dag.addEdge(marked(n.get("b"), n.get("h1"), SHOW, INFER));
+		dag.addEdge(marked(n.get("h1"), n.get("h2"), INFER, INFER));
+		dag.addEdge(marked(n.get("h2"), n.get("c"), INFER, SHOW));
+		dag.addEdge(marked(n.get("h2"), n.get("d"), INFER, SHOW));
+		dag.addEdge(marked(n.get("a"), n.get("c"), SHOW, SHOW));
+		dag.addEdge(marked(n.get("c"), n.get("e"), SHOW, SHOW));
+		dag.addEdge(marked(n.get("d"), n.get("e"), SHOW, HIDE));
+
+		// Both walks find the same visible sets everywhere.
+		VisibleSetEngine engine = new VisibleSetEngine(dag);
+		for(PLUSObject o : n.values()) {
+			for(String op : new String [] { "bling", "fling" }) {
+				assertEquals(op + " of " + o.getName() + " matches the old walk",
+						OldVisibleSets.of(dag, o, op), new HashSet<PLUSObject>(engine.getVisibleSet(o, op)));
+			}
+		}
+
+		// Draw the edges the old way:  every bling x fling pair for every inferred edge, duplicates and all.
+		Set<String> expected = new LinkedHashSet<String>();
+		Set<String> drawnPairs = new HashSet<String>();
+		int drawn = 0;
+		for(PLUSEdge e : dag.getEdges()) {
+			if(!e.getVerdict().isInfer()) {
+				if(!e.getVerdict().isHide()) expected.add(e.getFrom().getId() + "->" + e.getTo().getId());
+				continue;
+			}
+
+			boolean fromShows = e.getFromMarking().isShow(), toShows = e.getToMarking().isShow();
+			PLUSObject blingFrom = (fromShows ? e.getTo() : e.getFrom());
+			PLUSObject flingFrom = (toShows ? e.getFrom() : e.getTo());
+
+			for(PLUSObject b : OldVisibleSets.of(dag, blingFrom, "bling")) {
+				for(PLUSObject f : OldVisibleSets.of(dag, flingFrom, "fling")) {
+					expected.add(b.getId() + "->" + f.getId());
+					drawnPairs.add(b.getId() + "->" + f.getId());
+					drawn++;
+				}
+			}
+		}
+
+		Set<String> inferredPairs = new HashSet<String>();
+		for(String from : new String [] { "a", "b" })
+			for(String to : new String [] { "c", "d" }) inferredPairs.add(n.get(from).getId() + "->" + n.get(to).getId());
+		assertEquals("Old walk infers a and b to c and d", inferredPairs, drawnPairs);
+
+		LineageDAG.drawInferrableEdges(dag);
+
+		Set<String> actual = new HashSet<String>();
+		for(PLUSEdge e : dag.getEdges()) actual.add(e.getFrom().getId() + "->" + e.getTo().getId());
+		assertEquals("Same edges as the old walk", new HashSet<String>(expected), actual);
+
+		assertTrue("Pairs are drawn more than once", drawn > drawnPairs.size());
+		assertEquals("Each pair drawn again is counted as a duplicate", "" + (drawn - drawnPairs.size()),
+				dag.getMetadata().get("DuplicateInferredEdges"));
+		assertFalse("Hidden intermediate is pruned", dag.contains(n.get("h1")));
+		assertFalse("Hidden intermediate is pruned", dag.contains(n.get("h2")));
+	} // End testInferredEdgesMatchOldVisibleSets
+
+	protected static class InspectableCollection extends ProvenanceCollection {
+		/** @return the number of edges held for a node in one direction's adjacency map. */
+		public int adjacencySize(String oid, boolean out) {
+			Map<String,PLUSEdge> adj = (out ? outbound : inbound).get(oid);
+			return (adj == null ? 0 : adj.size());
+		}
+
+		/** @return the number of edges held in all of one direction's adjacency maps. */
+		public int adjacencyTotal(boolean out) {
+			int total = 0;
+			for(Map<String,PLUSEdge> adj : (out ? outbound : inbound).values()) total += adj.size();
+			return total;
+		}
+	} // End InspectableCollection
+
+	@Test
+	public void testNeighborLookupCost() {
+		int lookups = 20000;
+
+		List<PLUSObject> smallNodes = new ArrayList<PLUSObject>();
+		ProvenanceCollection small = buildChain(1000, smallNodes);
+		List<PLUSObject> largeNodes = new ArrayList<PLUSObject>();
+		InspectableCollection large = new InspectableCollection();
+		large.addAll(buildChain(50000, largeNodes));
+
+		// Each node's adjacency holds exactly its own edges, so a lookup reads only those, however big the collection.
+		Map<String,Integer> outDegree = new HashMap<String,Integer>();
+		Map<String,Integer> inDegree = new HashMap<String,Integer>();
+		for(PLUSEdge e : large.getEdges()) {
+			String from = e.getFrom().getId(), to = e.getTo().getId();
+			outDegree.put(from, (outDegree.containsKey(from) ? outDegree.get(from) : 0) + 1);
+			inDegree.put(to, (inDegree.containsKey(to) ? inDegree.get(to) : 0) + 1);
+		}
+
+		for(PLUSObject o : largeNodes) {
+			String oid = o.getId();
+			int out = (outDegree.containsKey(oid) ? outDegree.get(oid) : 0);
+			int in = (inDegree.containsKey(oid) ? inDegree.get(oid) : 0);
+			assertEquals("Outbound adjacency is the node's out-degree", out, large.adjacencySize(oid, true));
+			assertEquals("Inbound adjacency is the node's in-degree", in, large.adjacencySize(oid, false));
+			assertEquals("Outbound lookup returns exactly those edges", out, large.getOutboundEdgesByNode(oid).size());
+			assertEquals("Inbound lookup returns exactly those edges", in, large.getInboundEdgesByNode(oid).size());
+		}
+
+		assertEquals("Each edge is held once outbound", large.countEdges(), large.adjacencyTotal(true));
+		assertEquals("Each edge is held once inbound", large.countEdges(), large.adjacencyTotal(false));
+
+		// Timings are only logged; wall-clock ratios are too noisy to assert on.
+		timeNeighborLookups(small, smallNodes, lookups);
+		timeNeighborLookups(large, largeNodes, lookups);
+		long smallCost = timeNeighborLookups(small, smallNodes, lookups);
+		long largeCost = timeNeighborLookups(large, largeNodes, lookups);
+
+		log.info("Neighbor lookup: " + smallCost + " ns over " + small.countEdges() + " edges, " +
+				largeCost + " ns over " + large.countEdges() + " edges");
+	} // End testNeighborLookupCost
+} // End TestCollectionIndexes
@@ -0,0 +1,173 @@
+/* Copyright 2014 MITRE Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.provenance.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mitre.provenance.db.neo4j.Neo4JStorage;
+import org.mitre.provenance.db.neo4j.PrivilegeLattice;
+import org.mitre.provenance.user.PrivilegeClass;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Checks the in-memory privilege lattice that answers dominance checks:  its transitive closure once loaded,
+ * incremental updates after that, and lookups of classes it doesn't hold.
+ */
+public class TestPrivilegeLattice {
+	/** Load a lattice the way the store does:  every class first, then each domination relationship in turn. */
+	protected PrivilegeLattice load(List<String[]> pairs) {
+		PrivilegeLattice lattice = new PrivilegeLattice();
+
+		for(String [] pair : pairs) {
+			lattice.addClass(pair[0]);
+			lattice.addClass(pair[1]);
+		}
+
+		for(String [] pair : pairs) lattice.addDominates(pair[0], pair[1]);
+		return lattice;
+	} // End load
+
+	/** @return the classes reachable from a class by following the pairs, found by a plain search. */
+	protected Set<String> reachable(List<String[]> pairs, String from) {
+		Set<String> seen = new HashSet<String>();
+		LinkedList<String> queue = new LinkedList<String>();
+		queue.add(from);
+
+		while(!queue.isEmpty()) {
+			String pid = queue.removeFirst();
+			if(!seen.add(pid)) continue;
+
+			for(String [] pair : pairs)
+				if(pair[0].equals(pid)) queue.add(pair[1]);
+		}
+
+		return seen;
+	} // End reachable
+
+	/** @return the store's default lattice, as pairs of IDs. */
+	protected List<String[]> defaultPairs() {
+		List<String[]> pairs = new ArrayList<String[]>();
+		for(PrivilegeClass [] pair : Neo4JStorage.defaultPrivilegeLattice())
+			pairs.add(new String [] { pair[0].getId(), pair[1].getId() });
+		return pairs;
+	} // End defaultPairs
+
+	@Test
+	public void testClosureAfterLoad() {
+		List<String[]> pairs = defaultPairs();
+
+		// Loaded in the given order, and in reverse, the closure is the same as searching the relationships.
+		List<String[]> reversed = new ArrayList<String[]>(pairs);
+		Collections.reverse(reversed);
+
+		List<List<String[]>> orders = new ArrayList<List<String[]>>();
+		orders.add(pairs);
+		orders.add(reversed);
+
+		for(List<String[]> order : orders) {
+			PrivilegeLattice lattice = load(order);
+
+			Set<String> classes = new LinkedHashSet<String>();
+			for(String [] pair : pairs) { classes.add(pair[0]); classes.add(pair[1]); }
+			assertEquals("Every class loaded", classes.size(), lattice.size());
+
+			for(String a : classes) {
+				Set<String> expected = reachable(pairs, a);
+				for(String b : classes)
+					assertEquals(a + " dominates " + b, expected.contains(b), lattice.dominates(a, b));
+			}
+		}
+
+		PrivilegeLattice lattice = load(pairs);
+		assertTrue("Transitive", lattice.dominates(PrivilegeClass.NATIONAL_SECURITY.getId(), PrivilegeClass.EMERGENCY_LOW.getId()));
+		assertTrue("Levels are totally ordered", lattice.dominates(new PrivilegeClass(10).getId(), new PrivilegeClass(1).getId()));
+		assertFalse("Not symmetric", lattice.dominates(PrivilegeClass.PUBLIC.getId(), PrivilegeClass.NATIONAL_SECURITY.getId()));
+	} // End testClosureAfterLoad
+
+	@Test
+	public void testAddDominatesAfterLoad() {
+		List<String[]> pairs = new ArrayList<String[]>();
+		pairs.add(new String [] { "a", "b" });
+		pairs.add(new String [] { "c", "d" });
+		PrivilegeLattice lattice = load(pairs);
+
+		assertFalse("Separate chains", lattice.dominates("a", "d"));
+		long generation = lattice.getGeneration();
+
+		// Joining the chains updates everything above b and below c.
+		lattice.addDominates("b", "c");
+		assertTrue("Generation advanced", lattice.getGeneration() > generation);
+		assertTrue("a now dominates c", lattice.dominates("a", "c"));
+		assertTrue("a now dominates d", lattice.dominates("a", "d"));
+		assertTrue("b now dominates d", lattice.dominates("b", "d"));
+		assertFalse("Still not symmetric", lattice.dominates("d", "a"));
+
+		generation = lattice.getGeneration();
+		lattice.addDominates("a", "d");
+		assertEquals("An implied relationship changes nothing", generation, lattice.getGeneration());
+
+		// Classes new to the lattice are added by the relationship.
+		lattice.addDominates("e", "a");
+		assertEquals("New class added", 5, lattice.size());
+		assertTrue("New class dominates the whole chain", lattice.dominates("e", "d"));
+		assertFalse("Chain doesn't dominate it", lattice.dominates("a", "e"));
+	} // End testAddDominatesAfterLoad
+
+	@Test
+	public void testUnknownClasses() {
+		List<String[]> pairs = new ArrayList<String[]>();
+		pairs.add(new String [] { "a", "b" });
+		PrivilegeLattice lattice = load(pairs);
+
+		assertTrue("Unknown class dominates itself", lattice.dominates("unknown", "unknown"));
+		assertFalse("Unknown class dominates nothing else", lattice.dominates("unknown", "b"));
+		assertFalse("Nothing dominates an unknown class", lattice.dominates("a", "unknown"));
+		assertFalse("Null dominates nothing", lattice.dominates(null, "b"));
+		assertFalse("Null is dominated by nothing", lattice.dominates("a", null));
+
+		assertFalse("Lookups don't add classes", lattice.contains("unknown"));
+		assertEquals("Size unchanged", 2, lattice.size());
+
+		lattice.clear();
+		assertFalse("Cleared", lattice.dominates("a", "b"));
+		assertEquals("Nothing left", 0, lattice.size());
+	} // End testUnknownClasses
+
+	@Test
+	public void testRolledBackDominance() throws Exception {
+		PrivilegeClass low = PrivilegeClass.PRIVATE_MEDICAL;
+		PrivilegeClass high = PrivilegeClass.NATIONAL_SECURITY;
+		assertFalse("Not dominated to begin with", Neo4JStorage.dominates(low, high));
+
+		try (Transaction tx = Neo4JStorage.beginTx()) {
+			assertTrue("Written", Neo4JStorage.assertDominates(low, high));
+			assertFalse("Not granted before the commit", Neo4JStorage.dominates(low, high));
+			tx.failure();
+		}
+
+		assertFalse("Not granted after a rollback", Neo4JStorage.dominates(low, high));
+	} // End testRolledBackDominance
+} // End TestPrivilegeLattice
@@ -16,26 +16,52 @@ package org.mitre.provenance.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mitre.provenance.PLUSException;
 import org.mitre.provenance.client.LocalProvenanceClient;
 import org.mitre.provenance.client.ProvenanceClient;
+import org.mitre.provenance.dag.DAGPipeline;
+import org.mitre.provenance.dag.DAGSnapshot;
 import org.mitre.provenance.dag.LineageDAG;
 import org.mitre.provenance.dag.ViewedCollection;
+import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.db.neo4j.Neo4JStorage;
 import org.mitre.provenance.plusobject.PLUSEdge;
 import org.mitre.provenance.plusobject.PLUSObject;
 import org.mitre.provenance.plusobject.PLUSString;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
+import org.mitre.provenance.plusobject.marking.Taint;
+import org.mitre.provenance.surrogate.SGFRegistry;
+import org.mitre.provenance.surrogate.SurrogateCache;
+import org.mitre.provenance.surrogate.SurrogateException;
+import org.mitre.provenance.surrogate.SurrogateGeneratingFunction;
 import org.mitre.provenance.surrogate.sgf.GenericSGF;
 import org.mitre.provenance.surrogate.sgf.NodePlaceholderInferAll;
+import org.mitre.provenance.surrogate.sgf.SurgicalInferAll;
 import org.mitre.provenance.test.util.TestUtils;
 import org.mitre.provenance.user.PrivilegeClass;
 import org.mitre.provenance.user.PrivilegeSet;
 import org.mitre.provenance.user.User;
 
 public class TestSurrogates {
+	/** An SGF that isn't thread safe, and records which threads it was run on. */
+	public static class ThreadRecordingSGF extends SurrogateGeneratingFunction { 
+		public static final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		
+		public PLUSObject generateSurrogate(PLUSObject object, User user) throws SurrogateException { 
+			threads.add(Thread.currentThread());
+			return new GenericSGF().generateSurrogate(object, user);
+		}
+	} // End ThreadRecordingSGF
+	
 	public PLUSObject genObject() {
 		PLUSString s = new PLUSString("Foo", "Bar");
 		s.useSurrogateComputation(new GenericSGF());
@@ -126,4 +152,269 @@ public class TestSurrogates {
 		assertTrue("Resulting graph has two nodes", dag.getNodes().size() == 2); 
 		assertTrue("Inferred edge created correctly", dag.getFLING(a).contains(c));
 	}	
+	
+	/** Summarize a DAG as sorted lines, so two DAGs can be compared regardless of hash order. */
+	protected List<String> describe(LineageDAG dag) { 
+		List<String> lines = new ArrayList<String>();
+		for(PLUSEdge e : dag.getEdges()) 
+			lines.add(e.getFrom().getId() + "->" + e.getTo().getId() + " " + e.getVerdict());
+		for(PLUSObject o : dag.getNodes()) 
+			lines.add(o.getId() + " " + new TreeMap<String,String>(dag.getTags(o.getId())));
+		for(String k : new String [] { "Votes-Show", "Votes-Hide", "Votes-Infer", "TaintedNodes", "postMarkEdges" })
+			lines.add(k + "=" + dag.getMetadata().get(k));
+		
+		Collections.sort(lines);
+		return lines;
+	} // End describe
+	
+	@Test
+	public void testParallelPipeline() throws PLUSException { 
+		// Layers of nodes, each linked to two in the next layer, with some protected nodes to be inferred past.
+		int layers = 40, width = 30;
+		ProvenanceCollection pc = new ProvenanceCollection();
+		PLUSObject [][] grid = new PLUSObject[layers][width];
+		
+		for(int l=0; l<layers; l++) {
+			for(int w=0; w<width; w++) { 
+				grid[l][w] = ((l * width + w) % 7 == 3 ? TestUtils.genProtectedObject(new NodePlaceholderInferAll()) : 
+					TestUtils.genObject());
+				pc.addNode(grid[l][w]);
+				
+				if(l > 0) { 
+					pc.addEdge(new PLUSEdge(grid[l-1][w], grid[l][w]));
+					pc.addEdge(new PLUSEdge(grid[l-1][(w + 1) % width], grid[l][w]));
+				}
+			}
+		}
+		
+		Taint t = new Taint(User.DEFAULT_USER_GOD, "Taint on the first layer");
+		pc.addNode(t);
+		pc.addEdge(new PLUSEdge(t, grid[0][0]));
+		
+		boolean wasSequential = DAGPipeline.isSequential();
+		try { 
+			DAGPipeline.setSequential(true);
+			List<String> sequential = describe(LineageDAG.fromCollection(pc, User.PUBLIC));
+			
+			DAGPipeline.setSequential(false);
+			List<String> parallel = describe(LineageDAG.fromCollection(pc, User.PUBLIC));
+			
+			assertEquals("Parallel and sequential runs build the same DAG", sequential, parallel);
+		} finally { 
+			DAGPipeline.setSequential(wasSequential);
+		}
+	} // End testParallelPipeline
+	
+	@Test
+	public void testResolveSurrogates() throws Exception { 
+		assertSame("SGF instances are shared", SGFRegistry.getInstance(GenericSGF.class.getName()), 
+				SGFRegistry.getInstance(GenericSGF.class.getName()));
+		
+		// Enough objects to be split across the pool; every third one has no SGF, so no surrogate.
+		List<PLUSObject> hidden = new ArrayList<PLUSObject>();
+		for(int x=0; x<2000; x++) { 
+			if(x % 3 == 0) { 
+				PLUSString s = new PLUSString("Protected", "No surrogate");
+				s.getPrivileges().addPrivilege(PrivilegeClass.ADMIN);
+				hidden.add(s);
+			} else hidden.add(TestUtils.genProtectedObject());
+		}
+		
+		List<PLUSObject> surrogates = DAGPipeline.resolveSurrogates(hidden, User.PUBLIC);
+		assertEquals("One result per object", hidden.size(), surrogates.size());
+		
+		for(int x=0; x<hidden.size(); x++) { 
+			PLUSObject s = surrogates.get(x);
+			
+			if(x % 3 == 0) assertNull("No surrogate without an SGF", s);
+			else { 
+				assertTrue("Result is a surrogate", s.isSurrogate());
+				assertEquals("Results are in order", hidden.get(x).getId(), s.getId());
+			}
+		}
+	} // End testResolveSurrogates
+	
+	@Test
+	public void testUnsafeSGFsOnCallingThread() throws PLUSException { 
+		assertTrue("Generic SGF is thread safe", new GenericSGF().isThreadSafe());
+		assertFalse("Surgical SGFs read the database", new SurgicalInferAll().isThreadSafe());
+		
+		List<PLUSObject> hidden = new ArrayList<PLUSObject>();
+		for(int x=0; x<2000; x++) 
+			hidden.add(x % 2 == 0 ? TestUtils.genProtectedObject() : TestUtils.genProtectedObject(new ThreadRecordingSGF()));
+		
+		boolean wasSequential = DAGPipeline.isSequential();
+		try { 
+			DAGPipeline.setSequential(false);
+			ThreadRecordingSGF.threads.clear();
+			
+			List<PLUSObject> surrogates = DAGPipeline.resolveSurrogates(hidden, User.PUBLIC);
+			for(PLUSObject s : surrogates) 
+				assertTrue("Result is a surrogate", s.isSurrogate());
+			
+			assertEquals("Unsafe SGF only ran on the calling thread", 
+					Collections.singleton(Thread.currentThread()), new HashSet<Thread>(ThreadRecordingSGF.threads));
+		} finally { 
+			DAGPipeline.setSequential(wasSequential);
+		}
+	} // End testUnsafeSGFsOnCallingThread
+	
+	@Test
+	public void testSurrogateCache() throws PLUSException { 
+		PLUSObject obj = TestUtils.genProtectedObject();
+		assertFalse("Public can't see the object", ProvenanceClient.instance.canSee(User.PUBLIC, obj));
+		
+		PLUSObject first = obj.getPreferredSurrogate(User.PUBLIC);
+		assertTrue("Result is a surrogate", first.isSurrogate());
+		
+		if(!SurrogateCache.isEnabled()) return;
+		
+		long hits = SurrogateCache.getHits();
+		PLUSObject again = obj.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Surrogate is reused", hits + 1, SurrogateCache.getHits());
+		assertNotSame("Each caller gets its own copy", first, again);
+		assertEquals("Copy is of the same surrogate", first.getId(), again.getId());
+		assertTrue("Copy is a surrogate", again.isSurrogate());
+		
+		String name = again.getName();
+		again.setName("Changed by one DAG");
+		again.getMetadata().put("changed", "yes");
+		PLUSObject third = obj.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Changing a copy doesn't change the cached surrogate", name, third.getName());
+		assertFalse("Changing a copy's metadata doesn't change the cached surrogate", third.getMetadata().containsKey("changed"));
+		
+		User alsoPublic = new User("Also public", new PrivilegeSet(PrivilegeClass.PUBLIC));
+		hits = SurrogateCache.getHits();
+		obj.getPreferredSurrogate(alsoPublic);
+		assertEquals("Surrogate is reused for equivalent privileges", hits + 1, SurrogateCache.getHits());
+		
+		long misses = SurrogateCache.getMisses();
+		obj.useSurrogateComputation(new NodePlaceholderInferAll());
+		obj.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Changing SGFs computes a new surrogate", misses + 1, SurrogateCache.getMisses());
+		
+		SurrogateCache.invalidate(obj.getId());
+		obj.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Invalidating computes a new surrogate", misses + 2, SurrogateCache.getMisses());
+		assertTrue("Hit ratio is a fraction", SurrogateCache.getHitRatio() > 0 && SurrogateCache.getHitRatio() <= 1);
+	} // End testSurrogateCache
+	
+	@Test
+	public void testSurrogateCacheDropsOnNewEdges() throws PLUSException { 
+		if(!SurrogateCache.isEnabled()) return;
+		
+		PLUSObject parent = TestUtils.genObject();
+		PLUSObject child = TestUtils.genProtectedObject();
+		ProvenanceCollection pc = new ProvenanceCollection();
+		pc.addNode(parent); pc.addNode(child);
+		Neo4JStorage.store(pc);
+		
+		child.getPreferredSurrogate(User.PUBLIC);
+		long hits = SurrogateCache.getHits();
+		child.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Surrogate is reused", hits + 1, SurrogateCache.getHits());
+		
+		// The child's lineage changes, so a surrogate built from it may be out of date.
+		long misses = SurrogateCache.getMisses();
+		Neo4JStorage.store(new PLUSEdge(parent, child));
+		child.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Storing an edge computes a new surrogate", misses + 1, SurrogateCache.getMisses());
+		
+		child.getPreferredSurrogate(User.PUBLIC);
+		misses = SurrogateCache.getMisses();
+		ProvenanceCollection more = new ProvenanceCollection();
+		PLUSObject grandchild = TestUtils.genObject();
+		more.addNode(grandchild);
+		more.addEdge(new PLUSEdge(child, grandchild));
+		Neo4JStorage.store(more);
+		child.getPreferredSurrogate(User.PUBLIC);
+		assertEquals("Batch storing an edge computes a new surrogate", misses + 1, SurrogateCache.getMisses());
+	} // End testSurrogateCacheDropsOnNewEdges
+	
+	@Test
+	public void testFullLineageForUser() throws PLUSException { 
+		// a -> b -> c, where b has a surrogate; and a -> h -> d, where h has none.
+		PLUSObject a = TestUtils.genObject();
+		PLUSObject b = TestUtils.genProtectedObject();
+		PLUSObject c = TestUtils.genObject();
+		PLUSString h = new PLUSString("Protected", "No surrogate");
+		h.getPrivileges().addPrivilege(PrivilegeClass.ADMIN);
+		PLUSObject d = TestUtils.genObject();
+		
+		ProvenanceCollection pc = new ProvenanceCollection();
+		pc.addNode(a); pc.addNode(b); pc.addNode(c); pc.addNode(h); pc.addNode(d);
+		pc.addEdge(new PLUSEdge(a, b));
+		pc.addEdge(new PLUSEdge(b, c));
+		pc.addEdge(new PLUSEdge(a, h));
+		pc.addEdge(new PLUSEdge(h, d));
+		Neo4JStorage.store(pc);
+		
+		ProvenanceCollection everything = Neo4JPLUSObjectFactory.getFullFLING(a.getId(), User.DEFAULT_USER_GOD);
+		assertEquals("Everything is visible to god", 5, everything.countNodes());
+		
+		ProvenanceCollection fling = Neo4JPLUSObjectFactory.getFullFLING(a.getId(), User.PUBLIC);
+		assertTrue("Result is for the user", fling instanceof ViewedCollection);
+		assertTrue("Protected node is a surrogate", fling.getNode(b.getId()).isSurrogate());
+		assertTrue("Lineage continues past a surrogate", fling.containsObjectID(c.getId()));
+		assertFalse("Node without a surrogate is left out", fling.containsObjectID(h.getId()));
+		assertFalse("Lineage stops at a node without a surrogate", fling.containsObjectID(d.getId()));
+		assertEquals("Only edges between visible nodes", 2, fling.countEdges());
+		
+		for(PLUSEdge e : fling.getEdges()) 
+			assertTrue("Edges point at the surrogate", fling.contains(e.getFrom()) && fling.contains(e.getTo()));
+	} // End testFullLineageForUser
+	
+	@Test
+	public void testFullLineagePastHiddenSibling() throws PLUSException { 
+		// a -> h -> c and a -> v -> c, where h has no surrogate.  The hidden path is stored and so found first.
+		PLUSObject a = TestUtils.genObject();
+		PLUSString h = new PLUSString("Protected", "No surrogate");
+		h.getPrivileges().addPrivilege(PrivilegeClass.ADMIN);
+		PLUSObject v = TestUtils.genObject();
+		PLUSObject c = TestUtils.genObject();
+		
+		ProvenanceCollection pc = new ProvenanceCollection();
+		pc.addNode(a); pc.addNode(h); pc.addNode(v); pc.addNode(c);
+		pc.addEdge(new PLUSEdge(a, h));
+		pc.addEdge(new PLUSEdge(h, c));
+		pc.addEdge(new PLUSEdge(a, v));
+		pc.addEdge(new PLUSEdge(v, c));
+		Neo4JStorage.store(pc);
+		
+		ProvenanceCollection fling = Neo4JPLUSObjectFactory.getFullFLING(a.getId(), User.PUBLIC);
+		assertFalse("Hidden parent is left out", fling.containsObjectID(h.getId()));
+		assertTrue("Child is found through its visible parent", fling.containsObjectID(c.getId()));
+		assertEquals("Only edges between visible nodes", 2, fling.countEdges());
+		
+		ProvenanceCollection bling = Neo4JPLUSObjectFactory.getFullBLING(c.getId(), User.PUBLIC);
+		assertFalse("Hidden parent is left out", bling.containsObjectID(h.getId()));
+		assertTrue("Ancestor is found through the visible parent", bling.containsObjectID(a.getId()));
+	} // End testFullLineagePastHiddenSibling
+	
+	@Test
+	public void testSnapshotForViewer() throws PLUSException { 
+		// a -> b -> c, where b has a surrogate; and a -> h, where h has none.
+		PLUSObject a = TestUtils.genObject();
+		PLUSObject b = TestUtils.genProtectedObject();
+		PLUSObject c = TestUtils.genObject();
+		PLUSString h = new PLUSString("Protected", "No surrogate");
+		h.getPrivileges().addPrivilege(PrivilegeClass.ADMIN);
+		
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addNode(a); dag.addNode(b); dag.addNode(c); dag.addNode(h);
+		dag.addEdge(new PLUSEdge(a, b));
+		dag.addEdge(new PLUSEdge(b, c));
+		dag.addEdge(new PLUSEdge(a, h));
+		
+		DAGSnapshot all = dag.snapshot();
+		DAGSnapshot view = all.forViewer(User.PUBLIC);
+		assertSame("View is for the user", User.PUBLIC, view.getViewer());
+		assertTrue("Protected node is a surrogate", view.getNode(b.getId()).isSurrogate());
+		assertFalse("Node without a surrogate is left out", view.containsObjectID(h.getId()));
+		assertEquals("Its edge is gone", 2, view.countEdges());
+		assertSame("Edges point at the surrogate", view.getNode(b.getId()), view.getEdge(a.getId(), b.getId()).getTo());
+		assertSame("Visible nodes are shared", a, view.getNode(a.getId()));
+		assertEquals("Original snapshot unchanged", 4, all.countNodes());
+		assertSame("Original keeps the object", b, all.getNode(b.getId()));
+	} // End testSnapshotForViewer
 } // End TestSurrogates
@@ -14,8 +14,11 @@
  */
 package org.mitre.provenance.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Set;
 
 import org.junit.Before;
@@ -23,9 +26,11 @@ import org.junit.Test;
 import org.mitre.provenance.client.AbstractProvenanceClient;
 import org.mitre.provenance.client.LocalProvenanceClient;
 import org.mitre.provenance.client.ProvenanceClient;
+import org.mitre.provenance.dag.LineageDAG;
 import org.mitre.provenance.db.neo4j.Neo4JPLUSObjectFactory;
 import org.mitre.provenance.plusobject.PLUSEdge;
 import org.mitre.provenance.plusobject.PLUSObject;
+import org.mitre.provenance.plusobject.PLUSString;
 import org.mitre.provenance.plusobject.ProvenanceCollection;
 import org.mitre.provenance.plusobject.marking.Taint;
 import org.mitre.provenance.simulate.SyntheticGraphProperties;
@@ -82,4 +87,44 @@ public class TestTaint {
 					Neo4JPLUSObjectFactory.getDirectTaints(e.getTo(), User.DEFAULT_USER_GOD).isEmpty());
 		}		
 	}
+	
+	@Test
+	public void testTraceTaintSources() throws Exception { 
+		// a -> b -> d, a -> c -> d, x -> d -> e, with a and x directly tainted.
+		PLUSString a = new PLUSString("a", "a"), b = new PLUSString("b", "b"), c = new PLUSString("c", "c");
+		PLUSString d = new PLUSString("d", "d"), e = new PLUSString("e", "e"), x = new PLUSString("x", "x");
+		PLUSString clean = new PLUSString("clean", "clean");
+		Taint ta = new Taint(User.DEFAULT_USER_GOD, "Taint on a");
+		Taint tx = new Taint(User.DEFAULT_USER_GOD, "Taint on x");
+		
+		ProvenanceCollection col = new ProvenanceCollection();
+		for(PLUSObject o : new PLUSObject [] { a, b, c, d, e, x, clean, ta, tx }) col.addNode(o);
+		col.addEdge(new PLUSEdge(ta, a));
+		col.addEdge(new PLUSEdge(tx, x));
+		col.addEdge(new PLUSEdge(a, b));
+		col.addEdge(new PLUSEdge(a, c));
+		col.addEdge(new PLUSEdge(b, d));
+		col.addEdge(new PLUSEdge(c, d));
+		col.addEdge(new PLUSEdge(x, d));
+		col.addEdge(new PLUSEdge(d, e));
+		
+		LineageDAG dag = new LineageDAG(User.DEFAULT_USER_GOD);
+		dag.addAll(col);
+		LineageDAG.traceTaintSources(dag);
+		
+		assertTrue("Sources are tainted", dag.isTainted(a) && dag.isTainted(x));
+		assertFalse("Unconnected nodes aren't tainted", dag.isTainted(clean));
+		assertEquals("b is tainted only by a", Arrays.asList(a.getId()), Arrays.asList(dag.getTaintSources(b)));
+		
+		String [] sources = dag.getTaintSources(e);
+		Arrays.sort(sources);
+		String [] expected = new String [] { a.getId(), x.getId() };
+		Arrays.sort(expected);
+		assertTrue("e is tainted by both sources", Arrays.equals(expected, sources));
+		
+		assertTrue("Taint tags are produced", dag.hasTag(e.getId(), ProvenanceCollection.TAINT_FLAG));
+		assertTrue("Per-source tags are produced", dag.getTags(e.getId()).containsKey("tainted-by-" + x.getId()));
+		assertTrue("Tainted nodes are listed as tagged", dag.getTaggedNodes().contains(d.getId()));
+		assertFalse("Untainted nodes have no taint tags", dag.hasTag(clean.getId(), ProvenanceCollection.TAINT_FLAG));
+	} // End testTraceTaintSources
 } // End TestTaint
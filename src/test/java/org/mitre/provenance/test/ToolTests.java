@@ -14,11 +14,19 @@
  */
 package org.mitre.provenance.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +35,8 @@ import org.mitre.provenance.client.ProvenanceClient;
 import org.mitre.provenance.contenthash.ContentHasher;
 import org.mitre.provenance.contenthash.MD5ContentHasher;
 import org.mitre.provenance.contenthash.SHA256ContentHasher;
+import org.mitre.provenance.tools.ConcurrentLRUCache;
+import org.mitre.provenance.tools.PersistentMap;
 
 public class ToolTests {
     @Before
@@ -53,4 +63,127 @@ public class ToolTests {
 		assertTrue("MD5 hashes correct", knownCorrectMD5.equals(md5Hash));
 		assertTrue("SHA256 hashes correct", knownCorrectSHA256.equals(sha256Hash)); 
 	}
+	
+	@Test
+	public void testPersistentMap() {
+		// Keys 0-9 and 10-19 in the same group have the same hash, to exercise collisions.
+		class Key {
+			final int n;
+			Key(int n) { this.n = n; }
+			public int hashCode() { return n % 10; }
+			public boolean equals(Object o) { return (o instanceof Key) && ((Key)o).n == n; }
+		}
+		
+		Random r = new Random(42);
+		HashMap<Object,Integer> expected = new HashMap<Object,Integer>();
+		PersistentMap<Object,Integer> map = PersistentMap.empty();
+		
+		for(int x=0; x<20000; x++) {
+			Object k = (x % 2 == 0 ? new Key(r.nextInt(30)) : (Object)Integer.valueOf(r.nextInt(5000)));
+			
+			if(r.nextInt(3) == 0) {
+				map = map.minus(k);
+				expected.remove(k);
+			} else {
+				Integer v = r.nextInt(100);
+				map = map.plus(k, v);
+				expected.put(k, v);
+			}
+		}
+		
+		assertEquals("Same size", expected.size(), map.size());
+		assertEquals("Same contents", expected, map.asMap());
+		
+		int count = 0;
+		for(Map.Entry<Object,Integer> e : map) {
+			assertEquals("Iteration matches", expected.get(e.getKey()), e.getValue());
+			count++;
+		}
+		assertEquals("Iteration visits every entry once", expected.size(), count);
+		
+		// Older versions are unaffected by changes.
+		PersistentMap<Object,Integer> before = map;
+		Object someKey = map.keySet().iterator().next();
+		PersistentMap<Object,Integer> after = map.minus(someKey).plus("new", 1);
+		assertTrue("Old version keeps the key", before.containsKey(someKey));
+		assertFalse("Old version lacks the new key", before.containsKey("new"));
+		assertFalse("New version lost the key", after.containsKey(someKey));
+		assertSame("Removing a missing key changes nothing", after, after.minus("missing"));
+		assertNull("Missing keys have no value", after.get("missing"));
+	} // End testPersistentMap
+	
+	@Test
+	public void testConcurrentLRUCacheEviction() {
+		// One segment, so eviction order is exactly least-recently used.
+		ConcurrentLRUCache<String,Integer> cache = new ConcurrentLRUCache<String,Integer>(3, 1);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		assertEquals("Full", 3, cache.size());
+		assertEquals("Nothing evicted yet", 0, cache.getEvictions());
+		
+		assertEquals("a cached", Integer.valueOf(1), cache.get("a"));
+		cache.put("d", 4);
+		
+		assertEquals("Still at capacity", 3, cache.size());
+		assertEquals("One eviction", 1, cache.getEvictions());
+		assertNull("Least recently used entry evicted", cache.get("b"));
+		assertEquals("Recently read entry kept", Integer.valueOf(1), cache.get("a"));
+		assertEquals("c kept", Integer.valueOf(3), cache.get("c"));
+		assertEquals("d kept", Integer.valueOf(4), cache.get("d"));
+		
+		// Replacing a value doesn't grow the cache or evict anything.
+		cache.put("d", 5);
+		assertEquals("Replaced", Integer.valueOf(5), cache.get("d"));
+		assertEquals("Size unchanged", 3, cache.size());
+		assertEquals("No further eviction", 1, cache.getEvictions());
+		
+		assertEquals("putIfAbsent keeps the existing value", Integer.valueOf(5), cache.putIfAbsent("d", 6));
+		assertEquals("Not replaced", Integer.valueOf(5), cache.get("d"));
+		assertNull("putIfAbsent stores a new key", cache.putIfAbsent("e", 7));
+		assertEquals("Stored", Integer.valueOf(7), cache.get("e"));
+		assertEquals("Still at capacity", 3, cache.size());
+		
+		// With more segments than entries fit in, the whole cache still stays within its capacity.
+		ConcurrentLRUCache<Integer,Integer> segmented = new ConcurrentLRUCache<Integer,Integer>(10);
+		for(int x=0; x<100; x++) segmented.put(x, x);
+		assertTrue("Within capacity", segmented.size() <= segmented.getCapacity());
+		assertEquals("Every dropped entry counted", 100 - segmented.size(), segmented.getEvictions());
+	} // End testConcurrentLRUCacheEviction
+	
+	@Test
+	public void testConcurrentLRUCacheCounters() {
+		ConcurrentLRUCache<String,Integer> cache = new ConcurrentLRUCache<String,Integer>(2, 1);
+		assertEquals("No lookups, no ratio", 0.0, cache.getHitRatio(), 0.0);
+		
+		cache.put("a", 1);
+		cache.get("a");
+		cache.get("a");
+		cache.get("missing");
+		cache.get("a");
+		
+		assertEquals("Hits", 3, cache.getHits());
+		assertEquals("Misses", 1, cache.getMisses());
+		assertEquals("Hit ratio", 0.75, cache.getHitRatio(), 0.0001);
+		
+		// Removing entries isn't eviction, and clearing doesn't reset the counters.
+		cache.put("b", 2);
+		cache.remove("a");
+		assertNull("Removed", cache.get("a"));
+		cache.clear();
+		assertEquals("Cleared", 0, cache.size());
+		assertEquals("No evictions", 0, cache.getEvictions());
+		assertEquals("Hits kept", 3, cache.getHits());
+		assertEquals("Misses kept", 2, cache.getMisses());
+		
+		try { 
+			cache.put("c", null);
+			fail("Null values aren't cached");
+		} catch(NullPointerException exc) { ; }
+		
+		try { 
+			new ConcurrentLRUCache<String,Integer>(0);
+			fail("Zero capacity is invalid");
+		} catch(IllegalArgumentException exc) { ; } 
+	} // End testConcurrentLRUCacheCounters
 }